@@ -0,0 +1,118 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import utils.AsyncLogger;
+import utils.ILogger;
+import utils.Logger;
+
+/**
+ * Measures what logging one request costs the thread serving it: the java.util.logging logger the
+ * clients use, and the asynchronous logger of the servers, waiting or dropping when its buffer is
+ * full. Messages are built the way the servers build them.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoggerBenchmark {
+  @Param({"SYNC", "ASYNC_BLOCK", "ASYNC_DROP"})
+  public String logger;
+
+  private ILogger log;
+  private Path directory;
+
+  /**
+   * Opens the logger on a file in a temporary directory.
+   *
+   * @throws IOException if the directory could not be created
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    this.directory = Files.createTempDirectory("logger-benchmark");
+    String file = this.directory.resolve("benchmark.log").toString();
+    switch (this.logger) {
+      case "SYNC":
+        this.log = new Logger("LoggerBenchmark", file);
+        java.util.logging.Logger.getLogger("LoggerBenchmark").setUseParentHandlers(false); // the file only, not the console
+        break;
+      case "ASYNC_BLOCK":
+        this.log = new AsyncLogger(file, 64 * 1024, AsyncLogger.OverflowPolicy.BLOCK);
+        break;
+      default:
+        this.log = new AsyncLogger(file, 64 * 1024, AsyncLogger.OverflowPolicy.DROP);
+        break;
+    }
+  }
+
+  /**
+   * Closes the logger and deletes its file.
+   *
+   * @throws IOException if the file could not be deleted
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    this.log.close();
+    try (Stream<Path> files = Files.walk(this.directory)) {
+      for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  /**
+   * Logs a request on one thread.
+   *
+   * @param counter the thread's counter
+   */
+  @Benchmark
+  @Threads(1)
+  public void log(Counter counter) {
+    this.log.log("Received a request to retrieve the value mapped to \"hello" + counter.next() + "\" from </127.0.0.1>:<50000>");
+  }
+
+  /**
+   * Logs a request on every core.
+   *
+   * @param counter the thread's counter
+   */
+  @Benchmark
+  @Threads(Threads.MAX)
+  public void logContended(Counter counter) {
+    this.log.log("Received a request to retrieve the value mapped to \"hello" + counter.next() + "\" from </127.0.0.1>:<50000>");
+  }
+
+  /**
+   * A number that makes every message different.
+   */
+  @State(Scope.Thread)
+  public static class Counter {
+    private int value;
+
+    private int next() {
+      return this.value++;
+    }
+  }
+}
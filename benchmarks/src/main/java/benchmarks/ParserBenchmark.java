@@ -0,0 +1,161 @@
+package benchmarks;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import servers.AbstractServer;
+import servers.ConcurrentTranslationService;
+import servers.RequestParser;
+import utils.BinaryProtocol;
+
+/**
+ * Measures the cost of a request between the socket and the store: parsing text and binary requests,
+ * and parsing plus executing them the way every server does.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ParserBenchmark {
+  private final RequestParser parser = new RequestParser();
+  private final byte[] textGet = "GET:hello".getBytes(StandardCharsets.UTF_8);
+  private final byte[] textPut = "PUT:hello:ciao".getBytes(StandardCharsets.UTF_8);
+  private final byte[] textMiss = "GET:goodbye".getBytes(StandardCharsets.UTF_8);
+  private final byte[] binaryGet = BinaryProtocol.encodeRequest(BinaryProtocol.OP_GET, 1, "hello", null);
+  private final byte[] binaryPut = BinaryProtocol.encodeRequest(BinaryProtocol.OP_PUT, 2, "hello", "ciao");
+  private ExecutingServer server;
+
+  /**
+   * Creates a server over a store holding the key the requests use.
+   */
+  @Setup(Level.Trial)
+  public void setUp() {
+    this.server = new ExecutingServer();
+    this.server.setLogger(new SilentLogger());
+    ConcurrentTranslationService store = new ConcurrentTranslationService(16);
+    store.put("hello", "ciao");
+    this.server.setTranslationService(store);
+  }
+
+  /**
+   * Parses a text GET.
+   *
+   * @return the outcome
+   */
+  @Benchmark
+  public int parseTextGet() {
+    return this.parser.parseText(this.textGet, 0, this.textGet.length);
+  }
+
+  /**
+   * Parses a text PUT.
+   *
+   * @return the outcome
+   */
+  @Benchmark
+  public int parseTextPut() {
+    return this.parser.parseText(this.textPut, 0, this.textPut.length);
+  }
+
+  /**
+   * Parses a binary GET.
+   *
+   * @return the outcome
+   */
+  @Benchmark
+  public int parseBinaryGet() {
+    return this.parser.parseBinary(this.binaryGet, 0, this.binaryGet.length);
+  }
+
+  /**
+   * Parses and executes a text GET that finds its key, encoding the reply.
+   *
+   * @return the encoded reply
+   */
+  @Benchmark
+  public byte[] executeTextGet() {
+    return this.server.executeText(this.parser, this.parser.parseText(this.textGet, 0, this.textGet.length));
+  }
+
+  /**
+   * Parses and executes a text GET that misses, which builds a failure message, encoding the reply.
+   *
+   * @return the encoded reply
+   */
+  @Benchmark
+  public byte[] executeTextMiss() {
+    return this.server.executeText(this.parser, this.parser.parseText(this.textMiss, 0, this.textMiss.length));
+  }
+
+  /**
+   * Parses and executes a text PUT, encoding the reply.
+   *
+   * @return the encoded reply
+   */
+  @Benchmark
+  public byte[] executeTextPut() {
+    return this.server.executeText(this.parser, this.parser.parseText(this.textPut, 0, this.textPut.length));
+  }
+
+  /**
+   * Parses and executes a binary GET, encoding the reply frame.
+   *
+   * @return the reply frame
+   */
+  @Benchmark
+  public byte[] executeBinaryGet() {
+    return this.server.executeBinary(this.parser, this.parser.parseBinary(this.binaryGet, 0, this.binaryGet.length));
+  }
+
+  /**
+   * Parses and executes a binary PUT, encoding the reply frame.
+   *
+   * @return the reply frame
+   */
+  @Benchmark
+  public byte[] executeBinaryPut() {
+    return this.server.executeBinary(this.parser, this.parser.parseBinary(this.binaryPut, 0, this.binaryPut.length));
+  }
+
+  /**
+   * A server that is never started, exposing the request execution every server shares.
+   */
+  private static final class ExecutingServer extends AbstractServer {
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    private ExecutingServer() {
+      super(String.valueOf(Transports.MIN_PORT));
+    }
+
+    private byte[] executeText(RequestParser request, int outcome) {
+      return this.executeText(request, outcome, null, LOOPBACK, 0);
+    }
+
+    private byte[] executeBinary(RequestParser request, int outcome) {
+      return this.executeBinary(request, outcome, null, LOOPBACK, 0);
+    }
+
+    @Override
+    public void execute() {
+    }
+
+    @Override
+    public void shutdown() {
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package benchmarks;
+
+import utils.ILogger;
+
+/**
+ * This class represents a logger that records nothing, so that benchmarks of the servers do not
+ * measure logging.
+ */
+final class SilentLogger implements ILogger {
+  /**
+   * Discards a message.
+   *
+   * @param msg the message
+   */
+  @Override
+  public void log(String msg) {
+  }
+
+  /**
+   * Tells callers not to build messages.
+   *
+   * @return false
+   */
+  @Override
+  public boolean isEnabled() {
+    return false;
+  }
+
+  /**
+   * Does nothing.
+   */
+  @Override
+  public void close() {
+  }
+}
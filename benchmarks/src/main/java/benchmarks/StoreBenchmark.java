@@ -0,0 +1,256 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import servers.ConcurrentTranslationService;
+import servers.ITranslationService;
+import servers.OffHeapTranslationService;
+import servers.TranslationService;
+
+/**
+ * Measures GET, PUT and DELETE against every store, on one thread and on as many threads as there are
+ * cores, across key lengths and the share of GETs that find their key. SYNCHRONIZED is the plain
+ * hashmap behind a single lock, the baseline the concurrent stores should beat under contention.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StoreBenchmark {
+  private static final int KEY_COUNT = 64 * 1024;
+  private static final int LOOKUPS = 64 * 1024; // a power of two, walked with a mask
+  private static final int VALUES = 16;
+
+  @Param({"CONCURRENT", "SYNCHRONIZED", "OFFHEAP"})
+  public String store;
+
+  @Param({"16", "256"})
+  public int keyLength;
+
+  @Param({"1.0", "0.5"})
+  public double hitRatio;
+
+  private ITranslationService translationService;
+  private String[] keys;
+  private String[] values;
+  private String[] lookups;
+  private final AtomicInteger threadOffsets = new AtomicInteger();
+
+  /**
+   * Fills the store and prepares the keys every operation walks through.
+   */
+  @Setup(Level.Trial)
+  public void setUp() {
+    switch (this.store) {
+      case "CONCURRENT":
+        this.translationService = new ConcurrentTranslationService(KEY_COUNT * 2);
+        break;
+      case "SYNCHRONIZED":
+        this.translationService = new SynchronizedTranslationService(new TranslationService());
+        break;
+      default:
+        this.translationService = new OffHeapTranslationService(KEY_COUNT * 2);
+        break;
+    }
+    Random random = new Random(42);
+    this.values = new String[VALUES];
+    for (int i = 0; i < VALUES; i++) {
+      this.values[i] = "translation" + i;
+    }
+    this.keys = new String[KEY_COUNT];
+    for (int i = 0; i < KEY_COUNT; i++) {
+      this.keys[i] = key(random, i, this.keyLength);
+      this.translationService.put(this.keys[i], this.values[i & (VALUES - 1)]);
+    }
+    List<String> lookups = new ArrayList<>(LOOKUPS);
+    for (int i = 0; i < LOOKUPS; i++) {
+      lookups.add(i < LOOKUPS * this.hitRatio ? this.keys[random.nextInt(KEY_COUNT)] : key(random, KEY_COUNT + i, this.keyLength));
+    }
+    Collections.shuffle(lookups, random);
+    this.lookups = lookups.toArray(new String[0]);
+  }
+
+  /**
+   * Releases the off-heap memory of the store.
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    this.translationService.close();
+  }
+
+  private static String key(Random random, int id, int length) {
+    StringBuilder key = new StringBuilder(length).append(id).append('-');
+    while (key.length() < length) {
+      key.append((char) ('a' + random.nextInt(26)));
+    }
+    return key.substring(0, length);
+  }
+
+  /**
+   * The position of a benchmark thread in the prepared keys, so that threads do not walk in lockstep.
+   */
+  @State(Scope.Thread)
+  public static class Cursor {
+    private int next;
+
+    /**
+     * Starts the thread at its own offset.
+     *
+     * @param benchmark the shared state
+     */
+    @Setup(Level.Trial)
+    public void setUp(StoreBenchmark benchmark) {
+      this.next = benchmark.threadOffsets.getAndIncrement() * 7919;
+    }
+
+    private int next() {
+      return this.next++;
+    }
+  }
+
+  private String read(Cursor cursor) {
+    return this.translationService.get(this.lookups[cursor.next() & (LOOKUPS - 1)]);
+  }
+
+  private String write(Cursor cursor) {
+    int i = cursor.next() & (KEY_COUNT - 1);
+    return this.translationService.put(this.keys[i], this.values[i & (VALUES - 1)]);
+  }
+
+  private String remove(Cursor cursor) {
+    int i = cursor.next() & (KEY_COUNT - 1);
+    this.translationService.delete(this.keys[i]);
+    return this.translationService.put(this.keys[i], this.values[i & (VALUES - 1)]); // keep the store full
+  }
+
+  /**
+   * A GET on one thread.
+   *
+   * @param cursor the thread's cursor
+   * @return the reply
+   */
+  @Benchmark
+  @Threads(1)
+  public String get(Cursor cursor) {
+    return this.read(cursor);
+  }
+
+  /**
+   * A GET on every core.
+   *
+   * @param cursor the thread's cursor
+   * @return the reply
+   */
+  @Benchmark
+  @Threads(Threads.MAX)
+  public String getContended(Cursor cursor) {
+    return this.read(cursor);
+  }
+
+  /**
+   * A PUT over an existing key on one thread.
+   *
+   * @param cursor the thread's cursor
+   * @return the reply
+   */
+  @Benchmark
+  @Threads(1)
+  public String put(Cursor cursor) {
+    return this.write(cursor);
+  }
+
+  /**
+   * A PUT over an existing key on every core.
+   *
+   * @param cursor the thread's cursor
+   * @return the reply
+   */
+  @Benchmark
+  @Threads(Threads.MAX)
+  public String putContended(Cursor cursor) {
+    return this.write(cursor);
+  }
+
+  /**
+   * A DELETE followed by the PUT that restores the key, on one thread.
+   *
+   * @param cursor the thread's cursor
+   * @return the reply
+   */
+  @Benchmark
+  @Threads(1)
+  public String deleteAndPut(Cursor cursor) {
+    return this.remove(cursor);
+  }
+
+  /**
+   * A DELETE followed by the PUT that restores the key, on every core.
+   *
+   * @param cursor the thread's cursor
+   * @return the reply
+   */
+  @Benchmark
+  @Threads(Threads.MAX)
+  public String deleteAndPutContended(Cursor cursor) {
+    return this.remove(cursor);
+  }
+
+  /**
+   * The plain hashmap store behind a single lock.
+   */
+  private static final class SynchronizedTranslationService implements ITranslationService {
+    private final ITranslationService delegate;
+
+    private SynchronizedTranslationService(ITranslationService delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public synchronized String put(String key, String value) {
+      return this.delegate.put(key, value);
+    }
+
+    @Override
+    public synchronized String get(String key) {
+      return this.delegate.get(key);
+    }
+
+    @Override
+    public synchronized String delete(String key) {
+      return this.delegate.delete(key);
+    }
+
+    @Override
+    public synchronized int size() {
+      return this.delegate.size();
+    }
+
+    @Override
+    public synchronized void forEach(BiConsumer<String, String> action) {
+      this.delegate.forEach(action);
+    }
+  }
+}
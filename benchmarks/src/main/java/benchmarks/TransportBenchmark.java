@@ -0,0 +1,170 @@
+package benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures GET round trips over the loopback interface against a server running in the same JVM,
+ * from one client and from as many clients as there are cores, each with its own socket. A UDP
+ * request whose reply is lost counts as a round trip after a 1 s timeout, so a lossy run shows up as
+ * a collapse in throughput.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransportBenchmark {
+  private static final byte[] REQUEST = "GET:hello\n".getBytes(StandardCharsets.UTF_8);
+
+  @Param({"TCP", "NIO", "UDP"})
+  public String transport;
+
+  private int port;
+  private Thread server;
+
+  /**
+   * Starts the server.
+   *
+   * @throws IOException if the server did not come up
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    this.port = Transports.freePort();
+    this.server = Transports.start(this.transport, this.port, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Stops the server.
+   *
+   * @throws IOException if the server could not be asked to stop
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Transports.stop(this.transport, this.port, this.server);
+  }
+
+  /**
+   * A client of the server: a TCP connection or a UDP socket.
+   */
+  @State(Scope.Thread)
+  public static class Client {
+    private final byte[] reply = new byte[256];
+    private Socket socket;
+    private OutputStream out;
+    private InputStream in;
+    private DatagramSocket datagramSocket;
+    private DatagramPacket request;
+    private DatagramPacket response;
+
+    /**
+     * Connects to the server.
+     *
+     * @param benchmark the shared state
+     * @throws IOException if the client could not connect
+     */
+    @Setup(Level.Trial)
+    public void setUp(TransportBenchmark benchmark) throws IOException {
+      InetAddress loopback = InetAddress.getLoopbackAddress();
+      if (benchmark.transport.equals("UDP")) {
+        this.datagramSocket = new DatagramSocket();
+        this.datagramSocket.setSoTimeout(1000);
+        this.request = new DatagramPacket(REQUEST, REQUEST.length - 1, loopback, benchmark.port);
+        this.response = new DatagramPacket(this.reply, this.reply.length);
+      } else {
+        this.socket = new Socket(loopback, benchmark.port);
+        this.socket.setTcpNoDelay(true);
+        this.out = this.socket.getOutputStream();
+        this.in = new BufferedInputStream(this.socket.getInputStream());
+      }
+    }
+
+    /**
+     * Disconnects from the server.
+     *
+     * @throws IOException if the socket could not be closed
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      if (this.socket != null) {
+        this.socket.close();
+      }
+      if (this.datagramSocket != null) {
+        this.datagramSocket.close();
+      }
+    }
+
+    private int roundTrip() throws IOException {
+      if (this.datagramSocket != null) {
+        this.datagramSocket.send(this.request);
+        this.response.setLength(this.reply.length);
+        try {
+          this.datagramSocket.receive(this.response);
+        } catch (SocketTimeoutException e) { // lost: move on
+          return -1;
+        }
+        return this.response.getLength();
+      }
+      this.out.write(REQUEST);
+      int length = 0;
+      for (int b = this.in.read(); b != '\n'; b = this.in.read()) {
+        if (b == -1) {
+          throw new IOException("The server closed the connection");
+        }
+        length++;
+      }
+      return length;
+    }
+  }
+
+  /**
+   * A GET round trip from one client.
+   *
+   * @param client the client
+   * @return the length of the reply
+   * @throws IOException if the connection failed
+   */
+  @Benchmark
+  @Threads(1)
+  public int roundTrip(Client client) throws IOException {
+    return client.roundTrip();
+  }
+
+  /**
+   * A GET round trip from each of as many clients as there are cores.
+   *
+   * @param client the client
+   * @return the length of the reply
+   * @throws IOException if the connection failed
+   */
+  @Benchmark
+  @Threads(Threads.MAX)
+  public int roundTripContended(Client client) throws IOException {
+    return client.roundTrip();
+  }
+}
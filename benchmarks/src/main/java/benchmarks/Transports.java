@@ -0,0 +1,128 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import servers.ConcurrentTranslationService;
+import servers.IServer;
+import servers.NIOServer;
+import servers.TCPServer;
+import servers.UDPServer;
+
+/**
+ * This class starts and stops the servers the transport benchmarks talk to over the loopback
+ * interface.
+ */
+final class Transports {
+  /**
+   * The lowest port the servers accept.
+   */
+  static final int MIN_PORT = 49152;
+  private static final int MAX_PORT = 65535;
+
+  private Transports() {
+  }
+
+  /**
+   * Finds a port that is free for both TCP and UDP.
+   *
+   * @return the port
+   * @throws IOException if every port is taken
+   */
+  static int freePort() throws IOException {
+    for (int port = MIN_PORT + (int) (System.nanoTime() % 1000); port <= MAX_PORT; port++) {
+      try (ServerSocket tcp = new ServerSocket(port); DatagramSocket udp = new DatagramSocket(port)) {
+        return port;
+      } catch (IOException e) { // taken: try the next one
+      }
+    }
+    throw new IOException("No free port");
+  }
+
+  /**
+   * Starts a server on its own thread, holding a single translation, and waits until it answers.
+   *
+   * @param transport TCP, NIO or UDP
+   * @param port      the port
+   * @param threads   the number of reactor threads or receive workers
+   * @return the thread running the server
+   * @throws IOException if the server did not come up
+   */
+  static Thread start(String transport, int port, int threads) throws IOException {
+    IServer server;
+    switch (transport) {
+      case "TCP":
+        server = new TCPServer(String.valueOf(port));
+        break;
+      case "NIO":
+        server = new NIOServer(String.valueOf(port), threads);
+        break;
+      default:
+        server = new UDPServer(String.valueOf(port), threads);
+        break;
+    }
+    server.setLogger(new SilentLogger());
+    ConcurrentTranslationService store = new ConcurrentTranslationService(16);
+    store.put("hello", "ciao");
+    server.setTranslationService(store);
+    Thread thread = new Thread(server::execute, transport + "-benchmark-server");
+    thread.setDaemon(true);
+    thread.start();
+    if (!transport.equals("UDP")) {
+      awaitTcp(port);
+    } else {
+      try {
+        Thread.sleep(200); // nothing to connect to: give the workers time to bind
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return thread;
+  }
+
+  /**
+   * Asks a server to stop and waits for it.
+   *
+   * @param transport TCP, NIO or UDP
+   * @param port      the port
+   * @param thread    the thread running the server
+   * @throws IOException if the request could not be sent
+   */
+  static void stop(String transport, int port, Thread thread) throws IOException {
+    byte[] stop = "server stop\n".getBytes(StandardCharsets.UTF_8);
+    if (transport.equals("UDP")) {
+      try (DatagramSocket socket = new DatagramSocket()) {
+        socket.send(new java.net.DatagramPacket(stop, stop.length - 1, InetAddress.getLoopbackAddress(), port));
+      }
+    } else {
+      try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+        socket.getOutputStream().write(stop);
+        socket.getInputStream().read();
+      }
+    }
+    try {
+      thread.join(5000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void awaitTcp(int port) throws IOException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (true) {
+      try (Socket socket = new Socket()) {
+        socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 100);
+        return;
+      } catch (IOException e) {
+        if (System.currentTimeMillis() > deadline) {
+          throw e;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package servers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import utils.BinaryProtocol;
+import utils.ILogger;
+
+/**
+ * Checks that the binary replies a server builds stay within the payload length clients accept: an
+ * MGET whose list would not fit is refused, and a scan page ends early with a cursor, rather than
+ * sending a payload the client cannot read and leaving the connection misaligned.
+ */
+class AbstractServerTest {
+  private static final String LARGE_VALUE = "v".repeat(600 * 1024);
+
+  @Test
+  void refusesAnMgetReplyTooLargeToRead() throws IOException {
+    AbstractServer server = server(new ConcurrentTranslationService());
+    server.translationService.put("a", LARGE_VALUE);
+    server.translationService.put("b", LARGE_VALUE);
+    BinaryProtocol.Reply reply = request(server, BinaryProtocol.encodeBatchRequest(BinaryProtocol.OP_MGET, 7, List.of("a", "b"), null));
+    assertEquals(BinaryProtocol.STATUS_FAILED, reply.status);
+    assertEquals(7, reply.requestId);
+    assertTrue(reply.payload.startsWith("FAIL:"), reply.payload);
+    reply = request(server, BinaryProtocol.encodeBatchRequest(BinaryProtocol.OP_MGET, 8, List.of("a", "c"), null));
+    assertEquals(BinaryProtocol.STATUS_OK, reply.status);
+    assertEquals(Arrays.asList(LARGE_VALUE, null), reply.items());
+  }
+
+  @Test
+  void endsAScanPageBeforeItIsTooLargeToRead() throws IOException {
+    AbstractServer server = server(new SortedIndexTranslationService(new ConcurrentTranslationService()));
+    int pairs = BinaryProtocol.MAX_SCAN_LIMIT;
+    for (int i = 0; i < pairs; i++) {
+      server.translationService.put(String.format("key%05d", i), "v".repeat(100));
+    }
+    String cursor = "";
+    int listed = 0;
+    int pages = 0;
+    do {
+      BinaryProtocol.Reply reply = request(server, BinaryProtocol.encodeBatchRequest(BinaryProtocol.OP_PREFIX, pages, List.of("key",
+          String.valueOf(BinaryProtocol.MAX_SCAN_LIMIT), cursor), null));
+      assertEquals(BinaryProtocol.STATUS_OK, reply.status, reply.payload);
+      List<String> items = reply.items();
+      assertEquals(String.format("key%05d", listed), items.get(1));
+      listed += (items.size() - 1) / 2;
+      cursor = items.get(0) == null ? "" : items.get(0);
+      pages++;
+    } while (!cursor.isEmpty());
+    assertEquals(pairs, listed);
+    assertTrue(pages > 1, "a single page of " + pairs + " pairs");
+  }
+
+  private static AbstractServer server(ITranslationService translationService) {
+    AbstractServer server = new AbstractServer("50000") {
+      @Override
+      public void execute() {
+      }
+
+      @Override
+      public void shutdown() {
+      }
+    };
+    server.setLogger(new ILogger() {
+      @Override
+      public void log(String msg) {
+      }
+
+      @Override
+      public boolean isEnabled() {
+        return false;
+      }
+
+      @Override
+      public void close() {
+      }
+    });
+    server.setTranslationService(translationService);
+    return server;
+  }
+
+  private static BinaryProtocol.Reply request(AbstractServer server, byte[] frame) throws IOException {
+    RequestParser parser = new RequestParser();
+    int outcome = parser.parseBinary(frame, 0, frame.length);
+    byte[] reply = server.executeBinary(parser, outcome, null, InetAddress.getLoopbackAddress(), 50001);
+    return BinaryProtocol.decodeReply(ByteBuffer.wrap(reply));
+  }
+}
@@ -0,0 +1,84 @@
+package servers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Writes, deletes and reads overlapping keys from 64 threads through a capped store, checking that
+ * the store and the eviction policy agree afterwards: every pair left is tracked once, and the cap
+ * holds.
+ */
+class BoundedTranslationServiceTest {
+  private static final int THREADS = 64;
+  private static final int OPERATIONS_PER_THREAD = 20_000;
+  private static final int KEYS = 5000;
+  private static final int CAP = 1000;
+  private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+  @AfterEach
+  void shutdown() throws InterruptedException {
+    this.executor.shutdownNow();
+    this.executor.awaitTermination(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  void clockPolicyTracksTheStore() throws Exception {
+    this.hammer(new ClockEvictionPolicy());
+  }
+
+  @Test
+  void tinyLfuPolicyTracksTheStore() throws Exception {
+    this.hammer(new TinyLfuEvictionPolicy(CAP, CAP));
+  }
+
+  private void hammer(IEvictionPolicy policy) throws Exception {
+    ConcurrentTranslationService store = new ConcurrentTranslationService();
+    BoundedTranslationService bounded = new BoundedTranslationService(store, policy, CAP, false);
+    CyclicBarrier start = new CyclicBarrier(THREADS);
+    List<Future<Void>> futures = new ArrayList<>(THREADS);
+    for (int thread = 0; thread < THREADS; thread++) {
+      futures.add(this.executor.submit(() -> {
+        start.await();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+          String key = (random.nextBoolean() ? "Key" : "key") + random.nextInt(KEYS);
+          int operation = random.nextInt(10);
+          if (operation < 4) {
+            assertEquals("SUCCESS", bounded.put(key, "v" + i));
+          } else if (operation < 5) {
+            bounded.delete(key);
+          } else if (operation < 6) {
+            bounded.putAll(List.of(key, key + "b"), List.of("a", "b"));
+          } else {
+            bounded.get(new CharSlice().set(key.toCharArray(), 0, key.length()));
+          }
+        }
+        return null;
+      }));
+    }
+    for (Future<Void> future : futures) {
+      future.get(60, TimeUnit.SECONDS);
+    }
+    assertEquals(store.size(), bounded.getWeightedSize(), "pairs in the store versus pairs tracked by the policy");
+    assertTrue(store.size() <= CAP, () -> store.size() + " pairs over a cap of " + CAP);
+    assertTrue(bounded.getEvictions() > 0);
+    assertTrue(bounded.getHits() + bounded.getMisses() > 0);
+    for (int i = 0; i < 2 * CAP; i++) { // the policy can evict every pair it tracks, and nothing else
+      bounded.put("fresh" + i, "x");
+    }
+    assertEquals(CAP, store.size());
+    assertEquals(CAP, bounded.getWeightedSize());
+  }
+}
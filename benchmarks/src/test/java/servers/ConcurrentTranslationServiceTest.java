@@ -0,0 +1,125 @@
+package servers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Hammers the concurrent store from 64 threads at once, checking that no PUT or DELETE is lost and
+ * that every GET sees a value that was written, never an older one than it already saw.
+ */
+class ConcurrentTranslationServiceTest {
+  private static final int THREADS = 64;
+  private static final int KEYS_PER_THREAD = 2000;
+  private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+  @AfterEach
+  void shutdown() throws InterruptedException {
+    this.executor.shutdownNow();
+    this.executor.awaitTermination(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  void noPutOrDeleteIsLost() throws Exception {
+    ConcurrentTranslationService store = new ConcurrentTranslationService();
+    this.runAll(thread -> () -> {
+      for (int i = 0; i < KEYS_PER_THREAD; i++) {
+        assertEquals("SUCCESS", store.put("Key-" + thread + "-" + i, "value-" + thread + "-" + i));
+      }
+      return null;
+    });
+    assertEquals(THREADS * KEYS_PER_THREAD, store.size());
+    for (int thread = 0; thread < THREADS; thread++) {
+      for (int i = 0; i < KEYS_PER_THREAD; i++) {
+        assertEquals("value-" + thread + "-" + i, store.get("key-" + thread + "-" + i));
+      }
+    }
+    this.runAll(thread -> () -> {
+      for (int i = 0; i < KEYS_PER_THREAD; i += 2) {
+        assertEquals("SUCCESS", store.delete("KEY-" + thread + "-" + i));
+      }
+      return null;
+    });
+    assertEquals(THREADS * KEYS_PER_THREAD / 2, store.size());
+    for (int thread = 0; thread < THREADS; thread++) {
+      for (int i = 0; i < KEYS_PER_THREAD; i++) {
+        String value = store.get("key-" + thread + "-" + i);
+        assertEquals(i % 2 == 0 ? ITranslationService.notFound("key-" + thread + "-" + i) : "value-" + thread + "-" + i, value);
+      }
+    }
+  }
+
+  @Test
+  void readsSeeWrittenValuesInOrder() throws Exception {
+    ConcurrentTranslationService store = new ConcurrentTranslationService();
+    int writers = THREADS / 2;
+    int keysPerWriter = 4;
+    int rounds = 20_000;
+    this.runAll(thread -> () -> {
+      if (thread < writers) { // the only writer of its keys, with ever growing sequences
+        for (int sequence = 1; sequence <= rounds; sequence++) {
+          String key = "k" + (thread * keysPerWriter + sequence % keysPerWriter);
+          if (sequence % 7 == 0) {
+            store.delete(key);
+          } else {
+            assertEquals("SUCCESS", store.put(key, key + "@" + sequence));
+          }
+        }
+        return null;
+      }
+      long[] seen = new long[writers * keysPerWriter];
+      for (int i = 0; i < 4 * rounds; i++) {
+        int index = ThreadLocalRandom.current().nextInt(seen.length);
+        String key = "k" + index;
+        String value = i % 2 == 0 ? store.get(key) : decode(store.getEncoded(key));
+        if (value == null || value.startsWith("FAIL:")) {
+          continue;
+        }
+        assertTrue(value.startsWith(key + "@"), () -> key + " mapped to " + value);
+        long sequence = Long.parseLong(value.substring(key.length() + 1));
+        assertTrue(sequence >= seen[index], () -> key + " went back from " + seen[index] + " to " + sequence);
+        seen[index] = sequence;
+      }
+      return null;
+    });
+  }
+
+  private static String decode(byte[] value) {
+    return value == null ? null : new String(value, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Runs a task on every thread, released together, and rethrows the first failure.
+   */
+  private void runAll(TaskFactory factory) throws Exception {
+    CyclicBarrier start = new CyclicBarrier(THREADS);
+    List<Future<Void>> futures = new ArrayList<>(THREADS);
+    for (int thread = 0; thread < THREADS; thread++) {
+      Callable<Void> task = factory.create(thread);
+      futures.add(this.executor.submit(() -> {
+        start.await();
+        return task.call();
+      }));
+    }
+    for (Future<Void> future : futures) {
+      future.get(60, TimeUnit.SECONDS);
+    }
+  }
+
+  private interface TaskFactory {
+    Callable<Void> create(int thread);
+  }
+}
@@ -0,0 +1,92 @@
+package servers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import utils.BinaryProtocol;
+
+/**
+ * Checks the text parser against the {@code String.split(":")} parsing it replaced, on random
+ * requests: the same requests must be malformed, lack a value or name an unknown operation, and the
+ * others must yield the same operation, key and value. The one intended difference is the optional
+ * TTL of a PUT, a fourth field the old parsing refused.
+ */
+class RequestParserTest {
+  private static final String[] OPERATIONS = {"GET", "get", "Put", "PUT", "DELETE", "delete", "FOO", "", "GETS"};
+  private static final String[] PIECES = {"a", "B", "é", "日本", " ", ":", "::", "0", "7", "-1", "x y"};
+
+  @Test
+  void matchesSplitSemantics() {
+    Random random = new Random(42);
+    RequestParser parser = new RequestParser();
+    for (int i = 0; i < 200_000; i++) {
+      StringBuilder request = new StringBuilder(OPERATIONS[random.nextInt(OPERATIONS.length)]);
+      int pieces = random.nextInt(8);
+      for (int j = 0; j < pieces; j++) {
+        request.append(random.nextInt(3) == 0 ? ":" : PIECES[random.nextInt(PIECES.length)]);
+      }
+      check(parser, request.toString());
+    }
+  }
+
+  @Test
+  void parsesTheUsualRequests() {
+    RequestParser parser = new RequestParser();
+    for (String request : new String[] {"PUT:hello:ciao", "get:hello", "DELETE:thank you", "PUT:yes:sì", "PUT:key", "GET", "GET:",
+        ":hello", "PUT:k:v:10", "PUT:k:v:0", "PUT:k:v:w", "PUT:k::5", "GET:k:v:w", "FOO:k"}) {
+      check(parser, request);
+    }
+  }
+
+  private static void check(RequestParser parser, String request) {
+    byte[] data = request.getBytes(StandardCharsets.UTF_8);
+    int outcome = parser.parseText(data, 0, data.length);
+    String[] elements = request.split(":");
+    String operation = elements.length == 0 ? "" : elements[0].toUpperCase();
+    boolean put = operation.equals("PUT");
+    if (elements.length == 4 && put) { // PUT:key:value:ttlSeconds
+      if (elements[2].isEmpty()) {
+        assertEquals(RequestParser.MISSING_VALUE, outcome, request);
+        return;
+      }
+      int ttl = positiveInt(elements[3]);
+      assertEquals(ttl > 0 ? RequestParser.OK : RequestParser.MALFORMED, outcome, request);
+      if (ttl > 0) {
+        assertEquals(ttl, parser.getTtlSeconds(), request);
+        assertFields(parser, elements, request);
+      }
+      return;
+    }
+    if (elements.length < 2 || elements.length > 3) {
+      assertEquals(RequestParser.MALFORMED, outcome, request);
+    } else if (!put && !operation.equals("GET") && !operation.equals("DELETE")) {
+      assertEquals(RequestParser.UNKNOWN_OPERATION, outcome, request);
+    } else if (put && elements.length == 2) {
+      assertEquals(RequestParser.MISSING_VALUE, outcome, request);
+    } else {
+      assertEquals(RequestParser.OK, outcome, request);
+      assertEquals(BinaryProtocol.opcodeOf(operation), parser.getOpcode(), request);
+      assertFields(parser, elements, request);
+    }
+  }
+
+  private static void assertFields(RequestParser parser, String[] elements, String request) {
+    assertEquals(elements[1], parser.getKey().toString(), request);
+    if (elements[0].equalsIgnoreCase("PUT")) {
+      assertEquals(elements[2], parser.getValue().toString(), request);
+    }
+  }
+
+  private static int positiveInt(String field) {
+    try {
+      int value = Integer.parseInt(field);
+      return value > 0 ? value : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
@@ -1,15 +1,29 @@
 package clients;
 
+import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import utils.BinaryProtocol;
 import utils.ILogger;
 
 /**
  * The class abstract client contains attributes and methods for all types of client.
  */
 public abstract class AbstractClient implements IClient {
+  private static final Pattern QUOTED = Pattern.compile("\"([^\"]*)\"");
   /**
    * The IP address.
    */
@@ -30,22 +44,49 @@ public abstract class AbstractClient implements IClient {
    * The logger.
    */
   protected ILogger logger;
+  /**
+   * Whether requests are sent as binary frames.
+   */
+  protected boolean binaryProtocol;
+  /**
+   * The id of the last binary request sent.
+   */
+  protected int requestId;
+  /**
+   * The cache of the translations read, or null.
+   */
+  protected NearCache nearCache;
+  /**
+   * The servers the keys are spread over; a single one unless the client is sharded.
+   */
+  protected final ConsistentHashRing<InetSocketAddress> ring = new ConsistentHashRing<>();
+  /**
+   * The values of the last MGET reply rendered, with null for every unknown key.
+   */
+  protected List<String> renderedItems;
 
   /**
    * Instantiates a new abstract client.
    *
-   * @param hostname the hostname
-   * @param port     the port
+   * @param hostname the hostname, or a comma-separated list of host[:port] servers to shard the keys
+   *                 over
+   * @param port     the port, for the servers listed without one
    */
   protected AbstractClient(String hostname, String port) {
-    InetAddress address = this.getHostname(hostname);
-    int portNumber = this.getPort(port);
-    if (address == null || portNumber == -1) {
-      this.logger.close();
-      System.exit(1);
-    } else {
-      this.setAddress(address);
-      this.setPortNumber(portNumber);
+    for (String node : hostname.split(",")) {
+      int colon = node.lastIndexOf(':');
+      InetAddress address = this.getHostname(colon == -1 ? node.trim() : node.substring(0, colon).trim());
+      int portNumber = this.getPort(colon == -1 ? port : node.substring(colon + 1).trim());
+      if (address == null || portNumber == -1) {
+        this.logger.close();
+        System.exit(1);
+      } else {
+        if (this.address == null) { // the first server
+          this.setAddress(address);
+          this.setPortNumber(portNumber);
+        }
+        this.ring.add(new InetSocketAddress(address, portNumber));
+      }
     }
   }
 
@@ -114,11 +155,365 @@ public abstract class AbstractClient implements IClient {
     this.logger = logger;
   }
 
+  /**
+   * Chooses between the binary protocol and the PUT/GET/DELETE:key:value text protocol.
+   *
+   * @param binaryProtocol whether requests are sent as binary frames
+   */
+  @Override
+  public void setBinaryProtocol(boolean binaryProtocol) {
+    this.binaryProtocol = binaryProtocol;
+  }
+
+  /**
+   * Caches the translations read in a near cache, kept consistent by the invalidations the server
+   * pushes once the client turns tracking on.
+   *
+   * @param nearCache the near cache, or null to read every translation from the server
+   */
+  @Override
+  public void setNearCache(NearCache nearCache) {
+    this.nearCache = nearCache;
+  }
+
+  /**
+   * Splits a request into the requests each server has to answer: a single-key request goes to the
+   * server of its key, a batch request is split into one batch per server, and a request without a
+   * key (TRACKING, STATS, PREFIX, RANGE, server stop) goes to every server.
+   *
+   * @param index   the position of the request among the requests sent together
+   * @param request the text request
+   * @return the parts, at most one per server
+   */
+  protected List<Part> split(int index, String request) {
+    List<InetSocketAddress> nodes = this.ring.getNodes();
+    String[] elements = request.split(":");
+    byte opcode = BinaryProtocol.opcodeOf(elements[0]);
+    if (nodes.size() == 1 || (elements.length >= 2 && opcode != BinaryProtocol.OP_TRACKING && opcode != BinaryProtocol.OP_STATS
+        && !BinaryProtocol.isBatch(opcode) && !BinaryProtocol.isScan(opcode))) { // a single server, or a single key (or an invalid request, which the server of its key reports)
+      return List.of(new Part(index, nodes.size() == 1 ? nodes.get(0) : this.ring.nodeOf(elements[1]), request, null));
+    }
+    List<Part> parts = new ArrayList<>();
+    if (!BinaryProtocol.isBatch(opcode) || elements.length < 2) {
+      for (InetSocketAddress node : nodes) {
+        parts.add(new Part(index, node, request, null));
+      }
+      return parts;
+    }
+    int step = opcode == BinaryProtocol.OP_MPUT ? 2 : 1;
+    Map<InetSocketAddress, StringBuilder> requests = new LinkedHashMap<>();
+    Map<InetSocketAddress, List<Integer>> positions = new LinkedHashMap<>();
+    for (int i = 1; i < elements.length; i += step) {
+      InetSocketAddress node = this.ring.nodeOf(elements[i]);
+      StringBuilder part = requests.computeIfAbsent(node, n -> new StringBuilder(elements[0]));
+      for (int j = i; j < Math.min(i + step, elements.length); j++) { // a missing MPUT value is left for the server to report
+        part.append(':').append(elements[j]);
+      }
+      positions.computeIfAbsent(node, n -> new ArrayList<>()).add((i - 1) / step);
+    }
+    requests.forEach((node, part) -> parts.add(new Part(index, node, part.toString(), positions.get(node))));
+    return parts;
+  }
+
+  /**
+   * Merges the replies of the servers a request was split over into the reply a single server would
+   * have sent.
+   *
+   * @param request the text request
+   * @param parts   the parts of the request, answered
+   * @return the reply
+   */
+  protected String merge(String request, List<Part> parts) {
+    if (parts.size() == 1) {
+      return parts.get(0).reply;
+    }
+    byte opcode = BinaryProtocol.opcodeOf(request.split(":", 2)[0]);
+    if (BinaryProtocol.isScan(opcode)) {
+      return this.mergeScan(request, opcode, parts);
+    }
+    if (!BinaryProtocol.isBatch(opcode)) { // sent to every server
+      StringBuilder replies = new StringBuilder();
+      boolean same = true;
+      for (Part part : parts) {
+        same &= part.reply.equals(parts.get(0).reply);
+        replies.append(replies.length() == 0 ? "" : " | ").append(part.node).append(": ").append(part.reply);
+      }
+      return same ? parts.get(0).reply : replies.toString();
+    }
+    if (opcode == BinaryProtocol.OP_MGET) {
+      String[] values = new String[parts.stream().mapToInt(part -> part.positions.size()).sum()];
+      for (Part part : parts) {
+        if (part.items == null && part.reply.startsWith("FAIL:")) {
+          return part.reply;
+        }
+        List<String> items = part.items != null ? part.items : Arrays.asList(part.reply.split(":", -1));
+        for (int i = 0; i < part.positions.size() && i < items.size(); i++) {
+          values[part.positions.get(i)] = items.get(i);
+        }
+      }
+      StringBuilder reply = new StringBuilder();
+      for (int i = 0; i < values.length; i++) {
+        reply.append(i == 0 ? "" : ":").append(values[i] == null ? "" : values[i]);
+      }
+      return reply.toString();
+    }
+    Set<String> missing = new HashSet<>();
+    for (Part part : parts) {
+      if (part.reply.startsWith("FAIL:")) {
+        if (opcode != BinaryProtocol.OP_MDELETE || !part.reply.contains("exist")) { // not a list of missing keys
+          return part.reply;
+        }
+        Matcher matcher = QUOTED.matcher(part.reply);
+        while (matcher.find()) {
+          missing.add(matcher.group(1));
+        }
+      }
+    }
+    if (missing.isEmpty()) {
+      return "SUCCESS";
+    }
+    StringBuilder reply = new StringBuilder("FAIL: ");
+    String[] keys = request.split(":");
+    int count = 0;
+    for (int i = 1; i < keys.length; i++) { // in the order of the request, as a single server lists them
+      if (missing.remove(keys[i].toLowerCase())) {
+        reply.append(count++ == 0 ? "\"" : ", \"").append(keys[i].toLowerCase()).append('"');
+      }
+    }
+    return reply.append(count == 1 ? " does not exist" : " do not exist").toString();
+  }
+
+  /**
+   * Merges the pages of a scan that every server answered into the page a single server holding every
+   * key would have answered: the first pairs of all, in key order, with a cursor if any are left out.
+   * A server whose page ended early, before the limit, holds back the pairs past its cursor, which
+   * may have been left out of its page.
+   */
+  private String mergeScan(String request, byte opcode, List<Part> parts) {
+    String[] fields = request.split(":");
+    int limitField = opcode == BinaryProtocol.OP_PREFIX ? 2 : 3;
+    int limit = BinaryProtocol.DEFAULT_SCAN_LIMIT;
+    try {
+      if (fields.length > limitField && !fields[limitField].isEmpty()) {
+        limit = Math.min(BinaryProtocol.MAX_SCAN_LIMIT, Integer.parseInt(fields[limitField]));
+      }
+    } catch (NumberFormatException e) { // every server reports it
+      return parts.get(0).reply;
+    }
+    TreeMap<String, String> pairs = new TreeMap<>();
+    boolean more = false;
+    String bound = null; // the lowest cursor: the pairs after it may be missing from some page
+    for (Part part : parts) {
+      if (part.items == null && part.reply.startsWith("FAIL:")) {
+        return part.reply;
+      }
+      List<String> items = part.items != null ? part.items : Arrays.asList(part.reply.split(":", -1));
+      String cursor = items.get(0);
+      if (cursor != null && !cursor.isEmpty()) {
+        more = true;
+        bound = bound == null || cursor.compareTo(bound) < 0 ? cursor : bound;
+      }
+      for (int i = 1; i + 1 < items.size(); i += 2) {
+        pairs.put(items.get(i), items.get(i + 1));
+      }
+    }
+    StringBuilder reply = new StringBuilder();
+    String last = null;
+    for (Map.Entry<String, String> pair : pairs.entrySet()) {
+      if (limit-- == 0 || (bound != null && pair.getKey().compareTo(bound) > 0)) {
+        more = true;
+        break;
+      }
+      reply.append(':').append(pair.getKey()).append(':').append(pair.getValue());
+      last = pair.getKey();
+    }
+    return (more ? last : "") + reply;
+  }
+
+  /**
+   * Looks a GET request up in the near cache.
+   *
+   * @param request the text request
+   * @return the cached translation, or null if the request has to be sent
+   */
+  protected String lookup(String request) {
+    if (this.nearCache == null || !request.regionMatches(true, 0, "GET:", 0, 4)) {
+      return null;
+    }
+    String[] elements = request.split(":", 3);
+    if (elements.length != 2) {
+      return null;
+    }
+    String translation = this.nearCache.get(elements[1]);
+    if (translation != null) {
+      this.logger.log("Served " + "\"" + request + "\"" + " from the near cache");
+    }
+    return translation;
+  }
+
+  /**
+   * Updates the near cache with a reply: caches the translation a GET read, and drops the keys the
+   * client changed itself, whose invalidation may arrive after its next read.
+   *
+   * @param request the text request
+   * @param reply   the reply
+   * @param stamp   the stamp of the near cache taken before the request was sent
+   */
+  protected void remember(String request, String reply, long stamp) {
+    if (this.nearCache == null) {
+      return;
+    }
+    String[] elements = request.split(":");
+    if (elements.length < 2) {
+      return;
+    }
+    byte opcode = BinaryProtocol.opcodeOf(elements[0]);
+    if (opcode == BinaryProtocol.OP_GET) {
+      if (elements.length == 2 && !reply.startsWith("FAIL:")) {
+        this.nearCache.put(elements[1], reply, stamp);
+      }
+    } else if (opcode == BinaryProtocol.OP_PUT || opcode == BinaryProtocol.OP_DELETE) {
+      this.nearCache.invalidate(elements[1]);
+    } else if (opcode == BinaryProtocol.OP_MPUT || opcode == BinaryProtocol.OP_MDELETE) {
+      for (int i = 1; i < elements.length; i += opcode == BinaryProtocol.OP_MPUT ? 2 : 1) {
+        this.nearCache.invalidate(elements[i]);
+      }
+    }
+  }
+
+  /**
+   * Applies an invalidation pushed by the server.
+   *
+   * @param key the key that changed
+   */
+  protected void invalidate(String key) {
+    if (this.nearCache != null) {
+      this.nearCache.invalidate(key);
+    }
+    this.logger.log("Received an invalidation of " + "\"" + key + "\"" + " from the server");
+  }
+
+  /**
+   * Converts a PUT/GET/DELETE:key:value request into a binary frame. Everything after the key's
+   * colon is the value, so values may contain colons.
+   *
+   * @param request the text request
+   * @return the binary frame, or null if the request should be sent as text
+   */
+  protected byte[] toBinaryFrame(String request) {
+    String[] elements = request.split(":", 3);
+    if (elements.length < 2) {
+      return null;
+    }
+    byte opcode = BinaryProtocol.opcodeOf(elements[0]);
+    if (opcode == -1) { // let the server report the invalid operation
+      return null;
+    }
+    if (BinaryProtocol.isBatch(opcode)) {
+      return this.toBatchFrame(opcode, request);
+    }
+    if (BinaryProtocol.isScan(opcode)) {
+      List<String> fields = Arrays.asList(request.split(":"));
+      return BinaryProtocol.encodeBatchRequest(opcode, ++this.requestId, fields.subList(1, fields.size()), null);
+    }
+    return BinaryProtocol.encodeRequest(opcode, ++this.requestId, elements[1], elements.length == 3 ? elements[2] : null);
+  }
+
+  /**
+   * Converts an MGET/MDELETE:key1:key2... or MPUT:key1:value1:key2:value2... request into a binary
+   * frame.
+   *
+   * @param opcode  the batch opcode
+   * @param request the text request
+   * @return the binary frame, or null if the request should be sent as text
+   */
+  private byte[] toBatchFrame(byte opcode, String request) {
+    List<String> fields = Arrays.asList(request.split(":"));
+    if (opcode != BinaryProtocol.OP_MPUT) {
+      return BinaryProtocol.encodeBatchRequest(opcode, ++this.requestId, fields.subList(1, fields.size()), null);
+    }
+    if (fields.size() % 2 == 0) { // let the server report the missing value
+      return null;
+    }
+    List<String> keys = new ArrayList<>();
+    List<String> values = new ArrayList<>();
+    for (int i = 1; i < fields.size(); i += 2) {
+      keys.add(fields.get(i));
+      values.add(fields.get(i + 1));
+    }
+    return BinaryProtocol.encodeBatchRequest(opcode, ++this.requestId, keys, values);
+  }
+
+  /**
+   * Renders a binary reply the way the text protocol would have: the values of an MGET are separated
+   * by colons, with an empty field for every unknown key, and so are the cursor and pairs of a scan.
+   *
+   * @param reply   the reply
+   * @param request the request it answers
+   * @return the reply as text
+   * @throws IOException if an MGET or scan reply does not hold a list
+   */
+  protected String render(BinaryProtocol.Reply reply, String request) throws IOException {
+    byte opcode = BinaryProtocol.opcodeOf(request.split(":", 2)[0]);
+    if (reply.status != BinaryProtocol.STATUS_OK || (opcode != BinaryProtocol.OP_MGET && !BinaryProtocol.isScan(opcode))) {
+      return reply.toString();
+    }
+    StringBuilder text = new StringBuilder();
+    List<String> items = reply.items();
+    this.renderedItems = items;
+    for (int i = 0; i < items.size(); i++) {
+      if (i > 0) {
+        text.append(':');
+      }
+      if (items.get(i) != null) {
+        text.append(items.get(i));
+      }
+    }
+    return text.toString();
+  }
+
   /**
    * Pre-populates the key-value store.
    */
   protected abstract void prePopulate();
 
+  /**
+   * A request, or the part of a batch request, bound for one server, and its reply.
+   */
+  protected static final class Part {
+    /**
+     * The position of the request among the requests sent together.
+     */
+    protected final int index;
+    /**
+     * The server.
+     */
+    protected final InetSocketAddress node;
+    /**
+     * The text request the server has to answer.
+     */
+    protected final String request;
+    /**
+     * The positions of the keys of this part among the keys of the batch request, or null.
+     */
+    protected final List<Integer> positions;
+    /**
+     * The reply, once received.
+     */
+    protected String reply;
+    /**
+     * The values of a binary MGET reply, once received, or null.
+     */
+    protected List<String> items;
+
+    private Part(int index, InetSocketAddress node, String request, List<Integer> positions) {
+      this.index = index;
+      this.node = node;
+      this.request = request;
+      this.positions = positions;
+    }
+  }
+
   /**
    * Gets the user request.
    *
@@ -0,0 +1,142 @@
+package clients;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class represents a consistent hash ring that assigns keys to nodes. Every node is hashed onto
+ * the ring at a number of virtual points, and a key belongs to the node of the first point at or after
+ * its own hash. Adding a node to N others only moves the keys that fall just before its points, about
+ * 1/(N+1) of them, and the virtual points spread both its share and the keys it takes over evenly.
+ * Keys are hashed in lower case, the way servers store them.
+ *
+ * <p>The points are kept in a sorted array, so a lookup is a binary search. It is not thread-safe
+ * while nodes are added or removed.
+ *
+ * @param <N> the type of the nodes, whose string form names them on the ring
+ */
+public class ConsistentHashRing<N> {
+  /**
+   * The number of points per node used by default, which keeps the share of every node within a
+   * few percent of the mean.
+   */
+  public static final int DEFAULT_VIRTUAL_NODES = 160;
+  private final int virtualNodes;
+  private final List<N> nodes = new ArrayList<>();
+  private long[] points = new long[0];
+  private Object[] owners = new Object[0];
+
+  /**
+   * Instantiates a new, empty consistent hash ring with {@value #DEFAULT_VIRTUAL_NODES} points per
+   * node.
+   */
+  public ConsistentHashRing() {
+    this(DEFAULT_VIRTUAL_NODES);
+  }
+
+  /**
+   * Instantiates a new, empty consistent hash ring.
+   *
+   * @param virtualNodes the number of points per node
+   */
+  public ConsistentHashRing(int virtualNodes) {
+    this.virtualNodes = Math.max(1, virtualNodes);
+  }
+
+  /**
+   * Adds a node to the ring, unless it is already on it.
+   *
+   * @param node the node
+   */
+  public void add(N node) {
+    if (!this.nodes.contains(node)) {
+      this.nodes.add(node);
+      this.rebuild();
+    }
+  }
+
+  /**
+   * Removes a node from the ring. Its keys move to the nodes that follow its points.
+   *
+   * @param node the node
+   */
+  public void remove(N node) {
+    if (this.nodes.remove(node)) {
+      this.rebuild();
+    }
+  }
+
+  /**
+   * Gets the nodes on the ring, in the order they were added.
+   *
+   * @return the nodes
+   */
+  public List<N> getNodes() {
+    return Collections.unmodifiableList(this.nodes);
+  }
+
+  /**
+   * Gets the node a key belongs to.
+   *
+   * @param key the key, in any case
+   * @return the node, or null if the ring is empty
+   */
+  @SuppressWarnings("unchecked")
+  public N nodeOf(String key) {
+    if (this.points.length == 0) {
+      return null;
+    }
+    int index = Arrays.binarySearch(this.points, hash(key.toLowerCase()));
+    if (index < 0) {
+      index = -index - 1; // the first point after the hash
+    }
+    return (N) this.owners[index == this.points.length ? 0 : index]; // past the last point: wrap around
+  }
+
+  /**
+   * Places the points of every node on the ring, in order. When two points collide, the node added
+   * first keeps it.
+   */
+  private void rebuild() {
+    long[][] entries = new long[this.nodes.size() * this.virtualNodes][]; // point, then index of the node
+    for (int n = 0; n < this.nodes.size(); n++) {
+      for (int i = 0; i < this.virtualNodes; i++) {
+        entries[n * this.virtualNodes + i] = new long[] {hash(this.nodes.get(n) + "#" + i), n};
+      }
+    }
+    Arrays.sort(entries, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+    long[] points = new long[entries.length];
+    Object[] owners = new Object[entries.length];
+    int count = 0;
+    for (long[] entry : entries) {
+      if (count > 0 && points[count - 1] == entry[0]) {
+        continue;
+      }
+      points[count] = entry[0];
+      owners[count++] = this.nodes.get((int) entry[1]);
+    }
+    this.points = Arrays.copyOf(points, count);
+    this.owners = Arrays.copyOf(owners, count);
+  }
+
+  /**
+   * Hashes a string to 64 bits: FNV-1a over its UTF-8 bytes, followed by the finalizer of MurmurHash3
+   * so that similar strings land far apart.
+   */
+  private static long hash(String value) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
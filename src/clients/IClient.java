@@ -45,6 +45,21 @@ public interface IClient {
    */
   void setLogger(ILogger logger);
 
+  /**
+   * Chooses between the binary protocol and the PUT/GET/DELETE:key:value text protocol.
+   *
+   * @param binaryProtocol whether requests are sent as binary frames
+   */
+  void setBinaryProtocol(boolean binaryProtocol);
+
+  /**
+   * Caches the translations read in a near cache, kept consistent by the invalidations the server
+   * pushes once the client turns tracking on.
+   *
+   * @param nearCache the near cache, or null to read every translation from the server
+   */
+  void setNearCache(NearCache nearCache);
+
   /**
    * Gets the user request.
    *
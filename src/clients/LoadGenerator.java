@@ -0,0 +1,566 @@
+package clients;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+import utils.BinaryProtocol;
+import utils.FragmentReassembler;
+import utils.LatencyHistogram;
+
+/**
+ * This class represents a load generator: it runs a number of TCP connections or UDP sockets, each on
+ * its own thread, that send a mix of GET, PUT and DELETE requests over a uniform or Zipfian
+ * distribution of keys, and reports the throughput and the latency percentiles. Given several
+ * servers, each connection shards the keys over them the way a client does, with a TCP connection to
+ * every server.
+ *
+ * <p>In closed loop, each connection sends its next request as soon as the previous one is answered,
+ * and the latencies are corrected for coordinated omission against the mean latency seen during the
+ * warm-up, so a closed loop needs one. In open loop, the connections together send requests at a
+ * fixed rate, each on a schedule of its own, and a latency runs from the time a request was due
+ * rather than the time it was sent, so requests delayed by a stall count it too.
+ */
+public class LoadGenerator {
+  private static final int GET = 0;
+  private static final int PUT = 1;
+  private static final int DELETE = 2;
+  private static final String[] OPERATIONS = {"GET", "PUT", "DELETE"};
+  private static final long SPIN_NANOS = 100_000;
+  private static final int MAX_REPLY_LENGTH = 64 * 1024 * 1024;
+  private static final int MAX_PARTIAL_REPLIES = 16; // replies sent again while the first was in flight
+  private final ConsistentHashRing<InetSocketAddress> ring = new ConsistentHashRing<>();
+  private final boolean udp;
+  private boolean binaryProtocol;
+  private int connections = 1;
+  private int durationSeconds = 10;
+  private int warmupSeconds = 2;
+  private int[] mix = {90, 10, 0};
+  private int keyCount = 10000;
+  private double zipfExponent;
+  private double rate;
+  private int valueLength = 16;
+  private int timeoutMillis = 1000;
+  private int datagramLength = BinaryProtocol.datagramLength(BinaryProtocol.DEFAULT_MTU);
+  private boolean prePopulate = true;
+  private CyclicBarrier ready;
+  private long start;
+
+  /**
+   * Instantiates a new load generator.
+   *
+   * @param hostname the hostname of the server, or a comma-separated list of host[:port] servers
+   * @param port     the port of the server, for the servers listed without one
+   * @param udp      whether to send datagrams rather than use TCP connections
+   * @throws UnknownHostException if a hostname cannot be resolved
+   */
+  public LoadGenerator(String hostname, String port, boolean udp) throws UnknownHostException {
+    for (String node : hostname.split(",")) {
+      int colon = node.lastIndexOf(':');
+      this.ring.add(new InetSocketAddress(InetAddress.getByName(colon == -1 ? node.trim() : node.substring(0, colon).trim()),
+          Integer.parseInt(colon == -1 ? port : node.substring(colon + 1).trim())));
+    }
+    this.udp = udp;
+  }
+
+  /**
+   * Chooses between the binary protocol and the PUT/GET/DELETE:key:value text protocol.
+   *
+   * @param binaryProtocol whether requests are sent as binary frames
+   */
+  public void setBinaryProtocol(boolean binaryProtocol) {
+    this.binaryProtocol = binaryProtocol;
+  }
+
+  /**
+   * Sets the number of connections, or of UDP sockets, each driven by its own thread.
+   *
+   * @param connections the number of connections
+   */
+  public void setConnections(int connections) {
+    this.connections = Math.max(1, connections);
+  }
+
+  /**
+   * Sets how long the load is measured, after the warm-up.
+   *
+   * @param durationSeconds the duration in seconds
+   */
+  public void setDurationSeconds(int durationSeconds) {
+    this.durationSeconds = Math.max(1, durationSeconds);
+  }
+
+  /**
+   * Sets how long the load runs before it is measured.
+   *
+   * @param warmupSeconds the duration in seconds
+   */
+  public void setWarmupSeconds(int warmupSeconds) {
+    this.warmupSeconds = Math.max(0, warmupSeconds);
+  }
+
+  /**
+   * Sets the relative weights of the operations.
+   *
+   * @param get    the weight of GET
+   * @param put    the weight of PUT
+   * @param delete the weight of DELETE
+   */
+  public void setMix(int get, int put, int delete) {
+    if (get < 0 || put < 0 || delete < 0 || get + put + delete == 0) {
+      throw new IllegalArgumentException("The weights of the operations must be non-negative and not all 0");
+    }
+    this.mix = new int[] {get, put, delete};
+  }
+
+  /**
+   * Sets the keys the requests are about and how they are chosen.
+   *
+   * @param keyCount     the number of distinct keys
+   * @param zipfExponent the exponent of the Zipfian distribution of the keys, the most popular first,
+   *                     or 0 for a uniform distribution
+   */
+  public void setKeys(int keyCount, double zipfExponent) {
+    if (zipfExponent < 0 || zipfExponent == 1) {
+      throw new IllegalArgumentException("The Zipfian exponent must be 0 (uniform) or positive and other than 1");
+    }
+    this.keyCount = Math.max(1, keyCount);
+    this.zipfExponent = zipfExponent;
+  }
+
+  /**
+   * Sets the rate at which requests are sent, across all connections.
+   *
+   * @param rate the number of requests per second, or 0 to run in closed loop
+   */
+  public void setRate(double rate) {
+    this.rate = Math.max(0, rate);
+  }
+
+  /**
+   * Sets the length of the values PUT.
+   *
+   * @param valueLength the number of characters
+   */
+  public void setValueLength(int valueLength) {
+    this.valueLength = Math.max(1, valueLength);
+  }
+
+  /**
+   * Sets how long a UDP request waits for its reply before it counts as lost.
+   *
+   * @param timeoutMillis the timeout in milliseconds
+   */
+  public void setTimeoutMillis(int timeoutMillis) {
+    this.timeoutMillis = Math.max(1, timeoutMillis);
+  }
+
+  /**
+   * Sets the MTU of the path to the servers, which bounds the UDP datagrams sent: a longer request is
+   * split into fragments.
+   *
+   * @param mtu the MTU in bytes
+   */
+  public void setMtu(int mtu) {
+    this.datagramLength = BinaryProtocol.datagramLength(mtu);
+  }
+
+  /**
+   * Chooses whether every key is PUT once before the load starts, so that GETs find their key.
+   *
+   * @param prePopulate whether to pre-populate the keys
+   */
+  public void setPrePopulate(boolean prePopulate) {
+    this.prePopulate = prePopulate;
+  }
+
+  /**
+   * Runs the load and prints the report.
+   *
+   * @throws IllegalStateException if the load runs in closed loop without a warm-up to measure the
+   *                               expected interval of the requests on
+   */
+  public void execute() {
+    if (this.rate == 0 && this.warmupSeconds == 0) {
+      throw new IllegalStateException("A closed loop corrects its latencies against the warm-up, which must last at least 1 s");
+    }
+    System.out.println(this.describe());
+    KeyChooser keys = new KeyChooser(this.keyCount, this.zipfExponent);
+    List<Worker> workers = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+    this.ready = new CyclicBarrier(this.connections, () -> this.start = System.nanoTime()); // every connection is up and has pre-populated
+    for (int i = 0; i < this.connections; i++) {
+      Worker worker = new Worker(i, keys);
+      workers.add(worker);
+      Thread thread = new Thread(worker, "load-" + i);
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    this.report(workers);
+  }
+
+  private String describe() {
+    return String.format("%d %s %s, %s, %d/%d/%d GET/PUT/DELETE over %d %s keys, %d s after a %d s warm-up", this.connections,
+        this.udp ? "UDP" : "TCP", this.udp ? "sockets" : "connections",
+        this.rate > 0 ? String.format("open loop at %.0f requests/s", this.rate) : "closed loop", this.mix[GET], this.mix[PUT],
+        this.mix[DELETE], this.keyCount, this.zipfExponent > 0 ? "Zipfian (" + this.zipfExponent + ")" : "uniform",
+        this.durationSeconds, this.warmupSeconds);
+  }
+
+  private void report(List<Worker> workers) {
+    LatencyHistogram corrected = new LatencyHistogram();
+    LatencyHistogram uncorrected = new LatencyHistogram();
+    long[] operations = new long[OPERATIONS.length];
+    long failures = 0;
+    long errors = 0;
+    for (Worker worker : workers) {
+      corrected.add(worker.corrected);
+      uncorrected.add(worker.uncorrected);
+      for (int i = 0; i < operations.length; i++) {
+        operations[i] += worker.operations[i];
+      }
+      failures += worker.failures;
+      errors += worker.errors;
+      if (worker.failure != null) {
+        System.out.println("Connection " + worker.index + " stopped: " + worker.failure);
+      }
+    }
+    long total = Arrays.stream(operations).sum();
+    System.out.printf("Throughput: %.0f requests/s (%d GET, %d PUT, %d DELETE; %d FAIL replies, %d lost or broken)%n",
+        (double) total / this.durationSeconds, operations[GET], operations[PUT], operations[DELETE], failures, errors);
+    if (this.rate > 0) {
+      System.out.println("Response time (from when each request was due): " + corrected);
+      System.out.println("Service time (from when each request was sent): " + uncorrected);
+    } else {
+      System.out.println("Latency (corrected for coordinated omission):   " + corrected);
+      System.out.println("Latency (uncorrected):                          " + uncorrected);
+    }
+  }
+
+  /**
+   * Chooses keys uniformly or by a Zipfian distribution, with the algorithm of Gray et al., "Quickly
+   * generating billion-record synthetic databases", which draws each key in constant time. Immutable,
+   * so every worker shares it.
+   */
+  private static final class KeyChooser {
+    private final int count;
+    private final double theta;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+    private final double zeta2;
+
+    private KeyChooser(int count, double theta) {
+      this.count = count;
+      this.theta = theta;
+      double zetaN = 0;
+      if (theta > 0) {
+        for (int i = 1; i <= count; i++) {
+          zetaN += 1 / Math.pow(i, theta);
+        }
+      }
+      this.zetaN = zetaN;
+      this.alpha = 1 / (1 - theta);
+      this.zeta2 = 1 + Math.pow(0.5, theta);
+      this.eta = (1 - Math.pow(2.0 / count, 1 - theta)) / (1 - this.zeta2 / zetaN);
+    }
+
+    private int next(ThreadLocalRandom random) {
+      if (this.theta == 0) {
+        return random.nextInt(this.count);
+      }
+      double u = random.nextDouble();
+      double uz = u * this.zetaN;
+      if (uz < 1) {
+        return 0;
+      }
+      if (uz < this.zeta2) {
+        return Math.min(1, this.count - 1);
+      }
+      return (int) Math.min(this.count - 1, (long) (this.count * Math.pow(this.eta * u - this.eta + 1, this.alpha)));
+    }
+  }
+
+  /**
+   * A connection, or a UDP socket, and the thread that drives it.
+   */
+  private final class Worker implements Runnable {
+    private final int index;
+    private final KeyChooser keys;
+    private long start;
+    private final LatencyHistogram corrected = new LatencyHistogram();
+    private final LatencyHistogram uncorrected = new LatencyHistogram();
+    private final long[] operations = new long[OPERATIONS.length];
+    private final String value;
+    private long failures;
+    private long errors;
+    private String failure;
+    private int requestId;
+    private final List<InetSocketAddress> nodes = LoadGenerator.this.ring.getNodes();
+    private final Socket[] sockets = new Socket[this.nodes.size()]; // by node
+    private final OutputStream[] writers = new OutputStream[this.nodes.size()];
+    private final DataInputStream[] readers = new DataInputStream[this.nodes.size()];
+    private DatagramSocket datagramSocket;
+    private DatagramPacket replyPacket;
+    private FragmentReassembler reassembler;
+    private int messageId;
+
+    private Worker(int index, KeyChooser keys) {
+      this.index = index;
+      this.keys = keys;
+      char[] value = new char[LoadGenerator.this.valueLength];
+      Arrays.fill(value, (char) ('a' + index % 26));
+      this.value = new String(value);
+    }
+
+    @Override
+    public void run() {
+      try {
+        this.connect();
+        if (LoadGenerator.this.prePopulate) {
+          for (int key = this.index; key < LoadGenerator.this.keyCount; key += LoadGenerator.this.connections) {
+            this.send(PUT, "key" + key);
+          }
+        }
+        LoadGenerator.this.ready.await();
+        this.start = LoadGenerator.this.start;
+        if (LoadGenerator.this.rate > 0) {
+          this.runOpenLoop();
+        } else {
+          this.runClosedLoop();
+        }
+      } catch (IOException e) {
+        this.errors++;
+        this.failure = e.getMessage();
+        LoadGenerator.this.ready.reset(); // the others would wait for this one forever
+      } catch (InterruptedException | BrokenBarrierException e) {
+        this.failure = "another connection failed before the load started";
+      } finally {
+        this.close();
+      }
+    }
+
+    /**
+     * Sends each request as soon as the previous one is answered. The mean latency of the warm-up is
+     * the interval the requests are expected at when nothing stalls.
+     */
+    private void runClosedLoop() throws IOException {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      long measureFrom = this.start + LoadGenerator.this.warmupSeconds * 1_000_000_000L;
+      long end = measureFrom + LoadGenerator.this.durationSeconds * 1_000_000_000L;
+      LatencyHistogram warmup = new LatencyHistogram();
+      long expectedInterval = 0;
+      boolean measuring = false;
+      for (long sent = System.nanoTime(); sent < end; sent = System.nanoTime()) {
+        if (!measuring && sent >= measureFrom) {
+          measuring = true;
+          expectedInterval = (long) warmup.getMean();
+        }
+        int operation = this.nextOperation(random);
+        this.send(operation, "key" + this.keys.next(random));
+        long latency = System.nanoTime() - sent;
+        if (measuring) {
+          this.operations[operation]++;
+          this.uncorrected.record(latency);
+          this.corrected.recordCorrected(latency, expectedInterval);
+        } else {
+          warmup.record(latency);
+        }
+      }
+    }
+
+    /**
+     * Sends requests on a fixed schedule, staggered across the connections. A request sent late, because
+     * the previous one took longer than the interval, is still timed from when it was due.
+     */
+    private void runOpenLoop() throws IOException {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      double interval = 1e9 * LoadGenerator.this.connections / LoadGenerator.this.rate;
+      long measureFrom = this.start + LoadGenerator.this.warmupSeconds * 1_000_000_000L;
+      long end = measureFrom + LoadGenerator.this.durationSeconds * 1_000_000_000L;
+      for (long n = 0; ; n++) {
+        long due = this.start + (long) ((n + (double) this.index / LoadGenerator.this.connections) * interval);
+        if (due >= end) {
+          return;
+        }
+        for (long now = System.nanoTime(); now < due; now = System.nanoTime()) {
+          if (due - now > SPIN_NANOS) {
+            LockSupport.parkNanos(due - now - SPIN_NANOS); // parking overshoots by tens of microseconds
+          } else {
+            Thread.onSpinWait();
+          }
+        }
+        int operation = this.nextOperation(random);
+        long sent = System.nanoTime();
+        this.send(operation, "key" + this.keys.next(random));
+        long done = System.nanoTime();
+        if (due >= measureFrom) {
+          this.operations[operation]++;
+          this.corrected.record(done - due);
+          this.uncorrected.record(done - sent);
+        }
+      }
+    }
+
+    private int nextOperation(ThreadLocalRandom random) {
+      int[] mix = LoadGenerator.this.mix;
+      int draw = random.nextInt(mix[GET] + mix[PUT] + mix[DELETE]);
+      return draw < mix[GET] ? GET : draw < mix[GET] + mix[PUT] ? PUT : DELETE;
+    }
+
+    private void connect() throws IOException {
+      if (LoadGenerator.this.udp) {
+        this.datagramSocket = new DatagramSocket();
+        this.datagramSocket.setSoTimeout(LoadGenerator.this.timeoutMillis);
+        byte[] buffer = new byte[BinaryProtocol.MAX_DATAGRAM_LENGTH];
+        this.replyPacket = new DatagramPacket(buffer, buffer.length);
+        this.reassembler = new FragmentReassembler(MAX_REPLY_LENGTH, MAX_REPLY_LENGTH, MAX_PARTIAL_REPLIES,
+            LoadGenerator.this.timeoutMillis);
+      } else {
+        for (int node = 0; node < this.nodes.size(); node++) {
+          this.sockets[node] = new Socket(this.nodes.get(node).getAddress(), this.nodes.get(node).getPort());
+          this.sockets[node].setTcpNoDelay(true);
+          this.writers[node] = new BufferedOutputStream(this.sockets[node].getOutputStream());
+          this.readers[node] = new DataInputStream(new BufferedInputStream(this.sockets[node].getInputStream()));
+        }
+      }
+    }
+
+    /**
+     * Sends a request and waits for its reply. A lost UDP request counts as an error, not a failure.
+     */
+    private void send(int operation, String key) throws IOException {
+      byte[] request = this.encode(operation, key);
+      InetSocketAddress node = this.nodes.size() == 1 ? this.nodes.get(0) : LoadGenerator.this.ring.nodeOf(key);
+      boolean ok;
+      if (this.datagramSocket != null) {
+        this.sendDatagram(request, node);
+        try {
+          ok = this.receiveDatagram();
+        } catch (SocketTimeoutException e) {
+          this.errors++;
+          return;
+        }
+      } else {
+        int index = this.nodes.size() == 1 ? 0 : this.nodes.indexOf(node);
+        this.writers[index].write(request);
+        this.writers[index].flush();
+        ok = this.receiveStream(this.readers[index]);
+      }
+      if (!ok) {
+        this.failures++;
+      }
+    }
+
+    private void sendDatagram(byte[] request, InetSocketAddress node) throws IOException {
+      if (request.length <= LoadGenerator.this.datagramLength) {
+        this.datagramSocket.send(new DatagramPacket(request, request.length, node));
+        return;
+      }
+      for (byte[] datagram : BinaryProtocol.fragment(request, ++this.messageId, LoadGenerator.this.datagramLength)) {
+        this.datagramSocket.send(new DatagramPacket(datagram, datagram.length, node));
+      }
+    }
+
+    private byte[] encode(int operation, String key) {
+      String value = operation == PUT ? this.value : null;
+      if (LoadGenerator.this.binaryProtocol) {
+        return BinaryProtocol.encodeRequest(BinaryProtocol.opcodeOf(OPERATIONS[operation]), ++this.requestId, key, value);
+      }
+      String request = OPERATIONS[operation] + ":" + key + (value == null ? "" : ":" + value);
+      return (LoadGenerator.this.udp ? request : request + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the reply to the request just sent, skipping the replies to earlier ones that timed out
+     * when the binary protocol tells them apart.
+     *
+     * @return whether the operation succeeded
+     */
+    private boolean receiveDatagram() throws IOException {
+      byte[] buffer = this.replyPacket.getData();
+      while (true) {
+        this.replyPacket.setLength(buffer.length);
+        this.datagramSocket.receive(this.replyPacket);
+        byte[] data = buffer;
+        int length = this.replyPacket.getLength();
+        if (length > 0 && buffer[0] == BinaryProtocol.FRAGMENT_MAGIC) {
+          data = this.reassembler.add(this.replyPacket.getSocketAddress(), buffer, length);
+          if (data == null) {
+            continue; // fragments are missing
+          }
+          length = data.length;
+        }
+        if (length > 0 && data[0] == BinaryProtocol.MAGIC) {
+          BinaryProtocol.Reply reply = BinaryProtocol.decodeReply(ByteBuffer.wrap(data, 0, length));
+          if (reply.requestId == this.requestId) {
+            return reply.status == BinaryProtocol.STATUS_OK;
+          }
+        } else if (length > 0 && data[0] != BinaryProtocol.INVALIDATION_MAGIC) {
+          return !new String(data, 0, length, StandardCharsets.UTF_8).startsWith("FAIL:");
+        }
+      }
+    }
+
+    private boolean receiveStream(DataInputStream reader) throws IOException {
+      int first = reader.read();
+      while ((byte) first == BinaryProtocol.INVALIDATION_MAGIC) {
+        BinaryProtocol.readInvalidation(reader);
+        first = reader.read();
+      }
+      if (first == -1) {
+        throw new EOFException("The server closed the connection");
+      }
+      if ((byte) first == BinaryProtocol.MAGIC) {
+        return BinaryProtocol.readReply(reader).status == BinaryProtocol.STATUS_OK;
+      }
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      for (int b = first; b != -1 && b != '\n'; b = reader.read()) {
+        line.write(b);
+      }
+      return !line.toString(StandardCharsets.UTF_8).startsWith("FAIL:");
+    }
+
+    private void close() {
+      for (Socket socket : this.sockets) {
+        try {
+          if (socket != null) {
+            socket.close();
+          }
+        } catch (IOException e) { // nothing left to do with it
+        }
+      }
+      if (this.datagramSocket != null) {
+        this.datagramSocket.close();
+      }
+    }
+  }
+}
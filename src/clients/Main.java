@@ -1,30 +1,107 @@
 package clients;
 
+import java.net.UnknownHostException;
+
+import utils.BinaryProtocol;
 import utils.Logger;
 
 /**
  * The class main is the entry point of the client application.
  */
 public class Main {
+  private static final long UDP_MAX_AGE_MILLIS = 5000; // invalidations sent over UDP may be lost
+
+  /**
+   * Creates the near cache requested by the system property nearCache.size, a number of
+   * translations, which serves each for at most nearCache.maxAgeMillis milliseconds (0 for no limit).
+   *
+   * @param defaultMaxAgeMillis the maximum age if nearCache.maxAgeMillis is not set
+   * @return the near cache, or null if nearCache.size is not set
+   */
+  private static NearCache createNearCache(long defaultMaxAgeMillis) {
+    String size = System.getProperty("nearCache.size");
+    if (size == null) {
+      return null;
+    }
+    return new NearCache(Integer.parseInt(size), Long.parseLong(System.getProperty("nearCache.maxAgeMillis", String.valueOf(defaultMaxAgeMillis))));
+  }
+
+  /**
+   * Creates the load generator requested by the system property load.connections, configured by the
+   * other load.* properties.
+   *
+   * @param args           the hostname, the port and the type of client
+   * @param binaryProtocol whether requests are sent as binary frames
+   * @return the load generator, or null if load.connections is not set
+   * @throws UnknownHostException if the hostname cannot be resolved
+   */
+  private static LoadGenerator createLoadGenerator(String[] args, boolean binaryProtocol) throws UnknownHostException {
+    String connections = System.getProperty("load.connections");
+    if (connections == null) {
+      return null;
+    }
+    LoadGenerator loadGenerator = new LoadGenerator(args[0], args[1], args[2].equalsIgnoreCase("UDP"));
+    loadGenerator.setBinaryProtocol(binaryProtocol);
+    loadGenerator.setConnections(Integer.parseInt(connections));
+    loadGenerator.setDurationSeconds(Integer.parseInt(System.getProperty("load.seconds", "10")));
+    loadGenerator.setWarmupSeconds(Integer.parseInt(System.getProperty("load.warmupSeconds", "2")));
+    String[] mix = System.getProperty("load.mix", "90:10:0").split(":"); // GET:PUT:DELETE weights
+    loadGenerator.setMix(Integer.parseInt(mix[0]), Integer.parseInt(mix[1]), Integer.parseInt(mix[2]));
+    double zipfExponent = System.getProperty("load.distribution", "UNIFORM").equalsIgnoreCase("ZIPF")
+        ? Double.parseDouble(System.getProperty("load.zipfExponent", "0.99")) : 0;
+    loadGenerator.setKeys(Integer.parseInt(System.getProperty("load.keys", "10000")), zipfExponent);
+    loadGenerator.setRate(Double.parseDouble(System.getProperty("load.rate", "0")));
+    loadGenerator.setValueLength(Integer.parseInt(System.getProperty("load.valueLength", "16")));
+    loadGenerator.setTimeoutMillis(Integer.parseInt(System.getProperty("load.timeoutMillis", "1000")));
+    loadGenerator.setMtu(Integer.parseInt(System.getProperty("udp.mtu", String.valueOf(BinaryProtocol.DEFAULT_MTU))));
+    loadGenerator.setPrePopulate(Boolean.parseBoolean(System.getProperty("load.prePopulate", "true")));
+    return loadGenerator;
+  }
+
   /**
    * The entry point of the client application.
    *
    * @param args the input arguments
    */
   public static void main(String[] args) {
-    if (args.length != 3) { // need to only enter type of client, hostname and port number
-      System.err.println("Usage: javac clients/*.java | then | java clients.Main <Hostname> <Port#> <TCP/UDP> ");
+    if (args.length < 3 || args.length > 4) { // need to only enter type of client, hostname, port number and optionally the protocol
+      System.err.println("Usage: javac clients/*.java | then | java clients.Main <Hostname[:Port#],...> <Port#> <TCP/UDP> [TEXT/BINARY]");
       System.exit(1);
     } else {
+      boolean binaryProtocol = args.length == 4 && args[3].equalsIgnoreCase("BINARY");
+      if (args.length == 4 && !binaryProtocol && !args[3].equalsIgnoreCase("TEXT")) {
+        System.err.println("Please enter either 'TEXT' or 'BINARY'");
+        System.exit(1);
+      }
+      if (!args[2].equalsIgnoreCase("TCP") && !args[2].equalsIgnoreCase("UDP")) {
+        System.err.println("Please enter either 'TCP' or 'UDP'");
+        System.exit(1);
+      }
+      try {
+        LoadGenerator loadGenerator = createLoadGenerator(args, binaryProtocol);
+        if (loadGenerator != null) { // put load on the server instead of reading requests from the user
+          loadGenerator.execute();
+          return;
+        }
+      } catch (UnknownHostException e) {
+        System.err.println("Unknown host entered");
+        System.exit(1);
+      }
       if (args[2].equalsIgnoreCase("TCP")) { // create a TCP client object
         IClient TCPClient = new TCPClient(args[0], args[1]);
         TCPClient.setLogger(new Logger("TCPClientLogger", "TCPClientLog.log"));
+        TCPClient.setBinaryProtocol(binaryProtocol);
+        TCPClient.setNearCache(createNearCache(0));
         TCPClient.execute();
       } else if (args[2].equalsIgnoreCase("UDP")) { // create a UDP client object
-      IClient UDPClient = new UDPClient(args[0], args[1]);
-      UDPClient.setLogger(new Logger("UDPClientLogger", "UDPClientLog.log"));
-      UDPClient.execute();
-    } else {
+        UDPClient UDPClient = new UDPClient(args[0], args[1]);
+        UDPClient.setLogger(new Logger("UDPClientLogger", "UDPClientLog.log"));
+        UDPClient.setMtu(Integer.parseInt(System.getProperty("udp.mtu", String.valueOf(BinaryProtocol.DEFAULT_MTU))));
+        UDPClient.setTimeoutMillis(Long.parseLong(System.getProperty("udp.timeoutMillis", "5000")));
+        UDPClient.setBinaryProtocol(binaryProtocol);
+        UDPClient.setNearCache(createNearCache(UDP_MAX_AGE_MILLIS));
+        UDPClient.execute();
+      } else {
         System.err.println("Please enter either 'TCP' or 'UDP'");
         System.exit(1);
       }
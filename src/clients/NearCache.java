@@ -0,0 +1,140 @@
+package clients;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class represents a bounded, least recently used cache of the translations a client read. It
+ * is kept consistent by the invalidations the server pushes for the keys the client read with
+ * tracking on. A reply is only cached if no invalidation arrived while it was in flight, since it
+ * may then predate the change. It is not thread-safe: every client owns its own.
+ */
+public class NearCache {
+  private final int capacity;
+  private final long maxAgeMillis;
+  private final LinkedHashMap<String, Entry> entries;
+  private long invalidations;
+  private long hits;
+  private long misses;
+
+  /**
+   * Instantiates a new near cache.
+   *
+   * @param capacity     the number of translations kept at most
+   * @param maxAgeMillis how long a translation is served at most, in case an invalidation is lost, or
+   *                     0 to serve it until it is invalidated
+   */
+  public NearCache(int capacity, long maxAgeMillis) {
+    this.capacity = Math.max(1, capacity);
+    this.maxAgeMillis = maxAgeMillis;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) { // access order
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return this.size() > NearCache.this.capacity;
+      }
+    };
+  }
+
+  /**
+   * Gets the cached translation of a key.
+   *
+   * @param key the key, in any case
+   * @return the translation, or null if it is not cached
+   */
+  public String get(String key) {
+    String lowerCaseKey = key.toLowerCase();
+    Entry entry = this.entries.get(lowerCaseKey);
+    if (entry != null && this.maxAgeMillis > 0 && System.currentTimeMillis() - entry.cachedAt > this.maxAgeMillis) {
+      this.entries.remove(lowerCaseKey);
+      entry = null;
+    }
+    if (entry == null) {
+      this.misses++;
+      return null;
+    }
+    this.hits++;
+    return entry.value;
+  }
+
+  /**
+   * Gets a stamp to take before sending a request whose reply may be cached.
+   *
+   * @return the stamp
+   */
+  public long stamp() {
+    return this.invalidations;
+  }
+
+  /**
+   * Caches a translation read from the server, unless an invalidation arrived since the stamp was
+   * taken.
+   *
+   * @param key   the key, in any case
+   * @param value the translation
+   * @param stamp the stamp taken before the request was sent
+   */
+  public void put(String key, String value, long stamp) {
+    if (stamp == this.invalidations) {
+      this.entries.put(key.toLowerCase(), new Entry(value, System.currentTimeMillis()));
+    }
+  }
+
+  /**
+   * Drops the translation of a key, because the server or the client itself changed it.
+   *
+   * @param key the key, in any case
+   */
+  public void invalidate(String key) {
+    this.invalidations++;
+    this.entries.remove(key.toLowerCase());
+  }
+
+  /**
+   * Drops every translation.
+   */
+  public void clear() {
+    this.invalidations++;
+    this.entries.clear();
+  }
+
+  /**
+   * Gets the number of lookups served from the cache.
+   *
+   * @return the number of hits
+   */
+  public long getHits() {
+    return this.hits;
+  }
+
+  /**
+   * Gets the number of lookups that had to go to the server.
+   *
+   * @return the number of misses
+   */
+  public long getMisses() {
+    return this.misses;
+  }
+
+  /**
+   * Describes the size and the counters of the cache.
+   *
+   * @return the description
+   */
+  @Override
+  public String toString() {
+    return this.entries.size() + "/" + this.capacity + " translations, " + this.hits + " hits, " + this.misses + " misses";
+  }
+
+  /**
+   * A cached translation.
+   */
+  private static final class Entry {
+    private final String value;
+    private final long cachedAt;
+
+    private Entry(String value, long cachedAt) {
+      this.value = value;
+      this.cachedAt = cachedAt;
+    }
+  }
+}
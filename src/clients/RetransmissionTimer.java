@@ -0,0 +1,73 @@
+package clients;
+
+/**
+ * This class represents the retransmission timeout of a UDP client, adapted to the round-trip times
+ * it measures as TCP does (RFC 6298): a smoothed round-trip time plus four times its mean deviation,
+ * doubled after every timeout until a reply arrives. Only requests answered without being sent again
+ * are measured, as a reply to a request sent twice cannot tell which copy it answers.
+ */
+public class RetransmissionTimer {
+  private final long minNanos;
+  private final long maxNanos;
+  private long smoothedNanos;
+  private long deviationNanos;
+  private long timeoutNanos;
+
+  /**
+   * Instantiates a new retransmission timer.
+   *
+   * @param initialMillis the timeout before any round trip was measured
+   * @param minMillis     the shortest timeout
+   * @param maxMillis     the longest timeout, however often it was doubled
+   */
+  public RetransmissionTimer(long initialMillis, long minMillis, long maxMillis) {
+    this.minNanos = minMillis * 1_000_000;
+    this.maxNanos = Math.max(this.minNanos, maxMillis * 1_000_000);
+    this.timeoutNanos = this.clamp(initialMillis * 1_000_000);
+  }
+
+  /**
+   * Measures the round trip of a request that was answered without being sent again.
+   *
+   * @param rttNanos the time from sending the request to receiving its reply
+   */
+  public void record(long rttNanos) {
+    if (this.smoothedNanos == 0) { // the first measurement
+      this.smoothedNanos = Math.max(1, rttNanos);
+      this.deviationNanos = rttNanos / 2;
+    } else {
+      this.deviationNanos += (Math.abs(this.smoothedNanos - rttNanos) - this.deviationNanos) / 4;
+      this.smoothedNanos += (rttNanos - this.smoothedNanos) / 8;
+    }
+    this.timeoutNanos = this.clamp(this.smoothedNanos + 4 * this.deviationNanos);
+  }
+
+  /**
+   * Doubles the timeout, after a request timed out.
+   */
+  public void backOff() {
+    this.timeoutNanos = this.clamp(2 * this.timeoutNanos);
+  }
+
+  /**
+   * Gets the time to wait for a reply before sending the request again.
+   *
+   * @return the timeout in nanoseconds
+   */
+  public long getTimeoutNanos() {
+    return this.timeoutNanos;
+  }
+
+  /**
+   * Gets the smoothed round-trip time.
+   *
+   * @return the round-trip time in nanoseconds, or 0 before any was measured
+   */
+  public long getSmoothedNanos() {
+    return this.smoothedNanos;
+  }
+
+  private long clamp(long nanos) {
+    return Math.min(this.maxNanos, Math.max(this.minNanos, nanos));
+  }
+}
@@ -1,61 +1,269 @@
 package clients;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import utils.BinaryProtocol;
 
 /**
- * The class TCP client represents a client that communicates via the TCP protocol.
+ * The class TCP client represents a client that communicates via the TCP protocol. A connection whose
+ * replies can no longer be told apart, because a request failed or timed out while others were in
+ * flight, is closed and opened again before the next request rather than read on out of step.
  */
 public class TCPClient extends AbstractClient {
-  private Socket socket;
-  private BufferedWriter writer;
-  private BufferedReader reader;
+  private static final int PIPELINE_WINDOW = 256;
+  private final Map<InetSocketAddress, Connection> connections = new LinkedHashMap<>();
 
   /**
    * Instantiates a new TCP client.
    *
-   * @param hostname the hostname
-   * @param port     the port
+   * @param hostname the hostname, or a comma-separated list of host[:port] servers to shard the keys
+   *                 over
+   * @param port     the port, for the servers listed without one
    */
   public TCPClient(String hostname, String port) {
     super(hostname, port);
   }
 
   /**
-   * Sets the TCP socket.
+   * Connects to every server, trying each 3 times.
    *
-   * @param socket the TCP socket
+   * @return true if every connection was established
    */
-  private void setSocket(Socket socket) {
-    this.socket = socket;
+  private boolean connect() {
+    for (InetSocketAddress node : this.ring.getNodes()) {
+      int i = 3;
+      while (!this.connections.containsKey(node)) { // try to establish a connection 3 times
+        try {
+          this.connections.put(node, new Connection(new Socket(node.getAddress(), node.getPort()))); // open a new TCP socket
+        } catch (IOException e) {
+          this.logger.log("IO: " + e.getMessage());
+          System.out.println("Connection to " + node + " failed");
+          i--;
+          if (i == 0) {
+            return false;
+          }
+          try {
+            Thread.sleep(5000); // wait 5 seconds before retrying
+          } catch (InterruptedException ignored) {
+          }
+        }
+      }
+    }
+    return true;
   }
 
-  private void setWriter(BufferedWriter writer) {
-    this.writer = writer;
+  /**
+   * Writes a request to the output buffer of a connection without flushing it.
+   *
+   * @param connection the connection
+   * @param request    the request
+   * @throws IOException if the request could not be written
+   */
+  private void write(Connection connection, String request) throws IOException {
+    byte[] frame = this.binaryProtocol ? this.toBinaryFrame(request) : null;
+    if (frame != null) {
+      connection.writer.write(frame);
+    } else {
+      connection.writer.write(request.getBytes(StandardCharsets.UTF_8));
+      connection.writer.write('\n');
+    }
+    this.logger.log("Sent " + "\"" + request + "\"" + " to " + connection.socket.getRemoteSocketAddress());
   }
 
-  private void setReader(BufferedReader reader) {
-    this.reader = reader;
+  /**
+   * Sends several requests without waiting for each reply. Each request goes to the server of its
+   * key, and a batch request is split into one batch per server, which all work on it at once.
+   * Requests are written back to back and flushed together, at most {@value #PIPELINE_WINDOW} in
+   * flight per server at a time so that neither side blocks on a full socket buffer, and every server
+   * answers its requests in order. If a connection fails, every connection still waiting for
+   * replies is closed, and opened again by the next call.
+   *
+   * @param requests the requests
+   * @return the replies, in the order of the requests
+   * @throws IOException if a connection failed
+   */
+  public List<String> pipeline(List<String> requests) throws IOException {
+    this.reconnect();
+    long stamp = this.nearCache == null ? 0 : this.nearCache.stamp();
+    List<List<Part>> parts = new ArrayList<>(requests.size());
+    int remaining = 0;
+    for (Connection connection : this.connections.values()) { // left over by a call that failed
+      connection.unsent.clear();
+    }
+    for (int i = 0; i < requests.size(); i++) {
+      parts.add(this.split(i, requests.get(i)));
+      for (Part part : parts.get(i)) {
+        this.connections.get(part.node).unsent.add(part);
+        remaining++;
+      }
+    }
+    try {
+      while (remaining > 0) {
+        for (Connection connection : this.connections.values()) { // fill every window
+          while (!connection.unsent.isEmpty() && connection.inFlight.size() < PIPELINE_WINDOW) {
+            Part part = connection.unsent.poll();
+            this.write(connection, part.request);
+            connection.inFlight.add(part);
+          }
+          connection.writer.flush();
+        }
+        for (Connection connection : this.connections.values()) { // drain half of every window before refilling, or all of it at the end
+          int target = connection.unsent.isEmpty() ? 0 : PIPELINE_WINDOW / 2;
+          while (connection.inFlight.size() > target) {
+            Part part = connection.inFlight.peek();
+            this.renderedItems = null;
+            part.reply = this.receive(connection, part.request);
+            part.items = this.renderedItems;
+            connection.inFlight.poll();
+            remaining--;
+          }
+        }
+      }
+    } catch (IOException e) {
+      Iterator<Connection> iterator = this.connections.values().iterator();
+      while (iterator.hasNext()) {
+        Connection connection = iterator.next();
+        if (!connection.inFlight.isEmpty()) { // their replies may still come
+          this.close(connection);
+          iterator.remove();
+        }
+      }
+      throw e;
+    }
+    List<String> replies = new ArrayList<>(requests.size());
+    for (int i = 0; i < requests.size(); i++) {
+      String reply = this.merge(requests.get(i), parts.get(i));
+      this.remember(requests.get(i), reply, stamp);
+      replies.add(reply);
+    }
+    return replies;
   }
 
-  private void send() throws IOException {
-    this.setWriter(new BufferedWriter(new OutputStreamWriter(this.socket.getOutputStream())));
-    this.writer.write(this.request);
-    this.writer.newLine();
-    this.writer.flush();
-    this.logger.log("Sent " + "\"" + this.request + "\"" + " to the server");
+  /**
+   * Receives the reply to a request, applying the invalidations pushed ahead of it.
+   *
+   * @param connection the connection the request was sent on
+   * @param request    the request
+   * @return the reply
+   * @throws IOException if the connection failed
+   */
+  private String receive(Connection connection, String request) throws IOException {
+    DataInputStream reader = connection.reader;
+    int first = reader.read(); // the first byte tells the protocol apart
+    while ((byte) first == BinaryProtocol.INVALIDATION_MAGIC) {
+      this.invalidate(BinaryProtocol.readInvalidation(reader));
+      first = reader.read();
+    }
+    if (first == -1) {
+      throw new EOFException("The server closed the connection");
+    }
+    String reply;
+    if ((byte) first == BinaryProtocol.MAGIC) {
+      reply = this.render(BinaryProtocol.readReply(reader), request);
+    } else {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      for (int b = first; b != -1 && b != '\n'; b = reader.read()) {
+        line.write(b);
+      }
+      reply = line.toString(StandardCharsets.UTF_8);
+    }
+    this.logger.log("Received " + "\"" + reply.trim() + "\"" + " from " + connection.socket.getRemoteSocketAddress());
+    return reply;
   }
 
-  private String receive() throws IOException {
-    this.setReader(new BufferedReader(new InputStreamReader(this.socket.getInputStream())));
-    String reply = this.reader.readLine();
-    this.logger.log("Received " + "\"" + reply.trim() + "\"" + " from the server");
-    return reply;
+  /**
+   * Applies the invalidations the servers pushed while no request was in flight, without waiting for
+   * more. A connection that sent anything else is out of step: it is closed, and the near cache, which
+   * may have missed invalidations, is cleared.
+   *
+   * @throws IOException if a connection failed
+   */
+  private void drainInvalidations() throws IOException {
+    Iterator<Connection> iterator = this.connections.values().iterator();
+    while (iterator.hasNext()) {
+      Connection connection = iterator.next();
+      while (connection.reader.available() > 0) {
+        if ((byte) connection.reader.read() != BinaryProtocol.INVALIDATION_MAGIC) {
+          this.logger.log("Unexpected bytes from " + connection.socket.getRemoteSocketAddress() + ". Reconnecting");
+          this.close(connection);
+          iterator.remove();
+          this.nearCache.clear();
+          break;
+        }
+        this.invalidate(BinaryProtocol.readInvalidation(connection.reader));
+      }
+    }
+  }
+
+  /**
+   * Opens the connections closed after a failure again. Invalidations may have been missed meanwhile,
+   * so the near cache is cleared and tracking turned on for the new connections.
+   *
+   * @throws IOException if a server could not be reached
+   */
+  private void reconnect() throws IOException {
+    if (this.connections.size() == this.ring.getNodes().size()) {
+      return;
+    }
+    if (!this.connect()) {
+      throw new IOException("Could not reconnect to every server");
+    }
+    this.logger.log("Reconnected");
+    if (this.nearCache != null) {
+      this.nearCache.clear();
+      this.enableTracking();
+    }
+  }
+
+  /**
+   * Closes a connection.
+   *
+   * @param connection the connection
+   */
+  private void close(Connection connection) {
+    try {
+      connection.socket.close(); // closes its streams too
+    } catch (IOException e) {
+      this.logger.log("Socket: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Turns tracking on at every server if the client has a near cache, and drops the near cache if a
+   * server does not support it.
+   */
+  private void enableTracking() {
+    if (this.nearCache == null) {
+      return;
+    }
+    try {
+      String reply = this.pipeline(Arrays.asList("TRACKING:ON")).get(0);
+      if (reply.equals("SUCCESS")) {
+        this.logger.log("Tracking turned on");
+        return;
+      }
+    } catch (IOException e) {
+      this.logger.log("IO (tracking): " + e.getMessage());
+    }
+    System.out.println("The server does not support tracking. The near cache is off");
+    this.nearCache = null;
   }
 
   /**
@@ -64,36 +272,11 @@ public class TCPClient extends AbstractClient {
   @Override
   protected void prePopulate() {
     try {
-      this.setRequest("put:hello:ciao");
-      this.send();
-      System.out.println(this.receive());
-      this.setRequest("put:goodbye:addio");
-      this.send();
-      System.out.println(this.receive());
-      this.setRequest("put:thank you:grazie");
-      this.send();
-      System.out.println(this.receive());
-      this.setRequest("put:please:per favore");
-      this.send();
-      System.out.println(this.receive());
-      this.setRequest("put:yes:sì");
-      this.send();
-      System.out.println(this.receive());
-      this.setRequest("put:no:no");
-      this.send();
-      System.out.println(this.receive());
-      this.setRequest("put:water:acqua");
-      this.send();
-      System.out.println(this.receive());
-      this.setRequest("put:food:cibo");
-      this.send();
-      System.out.println(this.receive());
-      this.setRequest("put:friend:amico");
-      this.send();
-      System.out.println(this.receive());
-      this.setRequest("put:love:amore");
-      this.send();
-      System.out.println(this.receive());
+      for (String reply : this.pipeline(Arrays.asList("put:hello:ciao", "put:goodbye:addio", "put:thank you:grazie",
+          "put:please:per favore", "put:yes:sì", "put:no:no", "put:water:acqua", "put:food:cibo", "put:friend:amico",
+          "put:love:amore"))) { // a single burst instead of one round trip per request
+        System.out.println(reply);
+      }
     } catch (IOException e) {
       this.logger.log("IO (pre-populate): " + e.getMessage());
     }
@@ -104,40 +287,30 @@ public class TCPClient extends AbstractClient {
    */
   @Override
   public void execute() {
-    int i = 3;
-    while (this.socket == null) { // try to establish a connection 3 times
-      try {
-        this.setSocket(new Socket(this.address, this.portNumber)); // open a new TCP socket
-      } catch (IOException e) {
-        this.logger.log("IO: " + e.getMessage());
-        System.out.println("Connection failed");
-        i--;
-        if (i == 0) {
-          break;
-        }
-        try {
-          Thread.sleep(5000); // wait 5 seconds before retrying
-        } catch (InterruptedException ignored) {
-        }
-      }
-    }
-    if (this.socket != null) { // if a connection was established
+    if (this.connect()) { // if every connection was established
       boolean isRunning = true;
       this.logger.log("Connection established. TCPClient running...");
       this.logger.log("Pre-populating...");
       this.prePopulate(); // pre-populate the key-value store
       this.logger.log("Pre-population completed");
+      this.enableTracking();
       while (isRunning) {
         try {
           this.setRequest(this.getRequest()); // get and update the user request
           if (this.request.equalsIgnoreCase("client shutdown") || this.request.equalsIgnoreCase("client stop")) { // if the user wants to quit
             isRunning = false; // prepare the shutdown process
           } else {
-            this.send();
+            if (this.nearCache != null) {
+              this.drainInvalidations();
+              String cached = this.lookup(this.request);
+              if (cached != null) { // no round trip needed
+                System.out.println(cached);
+                continue;
+              }
+            }
             System.out.println("Request sent");
-            this.socket.setSoTimeout(5000); // set a 5-second timeout for receiving a response
             try {
-              System.out.println(this.receive()); // print the server's response
+              System.out.println(this.pipeline(Arrays.asList(this.request)).get(0)); // print the server's response
             } catch (SocketTimeoutException e) { // if the server is unresponsive
               this.logger.log("Request timed out: " + this.request);
               System.out.println("Request timed out. Please try again");
@@ -160,29 +333,34 @@ public class TCPClient extends AbstractClient {
     this.logger.log("Received a request to shut down...");
     System.out.println("Client is shutting down...");
     this.scanner.close();
-    if (this.socket != null) {
-      try {
-        this.socket.close();
-      } catch (IOException s) {
-        this.logger.log("Socket: " + s.getMessage());
-      }
-    }
-    if (this.writer != null) {
-      try {
-        this.writer.close();
-      } catch (IOException w) {
-        this.logger.log("Writer: " + w.getMessage());
-      }
-    }
-    if (this.reader != null) {
-      try {
-        this.reader.close();
-      } catch (IOException r) {
-        this.logger.log("Reader: " + r.getMessage());
-      }
+    for (Connection connection : this.connections.values()) {
+      this.close(connection);
     }
     this.logger.log("TCPClient stopped");
     this.logger.close();
     System.out.println("Client closed");
   }
+
+  /**
+   * A connection to a server, with the parts of requests waiting to be sent on it and those awaiting
+   * their reply, oldest first.
+   */
+  private static final class Connection {
+    private final Socket socket;
+    private final OutputStream writer;
+    private final DataInputStream reader;
+    private final ArrayDeque<Part> unsent = new ArrayDeque<>();
+    private final ArrayDeque<Part> inFlight = new ArrayDeque<>();
+
+    /**
+     * Opens the streams of a socket once for the lifetime of the connection, and sets a 5-second
+     * timeout for receiving a response.
+     */
+    private Connection(Socket socket) throws IOException {
+      this.socket = socket;
+      this.socket.setSoTimeout(5000);
+      this.writer = new BufferedOutputStream(socket.getOutputStream());
+      this.reader = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+  }
 }
@@ -3,15 +3,44 @@ package clients;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import utils.BinaryProtocol;
+import utils.FragmentReassembler;
 
 /**
- * The class UDP client represents a client that communicates via the UDP protocol.
+ * The class UDP client represents a client that communicates via the UDP protocol. Requests and
+ * replies that do not fit in a datagram sized for the path MTU travel as fragments.
+ *
+ * <p>Every request carries a request id, and is sent again whenever its reply takes longer than a
+ * timeout adapted to the round-trip times measured, until the client gives up. The server answers a
+ * request it already executed with the reply it sent, so sending a PUT or a DELETE again never applies
+ * it twice.
  */
 public class UDPClient extends AbstractClient {
+  private static final int MAX_REPLY_LENGTH = 64 * 1024 * 1024;
+  private static final int MAX_PARTIAL_REPLIES = 16; // replies sent again while the first was in flight
+  private static final long INITIAL_RETRANSMISSION_MILLIS = 1000;
+  private static final long MIN_RETRANSMISSION_MILLIS = 1;
+  private static final long MAX_RETRANSMISSION_MILLIS = 1000;
+  private final RetransmissionTimer timer = new RetransmissionTimer(INITIAL_RETRANSMISSION_MILLIS, MIN_RETRANSMISSION_MILLIS,
+      MAX_RETRANSMISSION_MILLIS);
+  private long timeoutMillis = 5000;
+  private FragmentReassembler reassembler = new FragmentReassembler(MAX_REPLY_LENGTH, MAX_REPLY_LENGTH, MAX_PARTIAL_REPLIES,
+      this.timeoutMillis);
   private DatagramSocket socket;
+  private int datagramLength = BinaryProtocol.datagramLength(BinaryProtocol.DEFAULT_MTU);
+  private int messageId;
+  private int requestId;
 
   /**
    * Instantiates a new UDP client.
@@ -32,25 +61,199 @@ public class UDPClient extends AbstractClient {
     this.socket = socket;
   }
 
-  private DatagramPacket encode(String request) {
-    byte[] requestBytes = request.getBytes(StandardCharsets.UTF_8);
-    return new DatagramPacket(requestBytes, requestBytes.length, this.address, this.portNumber);
+  /**
+   * Sets the MTU of the paths to the servers, which requests are split into datagrams for.
+   *
+   * @param mtu the MTU in bytes
+   */
+  public void setMtu(int mtu) {
+    this.datagramLength = BinaryProtocol.datagramLength(mtu);
+  }
+
+  /**
+   * Sets how long a request is sent again before the client gives up on it.
+   *
+   * @param timeoutMillis the timeout in milliseconds
+   */
+  public void setTimeoutMillis(long timeoutMillis) {
+    this.timeoutMillis = Math.max(1, timeoutMillis);
+    this.reassembler = new FragmentReassembler(MAX_REPLY_LENGTH, MAX_REPLY_LENGTH, MAX_PARTIAL_REPLIES, this.timeoutMillis);
+  }
+
+  /**
+   * Encodes a request with a new request id, and splits it into fragments if it does not fit in one
+   * datagram.
+   *
+   * @param part the request and its server
+   * @return the request, ready to be sent and sent again
+   */
+  private Attempt prepare(Part part) {
+    byte[] requestBytes = this.binaryProtocol ? this.toBinaryFrame(part.request) : null;
+    if (requestBytes == null) {
+      requestBytes = part.request.getBytes(StandardCharsets.UTF_8);
+    }
+    int id = ++this.requestId;
+    byte[] identified = BinaryProtocol.withRequestId(id, requestBytes, 0, requestBytes.length);
+    return new Attempt(part, id, BinaryProtocol.fragment(identified, ++this.messageId, this.datagramLength));
+  }
+
+  /**
+   * Sends a request to its server, all its fragments if it has any.
+   *
+   * @param attempt the request
+   * @throws IOException if a datagram could not be sent
+   */
+  private void send(Attempt attempt) throws IOException {
+    for (byte[] datagram : attempt.datagrams) {
+      this.socket.send(new DatagramPacket(datagram, datagram.length, attempt.part.node));
+    }
+    attempt.sentAt = System.nanoTime();
   }
 
-  private void send(DatagramPacket packet) throws IOException {
-    this.socket.send(packet);
-    this.logger.log("Sent " + "\"" + this.request + "\"" + " to the server");
+  /**
+   * Sends a request and waits for its reply. The request goes to the server of its key, and a batch
+   * request is split into one datagram per server, all sent before any reply is awaited.
+   *
+   * @param request the request
+   * @return the reply
+   * @throws IOException if a reply did not arrive in time
+   */
+  private String exchange(String request) throws IOException {
+    long stamp = this.nearCache == null ? 0 : this.nearCache.stamp();
+    List<Part> parts = this.split(0, request);
+    Map<SocketAddress, Attempt> awaiting = new HashMap<>();
+    for (Part part : parts) {
+      Attempt attempt = this.prepare(part);
+      this.send(attempt);
+      this.logger.log("Sent " + "\"" + part.request + "\"" + " to " + part.node);
+      awaiting.put(part.node, attempt);
+    }
+    this.receive(awaiting);
+    String reply = this.merge(request, parts);
+    this.remember(request, reply, stamp);
+    return reply;
   }
 
-  private DatagramPacket receive() throws IOException {
-    byte[] buffer = new byte[1000];
+  /**
+   * Receives the replies of the servers a request was sent to, reassembling those the servers split
+   * into fragments, and applies the invalidations received meanwhile. The requests still awaiting
+   * their reply are sent again whenever the retransmission timeout expires, and the timeout doubles,
+   * until the client gives up. Datagrams from other senders, and replies to earlier requests, are
+   * dropped.
+   *
+   * @param awaiting the requests awaiting their reply, by server; emptied as replies arrive
+   * @throws IOException if a reply did not arrive in time
+   */
+  private void receive(Map<SocketAddress, Attempt> awaiting) throws IOException {
+    byte[] buffer = new byte[BinaryProtocol.MAX_DATAGRAM_LENGTH];
     DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-    this.socket.receive(packet);
-    return packet;
+    long giveUpAt = System.nanoTime() + this.timeoutMillis * 1_000_000;
+    long retransmitAt = System.nanoTime() + this.timer.getTimeoutNanos();
+    while (!awaiting.isEmpty()) {
+      long now = System.nanoTime();
+      if (now - giveUpAt >= 0) {
+        throw new SocketTimeoutException("No reply within " + this.timeoutMillis + " ms");
+      }
+      if (now - retransmitAt >= 0) {
+        this.timer.backOff();
+        for (Attempt attempt : awaiting.values()) {
+          this.send(attempt);
+          attempt.retransmitted = true;
+          this.logger.log("Sent " + "\"" + attempt.part.request + "\"" + " again to " + attempt.part.node);
+        }
+        retransmitAt = now + this.timer.getTimeoutNanos();
+      }
+      long waitNanos = Math.min(retransmitAt, giveUpAt) - now;
+      this.socket.setSoTimeout((int) Math.max(1, (waitNanos + 999_999) / 1_000_000));
+      packet.setLength(buffer.length);
+      try {
+        this.socket.receive(packet);
+      } catch (SocketTimeoutException e) { // time to send again, or to give up
+        continue;
+      }
+      int length = packet.getLength();
+      if (length > 0 && buffer[0] == BinaryProtocol.INVALIDATION_MAGIC) {
+        this.invalidate(BinaryProtocol.decodeInvalidation(ByteBuffer.wrap(buffer, 0, length)));
+        continue;
+      }
+      SocketAddress sender = packet.getSocketAddress();
+      Attempt attempt = awaiting.get(sender);
+      if (attempt == null) {
+        continue;
+      }
+      byte[] reply;
+      if (length == 0 || buffer[0] != BinaryProtocol.FRAGMENT_MAGIC) { // a whole reply
+        reply = Arrays.copyOf(buffer, length);
+      } else {
+        reply = this.reassembler.add(sender, buffer, length);
+        if (reply == null) { // more fragments to come
+          continue;
+        }
+      }
+      if (reply.length < BinaryProtocol.REQUEST_ID_HEADER_LENGTH || reply[0] != BinaryProtocol.REQUEST_ID_MAGIC
+          || BinaryProtocol.readInt(reply, 1) != attempt.requestId) { // a late reply to an earlier request
+        continue;
+      }
+      if (!attempt.retransmitted) { // a reply to a request sent twice could answer either copy
+        this.timer.record(System.nanoTime() - attempt.sentAt);
+      }
+      this.renderedItems = null;
+      attempt.part.reply = this.decode(reply, BinaryProtocol.REQUEST_ID_HEADER_LENGTH, attempt.part.request);
+      attempt.part.items = this.renderedItems;
+      awaiting.remove(sender);
+    }
+  }
+
+  /**
+   * Applies the invalidations the server pushed while no request was in flight, without waiting for
+   * more. The socket's channel is switched to non-blocking mode for the occasion.
+   *
+   * @throws IOException if the socket failed
+   */
+  private void drainInvalidations() throws IOException {
+    DatagramChannel channel = this.socket.getChannel();
+    ByteBuffer buffer = ByteBuffer.allocate(BinaryProtocol.MAX_DATAGRAM_LENGTH);
+    channel.configureBlocking(false);
+    try {
+      while (channel.receive(buffer) != null) {
+        buffer.flip();
+        if (buffer.hasRemaining() && buffer.get(0) == BinaryProtocol.INVALIDATION_MAGIC) { // anything else is a late reply
+          this.invalidate(BinaryProtocol.decodeInvalidation(buffer));
+        }
+        buffer.clear();
+      }
+    } finally {
+      channel.configureBlocking(true);
+    }
+  }
+
+  /**
+   * Turns tracking on at every server if the client has a near cache, and drops the near cache if a
+   * server does not support it.
+   */
+  private void enableTracking() {
+    if (this.nearCache == null) {
+      return;
+    }
+    try {
+      if (this.exchange("TRACKING:ON").equals("SUCCESS")) {
+        this.logger.log("Tracking turned on");
+        return;
+      }
+    } catch (IOException e) {
+      this.logger.log("IO (tracking): " + e.getMessage());
+    }
+    System.out.println("The server does not support tracking. The near cache is off");
+    this.nearCache = null;
   }
 
-  private String decode(DatagramPacket packet) {
-    String reply = new String(packet.getData());
+  private String decode(byte[] data, int offset, String request) throws IOException {
+    String reply;
+    if (data.length > offset && data[offset] == BinaryProtocol.MAGIC) {
+      reply = this.render(BinaryProtocol.decodeReply(ByteBuffer.wrap(data, offset, data.length - offset)), request);
+    } else {
+      reply = new String(data, offset, data.length - offset, StandardCharsets.UTF_8);
+    }
     this.logger.log("Received " + "\"" + reply.trim() + "\"" + " from the server");
     return reply;
   }
@@ -61,36 +264,10 @@ public class UDPClient extends AbstractClient {
   @Override
   protected void prePopulate() {
     try {
-      this.setRequest("put:hello:ciao");
-      this.send(this.encode(this.request));
-      System.out.println(this.decode(this.receive()));
-      this.setRequest("put:goodbye:addio");
-      this.send(this.encode(this.request));
-      System.out.println(this.decode(this.receive()));
-      this.setRequest("put:thank you:grazie");
-      this.send(this.encode(this.request));
-      System.out.println(this.decode(this.receive()));
-      this.setRequest("put:please:per favore");
-      this.send(this.encode(this.request));
-      System.out.println(this.decode(this.receive()));
-      this.setRequest("put:yes:sì");
-      this.send(this.encode(this.request));
-      System.out.println(this.decode(this.receive()));
-      this.setRequest("put:no:no");
-      this.send(this.encode(this.request));
-      System.out.println(this.decode(this.receive()));
-      this.setRequest("put:water:acqua");
-      this.send(this.encode(this.request));
-      System.out.println(this.decode(this.receive()));
-      this.setRequest("put:food:cibo");
-      this.send(this.encode(this.request));
-      System.out.println(this.decode(this.receive()));
-      this.setRequest("put:friend:amico");
-      this.send(this.encode(this.request));
-      System.out.println(this.decode(this.receive()));
-      this.setRequest("put:love:amore");
-      this.send(this.encode(this.request));
-      System.out.println(this.decode(this.receive()));
+      for (String request : Arrays.asList("put:hello:ciao", "put:goodbye:addio", "put:thank you:grazie", "put:please:per favore",
+          "put:yes:sì", "put:no:no", "put:water:acqua", "put:food:cibo", "put:friend:amico", "put:love:amore")) {
+        System.out.println(this.exchange(request));
+      }
     } catch (IOException e) {
       this.logger.log("IO (pre-populate): " + e.getMessage());
     }
@@ -102,8 +279,10 @@ public class UDPClient extends AbstractClient {
   @Override
   public void execute() {
     try {
-      this.setSocket(new DatagramSocket()); // open a new UDP socket
-    } catch (SocketException e) {
+      DatagramChannel channel = DatagramChannel.open(); // a channel's socket, so that pushed invalidations can be polled
+      channel.bind(null);
+      this.setSocket(channel.socket()); // open a new UDP socket
+    } catch (IOException e) {
       this.logger.log("Socket: " + e.getMessage());
     }
     if (this.socket != null) { // if a socket could be opened
@@ -112,17 +291,24 @@ public class UDPClient extends AbstractClient {
       this.logger.log("Pre-populating...");
       this.prePopulate(); // pre-populate the key-value store
       this.logger.log("Pre-population completed");
+      this.enableTracking();
       while(isRunning) {
         try {
           this.setRequest(this.getRequest()); // get and update the user request
           if (this.request.equalsIgnoreCase("client shutdown") || this.request.equalsIgnoreCase("client stop")) { // if the user wants to quit
             isRunning = false; // prepare the shutdown process
           } else {
-            this.send(this.encode(this.request)); // send the request
+            if (this.nearCache != null) {
+              this.drainInvalidations();
+              String cached = this.lookup(this.request);
+              if (cached != null) { // no round trip needed
+                System.out.println(cached);
+                continue;
+              }
+            }
             System.out.println("Request sent");
-            this.socket.setSoTimeout(5000); // set a 5-second timeout for receiving a response
             try {
-              System.out.println(this.decode(this.receive())); // print the server's response
+              System.out.println(this.exchange(this.request)); // send the request and print the server's response
             } catch (SocketTimeoutException e) { // if the server is unresponsive
               this.logger.log("Request timed out: " + this.request);
               System.out.println("Request timed out. Please try again");
@@ -150,4 +336,21 @@ public class UDPClient extends AbstractClient {
     this.logger.close();
     System.out.println("Client closed");
   }
+
+  /**
+   * A request sent to a server, with what it takes to send it again.
+   */
+  private static final class Attempt {
+    private final Part part;
+    private final int requestId;
+    private final List<byte[]> datagrams;
+    private long sentAt;
+    private boolean retransmitted;
+
+    private Attempt(Part part, int requestId, List<byte[]> datagrams) {
+      this.part = part;
+      this.requestId = requestId;
+      this.datagrams = datagrams;
+    }
+  }
 }
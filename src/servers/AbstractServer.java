@@ -1,14 +1,37 @@
 package servers;
 
-import java.net.DatagramPacket;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
+import utils.BinaryProtocol;
 import utils.ILogger;
 
 /**
  * The class abstract server contains attributes and methods for all types of translation servers.
  */
 public abstract class AbstractServer implements IServer {
+  private static final String MALFORMED_REPLY = "FAIL: the server received a malformed request. Please follow the predefined protocol PUT/GET/DELETE:key:value[with PUT only] and try again";
+  private static final String MISSING_VALUE_REPLY = "FAIL: the server could not parse the value requested. Please follow the predefined protocol PUT/GET/DELETE:key:value[with PUT only] and try again";
+  private static final String TRACKING_UNSUPPORTED_REPLY = "FAIL: this server does not support tracking";
+  private static final String SCAN_UNSUPPORTED_REPLY = "FAIL: this server keeps no sorted index; start it with -Dstore.sortedIndex=true";
+  private static final String REPLY_TOO_LARGE_REPLY = "FAIL: the reply would be too large (over " + BinaryProtocol.MAX_FIELD_LENGTH + " bytes)";
+  private static final String INVALID_REPLY = "Invalid request. Please follow the predefined protocol PUT/GET/DELETE:key:value[with PUT only] and try again";
+  private static final byte[] EMPTY_PAYLOAD = new byte[0];
+  private static final Map<String, byte[]> ENCODED_REPLIES = new IdentityHashMap<>(); // string literals are interned
+  static {
+    for (String reply : new String[] {"SUCCESS", MALFORMED_REPLY, MISSING_VALUE_REPLY, TRACKING_UNSUPPORTED_REPLY, SCAN_UNSUPPORTED_REPLY, REPLY_TOO_LARGE_REPLY, INVALID_REPLY}) {
+      ENCODED_REPLIES.put(reply, reply.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+  /**
+   * The longest text request a connection may send, so that a client that never ends its line cannot
+   * exhaust memory.
+   */
+  protected static final int MAX_TEXT_REQUEST_LENGTH = 64 * 1024;
   /**
    * The port number.
    */
@@ -17,10 +40,18 @@ public abstract class AbstractServer implements IServer {
    * The translation service.
    */
   protected ITranslationService translationService;
+  /**
+   * The translation service that invalidates the keys read by tracking connections, or null.
+   */
+  protected TrackingTranslationService trackingService;
   /**
    * The logger.
    */
   protected ILogger logger;
+  /**
+   * The counters and latencies of the server.
+   */
+  protected final ServerMetrics metrics = new ServerMetrics();
 
   /**
    * Instantiates a new abstract translation server.
@@ -77,133 +108,364 @@ public abstract class AbstractServer implements IServer {
   }
 
   /**
-   * Parses the client's request. The predefined protocol for the translation operation is
-   * PUT/GET/DELETE:key:value[with PUT only].
+   * Sets the translation service that invalidates the keys read by tracking connections. It must be
+   * part of the translation service.
+   *
+   * @param trackingService the tracking translation service
+   */
+  @Override
+  public void setTrackingService(TrackingTranslationService trackingService) {
+    this.trackingService = trackingService;
+  }
+
+  /**
+   * Gets the counters and latencies of the server, reported by the STATS command.
+   *
+   * @return the metrics
+   */
+  @Override
+  public ServerMetrics getMetrics() {
+    return this.metrics;
+  }
+
+  /**
+   * Executes a parsed request and records it in the metrics.
    *
-   * @param request the operation the server needs to execute
-   * @param packet  the UDP packet
+   * @param request    the parsed request
+   * @param outcome    the outcome of parsing the request
+   * @param subscriber the connection, as a recipient of invalidations, or null if it cannot receive any
+   * @param address    the client's IP address
+   * @param port       the client's port
    * @return the result of the operation
    */
-  protected String parseExecution(String request, DatagramPacket packet) {
+  protected String execute(RequestParser request, int outcome, IInvalidationSubscriber subscriber, InetAddress address, int port) {
+    String result = this.run(request, outcome, subscriber, address, port);
+    return result != null ? result : new String(request.getEncodedValue(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Executes a parsed text request and encodes the reply, without its line terminator. The value of a
+   * GET hit is the array the translation service stored, and the fixed replies are encoded once, so
+   * neither is encoded again; the array must not be modified.
+   *
+   * @param request    the parsed request
+   * @param outcome    the outcome of parsing the request
+   * @param subscriber the connection, as a recipient of invalidations, or null if it cannot receive any
+   * @param address    the client's IP address
+   * @param port       the client's port
+   * @return the encoded reply
+   */
+  protected byte[] executeText(RequestParser request, int outcome, IInvalidationSubscriber subscriber, InetAddress address, int port) {
+    String result = this.run(request, outcome, subscriber, address, port);
+    return result != null ? encode(result) : request.getEncodedValue();
+  }
+
+  /**
+   * Executes a parsed request and records it in the metrics.
+   *
+   * @return the result of the operation, or null for a GET hit, whose value the request holds encoded
+   */
+  private String run(RequestParser request, int outcome, IInvalidationSubscriber subscriber, InetAddress address, int port) {
+    long start = System.nanoTime();
+    String result = this.dispatch(request, outcome, subscriber, address, port);
+    this.metrics.recordRequest(request, System.nanoTime() - start);
+    return result;
+  }
+
+  /**
+   * Encodes a reply in UTF-8, or looks it up if it is one of the fixed replies.
+   */
+  private static byte[] encode(String reply) {
+    byte[] encoded = ENCODED_REPLIES.get(reply);
+    return encoded != null ? encoded : reply.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Executes a parsed request. The predefined protocol for the translation operation is
+   * PUT/GET/DELETE:key:value[with PUT only]:ttlSeconds[optional, with PUT only]; binary requests carry
+   * the same operations. TRACKING:ON/OFF turns the invalidation of the keys the connection reads on
+   * or off, STATS reports the metrics, and PREFIX and RANGE scan the sorted index. Log messages are only built when the logger records them.
+   *
+   * @param request    the parsed request
+   * @param outcome    the outcome of parsing the request
+   * @param subscriber the connection, as a recipient of invalidations, or null if it cannot receive any
+   * @param address    the client's IP address
+   * @param port       the client's port
+   * @return the result of the operation, or null for a GET hit, whose value the request holds encoded
+   */
+  private String dispatch(RequestParser request, int outcome, IInvalidationSubscriber subscriber, InetAddress address, int port) {
+    boolean log = this.logger.isEnabled();
+    switch (outcome) {
+      case RequestParser.MALFORMED: // the protocol is not followed
+        request.setStatus(BinaryProtocol.STATUS_MALFORMED);
+        if (log) {
+          this.logger.log("Received malformed request of length " + request.getLength() + " from " + "<" + address + ">:<" + port + ">");
+        }
+        return MALFORMED_REPLY;
+      case RequestParser.MISSING_VALUE:
+        request.setStatus(BinaryProtocol.STATUS_MALFORMED);
+        if (log) {
+          this.logger.log("Parsing error: value. Request of length " + request.getLength() + " from " + "<" + address + ">:<" + port + ">");
+        }
+        return MISSING_VALUE_REPLY;
+      case RequestParser.UNKNOWN_OPERATION: // invalid request
+        request.setStatus(BinaryProtocol.STATUS_UNKNOWN_OPERATION);
+        if (log) {
+          this.logger.log("Received the request: " + (request.isBinary() ? "binary frame with an unknown opcode" : request.requestText()));
+        }
+        return INVALID_REPLY;
+      default:
+        break;
+    }
+    boolean tracking = subscriber != null && this.trackingService != null && this.trackingService.isSubscribed(subscriber);
+    if (request.getOpcode() == BinaryProtocol.OP_TRACKING) {
+      return this.executeTracking(request, subscriber, address, port);
+    }
+    if (request.getOpcode() == BinaryProtocol.OP_STATS) {
+      request.setStatus(BinaryProtocol.STATUS_OK);
+      return this.metrics.toString();
+    }
+    if (BinaryProtocol.isBatch(request.getOpcode())) {
+      return this.executeBatch(request, tracking ? subscriber : null, log, address, port);
+    }
+    if (BinaryProtocol.isScan(request.getOpcode())) {
+      return this.executeScan(request, log, address, port);
+    }
     String result;
-    String[] elements = request.split(":");
-    if (elements.length < 2 || elements.length > 3) { // the protocol is not followed
-      this.logger.log("Received malformed request of length " + packet.getLength() + " from " + "<" + packet.getAddress() + ">:<" + packet.getPort() + ">");
-      return "FAIL: the server received a malformed request. Please follow the predefined protocol PUT/GET/DELETE:key:value[with PUT only] and try again";
-    } else {
-      String operation;
-      try {
-        operation = elements[0]; // PUT/GET/DELETE
-      } catch (Exception e) {
-        this.logger.log("Parsing error: operation. Request of length " + packet.getLength() + " from " + "<" + packet.getAddress() + ">:<" + packet.getPort() + ">");
-        return "FAIL: the server could not parse the operation requested. Please follow the predefined protocol PUT/GET/DELETE:key:value[with PUT only] and try again";
-      }
-      String key;
-      try {
-        key = elements[1]; // word to be translated
-      } catch (Exception e) {
-        this.logger.log("Parsing error: key. Request of length " + packet.getLength() + " from " + "<" + packet.getAddress() + ">:<" + packet.getPort() + ">");
-        return "FAIL: the server could not parse the key requested. Please follow the predefined protocol PUT/GET/DELETE:key:value[with PUT only] and try again";
-      }
-      String value;
-      switch (operation.toUpperCase()) {
-        case "PUT":
-          try {
-            value = elements[2]; // word to translate
-            this.logger.log("Received a request to save " + "\"" + key + "\"" + " mapped to " + "\"" + value + "\" from <" + packet.getAddress() + ">:<" + packet.getPort() + ">");
-          } catch (Exception e) {
-            this.logger.log("Parsing error: value. Request of length " + packet.getLength() + " from " + "<" + packet.getAddress() + ">:<" + packet.getPort() + ">");
-            return "FAIL: the server could not parse the value requested. Please follow the predefined protocol PUT/GET/DELETE:key:value[with PUT only] and try again";
+    CharSlice key = request.getKey();
+    switch (request.getOpcode()) {
+      case BinaryProtocol.OP_PUT:
+        if (log) {
+          this.logger.log("Received a request to save " + "\"" + key + "\"" + " mapped to " + "\"" + request.getValue() + "\""
+              + (request.getTtlSeconds() > 0 ? " for " + request.getTtlSeconds() + " s" : "") + " from <" + address + ">:<" + port + ">");
+        }
+        if (request.getTtlSeconds() > 0) {
+          result = this.translationService.put(key.toString(), request.getValue().toString(), request.getTtlSeconds() * 1000L);
+        } else {
+          result = this.translationService.put(key, request.getValue());
+        }
+        request.setStatus(result.startsWith("FAIL:") ? BinaryProtocol.STATUS_FAILED : BinaryProtocol.STATUS_OK);
+        break;
+      case BinaryProtocol.OP_GET:
+        if (tracking) { // before the read, so that a concurrent change is invalidated
+          this.trackingService.track(key, subscriber);
+        }
+        byte[] value = this.translationService.getEncoded(key);
+        request.setEncodedValue(value);
+        result = value == null ? ITranslationService.notFound(FoldedKey.fold(key)) : null;
+        if (value == null) {
+          request.setStatus(BinaryProtocol.STATUS_NOT_FOUND);
+          if (log) {
+            this.logger.log("Received a request to retrieve the value mapped to a nonexistent key " + "\"" + key + "\" " + "from <" + address + ">:<" + port + ">");
           }
-          result = this.translationService.put(key, value);
-          break;
-        case "GET":
-          result = this.translationService.get(key);
-          if (result.startsWith("FAIL:")) {
-            this.logger.log("Received a request to retrieve the value mapped to a nonexistent key " + "\"" + key + "\" " + "from <" + packet.getAddress() + ">:<" + packet.getPort() + ">");
-          } else {
-            this.logger.log("Received a request to retrieve the value mapped to " + "\"" + key + "\" " + "from <" + packet.getAddress() + ">:<" + packet.getPort() + ">");
+        } else {
+          request.setStatus(BinaryProtocol.STATUS_OK);
+          if (log) {
+            this.logger.log("Received a request to retrieve the value mapped to " + "\"" + key + "\" " + "from <" + address + ">:<" + port + ">");
           }
-          break;
-        case "DELETE":
-          result = this.translationService.delete(key);
-          if (result.startsWith("FAIL:")) {
-            this.logger.log("Received a request to delete a nonexistent key-value pair associated with " + "\"" + key + "\" " + "from <" + packet.getAddress() + ">:<" + packet.getPort() + ">");
-          } else {
-            this.logger.log("Received a request to delete the key-value pair associated with " + "\"" + key + "\" " + "from <" + packet.getAddress() + ">:<" + packet.getPort() + ">");
+        }
+        break;
+      default: // DELETE
+        result = this.translationService.delete(key);
+        if (result.startsWith("FAIL:")) {
+          request.setStatus(BinaryProtocol.STATUS_NOT_FOUND);
+          if (log) {
+            this.logger.log("Received a request to delete a nonexistent key-value pair associated with " + "\"" + key + "\" " + "from <" + address + ">:<" + port + ">");
           }
-          break;
-        default: // invalid request
-          this.logger.log("Received the request: " + request);
-          return "Invalid request. Please follow the predefined protocol PUT/GET/DELETE:key:value[with PUT only] and try again";
-      }
+        } else {
+          request.setStatus(BinaryProtocol.STATUS_OK);
+          if (log) {
+            this.logger.log("Received a request to delete the key-value pair associated with " + "\"" + key + "\" " + "from <" + address + ">:<" + port + ">");
+          }
+        }
+        break;
     }
     return result;
   }
 
   /**
-   * Parses the client's request. The predefined protocol for the translation operation is
-   * PUT/GET/DELETE:key:value[with PUT only].
+   * Executes a parsed batch request against the translation service in one call. The text reply to
+   * an MGET lists the values separated by colons, with an empty field for every unknown key, so it
+   * cannot tell an unknown key from an empty value, nor a colon within a value from a separator. A
+   * binary request gets the values as a list instead, with unknown keys marked, and no text reply is
+   * built for it.
    *
-   * @param request    the operation the server needs to execute
-   * @param socket     the TCP socket
-   * @param packetSize the packet size
+   * @param request    the parsed request
+   * @param subscriber the connection, if it has tracking on, or null
+   * @param log        whether to log the request
+   * @param address    the client's IP address
+   * @param port       the client's port
    * @return the result of the operation
    */
-  protected String parseExecution(String request, Socket socket, int packetSize) {
+  private String executeBatch(RequestParser request, IInvalidationSubscriber subscriber, boolean log, InetAddress address, int port) {
+    List<String> keys = request.getKeys();
     String result;
-    String[] elements = request.split(":");
-    if (elements.length < 2 || elements.length > 3) { // the protocol is not followed
-      this.logger.log("Received malformed request of length " + packetSize + " from " + "<" + socket.getInetAddress() + ">:<" + socket.getPort() + ">");
-      return "FAIL: the server received a malformed request. Please follow the predefined protocol PUT/GET/DELETE:key:value[with PUT only] and try again\n";
-    } else {
-      String operation;
-      try {
-        operation = elements[0]; // PUT/GET/DELETE
-      } catch (Exception e) {
-        this.logger.log("Parsing error: operation. Request of length " + packetSize + " from " + "<" + socket.getInetAddress() + ">:<" + socket.getPort() + ">");
-        return "FAIL: the server could not parse the operation requested. Please follow the predefined protocol PUT/GET/DELETE:key:value[with PUT only] and try again\n";
-      }
-      String key;
-      try {
-        key = elements[1]; // word to be translated
-      } catch (Exception e) {
-        this.logger.log("Parsing error: key. Request of length " + packetSize + " from " + "<" + socket.getInetAddress() + ">:<" + socket.getPort() + ">");
-        return "FAIL: the server could not parse the key requested. Please follow the predefined protocol PUT/GET/DELETE:key:value[with PUT only] and try again\n";
-      }
-      String value;
-      switch (operation.toUpperCase()) {
-        case "PUT":
-          try {
-            value = elements[2]; // word to translate
-            this.logger.log("Received a request to save " + "\"" + key + "\"" + " mapped to " + "\"" + value + "\" from <" + socket.getInetAddress() + ">:<" + socket.getPort() + ">");
-          } catch (Exception e) {
-            this.logger.log("Parsing error: value. Request of length " + packetSize + " from " + "<" + socket.getInetAddress() + ">:<" + socket.getPort() + ">");
-            return "FAIL: the server could not parse the value requested. Please follow the predefined protocol PUT/GET/DELETE:key:value[with PUT only] and try again\n";
+    switch (request.getOpcode()) {
+      case BinaryProtocol.OP_MPUT:
+        if (log) {
+          this.logger.log("Received a request to save " + keys.size() + " key-value pairs from <" + address + ">:<" + port + ">");
+        }
+        result = this.translationService.putAll(keys, request.getValues());
+        break;
+      case BinaryProtocol.OP_MGET:
+        if (log) {
+          this.logger.log("Received a request to retrieve the values mapped to " + keys.size() + " keys from <" + address + ">:<" + port + ">");
+        }
+        if (subscriber != null) {
+          for (String key : keys) {
+            this.trackingService.track(key, subscriber);
           }
-          result = this.translationService.put(key, value);
+        }
+        List<String> values = this.translationService.getAll(keys);
+        request.setResults(values);
+        if (request.isBinary()) { // the reply is encoded from the results
+          result = "SUCCESS";
           break;
-        case "GET":
-          result = this.translationService.get(key);
-          if (result.startsWith("FAIL:")) {
-            this.logger.log("Received a request to retrieve the value mapped to a nonexistent key " + "\"" + key + "\" " + "from <" + socket.getInetAddress() + ">:<" + socket.getPort() + ">");
-          } else {
-            this.logger.log("Received a request to retrieve the value mapped to " + "\"" + key + "\" " + "from <" + socket.getInetAddress() + ">:<" + socket.getPort() + ">");
+        }
+        StringBuilder reply = new StringBuilder();
+        for (int i = 0; i < values.size(); i++) {
+          if (i > 0) {
+            reply.append(':');
           }
-          break;
-        case "DELETE":
-          result = this.translationService.delete(key);
-          if (result.startsWith("FAIL:")) {
-            this.logger.log("Received a request to delete a nonexistent key-value pair associated with " + "\"" + key + "\" " + "from <" + socket.getInetAddress() + ">:<" + socket.getPort() + ">");
-          } else {
-            this.logger.log("Received a request to delete the key-value pair associated with " + "\"" + key + "\" " + "from <" + socket.getInetAddress() + ">:<" + socket.getPort() + ">");
+          if (values.get(i) != null) {
+            reply.append(values.get(i));
           }
-          break;
-        default: // invalid request
-          this.logger.log("Received the request: " + request);
-          return "Invalid request. Please follow the predefined protocol PUT/GET/DELETE:key:value[with PUT only] and try again";
-      }
+        }
+        result = reply.toString();
+        break;
+      default: // MDELETE
+        if (log) {
+          this.logger.log("Received a request to delete the key-value pairs associated with " + keys.size() + " keys from <" + address + ">:<" + port + ">");
+        }
+        result = this.translationService.deleteAll(keys);
+        break;
+    }
+    if (!result.startsWith("FAIL:")) {
+      request.setStatus(BinaryProtocol.STATUS_OK);
+    } else {
+      request.setStatus(request.getOpcode() == BinaryProtocol.OP_MDELETE ? BinaryProtocol.STATUS_NOT_FOUND : BinaryProtocol.STATUS_FAILED);
     }
     return result;
   }
+
+  /**
+   * Executes a parsed PREFIX or RANGE request. The text reply lists the cursor and then every key and
+   * its value, separated by colons; the cursor is the last key listed if more pairs follow it, to be
+   * passed back for the next page, and empty otherwise. Keys and values that contain colons make the
+   * text reply ambiguous, so a binary request gets the cursor and the pairs as a list instead, and no
+   * text reply is built for it. A page ends early, with a cursor, once its binary list would exceed
+   * {@value BinaryProtocol#MAX_FIELD_LENGTH} bytes, which clients refuse to read.
+   *
+   * @param request the parsed request
+   * @param log     whether to log the request
+   * @param address the client's IP address
+   * @param port    the client's port
+   * @return the result of the operation
+   */
+  private String executeScan(RequestParser request, boolean log, InetAddress address, int port) {
+    String from = request.getKeys().get(0);
+    String to = request.getKeys().get(1);
+    int limit = request.getLimit();
+    if (log) {
+      this.logger.log("Received a request to list up to " + limit + " pairs from " + "\"" + from + "\"" + (to == null ? "" : " to " + "\"" + to + "\"")
+          + " from <" + address + ">:<" + port + ">");
+    }
+    List<Map.Entry<String, String>> pairs = this.translationService.scan(from, to, limit + 1); // one more, to tell whether any follow
+    if (pairs == null) {
+      request.setStatus(BinaryProtocol.STATUS_FAILED);
+      return SCAN_UNSUPPORTED_REPLY;
+    }
+    int count = 0;
+    long bytes = 4; // the item count of the list
+    while (count < Math.min(limit, pairs.size())) {
+      Map.Entry<String, String> pair = pairs.get(count);
+      int keyLength = BinaryProtocol.utf8Length(pair.getKey());
+      bytes += 8 + keyLength + BinaryProtocol.utf8Length(pair.getValue());
+      if (bytes + 4 + keyLength > BinaryProtocol.MAX_FIELD_LENGTH) { // with this key as the cursor
+        break;
+      }
+      count++;
+    }
+    if (count == 0 && !pairs.isEmpty()) { // the first pair alone does not fit
+      request.setStatus(BinaryProtocol.STATUS_FAILED);
+      return REPLY_TOO_LARGE_REPLY;
+    }
+    List<String> results = new ArrayList<>(2 * count + 1);
+    results.add(pairs.size() > count ? pairs.get(count - 1).getKey() : null);
+    for (int i = 0; i < count; i++) {
+      Map.Entry<String, String> pair = pairs.get(i);
+      results.add(pair.getKey());
+      results.add(pair.getValue());
+    }
+    request.setResults(results);
+    request.setStatus(BinaryProtocol.STATUS_OK);
+    if (request.isBinary()) { // the reply is encoded from the results
+      return "SUCCESS";
+    }
+    StringBuilder reply = new StringBuilder(results.get(0) == null ? "" : results.get(0));
+    for (int i = 1; i < results.size(); i++) {
+      reply.append(':').append(results.get(i));
+    }
+    return reply.toString();
+  }
+
+  /**
+   * Turns the invalidation of the keys a connection reads on (TRACKING:ON) or off (TRACKING:OFF).
+   *
+   * @param request    the parsed request
+   * @param subscriber the connection, or null if it cannot receive invalidations
+   * @param address    the client's IP address
+   * @param port       the client's port
+   * @return the result of the operation
+   */
+  private String executeTracking(RequestParser request, IInvalidationSubscriber subscriber, InetAddress address, int port) {
+    CharSlice mode = request.getKey();
+    boolean on = mode.length() == 2 && mode.toString().equalsIgnoreCase("ON");
+    if (!on && !(mode.length() == 3 && mode.toString().equalsIgnoreCase("OFF"))) {
+      request.setStatus(BinaryProtocol.STATUS_MALFORMED);
+      return MALFORMED_REPLY;
+    }
+    if (subscriber == null || this.trackingService == null) {
+      request.setStatus(BinaryProtocol.STATUS_FAILED);
+      return TRACKING_UNSUPPORTED_REPLY;
+    }
+    if (on) {
+      this.trackingService.subscribe(subscriber);
+    } else {
+      this.trackingService.unsubscribe(subscriber);
+    }
+    this.logger.log("Turned tracking " + (on ? "on" : "off") + " for <" + address + ">:<" + port + ">");
+    request.setStatus(BinaryProtocol.STATUS_OK);
+    return "SUCCESS";
+  }
+
+  /**
+   * Executes a parsed binary request and encodes the status-coded reply frame. A list reply whose
+   * payload would exceed {@value BinaryProtocol#MAX_FIELD_LENGTH} bytes, which clients refuse to read,
+   * is answered with a failure instead.
+   *
+   * @param request    the parsed request
+   * @param outcome    the outcome of parsing the request
+   * @param subscriber the connection, as a recipient of invalidations, or null if it cannot receive any
+   * @param address    the client's IP address
+   * @param port       the client's port
+   * @return the encoded reply frame
+   */
+  protected byte[] executeBinary(RequestParser request, int outcome, IInvalidationSubscriber subscriber, InetAddress address, int port) {
+    String result = this.run(request, outcome, subscriber, address, port);
+    byte status = request.getStatus();
+    if (status == BinaryProtocol.STATUS_OK && (request.getOpcode() == BinaryProtocol.OP_MGET || BinaryProtocol.isScan(request.getOpcode()))) {
+      byte[] list = BinaryProtocol.encodeList(request.getResults());
+      if (list.length > BinaryProtocol.MAX_FIELD_LENGTH) {
+        return BinaryProtocol.encodeReply(BinaryProtocol.STATUS_FAILED, request.getRequestId(), encode(REPLY_TOO_LARGE_REPLY));
+      }
+      return BinaryProtocol.encodeReply(status, request.getRequestId(), list);
+    }
+    if (result == null) { // a GET hit
+      return BinaryProtocol.encodeReply(status, request.getRequestId(), request.getEncodedValue());
+    }
+    boolean hasPayload = request.getOpcode() == BinaryProtocol.OP_STATS;
+    byte[] payload = status == BinaryProtocol.STATUS_OK && !hasPayload ? EMPTY_PAYLOAD : encode(result);
+    return BinaryProtocol.encodeReply(status, request.getRequestId(), payload);
+  }
 }
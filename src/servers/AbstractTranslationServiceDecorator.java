@@ -0,0 +1,202 @@
+package servers;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * The class abstract translation service decorator forwards every operation to another translation
+ * service, so that decorators only override the operations they add behavior to.
+ */
+public abstract class AbstractTranslationServiceDecorator implements ITranslationService {
+  /**
+   * The decorated translation service.
+   */
+  protected final ITranslationService delegate;
+
+  /**
+   * Instantiates a new translation service decorator.
+   *
+   * @param delegate the decorated translation service
+   */
+  protected AbstractTranslationServiceDecorator(ITranslationService delegate) {
+    this.delegate = delegate;
+  }
+
+  /**
+   * Saves a key-value pair.
+   *
+   * @param key   the word to be translated
+   * @param value the translation
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(String key, String value) {
+    return this.delegate.put(key, value);
+  }
+
+  /**
+   * Retrieves the value of a key.
+   *
+   * @param key the word to be translated
+   * @return the translation
+   */
+  @Override
+  public String get(String key) {
+    return this.delegate.get(key);
+  }
+
+  /**
+   * Removes a key-value pair.
+   *
+   * @param key the word to be deleted
+   * @return the outcome of the operation
+   */
+  @Override
+  public String delete(String key) {
+    return this.delegate.delete(key);
+  }
+
+  /**
+   * Saves a key-value pair that expires after a while.
+   *
+   * @param key       the word to be translated
+   * @param value     the translation
+   * @param ttlMillis the time to live in milliseconds
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(String key, String value, long ttlMillis) {
+    return this.delegate.put(key, value, ttlMillis);
+  }
+
+  /**
+   * Saves a key-value pair given as views over a request buffer.
+   *
+   * @param key   the word to be translated
+   * @param value the translation
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(CharSequence key, CharSequence value) {
+    return this.delegate.put(key, value);
+  }
+
+  /**
+   * Retrieves the value of a key given as a view over a request buffer.
+   *
+   * @param key the word to be translated
+   * @return the translation
+   */
+  @Override
+  public String get(CharSequence key) {
+    return this.delegate.get(key);
+  }
+
+  /**
+   * Retrieves the encoded value of a key given as a view over a request buffer.
+   *
+   * @param key the word to be translated
+   * @return the encoded translation, or null if the key is unknown
+   */
+  @Override
+  public byte[] getEncoded(CharSequence key) {
+    return this.delegate.getEncoded(key);
+  }
+
+  /**
+   * Removes a key-value pair whose key is given as a view over a request buffer.
+   *
+   * @param key the word to be deleted
+   * @return the outcome of the operation
+   */
+  @Override
+  public String delete(CharSequence key) {
+    return this.delegate.delete(key);
+  }
+
+  /**
+   * Retrieves the values of several keys.
+   *
+   * @param keys the words to be translated
+   * @return the translations, in the order of the keys, with null for every unknown key
+   */
+  @Override
+  public List<String> getAll(List<String> keys) {
+    return this.delegate.getAll(keys);
+  }
+
+  /**
+   * Saves several key-value pairs, in order.
+   *
+   * @param keys   the words to be translated
+   * @param values the translations, in the order of the keys
+   * @return the outcome of the operation
+   */
+  @Override
+  public String putAll(List<String> keys, List<String> values) {
+    return this.delegate.putAll(keys, values);
+  }
+
+  /**
+   * Removes several key-value pairs.
+   *
+   * @param keys the words to be deleted
+   * @return the outcome of the operation, which names the keys that did not exist
+   */
+  @Override
+  public String deleteAll(List<String> keys) {
+    return this.delegate.deleteAll(keys);
+  }
+
+  /**
+   * Lists the pairs whose keys fall in a range, in key order.
+   *
+   * @param from  the lowest key, included
+   * @param to    the key the range ends before, or null to run to the last key
+   * @param limit the number of pairs listed at most
+   * @return the pairs, or null if the translation service keeps no ordered index
+   */
+  @Override
+  public List<Map.Entry<String, String>> scan(String from, String to, int limit) {
+    return this.delegate.scan(from, to, limit);
+  }
+
+  /**
+   * Gets the number of key-value pairs.
+   *
+   * @return the number of key-value pairs
+   */
+  @Override
+  public int size() {
+    return this.delegate.size();
+  }
+
+  /**
+   * Performs an action for every key-value pair.
+   *
+   * @param action the action
+   */
+  @Override
+  public void forEach(BiConsumer<String, String> action) {
+    this.delegate.forEach(action);
+  }
+
+  /**
+   * Visits every key-value pair along with its deadline.
+   *
+   * @param visitor the visitor
+   */
+  @Override
+  public void forEachWithDeadline(IPairVisitor visitor) {
+    this.delegate.forEachWithDeadline(visitor);
+  }
+
+  /**
+   * Releases the resources held by the decorated translation service.
+   */
+  @Override
+  public void close() {
+    this.delegate.close();
+  }
+}
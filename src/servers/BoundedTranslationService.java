@@ -0,0 +1,387 @@
+package servers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class represents a translation service that keeps its pairs under a cap, either a number of
+ * pairs or an estimate of the bytes they take on the heap, by evicting the pairs an eviction policy
+ * chooses whenever a write goes over it. Writes of keys in the same stripe are serialized, so the
+ * store and the policy see the writes of every key in the same order, while writes of other keys go
+ * on in parallel and only meet on the short policy update; reads only tell the policy about hits,
+ * which it records without blocking or copying the key.
+ */
+public class BoundedTranslationService extends AbstractTranslationServiceDecorator implements IEvictionMetrics {
+  private static final int ENTRY_OVERHEAD = 96; // two strings, their arrays and a map node
+  private final IEvictionPolicy policy;
+  private final long maximumWeight;
+  private final boolean weighBytes;
+  private final ReentrantLock[] stripes = new ReentrantLock[Stripes.COUNT];
+  private final ReentrantLock policyLock = new ReentrantLock();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Instantiates a new bounded translation service. The pairs already in the decorated translation
+   * service are handed to the policy, and evicted right away if they do not fit.
+   *
+   * @param delegate      the decorated translation service
+   * @param policy        the eviction policy
+   * @param maximumWeight the cap, a number of pairs or of bytes
+   * @param weighBytes    whether the cap is in bytes rather than pairs
+   */
+  public BoundedTranslationService(ITranslationService delegate, IEvictionPolicy policy, long maximumWeight, boolean weighBytes) {
+    super(delegate);
+    if (maximumWeight <= 0) {
+      throw new IllegalArgumentException("The cap of a bounded translation service must be positive");
+    }
+    this.policy = policy;
+    this.maximumWeight = maximumWeight;
+    this.weighBytes = weighBytes;
+    for (int i = 0; i < this.stripes.length; i++) {
+      this.stripes[i] = new ReentrantLock();
+    }
+    this.delegate.forEach((key, value) -> this.policy.recordWrite(key, this.weigh(key, value)));
+    this.evictIfNeeded();
+  }
+
+  /**
+   * Estimates the bytes a pair takes on the heap.
+   *
+   * @param key   the key
+   * @param value the value
+   * @return the estimate
+   */
+  public static long estimateBytes(String key, String value) {
+    return ENTRY_OVERHEAD + 2L * (key.length() + value.length());
+  }
+
+  /**
+   * Saves a key-value pair, evicting others if it goes over the cap.
+   *
+   * @param key   the word to be translated
+   * @param value the translation
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(String key, String value) {
+    String result = this.write(key, value, 0);
+    this.evictIfNeeded();
+    return result;
+  }
+
+  /**
+   * Saves a key-value pair that expires after a while, evicting others if it goes over the cap.
+   *
+   * @param key       the word to be translated
+   * @param value     the translation
+   * @param ttlMillis the time to live in milliseconds
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(String key, String value, long ttlMillis) {
+    String result = this.write(key, value, ttlMillis);
+    this.evictIfNeeded();
+    return result;
+  }
+
+  /**
+   * Retrieves the value of a key and counts the hit or miss.
+   *
+   * @param key the word to be translated
+   * @return the translation
+   */
+  @Override
+  public String get(String key) {
+    return this.get((CharSequence) key);
+  }
+
+  /**
+   * Removes a key-value pair.
+   *
+   * @param key the word to be deleted
+   * @return the outcome of the operation
+   */
+  @Override
+  public String delete(String key) {
+    ReentrantLock stripe = this.stripeOf(key);
+    stripe.lock();
+    try {
+      String result = this.delegate.delete(key);
+      this.recordRemoval(FoldedKey.fold(key));
+      return result;
+    } finally {
+      stripe.unlock();
+    }
+  }
+
+  /**
+   * Saves a key-value pair given as views over a request buffer.
+   *
+   * @param key   the word to be translated
+   * @param value the translation
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(CharSequence key, CharSequence value) {
+    return this.put(key.toString(), value.toString());
+  }
+
+  /**
+   * Retrieves the value of a key given as a view over a request buffer.
+   *
+   * @param key the word to be translated
+   * @return the translation
+   */
+  @Override
+  public String get(CharSequence key) {
+    String result = this.delegate.get(key);
+    if (result.startsWith("FAIL:")) {
+      this.misses.increment();
+    } else {
+      this.hits.increment();
+      this.policy.recordAccess(key);
+    }
+    return result;
+  }
+
+  /**
+   * Retrieves the encoded value of a key given as a view over a request buffer.
+   *
+   * @param key the word to be translated
+   * @return the encoded translation, or null if the key is unknown
+   */
+  @Override
+  public byte[] getEncoded(CharSequence key) {
+    byte[] result = this.delegate.getEncoded(key);
+    if (result == null) {
+      this.misses.increment();
+    } else {
+      this.hits.increment();
+      this.policy.recordAccess(key);
+    }
+    return result;
+  }
+
+  /**
+   * Removes a key-value pair whose key is given as a view over a request buffer.
+   *
+   * @param key the word to be deleted
+   * @return the outcome of the operation
+   */
+  @Override
+  public String delete(CharSequence key) {
+    return this.delete(key.toString());
+  }
+
+  /**
+   * Retrieves the values of several keys and counts the hits and misses.
+   *
+   * @param keys the words to be translated
+   * @return the translations, in the order of the keys, with null for every unknown key
+   */
+  @Override
+  public List<String> getAll(List<String> keys) {
+    List<String> values = this.delegate.getAll(keys);
+    for (int i = 0; i < keys.size(); i++) {
+      if (values.get(i) == null) {
+        this.misses.increment();
+      } else {
+        this.hits.increment();
+        this.policy.recordAccess(keys.get(i));
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Saves several key-value pairs, in order, evicting others once they are all in if they go over
+   * the cap.
+   *
+   * @param keys   the words to be translated
+   * @param values the translations, in the order of the keys
+   * @return the outcome of the operation
+   */
+  @Override
+  public String putAll(List<String> keys, List<String> values) {
+    String result = "SUCCESS";
+    for (int i = 0; i < keys.size(); i++) { // one stripe at a time
+      String outcome = this.write(keys.get(i), values.get(i), 0);
+      if (outcome.startsWith("FAIL:")) {
+        result = outcome;
+        break;
+      }
+    }
+    this.evictIfNeeded();
+    return result;
+  }
+
+  /**
+   * Removes several key-value pairs.
+   *
+   * @param keys the words to be deleted
+   * @return the outcome of the operation, which names the keys that did not exist
+   */
+  @Override
+  public String deleteAll(List<String> keys) {
+    List<String> missing = new ArrayList<>();
+    for (String key : keys) {
+      if (this.delete(key).startsWith("FAIL:")) {
+        missing.add(FoldedKey.fold(key));
+      }
+    }
+    return ITranslationService.deleteAllOutcome(missing);
+  }
+
+  /**
+   * Gets the number of GETs that found their key.
+   *
+   * @return the number of hits
+   */
+  @Override
+  public long getHits() {
+    return this.hits.sum();
+  }
+
+  /**
+   * Gets the number of GETs that did not find their key.
+   *
+   * @return the number of misses
+   */
+  @Override
+  public long getMisses() {
+    return this.misses.sum();
+  }
+
+  /**
+   * Gets the number of pairs evicted to stay under the cap.
+   *
+   * @return the number of evictions
+   */
+  @Override
+  public long getEvictions() {
+    return this.evictions.sum();
+  }
+
+  /**
+   * Gets the total weight of the pairs, in the unit of the cap.
+   *
+   * @return the weighted size
+   */
+  @Override
+  public long getWeightedSize() {
+    this.policyLock.lock();
+    try {
+      return this.policy.weightedSize();
+    } finally {
+      this.policyLock.unlock();
+    }
+  }
+
+  /**
+   * Gets the cap.
+   *
+   * @return the maximum weight, in the unit of the cap
+   */
+  @Override
+  public long getMaximumWeight() {
+    return this.maximumWeight;
+  }
+
+  /**
+   * Gets the unit of the cap.
+   *
+   * @return "pairs" or "bytes"
+   */
+  @Override
+  public String getUnit() {
+    return this.weighBytes ? "bytes" : "pairs";
+  }
+
+  /**
+   * Describes the cap and the counters on one line of name=value pairs, appended to the reply to a
+   * STATS request.
+   *
+   * @return the description
+   */
+  @Override
+  public String toString() {
+    return String.format("store_weight=%d store_max_weight=%d store_unit=%s store_hits=%d store_misses=%d evictions=%d",
+        this.getWeightedSize(), this.maximumWeight, this.getUnit(), this.getHits(), this.getMisses(), this.getEvictions());
+  }
+
+  private long weigh(String key, String value) {
+    return this.weighBytes ? estimateBytes(key, value) : 1;
+  }
+
+  private ReentrantLock stripeOf(String key) {
+    return this.stripes[Stripes.of(key)];
+  }
+
+  /**
+   * Saves a pair under the stripe of its key and tells the policy about it if it succeeded.
+   */
+  private String write(String key, String value, long ttlMillis) {
+    ReentrantLock stripe = this.stripeOf(key);
+    stripe.lock();
+    try {
+      String result = ttlMillis > 0 ? this.delegate.put(key, value, ttlMillis) : this.delegate.put(key, value);
+      if (!result.startsWith("FAIL:")) {
+        this.policyLock.lock();
+        try {
+          this.policy.recordWrite(FoldedKey.fold(key), this.weigh(key, value));
+        } finally {
+          this.policyLock.unlock();
+        }
+      }
+      return result;
+    } finally {
+      stripe.unlock();
+    }
+  }
+
+  private void recordRemoval(String lowerCaseKey) {
+    this.policyLock.lock();
+    try {
+      this.policy.recordRemoval(lowerCaseKey);
+    } finally {
+      this.policyLock.unlock();
+    }
+  }
+
+  /**
+   * Evicts pairs until the total weight is under the cap. Called without holding a stripe: every
+   * victim is deleted under its own stripe, and taken off the policy again there, so that a write of
+   * the victim that slipped in after the policy chose it is evicted along with it rather than left
+   * tracked by the policy but gone from the store.
+   */
+  private void evictIfNeeded() {
+    while (true) {
+      String victim;
+      this.policyLock.lock();
+      try {
+        if (this.policy.weightedSize() <= this.maximumWeight) {
+          return;
+        }
+        victim = this.policy.evict();
+      } finally {
+        this.policyLock.unlock();
+      }
+      if (victim == null) {
+        return;
+      }
+      ReentrantLock stripe = this.stripeOf(victim);
+      stripe.lock();
+      try {
+        this.delegate.delete(victim);
+        this.recordRemoval(victim);
+      } finally {
+        stripe.unlock();
+      }
+      this.evictions.increment();
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package servers;
+
+/**
+ * This class represents a reusable, mutable view over a range of a char array. It lets the request
+ * parser hand keys and values to the translation service without allocating a String per request.
+ * A slice is only valid until the array it views is overwritten by the next request. It hashes and
+ * compares ignoring case, like a {@link FoldedKey}, so that it can probe a store keyed by them.
+ */
+public final class CharSlice implements CharSequence {
+  private char[] array = new char[0];
+  private int offset;
+  private int length;
+
+  /**
+   * Points the view at a range of a char array.
+   *
+   * @param array  the char array
+   * @param offset the offset of the first char
+   * @param length the number of chars
+   * @return this view
+   */
+  public CharSlice set(char[] array, int offset, int length) {
+    this.array = array;
+    this.offset = offset;
+    this.length = length;
+    return this;
+  }
+
+  /**
+   * Gets the number of chars in the view.
+   *
+   * @return the length
+   */
+  @Override
+  public int length() {
+    return this.length;
+  }
+
+  /**
+   * Gets a char of the view.
+   *
+   * @param index the index within the view
+   * @return the char
+   */
+  @Override
+  public char charAt(int index) {
+    if (index < 0 || index >= this.length) {
+      throw new IndexOutOfBoundsException("index " + index + ", length " + this.length);
+    }
+    return this.array[this.offset + index];
+  }
+
+  /**
+   * Copies a range of the view.
+   *
+   * @param start the start index, inclusive
+   * @param end   the end index, exclusive
+   * @return a new view over the range
+   */
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    if (start < 0 || end > this.length || start > end) {
+      throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + this.length);
+    }
+    return new String(this.array, this.offset + start, end - start);
+  }
+
+  /**
+   * Hashes the view the way a {@link FoldedKey} does, ignoring case.
+   *
+   * @return the hash
+   */
+  @Override
+  public int hashCode() {
+    int hash = 0;
+    for (int i = this.offset; i < this.offset + this.length; i++) {
+      hash = 31 * hash + FoldedKey.fold(this.array[i]);
+    }
+    return hash;
+  }
+
+  /**
+   * Compares the view with a folded key or another view, ignoring case.
+   *
+   * @param other the other key
+   * @return true if they are equal once folded
+   */
+  @Override
+  public boolean equals(Object other) {
+    return other == this || (other instanceof FoldedKey || other instanceof CharSlice) && FoldedKey.equalsFolded(this, (CharSequence) other);
+  }
+
+  /**
+   * Copies the view into a String.
+   *
+   * @return the String
+   */
+  @Override
+  public String toString() {
+    return new String(this.array, this.offset, this.length);
+  }
+}
@@ -0,0 +1,137 @@
+package servers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class represents an approximate LRU policy based on the CLOCK algorithm. Keys sit on a ring
+ * with a reference bit that a read merely sets, so the read path is a lock-free map lookup and a
+ * volatile write. To evict, a hand sweeps the ring, clearing set bits and giving those keys a second
+ * chance, until it reaches a key that was not read since the hand last passed it.
+ */
+public class ClockEvictionPolicy implements IEvictionPolicy {
+  private final ConcurrentHashMap<FoldedKey, Node> nodes = new ConcurrentHashMap<>();
+  private final List<Node> ring = new ArrayList<>();
+  private int[] freeSlots = new int[16];
+  private int freeSlotCount;
+  private int hand;
+  private long weightedSize;
+
+  /**
+   * Sets the reference bit of a key.
+   *
+   * @param key the key
+   */
+  @Override
+  public void recordAccess(CharSequence key) {
+    Node node = this.nodes.get(FoldedKey.probe(key)); // lock-free, and allocation-free for a slice
+    if (node != null && !node.referenced) { // avoid dirtying the cache line when already set
+      node.referenced = true;
+    }
+  }
+
+  /**
+   * Puts a key on the ring, or updates its weight.
+   *
+   * @param key    the key
+   * @param weight the weight of the pair
+   */
+  @Override
+  public void recordWrite(String key, long weight) {
+    FoldedKey foldedKey = new FoldedKey(key);
+    Node node = this.nodes.get(foldedKey);
+    if (node != null) {
+      this.weightedSize += weight - node.weight;
+      node.weight = weight;
+      node.referenced = true;
+      return;
+    }
+    node = new Node(foldedKey, weight);
+    if (this.freeSlotCount > 0) {
+      node.slot = this.freeSlots[--this.freeSlotCount];
+      this.ring.set(node.slot, node);
+    } else {
+      node.slot = this.ring.size();
+      this.ring.add(node);
+    }
+    this.nodes.put(foldedKey, node);
+    this.weightedSize += weight;
+  }
+
+  /**
+   * Takes a key off the ring.
+   *
+   * @param key the key
+   */
+  @Override
+  public void recordRemoval(String key) {
+    Node node = this.nodes.remove(new FoldedKey(key));
+    if (node != null) {
+      this.release(node);
+    }
+  }
+
+  /**
+   * Sweeps the ring for a key whose reference bit is clear.
+   *
+   * @return the key, or null if no key is tracked
+   */
+  @Override
+  public String evict() {
+    if (this.nodes.isEmpty()) {
+      return null;
+    }
+    while (true) { // ends within two sweeps: the first one clears every bit
+      if (this.hand >= this.ring.size()) {
+        this.hand = 0;
+      }
+      Node node = this.ring.get(this.hand++);
+      if (node == null) {
+        continue;
+      }
+      if (node.referenced) {
+        node.referenced = false; // second chance
+        continue;
+      }
+      this.nodes.remove(node.key);
+      this.release(node);
+      return node.key.toString();
+    }
+  }
+
+  /**
+   * Gets the total weight of the keys on the ring.
+   *
+   * @return the weighted size
+   */
+  @Override
+  public long weightedSize() {
+    return this.weightedSize;
+  }
+
+  private void release(Node node) {
+    this.ring.set(node.slot, null);
+    if (this.freeSlotCount == this.freeSlots.length) {
+      this.freeSlots = Arrays.copyOf(this.freeSlots, this.freeSlotCount * 2);
+    }
+    this.freeSlots[this.freeSlotCount++] = node.slot;
+    this.weightedSize -= node.weight;
+  }
+
+  /**
+   * A key on the ring.
+   */
+  private static final class Node {
+    private final FoldedKey key;
+    private long weight;
+    private int slot;
+    private volatile boolean referenced = true;
+
+    private Node(FoldedKey key, long weight) {
+      this.key = key;
+      this.weight = weight;
+    }
+  }
+}
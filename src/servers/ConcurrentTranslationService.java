@@ -0,0 +1,186 @@
+package servers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * This class represents a translation service that can be shared by any number of request threads.
+ * Reads never take a lock and writes only contend on the hash bin they touch, so throughput keeps
+ * scaling with the number of cores instead of being capped by a single global lock. Values are kept
+ * encoded in UTF-8, the way they are sent, so that a GET hit is answered with the stored bytes.
+ *
+ * <p>Keys are {@link FoldedKey}s, so a key parsed into a {@link CharSlice} is looked up as it is,
+ * whatever its case: a GET, or a DELETE that succeeds, probes the map once and allocates nothing.
+ */
+public class ConcurrentTranslationService implements ITranslationService {
+  private final ConcurrentHashMap<FoldedKey, byte[]> dictionary;
+
+  /**
+   * Instantiates a new concurrent translation service.
+   */
+  public ConcurrentTranslationService() {
+    this(16);
+  }
+
+  /**
+   * Instantiates a new concurrent translation service sized for the expected number of entries.
+   *
+   * @param expectedSize the expected number of key-value pairs
+   */
+  public ConcurrentTranslationService(int expectedSize) {
+    this.dictionary = new ConcurrentHashMap<>(expectedSize);
+  }
+
+  /**
+   * Saves a key-value pair in a concurrent hashmap.
+   *
+   * @param key   the word to be translated
+   * @param value the translation
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(String key, String value) {
+    this.dictionary.put(new FoldedKey(key), encode(value));
+    return "SUCCESS";
+  }
+
+  /**
+   * Retrieves the value of a key.
+   *
+   * @param key the word to be translated
+   * @return the translation
+   */
+  @Override
+  public String get(String key) {
+    return this.get((CharSequence) key);
+  }
+
+  /**
+   * Removes a key-value pair.
+   *
+   * @param key the word to be deleted
+   * @return the outcome of the operation
+   */
+  @Override
+  public String delete(String key) {
+    return this.delete((CharSequence) key);
+  }
+
+  /**
+   * Retrieves the value of a key given as a view over a request buffer.
+   *
+   * @param key the word to be translated
+   * @return the translation
+   */
+  @Override
+  public String get(CharSequence key) {
+    byte[] translation = this.dictionary.get(FoldedKey.probe(key)); // a single lock-free probe
+    return translation == null ? ITranslationService.notFound(FoldedKey.fold(key)) : decode(translation);
+  }
+
+  /**
+   * Retrieves the value of a key as it is stored, encoded in UTF-8.
+   *
+   * @param key the word to be translated
+   * @return the encoded translation, or null if the key is unknown
+   */
+  @Override
+  public byte[] getEncoded(CharSequence key) {
+    return this.dictionary.get(FoldedKey.probe(key));
+  }
+
+  /**
+   * Removes a key-value pair whose key is given as a view over a request buffer.
+   *
+   * @param key the word to be deleted
+   * @return the outcome of the operation
+   */
+  @Override
+  public String delete(CharSequence key) {
+    if (this.dictionary.remove(FoldedKey.probe(key)) != null) { // check and remove atomically
+      return "SUCCESS";
+    } else {
+      return "FAIL: " + "\"" + FoldedKey.fold(key) + "\" " + "does not exist";
+    }
+  }
+
+  /**
+   * Retrieves the values of several keys, one lock-free probe each.
+   *
+   * @param keys the words to be translated
+   * @return the translations, in the order of the keys, with null for every unknown key
+   */
+  @Override
+  public List<String> getAll(List<String> keys) {
+    List<String> values = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      byte[] translation = this.dictionary.get(new FoldedKey(key));
+      values.add(translation == null ? null : decode(translation));
+    }
+    return values;
+  }
+
+  /**
+   * Saves several key-value pairs, in order.
+   *
+   * @param keys   the words to be translated
+   * @param values the translations, in the order of the keys
+   * @return the outcome of the operation
+   */
+  @Override
+  public String putAll(List<String> keys, List<String> values) {
+    for (int i = 0; i < keys.size(); i++) {
+      this.dictionary.put(new FoldedKey(keys.get(i)), encode(values.get(i)));
+    }
+    return "SUCCESS";
+  }
+
+  /**
+   * Removes several key-value pairs.
+   *
+   * @param keys the words to be deleted
+   * @return the outcome of the operation, which names the keys that did not exist
+   */
+  @Override
+  public String deleteAll(List<String> keys) {
+    List<String> missing = new ArrayList<>();
+    for (String key : keys) {
+      FoldedKey folded = new FoldedKey(key);
+      if (this.dictionary.remove(folded) == null) {
+        missing.add(folded.toString());
+      }
+    }
+    return ITranslationService.deleteAllOutcome(missing);
+  }
+
+  /**
+   * Gets the number of key-value pairs.
+   *
+   * @return the number of key-value pairs
+   */
+  @Override
+  public int size() {
+    return this.dictionary.size();
+  }
+
+  /**
+   * Performs an action for every key-value pair.
+   *
+   * @param action the action
+   */
+  @Override
+  public void forEach(BiConsumer<String, String> action) {
+    this.dictionary.forEach((key, value) -> action.accept(key.toString(), decode(value)));
+  }
+
+  private static byte[] encode(String value) {
+    return value.toLowerCase().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String decode(byte[] value) {
+    return new String(value, StandardCharsets.UTF_8);
+  }
+}
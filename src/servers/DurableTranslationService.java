@@ -0,0 +1,253 @@
+package servers;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class represents a translation service whose PUT and DELETE operations survive a restart.
+ * Every mutation is recorded in a write-ahead log before it is acknowledged, and the log is replayed
+ * into the decorated translation service when this one is created. A checkpoint writes a snapshot
+ * and starts a new log, so that a restart only replays what happened after the snapshot.
+ *
+ * <p>Mutations are logged and applied under the lock of their key's stripe. The stripes are
+ * {@link ReentrantLock}s rather than monitors, so that a virtual thread waiting for a log write or an
+ * fsync under one does not pin its carrier thread.
+ */
+public class DurableTranslationService extends AbstractTranslationServiceDecorator {
+  private final WriteAheadLog writeAheadLog;
+  private final Path archive;
+  private final ReentrantLock[] stripes = new ReentrantLock[Stripes.COUNT];
+
+  /**
+   * Instantiates a new durable translation service and replays the log into the decorated one. If a
+   * previous checkpoint did not complete, the log it archived is replayed first.
+   *
+   * @param delegate      the decorated translation service
+   * @param writeAheadLog the write-ahead log
+   * @throws IOException if the log could not be replayed
+   */
+  public DurableTranslationService(ITranslationService delegate, WriteAheadLog writeAheadLog) throws IOException {
+    super(delegate);
+    this.writeAheadLog = writeAheadLog;
+    for (int i = 0; i < Stripes.COUNT; i++) {
+      this.stripes[i] = new ReentrantLock();
+    }
+    this.archive = writeAheadLog.getPath().resolveSibling(writeAheadLog.getPath().getFileName() + ".old");
+    if (Files.exists(this.archive)) {
+      try (WriteAheadLog archived = new WriteAheadLog(this.archive, WriteAheadLog.FsyncPolicy.OS, 0)) {
+        archived.replay(delegate);
+      }
+    }
+    writeAheadLog.replay(delegate);
+  }
+
+  /**
+   * Logs and saves several key-value pairs, waiting for a single fsync that covers all of them.
+   *
+   * @param keys   the words to be translated
+   * @param values the translations, in the order of the keys
+   * @return the outcome of the operation
+   */
+  @Override
+  public String putAll(List<String> keys, List<String> values) {
+    long position = 0;
+    try {
+      for (int i = 0; i < keys.size(); i++) {
+        String key = keys.get(i);
+        String value = values.get(i);
+        ReentrantLock stripe = this.stripeOf(key);
+        stripe.lock();
+        try {
+          position = this.writeAheadLog.write(WriteAheadLog.PUT, key, value);
+          this.delegate.put(key, value);
+        } finally {
+          stripe.unlock();
+        }
+      }
+      this.writeAheadLog.awaitDurable(position);
+    } catch (IOException e) {
+      return "FAIL: the server could not persist the request (" + e.getMessage() + ")";
+    }
+    return "SUCCESS";
+  }
+
+  /**
+   * Logs and removes several key-value pairs, waiting for a single fsync that covers all of them.
+   *
+   * @param keys the words to be deleted
+   * @return the outcome of the operation, which names the keys that did not exist
+   */
+  @Override
+  public String deleteAll(List<String> keys) {
+    List<String> missing = new ArrayList<>();
+    long position = 0;
+    try {
+      for (String key : keys) {
+        ReentrantLock stripe = this.stripeOf(key);
+        stripe.lock();
+        try {
+          position = this.writeAheadLog.write(WriteAheadLog.DELETE, key, null);
+          if (this.delegate.delete(key).startsWith("FAIL:")) {
+            missing.add(FoldedKey.fold(key));
+          }
+        } finally {
+          stripe.unlock();
+        }
+      }
+      this.writeAheadLog.awaitDurable(position);
+    } catch (IOException e) {
+      return "FAIL: the server could not persist the request (" + e.getMessage() + ")";
+    }
+    return ITranslationService.deleteAllOutcome(missing);
+  }
+
+  /**
+   * Writes a snapshot of the decorated translation service and discards the log it covers. The log
+   * is rotated first, while no mutation is between its log write and its application, so every
+   * record in the archived log is already in the store when the snapshot is taken; records in the
+   * new log may be in the snapshot too, which is harmless because replaying them is idempotent.
+   * Expiring pairs are written with their deadline, so the snapshot covers every archived record.
+   *
+   * @param snapshot the snapshot file, loaded with {@link SnapshotFile#load(Path, ITranslationService)}
+   *                 before this translation service is created
+   * @return the number of entries written
+   * @throws IOException if the log could not be rotated or the snapshot could not be written
+   */
+  public synchronized long checkpoint(Path snapshot) throws IOException {
+    if (!Files.exists(this.archive)) { // otherwise a failed checkpoint left it, and it is still needed
+      this.rotateQuiesced(0);
+    }
+    long entries = SnapshotFile.write(this.delegate, snapshot);
+    Files.delete(this.archive);
+    return entries;
+  }
+
+  /**
+   * Logs and saves a key-value pair.
+   *
+   * @param key   the word to be translated
+   * @param value the translation
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(String key, String value) {
+    return this.mutate(WriteAheadLog.PUT, key, value, 0);
+  }
+
+  /**
+   * Logs and saves a key-value pair that expires after a while. The log records the deadline, so a
+   * pair that expired while the server was down is not restored.
+   *
+   * @param key       the word to be translated
+   * @param value     the translation
+   * @param ttlMillis the time to live in milliseconds
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(String key, String value, long ttlMillis) {
+    return this.mutate(WriteAheadLog.PUT_EXPIRING, key, value, ttlMillis);
+  }
+
+  /**
+   * Logs and removes a key-value pair.
+   *
+   * @param key the word to be deleted
+   * @return the outcome of the operation
+   */
+  @Override
+  public String delete(String key) {
+    return this.mutate(WriteAheadLog.DELETE, key, null, 0);
+  }
+
+  /**
+   * Logs and saves a key-value pair given as views over a request buffer.
+   *
+   * @param key   the word to be translated
+   * @param value the translation
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(CharSequence key, CharSequence value) {
+    return this.put(key.toString(), value.toString());
+  }
+
+  /**
+   * Logs and removes a key-value pair whose key is given as a view over a request buffer.
+   *
+   * @param key the word to be deleted
+   * @return the outcome of the operation
+   */
+  @Override
+  public String delete(CharSequence key) {
+    return this.delete(key.toString());
+  }
+
+  /**
+   * Closes the write-ahead log and the decorated translation service.
+   */
+  @Override
+  public void close() {
+    try {
+      this.writeAheadLog.close();
+    } catch (IOException e) {
+      System.err.println("Write-ahead log: " + e.getMessage());
+    }
+    super.close();
+  }
+
+  /**
+   * Logs a mutation and applies it. Mutations of keys that share a stripe are logged and applied in
+   * the same order, so that replaying the log reproduces the state; waiting for the fsync happens
+   * outside the stripe so that a group commit does not hold up unrelated writers.
+   */
+  private String mutate(byte operation, String key, String value, long ttlMillis) {
+    long position;
+    String result;
+    ReentrantLock stripe = this.stripeOf(key);
+    stripe.lock();
+    try {
+      position = this.writeAheadLog.write(operation, key, value, System.currentTimeMillis() + ttlMillis);
+      if (operation == WriteAheadLog.PUT) {
+        result = this.delegate.put(key, value);
+      } else if (operation == WriteAheadLog.PUT_EXPIRING) {
+        result = this.delegate.put(key, value, ttlMillis);
+      } else {
+        result = this.delegate.delete(key);
+      }
+    } catch (IOException e) {
+      return "FAIL: the server could not persist the request (" + e.getMessage() + ")";
+    } finally {
+      stripe.unlock();
+    }
+    try {
+      this.writeAheadLog.awaitDurable(position);
+    } catch (IOException e) {
+      return "FAIL: the server could not persist the request (" + e.getMessage() + ")";
+    }
+    return result;
+  }
+
+  /**
+   * Takes every stripe, starting from the given one, and rotates the log once all are held.
+   */
+  private void rotateQuiesced(int stripe) throws IOException {
+    if (stripe == Stripes.COUNT) {
+      this.writeAheadLog.rotate(this.archive);
+      return;
+    }
+    this.stripes[stripe].lock();
+    try {
+      this.rotateQuiesced(stripe + 1);
+    } finally {
+      this.stripes[stripe].unlock();
+    }
+  }
+
+  private ReentrantLock stripeOf(String key) {
+    return this.stripes[Stripes.of(key)];
+  }
+}
@@ -0,0 +1,313 @@
+package servers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * This class represents a translation service whose pairs can expire. The deadline of every expiring
+ * key is kept next to the decorated translation service: a GET of an expired key removes it on the
+ * spot, and a timing wheel removes the keys nobody reads once their deadline passes, without ever
+ * scanning the dictionary. A PUT without a TTL makes the key permanent again.
+ *
+ * <p>Deadlines are keyed by {@link FoldedKey}, so a GET of a key parsed into a {@link CharSlice}
+ * checks its deadline without copying the key.
+ */
+public class ExpiringTranslationService extends AbstractTranslationServiceDecorator {
+  private static final long TICK_MILLIS = 10;
+  private final ConcurrentHashMap<FoldedKey, Long> deadlines = new ConcurrentHashMap<>();
+  private final TimingWheel<FoldedKey> timingWheel;
+
+  /**
+   * Instantiates a new expiring translation service.
+   *
+   * @param delegate the decorated translation service
+   */
+  public ExpiringTranslationService(ITranslationService delegate) {
+    super(delegate);
+    this.timingWheel = new TimingWheel<>(TICK_MILLIS, this::expire);
+  }
+
+  /**
+   * Saves a key-value pair that never expires.
+   *
+   * @param key   the word to be translated
+   * @param value the translation
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(String key, String value) {
+    String[] result = new String[1];
+    this.deadlines.compute(new FoldedKey(key), (k, deadline) -> { // serialized with the expiry of the key
+      result[0] = this.delegate.put(key, value);
+      return null;
+    });
+    return result[0];
+  }
+
+  /**
+   * Saves a key-value pair that expires after a while.
+   *
+   * @param key       the word to be translated
+   * @param value     the translation
+   * @param ttlMillis the time to live in milliseconds
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(String key, String value, long ttlMillis) {
+    FoldedKey foldedKey = new FoldedKey(key);
+    long deadline = System.currentTimeMillis() + ttlMillis;
+    String[] result = new String[1];
+    this.deadlines.compute(foldedKey, (k, previous) -> {
+      result[0] = this.delegate.put(key, value);
+      return deadline;
+    });
+    this.timingWheel.schedule(foldedKey, deadline);
+    return result[0];
+  }
+
+  /**
+   * Retrieves the value of a key, removing it first if it has expired.
+   *
+   * @param key the word to be translated
+   * @return the translation
+   */
+  @Override
+  public String get(String key) {
+    this.expireIfDue(key);
+    return this.delegate.get(key);
+  }
+
+  /**
+   * Removes a key-value pair.
+   *
+   * @param key the word to be deleted
+   * @return the outcome of the operation
+   */
+  @Override
+  public String delete(String key) {
+    this.expireIfDue(key); // an expired key is already gone as far as clients can tell
+    String[] result = new String[1];
+    this.deadlines.compute(new FoldedKey(key), (k, previous) -> {
+      result[0] = this.delegate.delete(key);
+      return null;
+    });
+    return result[0];
+  }
+
+  /**
+   * Saves a key-value pair given as views over a request buffer.
+   *
+   * @param key   the word to be translated
+   * @param value the translation
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(CharSequence key, CharSequence value) {
+    return this.put(key.toString(), value.toString());
+  }
+
+  /**
+   * Retrieves the value of a key given as a view over a request buffer, removing it first if it has
+   * expired.
+   *
+   * @param key the word to be translated
+   * @return the translation
+   */
+  @Override
+  public String get(CharSequence key) {
+    this.expireIfDue(key);
+    return this.delegate.get(key);
+  }
+
+  /**
+   * Retrieves the encoded value of a key given as a view over a request buffer, removing it first if
+   * it has expired.
+   *
+   * @param key the word to be translated
+   * @return the encoded translation, or null if the key is unknown
+   */
+  @Override
+  public byte[] getEncoded(CharSequence key) {
+    this.expireIfDue(key);
+    return this.delegate.getEncoded(key);
+  }
+
+  /**
+   * Removes a key-value pair whose key is given as a view over a request buffer.
+   *
+   * @param key the word to be deleted
+   * @return the outcome of the operation
+   */
+  @Override
+  public String delete(CharSequence key) {
+    return this.delete(key.toString());
+  }
+
+  /**
+   * Retrieves the values of several keys, removing the expired ones first.
+   *
+   * @param keys the words to be translated
+   * @return the translations, in the order of the keys, with null for every unknown key
+   */
+  @Override
+  public List<String> getAll(List<String> keys) {
+    for (String key : keys) {
+      this.expireIfDue(key);
+    }
+    return this.delegate.getAll(keys);
+  }
+
+  /**
+   * Saves several key-value pairs that never expire.
+   *
+   * @param keys   the words to be translated
+   * @param values the translations, in the order of the keys
+   * @return the outcome of the operation
+   */
+  @Override
+  public String putAll(List<String> keys, List<String> values) {
+    if (this.deadlines.isEmpty()) {
+      return this.delegate.putAll(keys, values);
+    }
+    for (int i = 0; i < keys.size(); i++) { // one at a time, to clear any deadline
+      String result = this.put(keys.get(i), values.get(i));
+      if (result.startsWith("FAIL:")) {
+        return result;
+      }
+    }
+    return "SUCCESS";
+  }
+
+  /**
+   * Removes several key-value pairs.
+   *
+   * @param keys the words to be deleted
+   * @return the outcome of the operation, which names the keys that did not exist
+   */
+  @Override
+  public String deleteAll(List<String> keys) {
+    List<String> missing = new ArrayList<>();
+    for (String key : keys) {
+      if (this.delete(key).startsWith("FAIL:")) {
+        missing.add(FoldedKey.fold(key));
+      }
+    }
+    return ITranslationService.deleteAllOutcome(missing);
+  }
+
+  /**
+   * Lists the pairs whose keys fall in a range, in key order, leaving out and removing the expired
+   * ones. A page cut short by expired pairs is topped up from the pairs that follow them.
+   *
+   * @param from  the lowest key, included
+   * @param to    the key the range ends before, or null to run to the last key
+   * @param limit the number of pairs listed at most
+   * @return the pairs, or null if the translation service keeps no ordered index
+   */
+  @Override
+  public List<Map.Entry<String, String>> scan(String from, String to, int limit) {
+    List<Map.Entry<String, String>> pairs = this.delegate.scan(from, to, limit);
+    if (pairs == null || this.deadlines.isEmpty()) {
+      return pairs;
+    }
+    List<Map.Entry<String, String>> live = new ArrayList<>(pairs.size());
+    int wanted = limit;
+    while (true) {
+      long now = System.currentTimeMillis();
+      for (Map.Entry<String, String> pair : pairs) {
+        FoldedKey key = new FoldedKey(pair.getKey());
+        Long deadline = this.deadlines.get(key);
+        if (deadline != null && deadline <= now) {
+          this.expire(key, deadline);
+        } else {
+          live.add(pair);
+        }
+      }
+      if (live.size() == limit || pairs.size() < wanted) { // full, or the range is exhausted
+        return live;
+      }
+      wanted = limit - live.size();
+      pairs = this.delegate.scan(pairs.get(pairs.size() - 1).getKey() + '\0', to, wanted); // right after the last key
+    }
+  }
+
+  /**
+   * Performs an action for every pair that does not expire. Use
+   * {@link #forEachWithDeadline(IPairVisitor)} to see the expiring pairs too.
+   *
+   * @param action the action
+   */
+  @Override
+  public void forEach(BiConsumer<String, String> action) {
+    if (this.deadlines.isEmpty()) {
+      this.delegate.forEach(action);
+      return;
+    }
+    this.delegate.forEach((key, value) -> {
+      if (!this.deadlines.containsKey(new FoldedKey(key))) {
+        action.accept(key, value);
+      }
+    });
+  }
+
+  /**
+   * Visits every pair along with its deadline, leaving out the pairs whose deadline has passed but
+   * that were not removed yet.
+   *
+   * @param visitor the visitor
+   */
+  @Override
+  public void forEachWithDeadline(IPairVisitor visitor) {
+    if (this.deadlines.isEmpty()) {
+      this.delegate.forEachWithDeadline(visitor);
+      return;
+    }
+    this.delegate.forEach((key, value) -> {
+      Long deadline = this.deadlines.get(new FoldedKey(key));
+      if (deadline == null) {
+        visitor.visit(key, value, 0);
+      } else if (deadline > System.currentTimeMillis()) {
+        visitor.visit(key, value, deadline);
+      }
+    });
+  }
+
+  /**
+   * Stops the timing wheel and closes the decorated translation service.
+   */
+  @Override
+  public void close() {
+    this.timingWheel.close();
+    super.close();
+  }
+
+  /**
+   * Removes a key if it has expired. Only a key that has a deadline is copied, to remove it.
+   */
+  private void expireIfDue(CharSequence key) {
+    if (this.deadlines.isEmpty()) {
+      return;
+    }
+    Long deadline = this.deadlines.get(FoldedKey.probe(key));
+    if (deadline != null && deadline <= System.currentTimeMillis()) {
+      this.expire(new FoldedKey(key), deadline);
+    }
+  }
+
+  /**
+   * Removes a key if its deadline is still the given one and has passed. Called by the timing wheel
+   * and by lazy expiry; a key that was written again since then keeps its new deadline.
+   */
+  private void expire(FoldedKey key, long deadline) {
+    this.deadlines.computeIfPresent(key, (k, current) -> {
+      if (current != deadline || current > System.currentTimeMillis()) {
+        return current;
+      }
+      this.delegate.delete(k.toString());
+      return null;
+    });
+  }
+}
@@ -0,0 +1,173 @@
+package servers;
+
+/**
+ * This class represents a key of a case-insensitive store: the key folded to lower case once, when
+ * it is stored, along with its hash. A {@link CharSlice} hashes and compares the same way, folding
+ * case as it goes, so a store keyed by folded keys can be probed with the slice a request was parsed
+ * into: a case-insensitive lookup then costs a single hash probe and allocates nothing.
+ *
+ * <p>Case is folded char by char, as {@link Character#toLowerCase(char)} does, with a shortcut for
+ * ASCII.
+ */
+public final class FoldedKey implements CharSequence {
+  private final String folded;
+  private final int hash;
+
+  /**
+   * Instantiates a new folded key.
+   *
+   * @param key the key, in any case
+   */
+  public FoldedKey(CharSequence key) {
+    this.folded = fold(key);
+    this.hash = hash(this.folded);
+  }
+
+  /**
+   * Gets what a map keyed by folded keys can be probed with for a key: a slice or a folded key as it
+   * is, so that the lookup allocates nothing, and any other key folded.
+   *
+   * @param key the key, in any case
+   * @return the probe
+   */
+  public static Object probe(CharSequence key) {
+    return key instanceof CharSlice || key instanceof FoldedKey ? key : new FoldedKey(key);
+  }
+
+  /**
+   * Folds a char to lower case.
+   *
+   * @param c the char
+   * @return the char in lower case
+   */
+  public static char fold(char c) {
+    if (c < 0x80) {
+      return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+    return Character.toLowerCase(c);
+  }
+
+  /**
+   * Folds a key to lower case, returning a String key as it is if it already is in lower case.
+   *
+   * @param key the key
+   * @return the key in lower case
+   */
+  public static String fold(CharSequence key) {
+    int length = key.length();
+    int i = 0;
+    while (i < length && fold(key.charAt(i)) == key.charAt(i)) {
+      i++;
+    }
+    if (i == length && key instanceof String) {
+      return (String) key;
+    }
+    char[] folded = new char[length];
+    for (int j = 0; j < length; j++) {
+      folded[j] = j < i ? key.charAt(j) : fold(key.charAt(j));
+    }
+    return new String(folded);
+  }
+
+  /**
+   * Hashes a key, ignoring case.
+   *
+   * @param key the key
+   * @return the hash
+   */
+  public static int hash(CharSequence key) {
+    int hash = 0;
+    for (int i = 0; i < key.length(); i++) {
+      hash = 31 * hash + fold(key.charAt(i));
+    }
+    return hash;
+  }
+
+  /**
+   * Compares two keys, ignoring case.
+   *
+   * @param a a key
+   * @param b another key
+   * @return true if they are equal once folded
+   */
+  public static boolean equalsFolded(CharSequence a, CharSequence b) {
+    int length = a.length();
+    if (b.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (fold(a.charAt(i)) != fold(b.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Gets the number of chars in the key.
+   *
+   * @return the length
+   */
+  @Override
+  public int length() {
+    return this.folded.length();
+  }
+
+  /**
+   * Gets a char of the key, in lower case.
+   *
+   * @param index the index within the key
+   * @return the char
+   */
+  @Override
+  public char charAt(int index) {
+    return this.folded.charAt(index);
+  }
+
+  /**
+   * Gets a range of the key, in lower case.
+   *
+   * @param start the start index, inclusive
+   * @param end   the end index, exclusive
+   * @return the range
+   */
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return this.folded.subSequence(start, end);
+  }
+
+  /**
+   * Gets the hash of the key, computed once.
+   *
+   * @return the hash
+   */
+  @Override
+  public int hashCode() {
+    return this.hash;
+  }
+
+  /**
+   * Compares the key with another folded key or with a slice, ignoring case.
+   *
+   * @param other the other key
+   * @return true if they are equal once folded
+   */
+  @Override
+  public boolean equals(Object other) {
+    if (other instanceof FoldedKey) {
+      FoldedKey key = (FoldedKey) other;
+      return this.hash == key.hash && this.folded.equals(key.folded);
+    }
+    return other instanceof CharSlice && equalsFolded(this.folded, (CharSlice) other);
+  }
+
+  /**
+   * Gets the key in lower case.
+   *
+   * @return the key
+   */
+  @Override
+  public String toString() {
+    return this.folded;
+  }
+}
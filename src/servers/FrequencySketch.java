@@ -0,0 +1,85 @@
+package servers;
+
+/**
+ * This class represents a count-min sketch of 4-bit counters that estimates how often each key was
+ * used recently. Every counter is halved once the number of increments reaches ten times the
+ * capacity, so old popularity fades. It is not thread-safe.
+ */
+final class FrequencySketch {
+  private static final long[] SEEDS = {0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L};
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private final long[] table; // 16 counters of 4 bits per long
+  private final int tableMask;
+  private final int sampleSize;
+  private int size;
+
+  /**
+   * Instantiates a new frequency sketch.
+   *
+   * @param capacity the expected number of distinct keys
+   */
+  FrequencySketch(int capacity) {
+    int length = Integer.highestOneBit(Math.max(16, Math.min(capacity, 1 << 26) - 1)) << 1;
+    this.table = new long[length];
+    this.tableMask = length - 1;
+    this.sampleSize = 10 * Math.max(capacity, 16);
+  }
+
+  /**
+   * Estimates the number of recent uses of a key.
+   *
+   * @param hash the hash of the key
+   * @return the estimate, between 0 and 15
+   */
+  int frequency(int hash) {
+    int frequency = 15;
+    for (int i = 0; i < 4; i++) {
+      frequency = Math.min(frequency, this.counter(hash, i));
+    }
+    return frequency;
+  }
+
+  /**
+   * Records a use of a key.
+   *
+   * @param hash the hash of the key
+   */
+  void increment(int hash) {
+    boolean added = false;
+    for (int i = 0; i < 4; i++) {
+      int index = this.indexOf(hash, i);
+      int shift = this.shiftOf(hash, i);
+      if (((this.table[index] >>> shift) & 0xFL) != 0xFL) {
+        this.table[index] += 1L << shift;
+        added = true;
+      }
+    }
+    if (added && ++this.size == this.sampleSize) {
+      this.reset();
+    }
+  }
+
+  private int counter(int hash, int row) {
+    return (int) ((this.table[this.indexOf(hash, row)] >>> this.shiftOf(hash, row)) & 0xFL);
+  }
+
+  private int indexOf(int hash, int row) {
+    long h = (hash + SEEDS[row]) * SEEDS[row];
+    h += h >>> 32;
+    return (int) h & this.tableMask;
+  }
+
+  private int shiftOf(int hash, int row) {
+    return ((hash >>> (row * 8)) & 3) << 4 | row << 2; // one of the 16 counters, a different quarter per row
+  }
+
+  /**
+   * Halves every counter.
+   */
+  private void reset() {
+    for (int i = 0; i < this.table.length; i++) {
+      this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+    }
+    this.size /= 2;
+  }
+}
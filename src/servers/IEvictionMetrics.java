@@ -0,0 +1,52 @@
+package servers;
+
+import javax.management.MXBean;
+
+/**
+ * The interface eviction metrics contains what a store capped by a bounded translation service
+ * exposes over JMX: how full it is, how often reads find their key and how many pairs were evicted.
+ */
+@MXBean
+public interface IEvictionMetrics {
+  /**
+   * Gets the number of reads that found their key.
+   *
+   * @return the number of hits
+   */
+  long getHits();
+
+  /**
+   * Gets the number of reads that did not find their key.
+   *
+   * @return the number of misses
+   */
+  long getMisses();
+
+  /**
+   * Gets the number of pairs evicted to stay under the cap.
+   *
+   * @return the number of evictions
+   */
+  long getEvictions();
+
+  /**
+   * Gets the total weight of the pairs, in the unit of the cap.
+   *
+   * @return the weighted size
+   */
+  long getWeightedSize();
+
+  /**
+   * Gets the cap.
+   *
+   * @return the maximum weight, in the unit of the cap
+   */
+  long getMaximumWeight();
+
+  /**
+   * Gets the unit of the cap.
+   *
+   * @return "pairs" or "bytes"
+   */
+  String getUnit();
+}
@@ -0,0 +1,49 @@
+package servers;
+
+/**
+ * The interface eviction policy contains methods that all policies choosing which pairs a bounded
+ * translation service evicts should support. Keys are passed in lower case, except to
+ * {@link #recordAccess(CharSequence)}.
+ *
+ * <p>{@link #recordAccess(CharSequence)} is called by request threads on every hit and must never
+ * block; every other method is called by one writer at a time.
+ */
+public interface IEvictionPolicy {
+  /**
+   * Records that a key was read. The key is passed as it was read, in any case and possibly as a view
+   * over a request buffer that is only valid for the duration of the call, so that a hit allocates
+   * nothing; policies probe with {@link FoldedKey#probe(CharSequence)}.
+   *
+   * @param key the key
+   */
+  void recordAccess(CharSequence key);
+
+  /**
+   * Records that a key was saved, for the first time or again.
+   *
+   * @param key    the key
+   * @param weight the weight of the pair
+   */
+  void recordWrite(String key, long weight);
+
+  /**
+   * Records that a key was removed.
+   *
+   * @param key the key
+   */
+  void recordRemoval(String key);
+
+  /**
+   * Chooses the next key to evict and stops tracking it.
+   *
+   * @return the key, or null if no key is tracked
+   */
+  String evict();
+
+  /**
+   * Gets the total weight of the tracked keys.
+   *
+   * @return the weighted size
+   */
+  long weightedSize();
+}
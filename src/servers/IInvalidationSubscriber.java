@@ -0,0 +1,15 @@
+package servers;
+
+/**
+ * The interface invalidation subscriber contains the method that every connection able to receive
+ * invalidations should support.
+ */
+public interface IInvalidationSubscriber {
+  /**
+   * Tells the client that a key it read has changed. Called by the thread that changed the key, so
+   * it must hand the invalidation over rather than block on the network.
+   *
+   * @param key the key, in lower case
+   */
+  void invalidate(String key);
+}
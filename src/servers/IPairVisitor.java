@@ -0,0 +1,17 @@
+package servers;
+
+/**
+ * The interface pair visitor contains the method called for every key-value pair of a translation
+ * service when its pairs are listed along with their deadlines, e.g. to write a snapshot.
+ */
+public interface IPairVisitor {
+  /**
+   * Visits a key-value pair.
+   *
+   * @param key            the key, in lower case
+   * @param value          the value
+   * @param deadlineMillis the time the pair expires at, in milliseconds since the epoch, or 0 if it
+   *                       never expires
+   */
+  void visit(String key, String value, long deadlineMillis);
+}
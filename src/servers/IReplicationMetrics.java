@@ -0,0 +1,47 @@
+package servers;
+
+import javax.management.MXBean;
+
+/**
+ * The interface replication metrics contains what a primary or a replica exposes over JMX about
+ * replication, chiefly how far the replicas lag behind the primary.
+ */
+@MXBean
+public interface IReplicationMetrics {
+  /**
+   * Gets the role of the server.
+   *
+   * @return "primary" or "replica"
+   */
+  String getRole();
+
+  /**
+   * Gets the sequence of the latest mutation the primary logged, or the replica applied.
+   *
+   * @return the sequence
+   */
+  long getSequence();
+
+  /**
+   * Gets the number of replicas streaming from the primary; always 0 for a replica.
+   *
+   * @return the number of replicas
+   */
+  int getReplicas();
+
+  /**
+   * Gets the number of mutations the replica, or the furthest behind replica of the primary, has yet
+   * to apply.
+   *
+   * @return the number of mutations
+   */
+  long getLagRecords();
+
+  /**
+   * Gets how far behind the primary the replica, or the furthest behind replica of the primary, is in
+   * time: how long ago the primary applied the mutations it has yet to apply, or 0 if it is up to date.
+   *
+   * @return the lag in milliseconds, or -1 while a replica is not connected to its primary
+   */
+  long getLagMillis();
+}
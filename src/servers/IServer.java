@@ -27,6 +27,21 @@ public interface IServer {
    */
   void setTranslationService(ITranslationService translationService);
 
+  /**
+   * Sets the translation service that invalidates the keys read by tracking connections. It must be
+   * part of the translation service.
+   *
+   * @param trackingService the tracking translation service
+   */
+  void setTrackingService(TrackingTranslationService trackingService);
+
+  /**
+   * Gets the counters and latencies of the server, reported by the STATS command.
+   *
+   * @return the metrics
+   */
+  ServerMetrics getMetrics();
+
   /**
    * Starts the server.
    */
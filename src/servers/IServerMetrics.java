@@ -0,0 +1,152 @@
+package servers;
+
+import javax.management.MXBean;
+
+/**
+ * The interface server metrics contains the counters and latencies a translation server exposes over
+ * JMX. Counters are totals since the server started.
+ */
+@MXBean
+public interface IServerMetrics {
+  /**
+   * Gets the number of seconds since the server started.
+   *
+   * @return the uptime in seconds
+   */
+  long getUptimeSeconds();
+
+  /**
+   * Gets the number of well-formed requests executed.
+   *
+   * @return the number of requests
+   */
+  long getRequests();
+
+  /**
+   * Gets the number of GET requests.
+   *
+   * @return the number of GETs
+   */
+  long getGets();
+
+  /**
+   * Gets the number of PUT requests, with or without a TTL.
+   *
+   * @return the number of PUTs
+   */
+  long getPuts();
+
+  /**
+   * Gets the number of DELETE requests.
+   *
+   * @return the number of DELETEs
+   */
+  long getDeletes();
+
+  /**
+   * Gets the number of MGET, MPUT and MDELETE requests.
+   *
+   * @return the number of batch requests
+   */
+  long getBatches();
+
+  /**
+   * Gets the number of PREFIX and RANGE requests.
+   *
+   * @return the number of scans
+   */
+  long getScans();
+
+  /**
+   * Gets the number of keys read by GET and MGET that existed.
+   *
+   * @return the number of hits
+   */
+  long getHits();
+
+  /**
+   * Gets the number of keys read by GET and MGET that did not exist.
+   *
+   * @return the number of misses
+   */
+  long getMisses();
+
+  /**
+   * Gets the number of requests the translation service failed, and of connections lost to an I/O
+   * error.
+   *
+   * @return the number of errors
+   */
+  long getErrors();
+
+  /**
+   * Gets the number of requests that did not follow the protocol or named an unknown operation.
+   *
+   * @return the number of malformed requests
+   */
+  long getMalformedRequests();
+
+  /**
+   * Gets the number of UDP requests that arrived again and were answered with the reply already sent,
+   * or dropped while the first copy was being executed.
+   *
+   * @return the number of duplicate requests
+   */
+  long getDuplicates();
+
+  /**
+   * Gets the number of pairs evicted to keep a capped store under its cap.
+   *
+   * @return the number of evictions, or 0 if the store is not capped
+   */
+  long getEvictions();
+
+  /**
+   * Gets the number of bytes received from clients.
+   *
+   * @return the number of bytes
+   */
+  long getBytesIn();
+
+  /**
+   * Gets the number of bytes sent to clients, invalidations included.
+   *
+   * @return the number of bytes
+   */
+  long getBytesOut();
+
+  /**
+   * Gets the number of open connections; always 0 for a UDP server.
+   *
+   * @return the number of connections
+   */
+  long getActiveConnections();
+
+  /**
+   * Gets the median time taken to execute a request, from parsed request to reply.
+   *
+   * @return the latency in microseconds
+   */
+  double getLatencyP50Micros();
+
+  /**
+   * Gets the 99th percentile of the time taken to execute a request.
+   *
+   * @return the latency in microseconds
+   */
+  double getLatencyP99Micros();
+
+  /**
+   * Gets the 99.9th percentile of the time taken to execute a request.
+   *
+   * @return the latency in microseconds
+   */
+  double getLatencyP999Micros();
+
+  /**
+   * Gets the longest time taken to execute a request.
+   *
+   * @return the latency in microseconds
+   */
+  double getLatencyMaxMicros();
+}
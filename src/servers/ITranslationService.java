@@ -1,5 +1,11 @@
 package servers;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
 /**
  * The interface translation service contains methods that all types of translation services should support.
  */
@@ -28,4 +34,185 @@ public interface ITranslationService {
    * @return the outcome of the operation
    */
   String delete(String key);
+
+  /**
+   * Saves a key-value pair that expires after a while. Translation services without expiry refuse it.
+   *
+   * @param key       the word to be translated
+   * @param value     the translation
+   * @param ttlMillis the time to live in milliseconds
+   * @return the outcome of the operation
+   */
+  default String put(String key, String value, long ttlMillis) {
+    return "FAIL: this server does not support expiring translations";
+  }
+
+  /**
+   * Saves a key-value pair given as views over a request buffer. The views are only valid for the
+   * duration of the call.
+   *
+   * @param key   the word to be translated
+   * @param value the translation
+   * @return the outcome of the operation
+   */
+  default String put(CharSequence key, CharSequence value) {
+    return this.put(key.toString(), value.toString());
+  }
+
+  /**
+   * Retrieves the value of a key given as a view over a request buffer. The view is only valid for
+   * the duration of the call.
+   *
+   * @param key the word to be translated
+   * @return the translation
+   */
+  default String get(CharSequence key) {
+    return this.get(key.toString());
+  }
+
+  /**
+   * Retrieves the value of a key, given as a view over a request buffer, encoded in UTF-8 and ready to
+   * be sent. Stores that keep their values encoded return them as they are, so the array must not be
+   * modified; the default encodes the translation on every call.
+   *
+   * @param key the word to be translated
+   * @return the encoded translation, or null if the key is unknown
+   */
+  default byte[] getEncoded(CharSequence key) {
+    String translation = this.get(key);
+    return translation.startsWith("FAIL:") ? null : translation.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Removes a key-value pair whose key is given as a view over a request buffer. The view is only
+   * valid for the duration of the call.
+   *
+   * @param key the word to be deleted
+   * @return the outcome of the operation
+   */
+  default String delete(CharSequence key) {
+    return this.delete(key.toString());
+  }
+
+  /**
+   * Retrieves the values of several keys. Implementations override this to look every key up in one
+   * pass; the default relies on GET failures starting with "FAIL:", which no stored value can,
+   * because values are stored in lower case.
+   *
+   * @param keys the words to be translated
+   * @return the translations, in the order of the keys, with null for every unknown key
+   */
+  default List<String> getAll(List<String> keys) {
+    List<String> values = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      String translation = this.get(key);
+      values.add(translation.startsWith("FAIL:") ? null : translation);
+    }
+    return values;
+  }
+
+  /**
+   * Saves several key-value pairs, in order.
+   *
+   * @param keys   the words to be translated
+   * @param values the translations, in the order of the keys
+   * @return the outcome of the operation
+   */
+  default String putAll(List<String> keys, List<String> values) {
+    for (int i = 0; i < keys.size(); i++) {
+      String result = this.put(keys.get(i), values.get(i));
+      if (result.startsWith("FAIL:")) {
+        return result;
+      }
+    }
+    return "SUCCESS";
+  }
+
+  /**
+   * Removes several key-value pairs.
+   *
+   * @param keys the words to be deleted
+   * @return the outcome of the operation, which names the keys that did not exist
+   */
+  default String deleteAll(List<String> keys) {
+    List<String> missing = new ArrayList<>();
+    for (String key : keys) {
+      if (this.delete(key).startsWith("FAIL:")) {
+        missing.add(FoldedKey.fold(key));
+      }
+    }
+    return deleteAllOutcome(missing);
+  }
+
+  /**
+   * Formats the outcome of a GET of an unknown key.
+   *
+   * @param lowerCaseKey the key, in lower case
+   * @return the outcome of the operation
+   */
+  static String notFound(String lowerCaseKey) {
+    return "FAIL: I don't know the translation for " + "\"" + lowerCaseKey + "\"" + " yet";
+  }
+
+  /**
+   * Formats the outcome of a batch DELETE.
+   *
+   * @param missing the keys that did not exist
+   * @return the outcome of the operation
+   */
+  static String deleteAllOutcome(List<String> missing) {
+    if (missing.isEmpty()) {
+      return "SUCCESS";
+    }
+    StringBuilder outcome = new StringBuilder("FAIL: ");
+    for (int i = 0; i < missing.size(); i++) {
+      outcome.append(i == 0 ? "\"" : ", \"").append(missing.get(i)).append('"');
+    }
+    return outcome.append(missing.size() == 1 ? " does not exist" : " do not exist").toString();
+  }
+
+  /**
+   * Lists the pairs whose keys fall in a range, in key order. Keys are compared in lower case, the way
+   * they are stored.
+   *
+   * @param from  the lowest key, included
+   * @param to    the key the range ends before, or null to run to the last key
+   * @param limit the number of pairs listed at most
+   * @return the pairs, or null if the translation service keeps no ordered index
+   */
+  default List<Map.Entry<String, String>> scan(String from, String to, int limit) {
+    return null;
+  }
+
+  /**
+   * Gets the number of key-value pairs.
+   *
+   * @return the number of key-value pairs
+   */
+  int size();
+
+  /**
+   * Performs an action for every key-value pair. Implementations that can be shared by several
+   * threads keep serving requests while the iteration runs.
+   *
+   * @param action the action
+   */
+  void forEach(BiConsumer<String, String> action);
+
+  /**
+   * Visits every key-value pair along with its deadline, so that expiring pairs can be written out
+   * and restored with the time they expire at. Translation services without expiry report every
+   * pair as permanent.
+   *
+   * @param visitor the visitor
+   */
+  default void forEachWithDeadline(IPairVisitor visitor) {
+    this.forEach((key, value) -> visitor.visit(key, value, 0));
+  }
+
+  /**
+   * Releases the resources held by the translation service, such as open files.
+   */
+  default void close() {
+  }
 }
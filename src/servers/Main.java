@@ -1,35 +1,241 @@
 package servers;
 
-import utils.Logger;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import utils.AsyncLogger;
+import utils.BinaryProtocol;
+import utils.ILogger;
 
 /**
  * The class main is the entry point of the server application.
  */
 public class Main {
+  private static final int LOG_CAPACITY = 64 * 1024;
+  private static final int MAX_TRACKED_KEYS = 1024 * 1024;
+  private static final int REPLICATION_BACKLOG = 256 * 1024;
+
+  /**
+   * Creates the store selected by the system property store: CONCURRENT (the default), a concurrent
+   * hashmap on the heap, or OFFHEAP, which keeps keys and values outside the heap.
+   *
+   * @param expectedSize the expected number of key-value pairs
+   * @return the store
+   */
+  private static ITranslationService createStore(int expectedSize) {
+    String store = System.getProperty("store", "CONCURRENT");
+    if (store.equalsIgnoreCase("OFFHEAP")) {
+      return new OffHeapTranslationService(expectedSize);
+    } else if (store.equalsIgnoreCase("CONCURRENT")) {
+      return new ConcurrentTranslationService(Math.max(16, expectedSize));
+    }
+    throw new IllegalArgumentException("Please set store to either 'CONCURRENT' or 'OFFHEAP'");
+  }
+
+  /**
+   * Keeps the keys of the store in order too, for PREFIX and RANGE requests, if the system property
+   * store.sortedIndex is true.
+   *
+   * @param store the store
+   * @return the store, indexed if requested
+   */
+  private static ITranslationService index(ITranslationService store) {
+    return Boolean.parseBoolean(System.getProperty("store.sortedIndex")) ? new SortedIndexTranslationService(store) : store;
+  }
+
+  /**
+   * Caps the store if the system property store.maxEntries (a number of pairs) or store.maxBytes (an
+   * estimate of their heap footprint) is set, evicting according to store.eviction: LRU (the
+   * default), which a CLOCK approximates, or TINYLFU, which also weighs how often keys are used.
+   *
+   * @param store the store
+   * @return the store, bounded if a cap is set
+   */
+  private static ITranslationService bound(ITranslationService store) {
+    String maxEntries = System.getProperty("store.maxEntries");
+    String maxBytes = System.getProperty("store.maxBytes");
+    if (maxEntries == null && maxBytes == null) {
+      return store;
+    }
+    if (maxEntries != null && maxBytes != null) {
+      throw new IllegalArgumentException("Please set either store.maxEntries or store.maxBytes, not both");
+    }
+    boolean weighBytes = maxBytes != null;
+    long maximumWeight = Long.parseLong(weighBytes ? maxBytes : maxEntries);
+    int expectedEntries = (int) Math.min(Integer.MAX_VALUE, weighBytes ? maximumWeight / 128 : maximumWeight);
+    String eviction = System.getProperty("store.eviction", "LRU");
+    IEvictionPolicy policy;
+    if (eviction.equalsIgnoreCase("LRU")) {
+      policy = new ClockEvictionPolicy();
+    } else if (eviction.equalsIgnoreCase("TINYLFU")) {
+      policy = new TinyLfuEvictionPolicy(maximumWeight, expectedEntries);
+    } else {
+      throw new IllegalArgumentException("Please set store.eviction to either 'LRU' or 'TINYLFU'");
+    }
+    return new BoundedTranslationService(store, policy, maximumWeight, weighBytes);
+  }
+
+  /**
+   * Creates the translation service shared by every connection. If the system property wal.file is
+   * set, mutations are recorded in that write-ahead log (forced according to wal.fsync:
+   * ALWAYS, GROUP every wal.groupCommitMillis milliseconds, or OS) and replayed at startup. If
+   * snapshot.file is set, the snapshot is loaded first and rewritten every
+   * snapshot.intervalSeconds seconds and at shutdown. The keys read by tracking connections are
+   * invalidated at them when they change, up to tracking.maxKeys keys. If replication.port is set,
+   * the server is a primary that streams its mutations to the replicas that connect to that port,
+   * keeping the latest replication.backlog of them for replicas that reconnect; if
+   * replication.primary is set to the host:port of a primary, the server is a read-only replica of it,
+   * which takes every pair from the primary and therefore neither loads, logs nor snapshots them.
+   *
+   * @param server the server, which is handed the tracking translation service
+   * @param logger the server's logger, which replication failures are logged to
+   * @return the translation service
+   * @throws IOException if the snapshot could not be loaded, or the write-ahead log opened or replayed
+   */
+  private static ITranslationService createTranslationService(IServer server, ILogger logger) throws IOException {
+    ITranslationService translationService;
+    String snapshotFile = System.getProperty("snapshot.file");
+    Path snapshot = snapshotFile == null ? null : Paths.get(snapshotFile);
+    String primary = System.getProperty("replication.primary");
+    boolean restore = primary == null && snapshot != null && Files.exists(snapshot); // a replica starts from the primary's snapshot
+    if (restore) {
+      long entries = SnapshotFile.entryCount(snapshot);
+      translationService = createStore((int) Math.min(Integer.MAX_VALUE, entries * 4 / 3 + 1)); // no resizing while loading
+    } else {
+      translationService = createStore(0);
+    }
+    translationService = index(translationService); // right above the store, so that evicted and expired pairs leave it too
+    TrackingTranslationService trackingService = new TrackingTranslationService(translationService,
+        Integer.parseInt(System.getProperty("tracking.maxKeys", String.valueOf(MAX_TRACKED_KEYS))));
+    server.setTrackingService(trackingService); // right above the store, so that evicted and expired pairs are invalidated too
+    translationService = bound(trackingService); // under the expiry, so that expired pairs leave the policy too
+    if (translationService instanceof BoundedTranslationService) {
+      server.getMetrics().setEviction((BoundedTranslationService) translationService);
+    }
+    translationService = new ExpiringTranslationService(translationService); // PUT:key:value:ttlSeconds
+    if (restore) {
+      SnapshotFile.load(snapshot, translationService); // through the expiry, which restores the deadlines
+    }
+    if (primary != null) {
+      int colon = primary.lastIndexOf(':');
+      ReplicaTranslationService replica = new ReplicaTranslationService(translationService,
+          new InetSocketAddress(primary.substring(0, colon), Integer.parseInt(primary.substring(colon + 1))), logger);
+      server.getMetrics().setReplication(replica);
+      return replica;
+    }
+    String replicationPort = System.getProperty("replication.port");
+    if (replicationPort != null) {
+      ReplicatingTranslationService replicating = new ReplicatingTranslationService(translationService,
+          new ReplicationLog(Integer.parseInt(System.getProperty("replication.backlog", String.valueOf(REPLICATION_BACKLOG)))), logger);
+      replicating.listen(Integer.parseInt(replicationPort));
+      server.getMetrics().setReplication(replicating);
+      translationService = replicating; // under the write-ahead log, which replays into it at startup
+    }
+    String walFile = System.getProperty("wal.file");
+    if (walFile != null) {
+      WriteAheadLog.FsyncPolicy fsyncPolicy = WriteAheadLog.FsyncPolicy.valueOf(System.getProperty("wal.fsync", "GROUP").toUpperCase());
+      long groupCommitMillis = Long.parseLong(System.getProperty("wal.groupCommitMillis", "5"));
+      WriteAheadLog writeAheadLog = new WriteAheadLog(Paths.get(walFile), fsyncPolicy, groupCommitMillis);
+      translationService = new DurableTranslationService(translationService, writeAheadLog);
+    }
+    if (snapshot != null) {
+      long intervalSeconds = Long.parseLong(System.getProperty("snapshot.intervalSeconds", "300"));
+      translationService = new SnapshottingTranslationService(translationService, snapshot, intervalSeconds);
+    }
+    return translationService;
+  }
+
+  /**
+   * Exposes the metrics of a server over JMX as servers:type=Server,name=&lt;Transport&gt;,port=&lt;Port&gt;,
+   * those of its capped store as servers:type=Eviction,name=&lt;Transport&gt;,port=&lt;Port&gt; and those of
+   * its replication as servers:type=Replication,name=&lt;Transport&gt;,port=&lt;Port&gt;, for JConsole or any
+   * JMX client to read while the server runs.
+   *
+   * @param server the server
+   * @param name   the transport of the server
+   * @param port   the port of the server
+   */
+  private static void registerMetrics(IServer server, String name, String port) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(server.getMetrics(),
+          new ObjectName("servers:type=Server,name=" + name + ",port=" + port));
+      if (server.getMetrics().getEviction() != null) {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(server.getMetrics().getEviction(),
+            new ObjectName("servers:type=Eviction,name=" + name + ",port=" + port));
+      }
+      if (server.getMetrics().getReplication() != null) {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(server.getMetrics().getReplication(),
+            new ObjectName("servers:type=Replication,name=" + name + ",port=" + port));
+      }
+    } catch (JMException e) { // the server runs without them
+      System.err.println("Could not expose the metrics over JMX: " + e.getMessage());
+    }
+  }
+
   /**
    * The entry point of the server application.
    *
    * @param args the input arguments
    */
   public static void main(String[] args) {
-    if (args.length != 2) { // need to only enter type of server and port number
-      System.err.println("Usage: javac servers/*.java | then | java servers.Main <Port#> <TCP/UDP>");
+    if (args.length < 2 || args.length > 3) { // need to only enter type of server, port number and optionally the number of threads
+      System.err.println("Usage: javac servers/*.java | then | java servers.Main <Port#> <TCP/UDP/NIO> [Threads#]");
       System.exit(1);
     } else {
+      AsyncLogger.OverflowPolicy overflowPolicy = AsyncLogger.OverflowPolicy.BLOCK;
+      try {
+        overflowPolicy = AsyncLogger.OverflowPolicy.valueOf(System.getProperty("log.overflow", "BLOCK").toUpperCase());
+      } catch (IllegalArgumentException e) {
+        System.err.println("Please set log.overflow to either 'BLOCK', 'DROP' or 'SAMPLE'");
+        System.exit(1);
+      }
+      int threads = Runtime.getRuntime().availableProcessors();
+      if (args.length == 3) {
+        try {
+          threads = Integer.parseInt(args[2]);
+        } catch (NumberFormatException e) {
+          System.err.println("Invalid number of threads entered");
+          System.exit(1);
+        }
+      }
+      IServer server;
+      String name;
       if (args[1].equalsIgnoreCase("UDP")) { // create a UDP server object
-        IServer UDPServer = new UDPServer(args[0]);
-        UDPServer.setLogger(new Logger("UDPServerLogger", "UDPServerLog.log"));
-        UDPServer.setTranslationService(new TranslationService());
-        UDPServer.execute();
+        UDPServer udpServer = new UDPServer(args[0], threads);
+        udpServer.setMtu(Integer.parseInt(System.getProperty("udp.mtu", String.valueOf(BinaryProtocol.DEFAULT_MTU))));
+        udpServer.setReassemblyTimeoutMillis(Long.parseLong(System.getProperty("udp.reassemblyTimeoutMillis", "1000")));
+        udpServer.setReplyCache(Integer.parseInt(System.getProperty("udp.replyCacheEntries", "65536")),
+            Long.parseLong(System.getProperty("udp.replyCacheBytes", String.valueOf(64L * 1024 * 1024))));
+        server = udpServer;
+        name = "UDP";
       } else if (args[1].equalsIgnoreCase("TCP")) { // create a TCP server object
-        IServer TCPServer = new TCPServer(args[0]);
-        TCPServer.setLogger(new Logger("TCPServerLogger", "TCPServerLog.log"));
-        TCPServer.setTranslationService(new TranslationService());
-        TCPServer.execute();
+        server = new TCPServer(args[0]);
+        name = "TCP";
+      } else if (args[1].equalsIgnoreCase("NIO")) { // create a non-blocking TCP server object
+        server = new NIOServer(args[0], threads);
+        name = "NIO";
       } else {
-        System.err.println("Please enter either 'TCP' or 'UDP'");
+        System.err.println("Please enter either 'TCP', 'UDP' or 'NIO'");
+        System.exit(1);
+        return;
+      }
+      ILogger logger = new AsyncLogger(name + "ServerLog.log", LOG_CAPACITY, overflowPolicy);
+      server.setLogger(logger);
+      try {
+        server.setTranslationService(createTranslationService(server, logger));
+      } catch (IOException | IllegalArgumentException e) {
+        System.err.println("Could not set up the translation service: " + e.getMessage());
         System.exit(1);
       }
+      registerMetrics(server, name, args[0]);
+      server.execute();
     }
   }
 }
@@ -0,0 +1,503 @@
+package servers;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import utils.BinaryProtocol;
+import utils.BufferPool;
+
+/**
+ * The class NIO server represents a translation server that communicates via the TCP protocol using
+ * non-blocking channels. One thread accepts connections and hands them round-robin to a fixed number
+ * of reactor threads, each of which multiplexes its connections on its own selector.
+ *
+ * <p>A connection whose replies pile up, because its client sends requests faster than it reads the
+ * replies, stops being read once more than {@value #HIGH_WATER_BUFFERS} buffers of output are pending,
+ * and is read again once they drained below {@value #LOW_WATER_BUFFERS}, so the client is slowed down
+ * by TCP flow control instead of the server buffering its replies without limit.
+ */
+public class NIOServer extends AbstractServer {
+  private static final int BACKLOG = 1024;
+  private static final int BUFFER_SIZE = 16 * 1024;
+  private static final int MAX_POOLED_BUFFERS = 1024;
+  private static final int HIGH_WATER_BUFFERS = 64; // 1 MB of pending output
+  private static final int LOW_WATER_BUFFERS = 16;
+  private static final int MAX_FRAME_LENGTH = BinaryProtocol.REQUEST_HEADER_LENGTH + 4 + 2 * BinaryProtocol.MAX_FIELD_LENGTH;
+  private static final byte[] NEWLINE = {'\n'};
+  private final int reactorCount;
+  private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+  private ServerSocketChannel serverChannel;
+  private Selector acceptSelector;
+  private Reactor[] reactors;
+  private Thread[] reactorThreads;
+  private volatile boolean isRunning;
+  private volatile InetSocketAddress shutdownRequester;
+
+  /**
+   * Instantiates a new NIO translation server.
+   *
+   * @param port         the port
+   * @param reactorCount the number of reactor threads
+   */
+  public NIOServer(String port, int reactorCount) {
+    super(port);
+    this.reactorCount = Math.max(1, reactorCount);
+  }
+
+  /**
+   * Stops accepting connections and wakes every selector so that the server can shut down.
+   *
+   * @param requester the address of the client that asked the server to stop
+   */
+  private void stop(InetSocketAddress requester) {
+    this.shutdownRequester = requester;
+    this.isRunning = false;
+    this.acceptSelector.wakeup();
+    for (Reactor reactor : this.reactors) {
+      reactor.selector.wakeup();
+    }
+  }
+
+  /**
+   * Starts the server.
+   */
+  @Override
+  public void execute() {
+    try {
+      this.serverChannel = ServerSocketChannel.open(); // create a new TCP server channel
+      this.serverChannel.bind(new InetSocketAddress(this.portNumber), BACKLOG);
+      this.serverChannel.configureBlocking(false);
+      this.acceptSelector = Selector.open();
+      this.serverChannel.register(this.acceptSelector, SelectionKey.OP_ACCEPT);
+      this.isRunning = true;
+      this.reactors = new Reactor[this.reactorCount];
+      this.reactorThreads = new Thread[this.reactorCount];
+      for (int i = 0; i < this.reactorCount; i++) { // start the event loops
+        this.reactors[i] = new Reactor();
+        this.reactorThreads[i] = new Thread(this.reactors[i], "NIOServer-reactor-" + i);
+        this.reactorThreads[i].start();
+      }
+      this.logger.log("NIOServer running with " + this.reactorCount + " reactor(s)...");
+      System.out.println("Server is running...");
+      int next = 0;
+      while (this.isRunning) { // keep accepting clients
+        this.acceptSelector.select();
+        this.acceptSelector.selectedKeys().clear();
+        SocketChannel channel;
+        while ((channel = this.serverChannel.accept()) != null) {
+          channel.configureBlocking(false);
+          channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+          this.reactors[next].register(channel); // hand the connection to the next reactor
+          next = (next + 1) % this.reactorCount;
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("Socket: " + e.getMessage());
+    }
+    // shut down gracefully
+    this.shutdown();
+  }
+
+  /**
+   * Stops the server.
+   */
+  @Override
+  public void shutdown() {
+    InetSocketAddress requester = this.shutdownRequester;
+    if (requester != null) {
+      this.logger.log("Received a request to shut down from <" + requester.getAddress() + ">:<" + requester.getPort() + ">");
+    }
+    System.out.println("Server is shutting down...");
+    this.isRunning = false;
+    if (this.reactors != null) {
+      for (int i = 0; i < this.reactors.length; i++) { // let every reactor close its connections
+        if (this.reactors[i] != null) {
+          this.reactors[i].selector.wakeup();
+          try {
+            this.reactorThreads[i].join();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    }
+    try {
+      if (this.acceptSelector != null) {
+        this.acceptSelector.close();
+      }
+      if (this.serverChannel != null) {
+        this.serverChannel.close();
+      }
+    } catch (IOException ss) {
+      this.logger.log("Server socket: " + ss.getMessage());
+    }
+    this.translationService.close();
+    this.logger.log("NIOServer stopped");
+    this.logger.close();
+    System.out.println("Server closed");
+  }
+
+  /**
+   * The per-connection state: the received bytes that do not form a complete request yet, the
+   * replies that have not been written to the socket yet, and the invalidations waiting for the
+   * reactor thread to queue them.
+   */
+  private static class Connection implements IInvalidationSubscriber {
+    private final SocketChannel channel;
+    private final InetSocketAddress remote;
+    private final Reactor reactor;
+    private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+    private final ConcurrentLinkedQueue<String> invalidations = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean invalidationScheduled = new AtomicBoolean();
+    private SelectionKey key;
+    private byte[] data = new byte[256];
+    private int length;
+    private int scanned;
+    private boolean stopAfterFlush;
+    private boolean readPaused;
+
+    private Connection(SocketChannel channel, Reactor reactor) throws IOException {
+      this.channel = channel;
+      this.remote = (InetSocketAddress) channel.getRemoteAddress();
+      this.reactor = reactor;
+    }
+
+    /**
+     * Hands an invalidation to the reactor thread, which owns the connection's output.
+     *
+     * @param key the key
+     */
+    @Override
+    public void invalidate(String key) {
+      this.invalidations.add(key);
+      if (this.invalidationScheduled.compareAndSet(false, true)) {
+        this.reactor.schedule(this);
+      }
+    }
+
+    private void append(ByteBuffer buffer) {
+      int required = this.length + buffer.remaining();
+      if (required > this.data.length) {
+        this.data = Arrays.copyOf(this.data, Math.max(required, this.data.length * 2));
+      }
+      buffer.get(this.data, this.length, buffer.remaining());
+      this.length = required;
+    }
+
+    private void discard(int consumed) {
+      System.arraycopy(this.data, consumed, this.data, 0, this.length - consumed);
+      this.length -= consumed;
+      this.scanned = Math.max(0, this.scanned - consumed);
+    }
+  }
+
+  /**
+   * An event loop that owns a selector, a read buffer, a request parser and the connections
+   * registered with it.
+   */
+  private class Reactor implements Runnable {
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Connection> invalidated = new ConcurrentLinkedQueue<>();
+    private final RequestParser parser = new RequestParser();
+
+    private Reactor() throws IOException {
+      this.selector = Selector.open();
+    }
+
+    /**
+     * Queues a newly accepted connection to be registered by the reactor thread.
+     *
+     * @param channel the socket channel
+     */
+    private void register(SocketChannel channel) {
+      this.pending.add(channel);
+      this.selector.wakeup();
+    }
+
+    /**
+     * Queues a connection that has invalidations to push.
+     *
+     * @param connection the connection
+     */
+    private void schedule(Connection connection) {
+      this.invalidated.add(connection);
+      this.selector.wakeup();
+    }
+
+    private void registerPending() {
+      SocketChannel channel;
+      while ((channel = this.pending.poll()) != null) {
+        try {
+          Connection connection = new Connection(channel, this);
+          connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+          metrics.connectionOpened();
+          logger.log("Connection with " + channel.getRemoteAddress() + " established");
+        } catch (IOException e) {
+          logger.log("IO: " + e.getMessage());
+          closeQuietly(channel);
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      ByteBuffer readBuffer = bufferPool.acquire(); // reused for every read of every connection
+      try {
+        while (isRunning) {
+          this.selector.select();
+          this.registerPending();
+          this.pushInvalidations();
+          Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            try {
+              if (key.isValid() && key.isReadable()) {
+                this.read(key, readBuffer);
+              }
+              if (key.isValid() && key.isWritable()) {
+                this.write(key);
+              }
+            } catch (IOException e) {
+              metrics.recordError();
+              logger.log("IO: " + e.getMessage());
+              this.close(key);
+            }
+          }
+        }
+      } catch (IOException e) {
+        logger.log("Selector: " + e.getMessage());
+      } finally {
+        for (SelectionKey key : this.selector.keys()) {
+          this.close(key);
+        }
+        SocketChannel channel;
+        while ((channel = this.pending.poll()) != null) {
+          closeQuietly(channel);
+        }
+        try {
+          this.selector.close();
+        } catch (IOException e) {
+          logger.log("Selector: " + e.getMessage());
+        }
+        bufferPool.release(readBuffer);
+      }
+    }
+
+    /**
+     * Queues the invalidations handed over by other threads behind the replies already queued.
+     */
+    private void pushInvalidations() {
+      Connection connection;
+      while ((connection = this.invalidated.poll()) != null) {
+        connection.invalidationScheduled.set(false);
+        if (!connection.key.isValid()) { // closed since
+          connection.invalidations.clear();
+          continue;
+        }
+        String key;
+        while ((key = connection.invalidations.poll()) != null) {
+          this.enqueue(connection, BinaryProtocol.encodeInvalidation(key));
+        }
+        try {
+          this.flush(connection.key);
+        } catch (IOException e) {
+          logger.log("IO: " + e.getMessage());
+          this.close(connection.key);
+        }
+      }
+    }
+
+    /**
+     * Reads whatever the socket has available and processes the requests completed by it.
+     */
+    private void read(SelectionKey key, ByteBuffer readBuffer) throws IOException {
+      Connection connection = (Connection) key.attachment();
+      readBuffer.clear();
+      int read = connection.channel.read(readBuffer);
+      if (read == -1) { // the client closed the connection
+        logger.log("Connection with " + connection.remote + " closed");
+        this.close(key);
+        return;
+      }
+      metrics.recordBytesIn(read);
+      readBuffer.flip();
+      connection.append(readBuffer);
+      this.processBuffered(key);
+    }
+
+    /**
+     * Processes the complete requests buffered for a connection, whether newline-terminated text
+     * requests or binary frames, until too much output is pending: the rest waits, and the socket is
+     * not read, until the client took enough of its replies. Partial requests are carried over to the
+     * next read.
+     */
+    private void processBuffered(SelectionKey key) throws IOException {
+      Connection connection = (Connection) key.attachment();
+      byte[] data = connection.data;
+      int start = 0;
+      boolean backlogged = false;
+      while (start < connection.length) {
+        if (connection.output.size() > HIGH_WATER_BUFFERS) { // let the client read its replies first
+          backlogged = true;
+          break;
+        }
+        if (data[start] == BinaryProtocol.MAGIC) { // a binary frame
+          int frameLength = BinaryProtocol.requestLength(data, start, connection.length - start);
+          if (frameLength == -1) { // wait for the rest of the frame
+            break;
+          }
+          int outcome = this.parser.parseBinary(data, start, frameLength);
+          byte[] reply = executeBinary(this.parser, outcome, connection, connection.remote.getAddress(), connection.remote.getPort());
+          this.enqueue(connection, reply); // process the request and queue the result for the client
+          if (logger.isEnabled()) {
+            logger.log("Responded with binary status " + reply[1]); // log the response
+          }
+          start += frameLength;
+        } else { // a text request
+          int end = start;
+          for (int i = Math.max(start, connection.scanned); i < connection.length; i++) {
+            if (data[i] == '\n') {
+              end = i;
+              break;
+            }
+          }
+          if (end == start && data[start] != '\n') { // wait for the rest of the line
+            connection.scanned = connection.length;
+            break;
+          }
+          int lineEnd = end > start && data[end - 1] == '\r' ? end - 1 : end;
+          this.process(connection, this.parser.parseText(data, start, lineEnd - start));
+          start = end + 1;
+        }
+      }
+      connection.discard(start);
+      connection.readPaused = backlogged;
+      int limit = connection.length > 0 && data[0] == BinaryProtocol.MAGIC ? MAX_FRAME_LENGTH : MAX_TEXT_REQUEST_LENGTH;
+      if (!backlogged && connection.length > limit) { // refuse to buffer an unbounded request
+        logger.log("Received oversized request from <" + connection.remote.getAddress() + ">:<" + connection.remote.getPort() + ">");
+        this.close(key);
+        return;
+      }
+      this.flush(key);
+    }
+
+    private void process(Connection connection, int outcome) {
+      if (this.parser.isShutdownRequest()) { // if the client sends a stop/shutdown request
+        this.enqueue(connection, "Server is shutting down..."); // acknowledge
+        connection.stopAfterFlush = true; // prepare the shutdown process
+      } else {
+        byte[] reply = executeText(this.parser, outcome, connection, connection.remote.getAddress(), connection.remote.getPort());
+        this.enqueue(connection, reply); // process the request and queue the result for the client
+        this.enqueue(connection, NEWLINE);
+        if (logger.isEnabled()) {
+          logger.log("Responded with " + new String(reply, StandardCharsets.UTF_8)); // log the response
+        }
+      }
+    }
+
+    /**
+     * Appends a newline-terminated text reply to the connection's pooled output buffers.
+     */
+    private void enqueue(Connection connection, String msg) {
+      this.enqueue(connection, (msg + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Appends raw reply bytes to the connection's pooled output buffers.
+     */
+    private void enqueue(Connection connection, byte[] bytes) {
+      int offset = 0;
+      while (offset < bytes.length) {
+        ByteBuffer tail = connection.output.peekLast();
+        if (tail == null || !tail.hasRemaining()) {
+          tail = bufferPool.acquire();
+          connection.output.addLast(tail);
+        }
+        int length = Math.min(tail.remaining(), bytes.length - offset);
+        tail.put(bytes, offset, length);
+        offset += length;
+      }
+    }
+
+    /**
+     * Writes as much of the pending output as the socket accepts, and asks to be notified when the
+     * socket becomes writable again if some of it is left. Reading stops while too much output is
+     * pending.
+     */
+    private void flush(SelectionKey key) throws IOException {
+      Connection connection = (Connection) key.attachment();
+      while (!connection.output.isEmpty()) {
+        ByteBuffer head = connection.output.peekFirst();
+        head.flip();
+        metrics.recordBytesOut(connection.channel.write(head));
+        if (head.hasRemaining()) { // the socket's send buffer is full
+          head.compact();
+          if (connection.output.size() > HIGH_WATER_BUFFERS) {
+            connection.readPaused = true;
+          }
+          key.interestOps(connection.readPaused ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+          return;
+        }
+        bufferPool.release(connection.output.pollFirst());
+      }
+      if (connection.readPaused) { // resumed by the reactor loop once the socket is writable
+        key.interestOps(SelectionKey.OP_WRITE);
+        return;
+      }
+      key.interestOps(SelectionKey.OP_READ);
+      if (connection.stopAfterFlush) {
+        stop(connection.remote);
+      }
+    }
+
+    /**
+     * Writes the pending output of a connection whose socket became writable, and goes on with the
+     * requests it already sent, and then with reading it, once enough of the output drained.
+     */
+    private void write(SelectionKey key) throws IOException {
+      Connection connection = (Connection) key.attachment();
+      this.flush(key);
+      if (key.isValid() && connection.readPaused && connection.output.size() <= LOW_WATER_BUFFERS) {
+        this.processBuffered(key);
+      }
+    }
+
+    private void close(SelectionKey key) {
+      Connection connection = (Connection) key.attachment();
+      if (key.isValid()) { // not closed already
+        metrics.connectionClosed();
+      }
+      key.cancel();
+      closeQuietly(connection.channel);
+      if (trackingService != null) {
+        trackingService.unsubscribe(connection);
+      }
+      ByteBuffer buffer;
+      while ((buffer = connection.output.poll()) != null) {
+        bufferPool.release(buffer);
+      }
+    }
+  }
+
+  private void closeQuietly(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException cs) {
+      this.logger.log("Client socket: " + cs.getMessage());
+    }
+  }
+}
@@ -0,0 +1,563 @@
+package servers;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * This class represents a translation service that keeps its keys and values outside the Java heap,
+ * so that a very large dictionary neither inflates the heap nor lengthens garbage collection pauses.
+ * Entries are appended as {@code keyLength(4) valueLength(4) key value} to arenas of direct byte
+ * buffers, and an open-addressing index of 8-byte slots, also off-heap, points at them. The store is
+ * split into independently locked segments, so it can be shared by any number of request threads.
+ *
+ * <p>Overwritten and deleted entries leave garbage in the arenas and tombstones in the index; a
+ * segment compacts itself when either grows too large, and {@link #compact()} does so on demand.
+ */
+public class OffHeapTranslationService implements ITranslationService {
+  private static final int SEGMENTS = 64; // a power of two
+  private static final int ENTRY_HEADER_LENGTH = 8;
+  private static final int MIN_INDEX_CAPACITY = 64;
+  private static final int MAX_INDEX_CAPACITY = 1 << 27; // slots; 8 bytes each, within one direct buffer
+  private static final int MIN_CHUNK_SIZE = 64 * 1024;
+  private static final int MAX_CHUNK_SIZE = 1 << 30;
+  private static final int MAX_CHUNKS = 256;
+  private static final long EMPTY = 0L;
+  private static final long TOMBSTONE = -1L;
+  private static final long ADDRESS_MASK = (1L << 40) - 1; // slot: tag(24) | address + 1 (40)
+  private static final long MIN_GARBAGE_TO_COMPACT = 1024 * 1024;
+  private final Segment[] segments = new Segment[SEGMENTS];
+
+  /**
+   * Instantiates a new off-heap translation service.
+   */
+  public OffHeapTranslationService() {
+    this(0);
+  }
+
+  /**
+   * Instantiates a new off-heap translation service with an index sized for the expected number of
+   * entries.
+   *
+   * @param expectedSize the expected number of key-value pairs
+   */
+  public OffHeapTranslationService(int expectedSize) {
+    int capacity = MIN_INDEX_CAPACITY;
+    long needed = (long) expectedSize / SEGMENTS * 10 / 7 + 1; // keep the load factor under 0.7
+    while (capacity < needed && capacity < MAX_INDEX_CAPACITY) {
+      capacity <<= 1;
+    }
+    for (int i = 0; i < SEGMENTS; i++) {
+      this.segments[i] = new Segment(capacity);
+    }
+  }
+
+  /**
+   * Saves a key-value pair in off-heap memory.
+   *
+   * @param key   the word to be translated
+   * @param value the translation
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(String key, String value) {
+    byte[] keyBytes = FoldedKey.fold(key).getBytes(StandardCharsets.UTF_8);
+    long hash = hash(keyBytes);
+    this.segmentOf(hash).put(keyBytes, hash, value.toLowerCase().getBytes(StandardCharsets.UTF_8));
+    return "SUCCESS";
+  }
+
+  /**
+   * Retrieves the value of a key.
+   *
+   * @param key the word to be translated
+   * @return the translation
+   */
+  @Override
+  public String get(String key) {
+    key = FoldedKey.fold(key);
+    byte[] translation = this.lookup(key);
+    return translation == null ? ITranslationService.notFound(key) : new String(translation, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Retrieves the value of a key as it is stored, encoded in UTF-8, copied out of off-heap memory.
+   *
+   * @param key the word to be translated
+   * @return the encoded translation, or null if the key is unknown
+   */
+  @Override
+  public byte[] getEncoded(CharSequence key) {
+    return this.lookup(FoldedKey.fold(key)); // keys are hashed as UTF-8 bytes, so the slice is copied once
+  }
+
+  /**
+   * Removes a key-value pair.
+   *
+   * @param key the word to be deleted
+   * @return the outcome of the operation
+   */
+  @Override
+  public String delete(String key) {
+    key = FoldedKey.fold(key);
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    long hash = hash(keyBytes);
+    if (this.segmentOf(hash).delete(keyBytes, hash)) {
+      return "SUCCESS";
+    } else {
+      return "FAIL: " + "\"" + key + "\" " + "does not exist";
+    }
+  }
+
+  /**
+   * Retrieves the values of several keys.
+   *
+   * @param keys the words to be translated
+   * @return the translations, in the order of the keys, with null for every unknown key
+   */
+  @Override
+  public List<String> getAll(List<String> keys) {
+    List<String> values = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      byte[] translation = this.lookup(FoldedKey.fold(key));
+      values.add(translation == null ? null : new String(translation, StandardCharsets.UTF_8));
+    }
+    return values;
+  }
+
+  /**
+   * Gets the number of key-value pairs.
+   *
+   * @return the number of key-value pairs
+   */
+  @Override
+  public int size() {
+    long size = 0;
+    for (Segment segment : this.segments) {
+      size += segment.size();
+    }
+    return (int) Math.min(Integer.MAX_VALUE, size);
+  }
+
+  /**
+   * Performs an action for every key-value pair. Each segment is read-locked while its entries are
+   * visited, so writes to that segment wait meanwhile.
+   *
+   * @param action the action
+   */
+  @Override
+  public void forEach(BiConsumer<String, String> action) {
+    for (Segment segment : this.segments) {
+      segment.forEach(action);
+    }
+  }
+
+  /**
+   * Rebuilds every segment's index without tombstones and copies its live entries into fresh arenas,
+   * releasing the space of overwritten and deleted entries.
+   */
+  public void compact() {
+    for (Segment segment : this.segments) {
+      segment.compact();
+    }
+  }
+
+  /**
+   * Gets the off-heap memory allocated for indexes and arenas.
+   *
+   * @return the allocated bytes
+   */
+  public long getAllocatedBytes() {
+    long bytes = 0;
+    for (Segment segment : this.segments) {
+      bytes += segment.allocatedBytes();
+    }
+    return bytes;
+  }
+
+  /**
+   * Gets the arena memory taken by live entries.
+   *
+   * @return the used bytes
+   */
+  public long getUsedBytes() {
+    long bytes = 0;
+    for (Segment segment : this.segments) {
+      bytes += segment.usedBytes();
+    }
+    return bytes;
+  }
+
+  /**
+   * Gets the arena memory taken by overwritten and deleted entries, until the next compaction.
+   *
+   * @return the garbage bytes
+   */
+  public long getGarbageBytes() {
+    long bytes = 0;
+    for (Segment segment : this.segments) {
+      bytes += segment.garbageBytes();
+    }
+    return bytes;
+  }
+
+  /**
+   * Describes the memory use of the store, e.g. for logging.
+   *
+   * @return the memory report
+   */
+  @Override
+  public String toString() {
+    return "OffHeapTranslationService[entries=" + this.size() + ", allocated=" + this.getAllocatedBytes()
+        + " B, used=" + this.getUsedBytes() + " B, garbage=" + this.getGarbageBytes() + " B]";
+  }
+
+  private byte[] lookup(String lowerCaseKey) {
+    byte[] keyBytes = lowerCaseKey.getBytes(StandardCharsets.UTF_8);
+    long hash = hash(keyBytes);
+    return this.segmentOf(hash).get(keyBytes, hash);
+  }
+
+  private Segment segmentOf(long hash) {
+    return this.segments[(int) (hash >>> 58) & (SEGMENTS - 1)];
+  }
+
+  /**
+   * Hashes UTF-8 key bytes with FNV-1a and a final avalanche, so that the segment, the tag and the
+   * index position each get well-mixed bits.
+   */
+  private static long hash(byte[] bytes) {
+    long hash = 0xCBF29CE484222325L;
+    for (byte b : bytes) {
+      hash = (hash ^ (b & 0xFF)) * 0x100000001B3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    hash *= 0xC4CEB9FE1A85EC53L;
+    return hash ^ (hash >>> 33);
+  }
+
+  private static long tagOf(long hash) {
+    return (hash >>> 34) & 0xFFFFFFL;
+  }
+
+  /**
+   * A lock-protected part of the store with its own index and arena.
+   */
+  private static final class Segment {
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private ByteBuffer index; // capacity slots of 8 bytes
+    private int capacity;
+    private int count;
+    private int tombstones;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private ByteBuffer chunk; // the chunk being appended to
+    private long chunkBytes;
+    private long usedBytes;
+    private long garbageBytes;
+
+    private Segment(int capacity) {
+      this.capacity = capacity;
+      this.index = ByteBuffer.allocateDirect(capacity * 8);
+    }
+
+    private long size() {
+      this.lock.readLock().lock();
+      try {
+        return this.count;
+      } finally {
+        this.lock.readLock().unlock();
+      }
+    }
+
+    private long allocatedBytes() {
+      this.lock.readLock().lock();
+      try {
+        return (long) this.capacity * 8 + this.chunkBytes;
+      } finally {
+        this.lock.readLock().unlock();
+      }
+    }
+
+    private long usedBytes() {
+      this.lock.readLock().lock();
+      try {
+        return this.usedBytes;
+      } finally {
+        this.lock.readLock().unlock();
+      }
+    }
+
+    private long garbageBytes() {
+      this.lock.readLock().lock();
+      try {
+        return this.garbageBytes;
+      } finally {
+        this.lock.readLock().unlock();
+      }
+    }
+
+    private byte[] get(byte[] key, long hash) {
+      this.lock.readLock().lock();
+      try {
+        int slot = this.find(key, hash);
+        if (slot < 0) {
+          return null;
+        }
+        long address = (this.index.getLong(slot * 8) & ADDRESS_MASK) - 1;
+        ByteBuffer chunk = this.chunks.get(chunkOf(address));
+        int offset = offsetOf(address);
+        byte[] value = new byte[chunk.getInt(offset + 4)];
+        chunk.get(offset + ENTRY_HEADER_LENGTH + chunk.getInt(offset), value);
+        return value;
+      } finally {
+        this.lock.readLock().unlock();
+      }
+    }
+
+    private void put(byte[] key, long hash, byte[] value) {
+      this.lock.writeLock().lock();
+      try {
+        int slot = this.find(key, hash);
+        boolean overwrite = slot >= 0;
+        if (!overwrite) {
+          if ((long) (this.count + this.tombstones + 1) * 10 > (long) this.capacity * 7) {
+            this.rehash(this.count + 1);
+          }
+          slot = this.freeSlot(hash);
+        }
+        long address = this.append(key, value); // may compact, which keeps every slot, or throw, which changes nothing
+        long entry = this.index.getLong(slot * 8);
+        if (overwrite) { // the old entry, wherever compaction moved it, becomes garbage
+          long entryLength = this.entryLength(entry);
+          this.usedBytes -= entryLength;
+          this.garbageBytes += entryLength;
+        } else {
+          if (entry == TOMBSTONE) {
+            this.tombstones--;
+          }
+          this.count++;
+        }
+        this.index.putLong(slot * 8, (tagOf(hash) << 40) | (address + 1));
+        this.compactIfWasteful();
+      } finally {
+        this.lock.writeLock().unlock();
+      }
+    }
+
+    private boolean delete(byte[] key, long hash) {
+      this.lock.writeLock().lock();
+      try {
+        int slot = this.find(key, hash);
+        if (slot < 0) {
+          return false;
+        }
+        long entryLength = this.entryLength(this.index.getLong(slot * 8));
+        this.usedBytes -= entryLength;
+        this.garbageBytes += entryLength;
+        this.index.putLong(slot * 8, TOMBSTONE);
+        this.count--;
+        this.tombstones++;
+        this.compactIfWasteful();
+        return true;
+      } finally {
+        this.lock.writeLock().unlock();
+      }
+    }
+
+    private void forEach(BiConsumer<String, String> action) {
+      this.lock.readLock().lock();
+      try {
+        for (int slot = 0; slot < this.capacity; slot++) {
+          long entry = this.index.getLong(slot * 8);
+          if (entry == EMPTY || entry == TOMBSTONE) {
+            continue;
+          }
+          long address = (entry & ADDRESS_MASK) - 1;
+          ByteBuffer chunk = this.chunks.get(chunkOf(address));
+          int offset = offsetOf(address);
+          byte[] key = new byte[chunk.getInt(offset)];
+          byte[] value = new byte[chunk.getInt(offset + 4)];
+          chunk.get(offset + ENTRY_HEADER_LENGTH, key);
+          chunk.get(offset + ENTRY_HEADER_LENGTH + key.length, value);
+          action.accept(new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8));
+        }
+      } finally {
+        this.lock.readLock().unlock();
+      }
+    }
+
+    private void compact() {
+      this.lock.writeLock().lock();
+      try {
+        this.rehash(this.count);
+        this.compactArena();
+      } finally {
+        this.lock.writeLock().unlock();
+      }
+    }
+
+    /**
+     * Finds the slot of a key by linear probing.
+     *
+     * @return the slot, or -1 if the key is absent
+     */
+    private int find(byte[] key, long hash) {
+      int mask = this.capacity - 1;
+      long tag = tagOf(hash);
+      for (int slot = (int) hash & mask, probes = 0; probes < this.capacity; slot = (slot + 1) & mask, probes++) {
+        long entry = this.index.getLong(slot * 8);
+        if (entry == EMPTY) {
+          return -1;
+        }
+        if (entry != TOMBSTONE && (entry >>> 40) == tag && this.keyEquals(entry, key)) {
+          return slot;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Finds the first empty or tombstoned slot of a key that is known to be absent.
+     */
+    private int freeSlot(long hash) {
+      int mask = this.capacity - 1;
+      int slot = (int) hash & mask;
+      while (true) {
+        long entry = this.index.getLong(slot * 8);
+        if (entry == EMPTY || entry == TOMBSTONE) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    private boolean keyEquals(long entry, byte[] key) {
+      long address = (entry & ADDRESS_MASK) - 1;
+      ByteBuffer chunk = this.chunks.get(chunkOf(address));
+      int offset = offsetOf(address);
+      if (chunk.getInt(offset) != key.length) {
+        return false;
+      }
+      offset += ENTRY_HEADER_LENGTH;
+      for (int i = 0; i < key.length; i++) {
+        if (chunk.get(offset + i) != key[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private long entryLength(long entry) {
+      long address = (entry & ADDRESS_MASK) - 1;
+      ByteBuffer chunk = this.chunks.get(chunkOf(address));
+      int offset = offsetOf(address);
+      return ENTRY_HEADER_LENGTH + chunk.getInt(offset) + chunk.getInt(offset + 4);
+    }
+
+    /**
+     * Appends an entry to the arena, starting a larger chunk when the current one is full.
+     *
+     * @return the address of the entry
+     */
+    private long append(byte[] key, byte[] value) {
+      int length = ENTRY_HEADER_LENGTH + key.length + value.length;
+      if (this.chunk == null || this.chunk.remaining() < length) {
+        if (this.chunks.size() == MAX_CHUNKS && this.garbageBytes > 0) { // reclaim garbage before giving up
+          this.compactArena();
+        }
+        if (this.chunk == null || this.chunk.remaining() < length) {
+          if (this.chunks.size() == MAX_CHUNKS) {
+            throw new IllegalStateException("The off-heap store is full");
+          }
+          int size = this.chunk == null ? MIN_CHUNK_SIZE : (int) Math.min(MAX_CHUNK_SIZE, this.chunk.capacity() * 2L);
+          this.chunk = ByteBuffer.allocateDirect(Math.max(size, length));
+          this.chunks.add(this.chunk);
+          this.chunkBytes += this.chunk.capacity();
+        }
+      }
+      int offset = this.chunk.position();
+      this.chunk.putInt(key.length).putInt(value.length).put(key).put(value);
+      this.usedBytes += length;
+      return ((long) (this.chunks.size() - 1) << 31) | offset;
+    }
+
+    private void compactIfWasteful() {
+      if (this.garbageBytes > MIN_GARBAGE_TO_COMPACT && this.garbageBytes > this.usedBytes) {
+        this.compactArena();
+      }
+    }
+
+    /**
+     * Rebuilds the index for a number of entries, dropping every tombstone.
+     */
+    private void rehash(int entries) {
+      int capacity = MIN_INDEX_CAPACITY;
+      while ((long) entries * 10 > (long) capacity * 5 && capacity < MAX_INDEX_CAPACITY) { // half full at most after a rebuild
+        capacity <<= 1;
+      }
+      ByteBuffer oldIndex = this.index;
+      int oldCapacity = this.capacity;
+      this.index = ByteBuffer.allocateDirect(capacity * 8);
+      this.capacity = capacity;
+      this.tombstones = 0;
+      for (int slot = 0; slot < oldCapacity; slot++) {
+        long entry = oldIndex.getLong(slot * 8);
+        if (entry == EMPTY || entry == TOMBSTONE) {
+          continue;
+        }
+        this.index.putLong(this.freeSlot(this.rehashOf(entry)) * 8, entry);
+      }
+    }
+
+    /**
+     * Recomputes the hash of an entry from its key bytes.
+     */
+    private long rehashOf(long entry) {
+      long address = (entry & ADDRESS_MASK) - 1;
+      ByteBuffer chunk = this.chunks.get(chunkOf(address));
+      int offset = offsetOf(address);
+      byte[] key = new byte[chunk.getInt(offset)];
+      chunk.get(offset + ENTRY_HEADER_LENGTH, key);
+      return hash(key);
+    }
+
+    /**
+     * Copies the live entries into fresh chunks, so the old chunks and their garbage can be freed.
+     */
+    private void compactArena() {
+      List<ByteBuffer> oldChunks = new ArrayList<>(this.chunks);
+      this.chunks.clear();
+      this.chunk = null;
+      this.chunkBytes = 0;
+      this.usedBytes = 0;
+      this.garbageBytes = 0;
+      for (int slot = 0; slot < this.capacity; slot++) {
+        long entry = this.index.getLong(slot * 8);
+        if (entry == EMPTY || entry == TOMBSTONE) {
+          continue;
+        }
+        long address = (entry & ADDRESS_MASK) - 1;
+        ByteBuffer chunk = oldChunks.get(chunkOf(address));
+        int offset = offsetOf(address);
+        byte[] key = new byte[chunk.getInt(offset)];
+        byte[] value = new byte[chunk.getInt(offset + 4)];
+        chunk.get(offset + ENTRY_HEADER_LENGTH, key);
+        chunk.get(offset + ENTRY_HEADER_LENGTH + key.length, value);
+        this.index.putLong(slot * 8, (entry & ~ADDRESS_MASK) | (this.append(key, value) + 1));
+      }
+    }
+
+    private static int chunkOf(long address) {
+      return (int) (address >>> 31);
+    }
+
+    private static int offsetOf(long address) {
+      return (int) (address & 0x7FFFFFFFL);
+    }
+  }
+}
@@ -0,0 +1,345 @@
+package servers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import utils.ILogger;
+
+/**
+ * This class represents the translation service of a replica: it serves reads, refuses writes, and
+ * follows a primary on a thread of its own. The first time it connects, and whenever it cannot resume
+ * from the backlog of the primary, it replaces its contents with a snapshot of the primary; it then
+ * applies the mutations the primary streams, in order, and acknowledges them on every heartbeat. If
+ * the connection drops, it reconnects every second, resuming where it left off when it can. Reads may
+ * see a partly loaded snapshot while it starts over.
+ */
+public class ReplicaTranslationService extends AbstractTranslationServiceDecorator implements IReplicationMetrics {
+  private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+  private static final int SYNC_TIMEOUT_MILLIS = 60_000; // the primary writes a snapshot before answering
+  private static final int STREAM_TIMEOUT_MILLIS = 3000; // the primary sends a heartbeat every 100 ms
+  private static final long RETRY_MILLIS = 1000;
+  private final InetSocketAddress primary;
+  private final ILogger logger;
+  private final Thread follower;
+  private volatile Socket socket;
+  private volatile boolean closed;
+  private volatile boolean connected;
+  private long epoch;
+  private volatile long appliedSequence;
+  private volatile long primarySequence;
+  private volatile long lagMillis;
+
+  /**
+   * Instantiates a new replica translation service and starts following the primary.
+   *
+   * @param delegate the decorated translation service, which the mutations of the primary are applied to
+   * @param primary  the replication port of the primary
+   * @param logger   the server's logger, which replication failures are logged to
+   */
+  public ReplicaTranslationService(ITranslationService delegate, InetSocketAddress primary, ILogger logger) {
+    super(delegate);
+    this.primary = primary;
+    this.logger = logger;
+    this.follower = new Thread(this::follow, "Replication-follower");
+    this.follower.setDaemon(true);
+    this.follower.start();
+  }
+
+  /**
+   * Refuses to save a key-value pair.
+   *
+   * @param key   the word to be translated
+   * @param value the translation
+   * @return the failure
+   */
+  @Override
+  public String put(String key, String value) {
+    return this.readOnly();
+  }
+
+  /**
+   * Refuses to save a key-value pair that expires.
+   *
+   * @param key       the word to be translated
+   * @param value     the translation
+   * @param ttlMillis the time to live in milliseconds
+   * @return the failure
+   */
+  @Override
+  public String put(String key, String value, long ttlMillis) {
+    return this.readOnly();
+  }
+
+  /**
+   * Refuses to remove a key-value pair.
+   *
+   * @param key the word to be deleted
+   * @return the failure
+   */
+  @Override
+  public String delete(String key) {
+    return this.readOnly();
+  }
+
+  /**
+   * Refuses to save a key-value pair given as views over a request buffer.
+   *
+   * @param key   the word to be translated
+   * @param value the translation
+   * @return the failure
+   */
+  @Override
+  public String put(CharSequence key, CharSequence value) {
+    return this.readOnly();
+  }
+
+  /**
+   * Refuses to remove a key-value pair whose key is given as a view over a request buffer.
+   *
+   * @param key the word to be deleted
+   * @return the failure
+   */
+  @Override
+  public String delete(CharSequence key) {
+    return this.readOnly();
+  }
+
+  /**
+   * Refuses to save several key-value pairs.
+   *
+   * @param keys   the words to be translated
+   * @param values the translations, in the order of the keys
+   * @return the failure
+   */
+  @Override
+  public String putAll(List<String> keys, List<String> values) {
+    return this.readOnly();
+  }
+
+  /**
+   * Refuses to remove several key-value pairs.
+   *
+   * @param keys the words to be deleted
+   * @return the failure
+   */
+  @Override
+  public String deleteAll(List<String> keys) {
+    return this.readOnly();
+  }
+
+  /**
+   * Gets the role of the server.
+   *
+   * @return "replica"
+   */
+  @Override
+  public String getRole() {
+    return "replica";
+  }
+
+  /**
+   * Gets the sequence of the latest mutation applied.
+   *
+   * @return the sequence
+   */
+  @Override
+  public long getSequence() {
+    return this.appliedSequence;
+  }
+
+  /**
+   * Gets the number of replicas streaming from this server.
+   *
+   * @return 0
+   */
+  @Override
+  public int getReplicas() {
+    return 0;
+  }
+
+  /**
+   * Gets the number of mutations the primary had logged, as of its latest heartbeat, that are not
+   * applied yet.
+   *
+   * @return the number of mutations
+   */
+  @Override
+  public long getLagRecords() {
+    return Math.max(0, this.primarySequence - this.appliedSequence);
+  }
+
+  /**
+   * Gets how long ago the primary applied the latest mutation applied here, or 0 once a heartbeat
+   * showed nothing is left to apply. The primary and the replica are expected to share a clock, or
+   * at least to keep theirs in sync.
+   *
+   * @return the lag in milliseconds, or -1 while not connected to the primary
+   */
+  @Override
+  public long getLagMillis() {
+    return this.connected ? this.lagMillis : -1;
+  }
+
+  /**
+   * Describes the replication on one line of name=value pairs, appended to the reply to a STATS
+   * request.
+   *
+   * @return the description
+   */
+  @Override
+  public String toString() {
+    return String.format("role=replica primary=%s:%d sequence=%d lag_records=%d lag_ms=%d", this.primary.getHostString(),
+        this.primary.getPort(), this.getSequence(), this.getLagRecords(), this.getLagMillis());
+  }
+
+  /**
+   * Stops following the primary and closes the decorated translation service.
+   */
+  @Override
+  public void close() {
+    this.closed = true;
+    this.follower.interrupt();
+    try {
+      Socket socket = this.socket;
+      if (socket != null) {
+        socket.close();
+      }
+    } catch (IOException e) { // nothing left to do with it
+    }
+    super.close();
+  }
+
+  private String readOnly() {
+    return "FAIL: this server is a read-only replica of " + this.primary.getHostString() + ":" + this.primary.getPort();
+  }
+
+  /**
+   * Follows the primary until the translation service is closed, reconnecting whenever the connection
+   * drops.
+   */
+  private void follow() {
+    while (!this.closed) {
+      try (Socket socket = new Socket()) {
+        this.socket = socket;
+        socket.connect(this.primary, CONNECT_TIMEOUT_MILLIS);
+        socket.setTcpNoDelay(true);
+        this.sync(socket);
+      } catch (EOFException e) {
+        if (!this.closed) {
+          this.logger.log("Replication from " + this.primary + ": the primary closed the connection");
+        }
+      } catch (IOException e) {
+        if (!this.closed) {
+          this.logger.log("Replication from " + this.primary + ": " + e.getMessage());
+        }
+      } finally {
+        this.connected = false;
+      }
+      try {
+        Thread.sleep(RETRY_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Catches up with the primary, from a snapshot if it asks for it, and applies what it streams.
+   */
+  private void sync(Socket socket) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    out.writeLong(this.epoch);
+    out.writeLong(this.appliedSequence);
+    out.flush();
+    socket.setSoTimeout(SYNC_TIMEOUT_MILLIS);
+    byte frame = in.readByte();
+    long epoch = in.readLong();
+    if (frame == ReplicationLog.FULL_SYNC) {
+      long sequence = in.readLong();
+      this.load(in, in.readLong());
+      this.appliedSequence = sequence;
+      this.primarySequence = sequence; // it may be a new primary, whose sequence started over
+    } else if (frame != ReplicationLog.CONTINUE) {
+      throw new IOException("unexpected replication frame " + frame);
+    }
+    this.epoch = epoch;
+    this.connected = true;
+    socket.setSoTimeout(STREAM_TIMEOUT_MILLIS);
+    while (!this.closed) {
+      frame = in.readByte();
+      if (frame == ReplicationLog.HEARTBEAT) {
+        long sequence = in.readLong();
+        in.readLong(); // the time of the primary
+        this.primarySequence = Math.max(this.primarySequence, sequence);
+        if (this.appliedSequence >= sequence) {
+          this.lagMillis = 0;
+        }
+        out.writeLong(this.appliedSequence);
+        out.flush();
+      } else if (frame == WriteAheadLog.PUT || frame == WriteAheadLog.PUT_EXPIRING || frame == WriteAheadLog.DELETE) {
+        this.apply(ReplicationLog.Entry.readFrom(frame, in));
+      } else {
+        throw new IOException("unexpected replication frame " + frame);
+      }
+    }
+  }
+
+  /**
+   * Replaces the contents of the decorated translation service with the snapshot that follows in the
+   * stream, staged in a temporary file so that it can be loaded in parallel. Expiring pairs are
+   * cleared too, and restored with the deadlines the snapshot carries.
+   */
+  private void load(DataInputStream in, long length) throws IOException {
+    Path snapshot = Files.createTempFile("replica", ".snapshot");
+    try {
+      try (OutputStream file = new BufferedOutputStream(Files.newOutputStream(snapshot))) {
+        byte[] buffer = new byte[64 * 1024];
+        long remaining = length;
+        while (remaining > 0) {
+          int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+          if (read < 0) {
+            throw new IOException("the primary closed the connection during the snapshot");
+          }
+          file.write(buffer, 0, read);
+          remaining -= read;
+        }
+      }
+      List<String> keys = new ArrayList<>(this.delegate.size());
+      this.delegate.forEachWithDeadline((key, value, deadlineMillis) -> keys.add(key)); // expiring pairs too
+      for (String key : keys) {
+        this.delegate.delete(key);
+      }
+      SnapshotFile.load(snapshot, this.delegate);
+    } finally {
+      Files.deleteIfExists(snapshot);
+    }
+  }
+
+  /**
+   * Applies a mutation of the primary. A pair that expired on its way is deleted rather than saved.
+   */
+  private void apply(ReplicationLog.Entry entry) {
+    if (entry.operation == WriteAheadLog.PUT) {
+      this.delegate.put(entry.key, entry.value);
+    } else if (entry.operation == WriteAheadLog.PUT_EXPIRING && entry.deadlineMillis > System.currentTimeMillis()) {
+      this.delegate.put(entry.key, entry.value, entry.deadlineMillis - System.currentTimeMillis());
+    } else {
+      this.delegate.delete(entry.key);
+    }
+    this.appliedSequence = entry.sequence;
+    this.primarySequence = Math.max(this.primarySequence, entry.sequence);
+    this.lagMillis = Math.max(0, System.currentTimeMillis() - entry.timeMillis);
+  }
+}
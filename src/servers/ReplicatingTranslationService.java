@@ -0,0 +1,400 @@
+package servers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+import utils.ILogger;
+
+/**
+ * This class represents the translation service of a primary: every PUT and DELETE that succeeds is
+ * numbered in a {@link ReplicationLog}, and every replica that connects to the replication port is
+ * sent a snapshot and then streamed the log from there, on a thread of its own. Replication is
+ * asynchronous: a write is acknowledged once the primary applied it, whatever the replicas.
+ *
+ * <p>A mutation is applied and logged under the lock of its stripe, so the mutations of a key are
+ * logged in the order they were applied. The stripes are {@link ReentrantLock}s, because applying a
+ * mutation may block, for instance on the invalidations the tracking translation service sends, and a
+ * virtual thread blocked under a monitor would pin its carrier thread. The snapshot is written after
+ * reading the sequence it starts from, so it may already hold some of the mutations streamed after
+ * it; applying them again is harmless, as it is when a write-ahead log is replayed over a snapshot.
+ * Pairs that expire are streamed as they are written, and the snapshot a replica starts from carries
+ * their deadlines.
+ */
+public class ReplicatingTranslationService extends AbstractTranslationServiceDecorator implements IReplicationMetrics {
+  private static final int BATCH_SIZE = 1024;
+  private static final long HEARTBEAT_MILLIS = 100;
+  private final ReplicationLog log;
+  private final ILogger logger;
+  private final long epoch = ThreadLocalRandom.current().nextLong() | 1; // a replica that never synced sends 0
+  private final ReentrantLock[] stripes = new ReentrantLock[Stripes.COUNT];
+  private final Set<Feed> feeds = ConcurrentHashMap.newKeySet();
+  private ServerSocket serverSocket;
+  private volatile boolean closed;
+
+  /**
+   * Instantiates a new replicating translation service.
+   *
+   * @param delegate the decorated translation service
+   * @param log      the backlog of mutations streamed to the replicas
+   * @param logger   the server's logger, which replication failures are logged to
+   */
+  public ReplicatingTranslationService(ITranslationService delegate, ReplicationLog log, ILogger logger) {
+    super(delegate);
+    this.log = log;
+    this.logger = logger;
+    for (int i = 0; i < this.stripes.length; i++) {
+      this.stripes[i] = new ReentrantLock();
+    }
+  }
+
+  /**
+   * Starts accepting replicas on a port, in the background.
+   *
+   * @param port the replication port
+   * @throws IOException if the port could not be bound
+   */
+  public void listen(int port) throws IOException {
+    this.serverSocket = new ServerSocket(port);
+    Thread acceptor = new Thread(this::accept, "Replication-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * Saves a key-value pair and logs it for the replicas.
+   *
+   * @param key   the word to be translated
+   * @param value the translation
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(String key, String value) {
+    return this.mutate(WriteAheadLog.PUT, key, value, 0);
+  }
+
+  /**
+   * Saves a key-value pair that expires after a while and logs it, with its deadline, for the
+   * replicas.
+   *
+   * @param key       the word to be translated
+   * @param value     the translation
+   * @param ttlMillis the time to live in milliseconds
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(String key, String value, long ttlMillis) {
+    return this.mutate(WriteAheadLog.PUT_EXPIRING, key, value, ttlMillis);
+  }
+
+  /**
+   * Removes a key-value pair and logs it for the replicas.
+   *
+   * @param key the word to be deleted
+   * @return the outcome of the operation
+   */
+  @Override
+  public String delete(String key) {
+    return this.mutate(WriteAheadLog.DELETE, key, null, 0);
+  }
+
+  /**
+   * Saves a key-value pair given as views over a request buffer and logs it for the replicas.
+   *
+   * @param key   the word to be translated
+   * @param value the translation
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(CharSequence key, CharSequence value) {
+    return this.put(key.toString(), value.toString());
+  }
+
+  /**
+   * Removes a key-value pair whose key is given as a view over a request buffer and logs it for the
+   * replicas.
+   *
+   * @param key the word to be deleted
+   * @return the outcome of the operation
+   */
+  @Override
+  public String delete(CharSequence key) {
+    return this.delete(key.toString());
+  }
+
+  /**
+   * Saves several key-value pairs and logs them for the replicas.
+   *
+   * @param keys   the words to be translated
+   * @param values the translations, in the order of the keys
+   * @return the outcome of the operation
+   */
+  @Override
+  public String putAll(List<String> keys, List<String> values) {
+    for (int i = 0; i < keys.size(); i++) {
+      String result = this.put(keys.get(i), values.get(i));
+      if (result.startsWith("FAIL:")) {
+        return result;
+      }
+    }
+    return "SUCCESS";
+  }
+
+  /**
+   * Removes several key-value pairs and logs them for the replicas.
+   *
+   * @param keys the words to be deleted
+   * @return the outcome of the operation, which names the keys that did not exist
+   */
+  @Override
+  public String deleteAll(List<String> keys) {
+    List<String> missing = new ArrayList<>();
+    for (String key : keys) {
+      if (this.delete(key).startsWith("FAIL:")) {
+        missing.add(FoldedKey.fold(key));
+      }
+    }
+    return ITranslationService.deleteAllOutcome(missing);
+  }
+
+  /**
+   * Gets the role of the server.
+   *
+   * @return "primary"
+   */
+  @Override
+  public String getRole() {
+    return "primary";
+  }
+
+  /**
+   * Gets the sequence of the latest mutation logged.
+   *
+   * @return the sequence
+   */
+  @Override
+  public long getSequence() {
+    return this.log.getSequence();
+  }
+
+  /**
+   * Gets the number of replicas streaming from the primary.
+   *
+   * @return the number of replicas
+   */
+  @Override
+  public int getReplicas() {
+    return this.feeds.size();
+  }
+
+  /**
+   * Gets the number of mutations the furthest behind replica has yet to apply, as of its latest
+   * acknowledgement.
+   *
+   * @return the number of mutations, or 0 without replicas
+   */
+  @Override
+  public long getLagRecords() {
+    long sequence = this.log.getSequence();
+    long lag = 0;
+    for (Feed feed : this.feeds) {
+      lag = Math.max(lag, sequence - feed.acknowledged);
+    }
+    return lag;
+  }
+
+  /**
+   * Gets how long ago the primary applied the oldest mutation a replica has yet to apply, as of its
+   * latest acknowledgement.
+   *
+   * @return the lag in milliseconds, or 0 without replicas
+   */
+  @Override
+  public long getLagMillis() {
+    long sequence = this.log.getSequence();
+    long now = System.currentTimeMillis();
+    long lag = 0;
+    for (Feed feed : this.feeds) {
+      if (feed.acknowledged < sequence) {
+        long appliedAt = this.log.timeOf(feed.acknowledged + 1);
+        lag = Math.max(lag, appliedAt == 0 ? now - feed.connectedAt : now - appliedAt); // beyond the backlog: since it connected
+      }
+    }
+    return lag;
+  }
+
+  /**
+   * Describes the replication on one line of name=value pairs, appended to the reply to a STATS
+   * request.
+   *
+   * @return the description
+   */
+  @Override
+  public String toString() {
+    return String.format("role=primary sequence=%d replicas=%d lag_records=%d lag_ms=%d", this.getSequence(), this.getReplicas(),
+        this.getLagRecords(), this.getLagMillis());
+  }
+
+  /**
+   * Disconnects the replicas and closes the decorated translation service.
+   */
+  @Override
+  public void close() {
+    this.closed = true;
+    try {
+      if (this.serverSocket != null) {
+        this.serverSocket.close();
+      }
+      for (Feed feed : this.feeds) {
+        feed.socket.close();
+      }
+    } catch (IOException e) { // nothing left to do with them
+    }
+    super.close();
+  }
+
+  /**
+   * Applies a mutation and logs it if it succeeded, under the lock of its stripe.
+   */
+  private String mutate(byte operation, String key, String value, long ttlMillis) {
+    ReentrantLock stripe = this.stripes[Stripes.of(key)];
+    stripe.lock();
+    try {
+      String result;
+      if (operation == WriteAheadLog.PUT) {
+        result = this.delegate.put(key, value);
+      } else if (operation == WriteAheadLog.PUT_EXPIRING) {
+        result = this.delegate.put(key, value, ttlMillis);
+      } else {
+        result = this.delegate.delete(key);
+      }
+      if (!result.startsWith("FAIL:")) { // nothing changed otherwise
+        this.log.append(operation, key, value, System.currentTimeMillis() + ttlMillis);
+      }
+      return result;
+    } finally {
+      stripe.unlock();
+    }
+  }
+
+  /**
+   * Accepts replicas until the translation service is closed, streaming to each on a thread of its own.
+   */
+  private void accept() {
+    while (!this.closed) {
+      try {
+        Socket socket = this.serverSocket.accept();
+        Thread thread = new Thread(() -> this.feed(socket), "Replication-" + socket.getRemoteSocketAddress());
+        thread.setDaemon(true);
+        thread.start();
+      } catch (IOException e) {
+        if (!this.closed) {
+          this.logger.log("Replication: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Brings a replica up to date, from a snapshot unless it can resume from the backlog, and streams
+   * the log to it until it disconnects or falls behind the backlog.
+   */
+  private void feed(Socket socket) {
+    Feed feed = new Feed(socket);
+    try (socket) {
+      socket.setTcpNoDelay(true);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+      long replicaEpoch = in.readLong();
+      long applied = in.readLong();
+      if (replicaEpoch == this.epoch && this.log.contains(applied + 1)) {
+        out.writeByte(ReplicationLog.CONTINUE);
+        out.writeLong(this.epoch);
+      } else {
+        Path snapshot = Files.createTempFile("replication", ".snapshot");
+        try {
+          applied = this.log.getSequence(); // every mutation up to it is already applied
+          SnapshotFile.write(this.delegate, snapshot);
+          out.writeByte(ReplicationLog.FULL_SYNC);
+          out.writeLong(this.epoch);
+          out.writeLong(applied);
+          out.writeLong(Files.size(snapshot));
+          Files.copy(snapshot, out);
+        } finally {
+          Files.deleteIfExists(snapshot);
+        }
+      }
+      feed.acknowledged = applied;
+      this.feeds.add(feed);
+      this.stream(feed, applied + 1, in, out);
+    } catch (EOFException e) {
+      if (!this.closed) {
+        this.logger.log("Replication to " + socket.getRemoteSocketAddress() + ": the replica closed the connection");
+      }
+    } catch (IOException e) {
+      if (!this.closed) {
+        this.logger.log("Replication to " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      this.feeds.remove(feed);
+    }
+  }
+
+  /**
+   * Streams the log to a replica in batches, with a heartbeat whenever it has been quiet for a while,
+   * and reads the acknowledgements the replica sent meanwhile.
+   */
+  private void stream(Feed feed, long next, DataInputStream in, DataOutputStream out) throws IOException, InterruptedException {
+    List<ReplicationLog.Entry> batch = new ArrayList<>(BATCH_SIZE);
+    long lastHeartbeat = 0;
+    while (!this.closed) {
+      batch.clear();
+      if (this.log.read(next, batch, BATCH_SIZE, HEARTBEAT_MILLIS) < 0) {
+        throw new IOException("the replica fell behind the backlog; it will start over from a snapshot");
+      }
+      for (ReplicationLog.Entry entry : batch) {
+        entry.writeTo(out);
+        next = entry.sequence + 1;
+      }
+      long now = System.currentTimeMillis();
+      if (batch.isEmpty() || now - lastHeartbeat >= HEARTBEAT_MILLIS) {
+        out.writeByte(ReplicationLog.HEARTBEAT);
+        out.writeLong(this.log.getSequence());
+        out.writeLong(now);
+        lastHeartbeat = now;
+      }
+      out.flush();
+      while (in.available() >= 8) {
+        feed.acknowledged = in.readLong();
+      }
+    }
+  }
+
+  /**
+   * A replica streaming from the primary.
+   */
+  private static final class Feed {
+    private final Socket socket;
+    private final long connectedAt = System.currentTimeMillis();
+    private volatile long acknowledged;
+
+    private Feed(Socket socket) {
+      this.socket = socket;
+    }
+  }
+}
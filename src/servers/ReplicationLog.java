@@ -0,0 +1,243 @@
+package servers;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class represents the backlog of mutations a primary streams to its replicas: a bounded ring of
+ * the latest PUT and DELETE operations, numbered from 1 in the order they were applied. A replica
+ * that falls further behind than the backlog reaches has to start over from a snapshot.
+ *
+ * <p>On the wire, the primary answers the {@code epoch(8) appliedSequence(8)} a replica connects with
+ * by {@code FULL_SYNC epoch(8) sequence(8) snapshotLength(8) snapshot}, a snapshot of everything up to
+ * that sequence, or by {@code CONTINUE epoch(8)} when the replica can resume where it left off, and
+ * then streams every entry as {@code operation(1) sequence(8) timeMillis(8) keyLength(4) key
+ * valueLength(4) value}, followed by {@code deadline(8)} for a PUT that expires, with a {@code
+ * HEARTBEAT sequence(8) timeMillis(8)} whenever it has been quiet for a while. The replica sends back
+ * the sequence it applied, as {@code appliedSequence(8)}, on every heartbeat.
+ */
+public class ReplicationLog {
+  /**
+   * The frame that carries a snapshot.
+   */
+  public static final byte FULL_SYNC = 10;
+  /**
+   * The frame that lets a replica resume from its applied sequence.
+   */
+  public static final byte CONTINUE = 11;
+  /**
+   * The frame that carries the sequence of the primary while no entry is streamed.
+   */
+  public static final byte HEARTBEAT = 12;
+  private final Entry[] entries;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition appended = this.lock.newCondition();
+  private long sequence;
+
+  /**
+   * Instantiates a new, empty replication log.
+   *
+   * @param capacity the number of entries kept
+   */
+  public ReplicationLog(int capacity) {
+    this.entries = new Entry[Math.max(1, capacity)];
+  }
+
+  /**
+   * Appends a mutation. Callers serialize the mutations of a key, so that they are numbered in the
+   * order they were applied.
+   *
+   * @param operation      PUT, PUT_EXPIRING or DELETE, as in {@link WriteAheadLog}
+   * @param key            the key
+   * @param value          the value, or null for a DELETE
+   * @param deadlineMillis the deadline of a PUT_EXPIRING, in milliseconds since the epoch
+   * @return the sequence of the entry
+   */
+  public long append(byte operation, String key, String value, long deadlineMillis) {
+    this.lock.lock();
+    try {
+      long sequence = ++this.sequence;
+      this.entries[(int) (sequence % this.entries.length)] = new Entry(operation, sequence, System.currentTimeMillis(), key, value,
+          deadlineMillis);
+      this.appended.signalAll();
+      return sequence;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Gets the sequence of the latest entry.
+   *
+   * @return the sequence, or 0 if nothing was appended
+   */
+  public long getSequence() {
+    this.lock.lock();
+    try {
+      return this.sequence;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Gets the time an entry was appended at.
+   *
+   * @param sequence the sequence of the entry
+   * @return the time in milliseconds since the epoch, or 0 if the entry is not in the backlog
+   */
+  public long timeOf(long sequence) {
+    this.lock.lock();
+    try {
+      return this.contains(sequence) && sequence <= this.sequence ? this.entries[(int) (sequence % this.entries.length)].timeMillis : 0;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Tells whether a replica can resume streaming from an entry: it is still in the backlog, or it is
+   * the next one.
+   *
+   * @param sequence the sequence of the entry
+   * @return true if the entry can be read
+   */
+  public boolean contains(long sequence) {
+    this.lock.lock();
+    try {
+      return sequence > this.sequence - this.entries.length && sequence > 0 && sequence <= this.sequence + 1;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Reads the entries that follow a sequence, waiting a while for one to be appended if there are none
+   * yet.
+   *
+   * @param from          the sequence of the first entry to read
+   * @param into          the list the entries are added to
+   * @param max           the number of entries read at most
+   * @param timeoutMillis how long to wait for an entry
+   * @return the number of entries read, or -1 if the first one already left the backlog
+   * @throws InterruptedException if the thread was interrupted while waiting
+   */
+  public int read(long from, List<Entry> into, int max, long timeoutMillis) throws InterruptedException {
+    this.lock.lock();
+    try {
+      long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      while (from > this.sequence && nanos > 0) {
+        nanos = this.appended.awaitNanos(nanos);
+      }
+      if (!this.contains(from)) {
+        return -1;
+      }
+      int count = (int) Math.min(max, this.sequence - from + 1);
+      for (int i = 0; i < count; i++) {
+        into.add(this.entries[(int) ((from + i) % this.entries.length)]);
+      }
+      return count;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * A mutation in the backlog.
+   */
+  public static final class Entry {
+    /**
+     * PUT, PUT_EXPIRING or DELETE, as in {@link WriteAheadLog}.
+     */
+    public final byte operation;
+    /**
+     * The position of the mutation among every mutation of the primary.
+     */
+    public final long sequence;
+    /**
+     * The time the primary applied the mutation at, in milliseconds since the epoch.
+     */
+    public final long timeMillis;
+    /**
+     * The key.
+     */
+    public final String key;
+    /**
+     * The value, or null for a DELETE.
+     */
+    public final String value;
+    /**
+     * The deadline of a PUT_EXPIRING, in milliseconds since the epoch.
+     */
+    public final long deadlineMillis;
+
+    private Entry(byte operation, long sequence, long timeMillis, String key, String value, long deadlineMillis) {
+      this.operation = operation;
+      this.sequence = sequence;
+      this.timeMillis = timeMillis;
+      this.key = key;
+      this.value = value;
+      this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Writes the entry to a replication stream.
+     *
+     * @param out the stream
+     * @throws IOException if the entry could not be written
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+      out.writeByte(this.operation);
+      out.writeLong(this.sequence);
+      out.writeLong(this.timeMillis);
+      writeString(out, this.key);
+      writeString(out, this.value);
+      if (this.operation == WriteAheadLog.PUT_EXPIRING) {
+        out.writeLong(this.deadlineMillis);
+      }
+    }
+
+    /**
+     * Reads an entry from a replication stream, once its operation was read.
+     *
+     * @param operation the operation
+     * @param in        the stream
+     * @return the entry
+     * @throws IOException if the entry could not be read
+     */
+    public static Entry readFrom(byte operation, DataInputStream in) throws IOException {
+      long sequence = in.readLong();
+      long timeMillis = in.readLong();
+      String key = readString(in);
+      String value = readString(in);
+      long deadlineMillis = operation == WriteAheadLog.PUT_EXPIRING ? in.readLong() : 0;
+      return new Entry(operation, sequence, timeMillis, key, value, deadlineMillis);
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+      if (string == null) {
+        out.writeInt(-1);
+        return;
+      }
+      byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+      int length = in.readInt();
+      if (length < 0) {
+        return null;
+      }
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+  }
+}
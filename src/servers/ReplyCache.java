@@ -0,0 +1,174 @@
+package servers;
+
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class represents the replies a UDP server sent lately, by client address and request id, so
+ * that a request the client sent again, because the request or its reply was lost, is answered with
+ * the reply it already got instead of being applied twice. A request that is still being executed
+ * when it arrives again is claimed, and its copies are dropped: the client sends it again later. A
+ * claim that was neither completed nor released within a timeout is given up, so that a request the
+ * server lost track of can be claimed again.
+ *
+ * <p>The cache is split into stripes by client address, each holding the most recent replies up to
+ * its share of the entries and bytes the cache is given, so workers answering different clients
+ * rarely contend.
+ */
+public class ReplyCache {
+  private static final byte[] PENDING = new byte[0]; // what claim returns for a request being executed
+  private final Stripe[] stripes = new Stripe[Stripes.COUNT];
+  private final int maxEntriesPerStripe;
+  private final long maxBytesPerStripe;
+  private final long claimTimeoutNanos;
+
+  /**
+   * Instantiates a new reply cache.
+   *
+   * @param maxEntries         the number of replies kept at most
+   * @param maxBytes           the number of reply bytes kept at most
+   * @param claimTimeoutMillis how long a request may be executed before its claim is given up
+   */
+  public ReplyCache(int maxEntries, long maxBytes, long claimTimeoutMillis) {
+    this.maxEntriesPerStripe = Math.max(1, maxEntries / this.stripes.length);
+    this.maxBytesPerStripe = Math.max(1, maxBytes / this.stripes.length);
+    this.claimTimeoutNanos = claimTimeoutMillis * 1_000_000;
+    for (int i = 0; i < this.stripes.length; i++) {
+      this.stripes[i] = new Stripe();
+    }
+  }
+
+  /**
+   * Claims a request for execution, unless it was already claimed and the claim has not timed out.
+   *
+   * @param client    the client's address
+   * @param requestId the id the client gave the request
+   * @return null if the request is new and now claimed, an empty array if it is being executed, or
+   *     the reply it was sent
+   */
+  public byte[] claim(InetSocketAddress client, int requestId) {
+    Key key = new Key(client, requestId);
+    Stripe stripe = this.stripeOf(client);
+    long now = System.nanoTime();
+    synchronized (stripe) {
+      Entry entry = stripe.replies.get(key);
+      if (entry == null) {
+        stripe.replies.put(key, new Entry(now));
+        this.evict(stripe, now);
+        return null;
+      }
+      if (entry.reply != null) {
+        return entry.reply;
+      }
+      if (now - entry.claimedNanos < this.claimTimeoutNanos) {
+        return PENDING;
+      }
+      entry.claimedNanos = now; // the worker that claimed it lost track of it
+      return null;
+    }
+  }
+
+  /**
+   * Keeps the reply to a claimed request, for when the request arrives again.
+   *
+   * @param client    the client's address
+   * @param requestId the id the client gave the request
+   * @param reply     the reply, with its request id header
+   */
+  public void complete(InetSocketAddress client, int requestId, byte[] reply) {
+    Key key = new Key(client, requestId);
+    Stripe stripe = this.stripeOf(client);
+    synchronized (stripe) {
+      Entry entry = stripe.replies.get(key);
+      if (entry != null && entry.reply == null) { // unless evicted or completed meanwhile
+        entry.reply = reply;
+        stripe.bytes += reply.length;
+        this.evict(stripe, System.nanoTime());
+      }
+    }
+  }
+
+  /**
+   * Gives up the claim on a request that could not be executed, so that the client can send it
+   * again and have it executed.
+   *
+   * @param client    the client's address
+   * @param requestId the id the client gave the request
+   */
+  public void release(InetSocketAddress client, int requestId) {
+    Key key = new Key(client, requestId);
+    Stripe stripe = this.stripeOf(client);
+    synchronized (stripe) {
+      Entry entry = stripe.replies.get(key);
+      if (entry != null && entry.reply == null) {
+        stripe.replies.remove(key);
+      }
+    }
+  }
+
+  private Stripe stripeOf(InetSocketAddress client) {
+    return this.stripes[Stripes.spread(client.hashCode())];
+  }
+
+  /**
+   * Drops the oldest replies of a stripe while it holds too many, sparing the requests still being
+   * executed unless their claim timed out.
+   */
+  private void evict(Stripe stripe, long now) {
+    Iterator<Entry> iterator = stripe.replies.values().iterator();
+    while ((stripe.replies.size() > this.maxEntriesPerStripe || stripe.bytes > this.maxBytesPerStripe) && iterator.hasNext()) {
+      Entry entry = iterator.next();
+      if (entry.reply != null) {
+        iterator.remove();
+        stripe.bytes -= entry.reply.length;
+      } else if (now - entry.claimedNanos >= this.claimTimeoutNanos) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * The replies of the clients whose addresses fall in a stripe, oldest first.
+   */
+  private static final class Stripe {
+    private final Map<Key, Entry> replies = new LinkedHashMap<>();
+    private long bytes;
+  }
+
+  /**
+   * The reply to a request, or the time it was claimed while it is being executed.
+   */
+  private static final class Entry {
+    private byte[] reply;
+    private long claimedNanos;
+
+    private Entry(long claimedNanos) {
+      this.claimedNanos = claimedNanos;
+    }
+  }
+
+  /**
+   * A client address and the id of one of its requests.
+   */
+  private static final class Key {
+    private final InetSocketAddress client;
+    private final int requestId;
+
+    private Key(InetSocketAddress client, int requestId) {
+      this.client = client;
+      this.requestId = requestId;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Key && ((Key) other).requestId == this.requestId && ((Key) other).client.equals(this.client);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * this.client.hashCode() + this.requestId;
+    }
+  }
+}
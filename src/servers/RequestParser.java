@@ -0,0 +1,603 @@
+package servers;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import utils.BinaryProtocol;
+
+/**
+ * This class parses text (PUT/GET/DELETE:key:value, TRACKING:ON/OFF, STATS) and binary requests directly from the received
+ * bytes. The operation is recognized without creating Strings, and the key and value are exposed as
+ * views over a reusable char array. Batch requests (MGET:key1:key2..., MPUT:key1:value1:key2:value2...
+ * and MDELETE:key1:key2...) expose their keys and values as lists instead, and scans
+ * (PREFIX:prefix[:limit[:cursor]] and RANGE:from[:to[:limit[:cursor]]]) the range they cover. A parser
+ * holds the state of one request at a time, so every connection or worker owns its own parser.
+ */
+public final class RequestParser {
+  /**
+   * The request was parsed successfully.
+   */
+  public static final int OK = 0;
+  /**
+   * The request does not follow the protocol.
+   */
+  public static final int MALFORMED = 1;
+  /**
+   * A PUT request has no value.
+   */
+  public static final int MISSING_VALUE = 2;
+  /**
+   * The operation is not supported.
+   */
+  public static final int UNKNOWN_OPERATION = 3;
+  private static final int MAX_TEXT_FIELDS = 3; // for single-key requests, plus a TTL for a PUT
+  private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private final CharSlice key = new CharSlice();
+  private final CharSlice value = new CharSlice();
+  private final List<String> keys = new ArrayList<>();
+  private final List<String> values = new ArrayList<>();
+  private int[] fieldStarts = new int[MAX_TEXT_FIELDS + 1];
+  private int[] fieldEnds = new int[MAX_TEXT_FIELDS + 1];
+  private List<String> results;
+  private byte[] encodedValue;
+  private byte[] input = new byte[256];
+  private char[] chars = new char[256];
+  private int charCount;
+  private int length;
+  private boolean binary;
+  private byte opcode;
+  private int requestId;
+  private byte status;
+  private int ttlSeconds;
+  private int limit;
+
+  /**
+   * Gets the parser's reusable input buffer, grown to at least the given capacity. Its current
+   * contents are preserved when it grows.
+   *
+   * @param capacity the minimum capacity
+   * @return the input buffer
+   */
+  public byte[] inputBuffer(int capacity) {
+    if (this.input.length < capacity) {
+      this.input = Arrays.copyOf(this.input, Math.max(capacity, this.input.length * 2));
+    }
+    return this.input;
+  }
+
+  /**
+   * Parses a text request of the form PUT/GET/DELETE:key:value[with PUT only]:ttlSeconds[optional,
+   * with PUT only], or a batch request.
+   *
+   * @param data   the received bytes
+   * @param offset the offset of the request
+   * @param length the length of the request in bytes, without the line terminator
+   * @return OK, MALFORMED, MISSING_VALUE or UNKNOWN_OPERATION
+   */
+  public int parseText(byte[] data, int offset, int length) {
+    this.binary = false;
+    this.length = length;
+    this.requestId = 0;
+    this.opcode = -1;
+    this.ttlSeconds = 0;
+    this.keys.clear();
+    this.values.clear();
+    this.results = null;
+    this.encodedValue = null;
+    this.charCount = this.decode(data, offset, length, 0);
+    // split on ':' the way String.split does, dropping trailing empty fields
+    int fields = 0;
+    int lastNonEmpty = -1;
+    int fieldStart = 0;
+    for (int i = 0; i <= this.charCount; i++) {
+      if (i == this.charCount || this.chars[i] == ':') {
+        if (fields == this.fieldStarts.length) {
+          if (fields > 2 * BinaryProtocol.MAX_BATCH_SIZE) { // more fields than any request may have
+            return MALFORMED;
+          }
+          this.fieldStarts = Arrays.copyOf(this.fieldStarts, fields * 2);
+          this.fieldEnds = Arrays.copyOf(this.fieldEnds, fields * 2);
+        }
+        this.fieldStarts[fields] = fieldStart;
+        this.fieldEnds[fields] = i;
+        if (i > fieldStart) {
+          lastNonEmpty = fields;
+        }
+        fields++;
+        fieldStart = i + 1;
+      }
+    }
+    fields = lastNonEmpty + 1;
+    byte opcode = this.operation(this.fieldStarts[0], this.fieldEnds[0]);
+    if ((fields == 1 && opcode == BinaryProtocol.OP_STATS) || BinaryProtocol.isScan(opcode)) { // the requests a key is optional for
+      this.opcode = opcode;
+      this.key.set(this.chars, 0, 0);
+      this.value.set(this.chars, 0, 0);
+      if (opcode == BinaryProtocol.OP_STATS) {
+        return OK;
+      }
+      List<String> arguments = new ArrayList<>(fields);
+      for (int i = 1; i < fields; i++) {
+        arguments.add(new String(this.chars, this.fieldStarts[i], this.fieldEnds[i] - this.fieldStarts[i]));
+      }
+      return this.scan(arguments);
+    }
+    if (fields < 2) { // the protocol is not followed
+      return MALFORMED;
+    }
+    this.key.set(this.chars, this.fieldStarts[1], this.fieldEnds[1] - this.fieldStarts[1]);
+    this.value.set(this.chars, 0, 0);
+    if (BinaryProtocol.isBatch(opcode)) {
+      this.opcode = opcode;
+      return this.textBatch(fields);
+    }
+    if (fields > (opcode == BinaryProtocol.OP_PUT ? MAX_TEXT_FIELDS + 1 : MAX_TEXT_FIELDS)) {
+      return MALFORMED;
+    }
+    this.opcode = opcode;
+    if (opcode == -1) {
+      return UNKNOWN_OPERATION;
+    }
+    if (opcode == BinaryProtocol.OP_PUT) {
+      if (fields < 3 || this.fieldStarts[2] == this.fieldEnds[2]) {
+        return MISSING_VALUE;
+      }
+      this.value.set(this.chars, this.fieldStarts[2], this.fieldEnds[2] - this.fieldStarts[2]);
+      if (fields == MAX_TEXT_FIELDS + 1) {
+        this.ttlSeconds = this.parseSeconds(this.fieldStarts[3], this.fieldEnds[3]);
+        if (this.ttlSeconds <= 0) {
+          return MALFORMED;
+        }
+      }
+    }
+    return OK;
+  }
+
+  /**
+   * Parses a complete binary request frame, starting at its magic byte.
+   *
+   * @param data   the received bytes
+   * @param offset the offset of the frame
+   * @param length the length of the frame in bytes
+   * @return OK, MALFORMED or UNKNOWN_OPERATION
+   */
+  public int parseBinary(byte[] data, int offset, int length) {
+    this.binary = true;
+    this.length = length;
+    this.opcode = -1;
+    this.requestId = 0;
+    this.ttlSeconds = 0;
+    this.keys.clear();
+    this.values.clear();
+    this.results = null;
+    this.encodedValue = null;
+    if (length < BinaryProtocol.REQUEST_HEADER_LENGTH || data[offset] != BinaryProtocol.MAGIC) {
+      return MALFORMED;
+    }
+    this.requestId = BinaryProtocol.readInt(data, offset + 2);
+    int keyLength = BinaryProtocol.readInt(data, offset + 6);
+    int keyOffset = offset + BinaryProtocol.REQUEST_HEADER_LENGTH;
+    if (keyLength < 0 || keyLength > length - BinaryProtocol.REQUEST_HEADER_LENGTH - 4) {
+      return MALFORMED;
+    }
+    int valueLength = BinaryProtocol.readInt(data, keyOffset + keyLength);
+    int valueOffset = keyOffset + keyLength + 4;
+    if (valueLength < 0 || valueLength > offset + length - valueOffset) {
+      return MALFORMED;
+    }
+    byte opcode = data[offset + 1];
+    if (BinaryProtocol.isBatch(opcode)) {
+      this.opcode = opcode;
+      this.charCount = 0;
+      return this.binaryBatch(data, keyOffset, keyLength, valueOffset, valueLength);
+    }
+    if (BinaryProtocol.isScan(opcode)) {
+      this.opcode = opcode;
+      this.charCount = 0;
+      this.key.set(this.chars, 0, 0);
+      this.value.set(this.chars, 0, 0);
+      try {
+        return this.scan(BinaryProtocol.readList(ByteBuffer.wrap(data, keyOffset, keyLength)));
+      } catch (IOException | BufferUnderflowException e) {
+        return MALFORMED;
+      }
+    }
+    if (opcode == BinaryProtocol.OP_PUT_TTL) { // the value field starts with the TTL
+      if (valueLength < 4) {
+        return MALFORMED;
+      }
+      this.ttlSeconds = BinaryProtocol.readInt(data, valueOffset);
+      if (this.ttlSeconds <= 0) {
+        return MALFORMED;
+      }
+      opcode = BinaryProtocol.OP_PUT;
+      valueOffset += 4;
+      valueLength -= 4;
+    }
+    int keyChars = this.decode(data, keyOffset, keyLength, 0);
+    int valueChars = this.decode(data, valueOffset, valueLength, keyChars);
+    this.charCount = keyChars + valueChars;
+    this.key.set(this.chars, 0, keyChars);
+    this.value.set(this.chars, keyChars, valueChars);
+    if (opcode != BinaryProtocol.OP_GET && opcode != BinaryProtocol.OP_PUT && opcode != BinaryProtocol.OP_DELETE
+        && opcode != BinaryProtocol.OP_TRACKING && opcode != BinaryProtocol.OP_STATS) {
+      return UNKNOWN_OPERATION;
+    }
+    this.opcode = opcode;
+    if (opcode == BinaryProtocol.OP_STATS) {
+      return OK;
+    }
+    if (keyChars == 0 || (opcode == BinaryProtocol.OP_PUT && valueChars == 0)) {
+      return MALFORMED;
+    }
+    return OK;
+  }
+
+  /**
+   * Collects the keys and values of a text batch request from its fields.
+   *
+   * @return OK, MALFORMED or MISSING_VALUE
+   */
+  private int textBatch(int fields) {
+    boolean pairs = this.opcode == BinaryProtocol.OP_MPUT;
+    for (int i = 1; i < fields; i++) {
+      int start = this.fieldStarts[i];
+      int end = this.fieldEnds[i];
+      boolean isValue = pairs && i % 2 == 0;
+      if (start == end) {
+        return isValue ? MISSING_VALUE : MALFORMED;
+      }
+      (isValue ? this.values : this.keys).add(new String(this.chars, start, end - start));
+    }
+    if (pairs && this.values.size() < this.keys.size()) {
+      return MISSING_VALUE;
+    }
+    return this.keys.size() > BinaryProtocol.MAX_BATCH_SIZE ? MALFORMED : OK;
+  }
+
+  /**
+   * Decodes the key list (and value list of an MPUT) of a binary batch request.
+   *
+   * @return OK or MALFORMED
+   */
+  private int binaryBatch(byte[] data, int keyOffset, int keyLength, int valueOffset, int valueLength) {
+    try {
+      this.keys.addAll(BinaryProtocol.readList(ByteBuffer.wrap(data, keyOffset, keyLength)));
+      if (this.opcode == BinaryProtocol.OP_MPUT) {
+        this.values.addAll(BinaryProtocol.readList(ByteBuffer.wrap(data, valueOffset, valueLength)));
+      }
+    } catch (IOException | BufferUnderflowException e) {
+      return MALFORMED;
+    }
+    if (this.keys.isEmpty() || (this.opcode == BinaryProtocol.OP_MPUT && this.values.size() != this.keys.size())) {
+      return MALFORMED;
+    }
+    for (int i = 0; i < this.keys.size(); i++) {
+      String key = this.keys.get(i);
+      if (key == null || key.isEmpty() || (!this.values.isEmpty() && (this.values.get(i) == null || this.values.get(i).isEmpty()))) {
+        return MALFORMED;
+      }
+    }
+    return OK;
+  }
+
+  /**
+   * Turns the arguments of a scan into the range it covers: the keys become the lowest key, moved
+   * right after the cursor if there is one, and the key the range ends before, or null if it runs to
+   * the last key.
+   *
+   * @return OK or MALFORMED
+   */
+  private int scan(List<String> arguments) {
+    boolean prefix = this.opcode == BinaryProtocol.OP_PREFIX;
+    int bounds = prefix ? 1 : 2; // the prefix, or the lowest key and the key the range ends before
+    if (arguments.size() > bounds + 2) {
+      return MALFORMED;
+    }
+    String from = FoldedKey.fold(argument(arguments, 0));
+    String to = prefix ? prefixEnd(from) : FoldedKey.fold(argument(arguments, 1));
+    String limit = argument(arguments, bounds);
+    try {
+      this.limit = limit.isEmpty() ? BinaryProtocol.DEFAULT_SCAN_LIMIT : Integer.parseInt(limit);
+    } catch (NumberFormatException e) {
+      return MALFORMED;
+    }
+    if (this.limit <= 0) {
+      return MALFORMED;
+    }
+    this.limit = Math.min(this.limit, BinaryProtocol.MAX_SCAN_LIMIT);
+    String cursor = FoldedKey.fold(argument(arguments, bounds + 1));
+    if (!cursor.isEmpty() && cursor.compareTo(from) >= 0) {
+      from = cursor + '\0'; // the first key after the cursor
+    }
+    this.keys.add(from);
+    this.keys.add(to == null || to.isEmpty() ? null : to);
+    return OK;
+  }
+
+  /**
+   * Gets an optional argument of a scan.
+   *
+   * @return the argument, or an empty string if it is missing
+   */
+  private static String argument(List<String> arguments, int index) {
+    return index < arguments.size() && arguments.get(index) != null ? arguments.get(index) : "";
+  }
+
+  /**
+   * Gets the smallest key that comes after every key starting with a prefix.
+   *
+   * @return the key, or null if no key does, as for an empty prefix
+   */
+  private static String prefixEnd(String prefix) {
+    int end = prefix.length();
+    while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+      end--;
+    }
+    return end == 0 ? null : prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+  }
+
+  /**
+   * Tells whether the last text request asked the server to stop.
+   *
+   * @return true if the request was "server stop" or "server shutdown", in any case
+   */
+  public boolean isShutdownRequest() {
+    return !this.binary && (this.textEquals("server stop") || this.textEquals("server shutdown"));
+  }
+
+  /**
+   * Tells whether the last request was a binary frame.
+   *
+   * @return true if the request was binary
+   */
+  public boolean isBinary() {
+    return this.binary;
+  }
+
+  /**
+   * Gets the opcode of the last request.
+   *
+   * @return the opcode, or -1 if the operation is unknown
+   */
+  public byte getOpcode() {
+    return this.opcode;
+  }
+
+  /**
+   * Gets the id of the last binary request.
+   *
+   * @return the request id
+   */
+  public int getRequestId() {
+    return this.requestId;
+  }
+
+  /**
+   * Gets the key of the last request.
+   *
+   * @return a view of the key
+   */
+  public CharSlice getKey() {
+    return this.key;
+  }
+
+  /**
+   * Gets the value of the last request.
+   *
+   * @return a view of the value
+   */
+  public CharSlice getValue() {
+    return this.value;
+  }
+
+  /**
+   * Gets the time to live of the last PUT request.
+   *
+   * @return the time to live in seconds, or 0 if the pair should not expire
+   */
+  public int getTtlSeconds() {
+    return this.ttlSeconds;
+  }
+
+  /**
+   * Gets the keys of the last batch request, or the lowest key and the key the range ends before (null
+   * if it runs to the last key) of the last scan.
+   *
+   * @return the keys, valid until the next request is parsed
+   */
+  public List<String> getKeys() {
+    return this.keys;
+  }
+
+  /**
+   * Gets the values of the last MPUT request.
+   *
+   * @return the values, in the order of the keys, valid until the next request is parsed
+   */
+  public List<String> getValues() {
+    return this.values;
+  }
+
+  /**
+   * Gets the number of pairs the last scan returns at most.
+   *
+   * @return the limit
+   */
+  public int getLimit() {
+    return this.limit;
+  }
+
+  /**
+   * Gets the values retrieved by the last MGET request, or the cursor and pairs listed by the last
+   * scan.
+   *
+   * @return the values, with null for every unknown key, or null if none were retrieved
+   */
+  public List<String> getResults() {
+    return this.results;
+  }
+
+  /**
+   * Sets the values retrieved by the last MGET request, or the cursor and pairs listed by the last
+   * scan.
+   *
+   * @param results the values, with null for every unknown key
+   */
+  public void setResults(List<String> results) {
+    this.results = results;
+  }
+
+  /**
+   * Gets the value retrieved by the last GET request, as the translation service stored it.
+   *
+   * @return the value encoded in UTF-8, or null if none was retrieved
+   */
+  public byte[] getEncodedValue() {
+    return this.encodedValue;
+  }
+
+  /**
+   * Sets the value retrieved by the last GET request, as the translation service stored it.
+   *
+   * @param encodedValue the value encoded in UTF-8
+   */
+  public void setEncodedValue(byte[] encodedValue) {
+    this.encodedValue = encodedValue;
+  }
+
+  /**
+   * Gets the length of the last request in bytes.
+   *
+   * @return the request length
+   */
+  public int getLength() {
+    return this.length;
+  }
+
+  /**
+   * Gets the binary status code of the reply to the last request.
+   *
+   * @return the status code
+   */
+  public byte getStatus() {
+    return this.status;
+  }
+
+  /**
+   * Sets the binary status code of the reply to the last request.
+   *
+   * @param status the status code
+   */
+  public void setStatus(byte status) {
+    this.status = status;
+  }
+
+  /**
+   * Copies the last text request into a String, for logging.
+   *
+   * @return the request
+   */
+  public String requestText() {
+    return new String(this.chars, 0, this.charCount);
+  }
+
+  /**
+   * Decodes UTF-8 bytes into the char array, taking a fast path for ASCII.
+   *
+   * @return the number of chars decoded
+   */
+  private int decode(byte[] data, int offset, int length, int charOffset) {
+    if (this.chars.length < charOffset + length) { // UTF-8 never decodes to more chars than bytes
+      this.chars = Arrays.copyOf(this.chars, Math.max(charOffset + length, this.chars.length * 2));
+    }
+    for (int i = 0; i < length; i++) {
+      byte b = data[offset + i];
+      if (b < 0) { // not ASCII: decode the rest with the charset decoder
+        CharBuffer out = CharBuffer.wrap(this.chars, charOffset + i, this.chars.length - charOffset - i);
+        this.decoder.reset();
+        this.decoder.decode(ByteBuffer.wrap(data, offset + i, length - i), out, true);
+        this.decoder.flush(out);
+        return out.position() - charOffset;
+      }
+      this.chars[charOffset + i] = (char) b;
+    }
+    return length;
+  }
+
+  /**
+   * Recognizes the operation of a text request without creating a String.
+   *
+   * @return the opcode, or -1 if the operation is unknown
+   */
+  private byte operation(int start, int end) {
+    if (this.regionEquals(start, end, "GET")) {
+      return BinaryProtocol.OP_GET;
+    } else if (this.regionEquals(start, end, "PUT")) {
+      return BinaryProtocol.OP_PUT;
+    } else if (this.regionEquals(start, end, "DELETE")) {
+      return BinaryProtocol.OP_DELETE;
+    } else if (this.regionEquals(start, end, "MGET")) {
+      return BinaryProtocol.OP_MGET;
+    } else if (this.regionEquals(start, end, "MPUT")) {
+      return BinaryProtocol.OP_MPUT;
+    } else if (this.regionEquals(start, end, "MDELETE")) {
+      return BinaryProtocol.OP_MDELETE;
+    } else if (this.regionEquals(start, end, "TRACKING")) {
+      return BinaryProtocol.OP_TRACKING;
+    } else if (this.regionEquals(start, end, "STATS")) {
+      return BinaryProtocol.OP_STATS;
+    } else if (this.regionEquals(start, end, "PREFIX")) {
+      return BinaryProtocol.OP_PREFIX;
+    } else if (this.regionEquals(start, end, "RANGE")) {
+      return BinaryProtocol.OP_RANGE;
+    }
+    return -1;
+  }
+
+  /**
+   * Parses a positive number of seconds without creating a String.
+   *
+   * @return the number, or -1 if the field is not a positive number that fits in an int
+   */
+  private int parseSeconds(int start, int end) {
+    if (end == start || end - start > 9) {
+      return -1;
+    }
+    int seconds = 0;
+    for (int i = start; i < end; i++) {
+      char c = this.chars[i];
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      seconds = seconds * 10 + (c - '0');
+    }
+    return seconds;
+  }
+
+  private boolean textEquals(String expected) {
+    return this.regionEquals(0, this.charCount, expected);
+  }
+
+  private boolean regionEquals(int start, int end, String expected) {
+    if (end - start != expected.length()) {
+      return false;
+    }
+    for (int i = 0; i < expected.length(); i++) {
+      if (Character.toUpperCase(this.chars[start + i]) != Character.toUpperCase(expected.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
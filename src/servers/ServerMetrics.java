@@ -0,0 +1,382 @@
+package servers;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import utils.BinaryProtocol;
+import utils.ConcurrentLatencyHistogram;
+import utils.LatencyHistogram;
+
+/**
+ * This class represents the counters and the latency histogram of a translation server. Every
+ * counter is a {@link LongAdder}, so the threads serving requests record into cells of their own
+ * instead of contending on one, and a request costs a few uncontended increments and two clock reads.
+ * Reading a counter adds its cells up, which is left to the STATS command and JMX.
+ */
+public class ServerMetrics implements IServerMetrics {
+  private final long startMillis = System.currentTimeMillis();
+  private final LongAdder[] operations = new LongAdder[BinaryProtocol.OP_RANGE + 1]; // by opcode
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder malformedRequests = new LongAdder();
+  private final LongAdder duplicates = new LongAdder();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LongAdder activeConnections = new LongAdder();
+  private final ConcurrentLatencyHistogram latency = new ConcurrentLatencyHistogram();
+  private volatile IEvictionMetrics eviction;
+  private volatile IReplicationMetrics replication;
+
+  /**
+   * Instantiates new server metrics.
+   */
+  public ServerMetrics() {
+    for (int i = 0; i < this.operations.length; i++) {
+      this.operations[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Records an executed request from the status of its reply.
+   *
+   * @param request the request, with its status set
+   * @param nanos   the time taken to execute it
+   */
+  public void recordRequest(RequestParser request, long nanos) {
+    byte status = request.getStatus();
+    byte opcode = request.getOpcode();
+    if (status == BinaryProtocol.STATUS_MALFORMED || status == BinaryProtocol.STATUS_UNKNOWN_OPERATION || opcode <= 0) {
+      this.malformedRequests.increment();
+      return;
+    }
+    this.operations[opcode == BinaryProtocol.OP_PUT_TTL ? BinaryProtocol.OP_PUT : opcode].increment();
+    if (status == BinaryProtocol.STATUS_FAILED) {
+      this.errors.increment();
+    } else if (opcode == BinaryProtocol.OP_GET) {
+      (status == BinaryProtocol.STATUS_OK ? this.hits : this.misses).increment();
+    } else if (opcode == BinaryProtocol.OP_MGET && request.getResults() != null) {
+      List<String> results = request.getResults();
+      int found = 0;
+      for (String result : results) {
+        if (result != null) {
+          found++;
+        }
+      }
+      this.hits.add(found);
+      this.misses.add(results.size() - found);
+    }
+    this.latency.record(nanos);
+  }
+
+  /**
+   * Records bytes received from a client.
+   *
+   * @param bytes the number of bytes
+   */
+  public void recordBytesIn(long bytes) {
+    this.bytesIn.add(bytes);
+  }
+
+  /**
+   * Records bytes sent to a client.
+   *
+   * @param bytes the number of bytes
+   */
+  public void recordBytesOut(long bytes) {
+    this.bytesOut.add(bytes);
+  }
+
+  /**
+   * Records a connection lost to an I/O error.
+   */
+  public void recordError() {
+    this.errors.increment();
+  }
+
+  /**
+   * Records a UDP request that arrived again.
+   */
+  public void recordDuplicate() {
+    this.duplicates.increment();
+  }
+
+  /**
+   * Records a connection that opened.
+   */
+  public void connectionOpened() {
+    this.activeConnections.increment();
+  }
+
+  /**
+   * Records a connection that closed.
+   */
+  public void connectionClosed() {
+    this.activeConnections.decrement();
+  }
+
+  /**
+   * Sets the metrics of a capped store, which STATS then reports too.
+   *
+   * @param eviction the eviction metrics
+   */
+  public void setEviction(IEvictionMetrics eviction) {
+    this.eviction = eviction;
+  }
+
+  /**
+   * Gets the eviction metrics.
+   *
+   * @return the eviction metrics, or null if the store is not capped
+   */
+  public IEvictionMetrics getEviction() {
+    return this.eviction;
+  }
+
+  /**
+   * Sets the replication metrics of a primary or a replica, which STATS then reports too.
+   *
+   * @param replication the replication metrics
+   */
+  public void setReplication(IReplicationMetrics replication) {
+    this.replication = replication;
+  }
+
+  /**
+   * Gets the replication metrics.
+   *
+   * @return the replication metrics, or null if the server neither is nor has a replica
+   */
+  public IReplicationMetrics getReplication() {
+    return this.replication;
+  }
+
+  /**
+   * Gets the number of seconds since the server started.
+   *
+   * @return the uptime in seconds
+   */
+  @Override
+  public long getUptimeSeconds() {
+    return (System.currentTimeMillis() - this.startMillis) / 1000;
+  }
+
+  /**
+   * Gets the number of well-formed requests executed.
+   *
+   * @return the number of requests
+   */
+  @Override
+  public long getRequests() {
+    long requests = 0;
+    for (LongAdder operation : this.operations) {
+      requests += operation.sum();
+    }
+    return requests;
+  }
+
+  /**
+   * Gets the number of GET requests.
+   *
+   * @return the number of GETs
+   */
+  @Override
+  public long getGets() {
+    return this.operations[BinaryProtocol.OP_GET].sum();
+  }
+
+  /**
+   * Gets the number of PUT requests, with or without a TTL.
+   *
+   * @return the number of PUTs
+   */
+  @Override
+  public long getPuts() {
+    return this.operations[BinaryProtocol.OP_PUT].sum();
+  }
+
+  /**
+   * Gets the number of DELETE requests.
+   *
+   * @return the number of DELETEs
+   */
+  @Override
+  public long getDeletes() {
+    return this.operations[BinaryProtocol.OP_DELETE].sum();
+  }
+
+  /**
+   * Gets the number of MGET, MPUT and MDELETE requests.
+   *
+   * @return the number of batch requests
+   */
+  @Override
+  public long getBatches() {
+    return this.operations[BinaryProtocol.OP_MGET].sum() + this.operations[BinaryProtocol.OP_MPUT].sum()
+        + this.operations[BinaryProtocol.OP_MDELETE].sum();
+  }
+
+  /**
+   * Gets the number of PREFIX and RANGE requests.
+   *
+   * @return the number of scans
+   */
+  @Override
+  public long getScans() {
+    return this.operations[BinaryProtocol.OP_PREFIX].sum() + this.operations[BinaryProtocol.OP_RANGE].sum();
+  }
+
+  /**
+   * Gets the number of keys read by GET and MGET that existed.
+   *
+   * @return the number of hits
+   */
+  @Override
+  public long getHits() {
+    return this.hits.sum();
+  }
+
+  /**
+   * Gets the number of keys read by GET and MGET that did not exist.
+   *
+   * @return the number of misses
+   */
+  @Override
+  public long getMisses() {
+    return this.misses.sum();
+  }
+
+  /**
+   * Gets the number of requests the translation service failed, and of connections lost to an I/O
+   * error.
+   *
+   * @return the number of errors
+   */
+  @Override
+  public long getErrors() {
+    return this.errors.sum();
+  }
+
+  /**
+   * Gets the number of requests that did not follow the protocol or named an unknown operation.
+   *
+   * @return the number of malformed requests
+   */
+  @Override
+  public long getMalformedRequests() {
+    return this.malformedRequests.sum();
+  }
+
+  /**
+   * Gets the number of UDP requests that arrived again and were answered with the reply already sent,
+   * or dropped while the first copy was being executed.
+   *
+   * @return the number of duplicate requests
+   */
+  @Override
+  public long getDuplicates() {
+    return this.duplicates.sum();
+  }
+
+  /**
+   * Gets the number of pairs evicted to keep a capped store under its cap.
+   *
+   * @return the number of evictions, or 0 if the store is not capped
+   */
+  @Override
+  public long getEvictions() {
+    IEvictionMetrics eviction = this.eviction;
+    return eviction == null ? 0 : eviction.getEvictions();
+  }
+
+  /**
+   * Gets the number of bytes received from clients.
+   *
+   * @return the number of bytes
+   */
+  @Override
+  public long getBytesIn() {
+    return this.bytesIn.sum();
+  }
+
+  /**
+   * Gets the number of bytes sent to clients, invalidations included.
+   *
+   * @return the number of bytes
+   */
+  @Override
+  public long getBytesOut() {
+    return this.bytesOut.sum();
+  }
+
+  /**
+   * Gets the number of open connections; always 0 for a UDP server.
+   *
+   * @return the number of connections
+   */
+  @Override
+  public long getActiveConnections() {
+    return this.activeConnections.sum();
+  }
+
+  /**
+   * Gets the median time taken to execute a request, from parsed request to reply.
+   *
+   * @return the latency in microseconds
+   */
+  @Override
+  public double getLatencyP50Micros() {
+    return this.latency.snapshot().getValueAtPercentile(50) / 1e3;
+  }
+
+  /**
+   * Gets the 99th percentile of the time taken to execute a request.
+   *
+   * @return the latency in microseconds
+   */
+  @Override
+  public double getLatencyP99Micros() {
+    return this.latency.snapshot().getValueAtPercentile(99) / 1e3;
+  }
+
+  /**
+   * Gets the 99.9th percentile of the time taken to execute a request.
+   *
+   * @return the latency in microseconds
+   */
+  @Override
+  public double getLatencyP999Micros() {
+    return this.latency.snapshot().getValueAtPercentile(99.9) / 1e3;
+  }
+
+  /**
+   * Gets the longest time taken to execute a request.
+   *
+   * @return the latency in microseconds
+   */
+  @Override
+  public double getLatencyMaxMicros() {
+    return this.latency.snapshot().getMax() / 1e3;
+  }
+
+  /**
+   * Describes every counter and the latency percentiles, then the capped store and the replication if
+   * any, on one line of name=value pairs, the reply to a STATS request.
+   *
+   * @return the description
+   */
+  @Override
+  public String toString() {
+    LatencyHistogram latency = this.latency.snapshot();
+    IEvictionMetrics eviction = this.eviction;
+    IReplicationMetrics replication = this.replication;
+    return String.format("uptime_s=%d requests=%d get=%d put=%d delete=%d batch=%d scan=%d tracking=%d stats=%d hits=%d misses=%d errors=%d"
+            + " malformed=%d duplicates=%d bytes_in=%d bytes_out=%d connections=%d latency_p50_us=%.1f latency_p99_us=%.1f latency_p999_us=%.1f"
+            + " latency_max_us=%.1f", this.getUptimeSeconds(), this.getRequests(), this.getGets(), this.getPuts(), this.getDeletes(),
+        this.getBatches(), this.getScans(), this.operations[BinaryProtocol.OP_TRACKING].sum(), this.operations[BinaryProtocol.OP_STATS].sum(),
+        this.getHits(), this.getMisses(), this.getErrors(), this.getMalformedRequests(), this.getDuplicates(), this.getBytesIn(), this.getBytesOut(),
+        this.getActiveConnections(), latency.getValueAtPercentile(50) / 1e3, latency.getValueAtPercentile(99) / 1e3,
+        latency.getValueAtPercentile(99.9) / 1e3, latency.getMax() / 1e3) + (eviction == null ? "" : " " + eviction)
+        + (replication == null ? "" : " " + replication);
+  }
+}
@@ -0,0 +1,233 @@
+package servers;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * This class reads and writes compact binary snapshots of a translation service. Entries are written
+ * as {@code keyLength(4) key valueLength(4) value deadlineMillis(8)}, with a deadline of 0 for pairs
+ * that never expire, in segments of a fixed number of entries, followed by a trailer that lists every
+ * segment's offset and entry count, so that a snapshot can be loaded by memory-mapping the segments
+ * and materializing them in parallel. Snapshots of the first version, without deadlines, still load.
+ */
+public final class SnapshotFile {
+  private static final int MAGIC = 0x4B56534E; // "KVSN"
+  private static final int VERSION = 2;
+  private static final int VERSION_WITHOUT_DEADLINES = 1;
+  private static final int ENTRIES_PER_SEGMENT = 64 * 1024;
+  private static final int TRAILER_LENGTH = 4 + 8 + 4 + 4; // segment count, entry count, version, magic
+
+  private SnapshotFile() {
+  }
+
+  /**
+   * Writes a snapshot of a translation service. The snapshot is written to a temporary file that
+   * replaces the previous snapshot atomically, so a crash never leaves a partial snapshot behind.
+   * The translation service keeps serving requests meanwhile, so mutations made during the
+   * iteration may or may not be included. Expiring pairs are written with their deadline.
+   *
+   * @param source the translation service
+   * @param path   the snapshot file
+   * @return the number of entries written
+   * @throws IOException if the snapshot could not be written
+   */
+  public static long write(ITranslationService source, Path path) throws IOException {
+    Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    List<long[]> segments = new ArrayList<>(); // offset and entry count of every segment
+    long[] entries = {0};
+    try (CountingOutputStream counter = new CountingOutputStream(Files.newOutputStream(temporary));
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(counter, 256 * 1024))) {
+      try {
+        source.forEachWithDeadline((key, value, deadlineMillis) -> {
+          try {
+            if (entries[0] % ENTRIES_PER_SEGMENT == 0) { // start a new segment
+              out.flush();
+              segments.add(new long[] {counter.count, 0});
+            }
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(keyBytes.length);
+            out.write(keyBytes);
+            out.writeInt(valueBytes.length);
+            out.write(valueBytes);
+            out.writeLong(deadlineMillis);
+            segments.get(segments.size() - 1)[1]++;
+            entries[0]++;
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      for (long[] segment : segments) {
+        out.writeLong(segment[0]);
+        out.writeInt((int) segment[1]);
+      }
+      out.writeInt(segments.size());
+      out.writeLong(entries[0]);
+      out.writeInt(VERSION);
+      out.writeInt(MAGIC);
+    }
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return entries[0];
+  }
+
+  /**
+   * Reads the number of entries in a snapshot, e.g. to size the translation service before loading.
+   *
+   * @param path the snapshot file
+   * @return the number of entries
+   * @throws IOException if the file is not a valid snapshot
+   */
+  public static long entryCount(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      return readTrailer(channel).getLong(4);
+    }
+  }
+
+  /**
+   * Loads a snapshot into a translation service. Every segment is memory-mapped and its entries are
+   * put into the translation service in parallel, so the translation service must be thread-safe.
+   * Expiring pairs are put with the time they have left, so the translation service must support
+   * expiry; the pairs that expired since the snapshot was written are skipped.
+   *
+   * @param path   the snapshot file
+   * @param target the translation service
+   * @return the number of entries in the snapshot, including the expired ones that were skipped
+   * @throws IOException if the file is not a valid snapshot or could not be read
+   */
+  public static long load(Path path, ITranslationService target) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer trailer = readTrailer(channel);
+      boolean deadlines = trailer.getInt(12) != VERSION_WITHOUT_DEADLINES;
+      int segmentCount = trailer.getInt(0);
+      long entryCount = trailer.getLong(4);
+      long tableOffset = channel.size() - TRAILER_LENGTH - 12L * segmentCount;
+      if (segmentCount < 0 || tableOffset < 0) {
+        throw new IOException("Corrupt snapshot trailer in " + path);
+      }
+      ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, tableOffset, 12L * segmentCount);
+      long[] offsets = new long[segmentCount + 1];
+      int[] counts = new int[segmentCount];
+      for (int i = 0; i < segmentCount; i++) {
+        offsets[i] = table.getLong(12 * i);
+        counts[i] = table.getInt(12 * i + 8);
+      }
+      offsets[segmentCount] = tableOffset;
+      try {
+        IntStream.range(0, segmentCount).parallel().forEach(i -> {
+          try {
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, offsets[i], offsets[i + 1] - offsets[i]);
+            loadSegment(segment, counts[i], deadlines, target);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      return entryCount;
+    }
+  }
+
+  private static void loadSegment(ByteBuffer segment, int count, boolean deadlines, ITranslationService target) throws IOException {
+    byte[] scratch = new byte[256];
+    for (int i = 0; i < count; i++) {
+      if (segment.remaining() < 4) {
+        throw new IOException("Truncated snapshot segment");
+      }
+      int keyLength = segment.getInt();
+      scratch = read(segment, keyLength, scratch);
+      String key = new String(scratch, 0, keyLength, StandardCharsets.UTF_8);
+      int valueLength = segment.getInt();
+      scratch = read(segment, valueLength, scratch);
+      String value = new String(scratch, 0, valueLength, StandardCharsets.UTF_8);
+      long deadlineMillis = 0;
+      if (deadlines) {
+        if (segment.remaining() < 8) {
+          throw new IOException("Truncated snapshot segment");
+        }
+        deadlineMillis = segment.getLong();
+      }
+      if (deadlineMillis == 0) {
+        target.put(key, value);
+      } else {
+        long ttlMillis = deadlineMillis - System.currentTimeMillis();
+        if (ttlMillis > 0) { // otherwise it expired while the snapshot was on disk
+          target.put(key, value, ttlMillis);
+        }
+      }
+    }
+  }
+
+  private static byte[] read(ByteBuffer segment, int length, byte[] scratch) throws IOException {
+    if (length < 0 || length > segment.remaining()) {
+      throw new IOException("Corrupt snapshot entry");
+    }
+    if (scratch.length < length) {
+      scratch = new byte[Math.max(length, scratch.length * 2)];
+    }
+    segment.get(scratch, 0, length);
+    return scratch;
+  }
+
+  private static ByteBuffer readTrailer(FileChannel channel) throws IOException {
+    long size = channel.size();
+    if (size < TRAILER_LENGTH) {
+      throw new IOException("Not a snapshot: too short");
+    }
+    ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+    while (trailer.hasRemaining()) {
+      if (channel.read(trailer, size - TRAILER_LENGTH + trailer.position()) < 0) {
+        throw new IOException("Not a snapshot: unexpected end of file");
+      }
+    }
+    int version = trailer.getInt(12);
+    if (trailer.getInt(16) != MAGIC || (version != VERSION && version != VERSION_WITHOUT_DEADLINES)) {
+      throw new IOException("Not a snapshot, or an unsupported version");
+    }
+    return trailer;
+  }
+
+  /**
+   * An output stream that counts the bytes written through it, to record segment offsets.
+   */
+  private static final class CountingOutputStream extends FilterOutputStream {
+    private long count;
+
+    private CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      this.out.write(b);
+      this.count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      this.out.write(b, off, len);
+      this.count += len;
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package servers;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class represents a translation service that snapshots its contents in the background at a
+ * fixed interval and once more when it is closed. A durable translation service is checkpointed, so
+ * its write-ahead log only keeps what happened after the latest snapshot.
+ */
+public class SnapshottingTranslationService extends AbstractTranslationServiceDecorator {
+  private final Path snapshot;
+  private final ScheduledExecutorService scheduler;
+
+  /**
+   * Instantiates a new snapshotting translation service.
+   *
+   * @param delegate        the decorated translation service
+   * @param snapshot        the snapshot file
+   * @param intervalSeconds the interval between snapshots, or 0 to only snapshot on close
+   */
+  public SnapshottingTranslationService(ITranslationService delegate, Path snapshot, long intervalSeconds) {
+    super(delegate);
+    this.snapshot = snapshot;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "Snapshot-writer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    if (intervalSeconds > 0) {
+      this.scheduler.scheduleWithFixedDelay(this::snapshot, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Writes a final snapshot and closes the decorated translation service.
+   */
+  @Override
+  public void close() {
+    this.scheduler.shutdownNow();
+    try {
+      this.scheduler.awaitTermination(1, TimeUnit.MINUTES); // let a running snapshot finish
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    this.snapshot();
+    super.close();
+  }
+
+  /**
+   * Writes a snapshot, or checkpoints a durable translation service.
+   */
+  private void snapshot() {
+    try {
+      if (this.delegate instanceof DurableTranslationService) {
+        ((DurableTranslationService) this.delegate).checkpoint(this.snapshot);
+      } else {
+        SnapshotFile.write(this.delegate, this.snapshot);
+      }
+    } catch (IOException e) {
+      System.err.println("Snapshot: " + e.getMessage());
+    }
+  }
+}
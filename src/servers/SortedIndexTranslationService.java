@@ -0,0 +1,208 @@
+package servers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class represents a translation service that keeps its keys in order next to the hash map, in
+ * a concurrent skip list, to answer prefix and range scans. A scan finds its first key in logarithmic
+ * time and then walks the list, looking every value up in the decorated translation service, so it
+ * costs in proportion to what it returns; it takes no lock, and writers never wait for it.
+ *
+ * <p>A mutation is applied and indexed under the lock of its stripe, so the index and the decorated
+ * translation service agree on every key once its writers are done. The stripes are
+ * {@link ReentrantLock}s, like those of the other decorators, so that a virtual thread blocked under
+ * one does not pin its carrier thread. It decorates the store itself, so that pairs removed by
+ * eviction and expiry leave the index too. Keys are folded to lower case by
+ * {@link FoldedKey#fold(CharSequence)}, as the store folds them, whatever the default locale.
+ */
+public class SortedIndexTranslationService extends AbstractTranslationServiceDecorator {
+  private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<>();
+  private final ReentrantLock[] stripes = new ReentrantLock[Stripes.COUNT];
+
+  /**
+   * Instantiates a new sorted index translation service, indexing the pairs the decorated translation
+   * service already holds.
+   *
+   * @param delegate the decorated translation service
+   */
+  public SortedIndexTranslationService(ITranslationService delegate) {
+    super(delegate);
+    for (int i = 0; i < this.stripes.length; i++) {
+      this.stripes[i] = new ReentrantLock();
+    }
+    delegate.forEach((key, value) -> this.keys.add(FoldedKey.fold(key)));
+  }
+
+  /**
+   * Saves a key-value pair and indexes the key.
+   *
+   * @param key   the word to be translated
+   * @param value the translation
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(String key, String value) {
+    ReentrantLock stripe = this.stripeOf(key);
+    stripe.lock();
+    try {
+      String result = this.delegate.put(key, value);
+      if (!result.startsWith("FAIL:")) {
+        this.keys.add(FoldedKey.fold(key));
+      }
+      return result;
+    } finally {
+      stripe.unlock();
+    }
+  }
+
+  /**
+   * Saves a key-value pair that expires after a while and indexes the key.
+   *
+   * @param key       the word to be translated
+   * @param value     the translation
+   * @param ttlMillis the time to live in milliseconds
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(String key, String value, long ttlMillis) {
+    ReentrantLock stripe = this.stripeOf(key);
+    stripe.lock();
+    try {
+      String result = this.delegate.put(key, value, ttlMillis);
+      if (!result.startsWith("FAIL:")) {
+        this.keys.add(FoldedKey.fold(key));
+      }
+      return result;
+    } finally {
+      stripe.unlock();
+    }
+  }
+
+  /**
+   * Removes a key-value pair and its key from the index.
+   *
+   * @param key the word to be deleted
+   * @return the outcome of the operation
+   */
+  @Override
+  public String delete(String key) {
+    ReentrantLock stripe = this.stripeOf(key);
+    stripe.lock();
+    try {
+      String result = this.delegate.delete(key);
+      this.keys.remove(FoldedKey.fold(key));
+      return result;
+    } finally {
+      stripe.unlock();
+    }
+  }
+
+  /**
+   * Saves a key-value pair given as views over a request buffer and indexes the key.
+   *
+   * @param key   the word to be translated
+   * @param value the translation
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(CharSequence key, CharSequence value) {
+    return this.put(key.toString(), value.toString());
+  }
+
+  /**
+   * Removes a key-value pair whose key is given as a view over a request buffer, and its key from the
+   * index.
+   *
+   * @param key the word to be deleted
+   * @return the outcome of the operation
+   */
+  @Override
+  public String delete(CharSequence key) {
+    return this.delete(key.toString());
+  }
+
+  /**
+   * Saves several key-value pairs and indexes their keys.
+   *
+   * @param keys   the words to be translated
+   * @param values the translations, in the order of the keys
+   * @return the outcome of the operation
+   */
+  @Override
+  public String putAll(List<String> keys, List<String> values) {
+    for (int i = 0; i < keys.size(); i++) {
+      String result = this.put(keys.get(i), values.get(i));
+      if (result.startsWith("FAIL:")) {
+        return result;
+      }
+    }
+    return "SUCCESS";
+  }
+
+  /**
+   * Removes several key-value pairs and their keys from the index.
+   *
+   * @param keys the words to be deleted
+   * @return the outcome of the operation, which names the keys that did not exist
+   */
+  @Override
+  public String deleteAll(List<String> keys) {
+    List<String> missing = new ArrayList<>();
+    for (String key : keys) {
+      if (this.delete(key).startsWith("FAIL:")) {
+        missing.add(FoldedKey.fold(key));
+      }
+    }
+    return ITranslationService.deleteAllOutcome(missing);
+  }
+
+  /**
+   * Lists the pairs whose keys fall in a range, in key order. A key removed while the scan runs may
+   * or may not be listed, like a key added meanwhile.
+   *
+   * @param from  the lowest key, included
+   * @param to    the key the range ends before, or null to run to the last key
+   * @param limit the number of pairs listed at most
+   * @return the pairs
+   */
+  @Override
+  public List<Map.Entry<String, String>> scan(String from, String to, int limit) {
+    String lowerCaseFrom = FoldedKey.fold(from);
+    String lowerCaseTo = to == null ? null : FoldedKey.fold(to);
+    List<Map.Entry<String, String>> pairs = new ArrayList<>(Math.min(limit, 1024));
+    if (lowerCaseTo != null && lowerCaseFrom.compareTo(lowerCaseTo) >= 0) {
+      return pairs;
+    }
+    NavigableSet<String> range = lowerCaseTo == null ? this.keys.tailSet(lowerCaseFrom, true)
+        : this.keys.subSet(lowerCaseFrom, true, lowerCaseTo, false);
+    for (String key : range) {
+      if (pairs.size() == limit) {
+        break;
+      }
+      String value = this.delegate.get(key);
+      if (!value.startsWith("FAIL:")) { // removed since it was listed
+        pairs.add(Map.entry(key, value));
+      }
+    }
+    return pairs;
+  }
+
+  /**
+   * Describes how many keys are indexed.
+   *
+   * @return the description
+   */
+  @Override
+  public String toString() {
+    return this.keys.size() + " indexed keys";
+  }
+
+  private ReentrantLock stripeOf(String key) {
+    return this.stripes[Stripes.of(key)];
+  }
+}
@@ -0,0 +1,36 @@
+package servers;
+
+/**
+ * This class spreads keys over a fixed number of stripes, for the translation services and caches
+ * that serialize the operations of a key under the lock of its stripe. Keys are hashed the way the
+ * store compares them, ignoring case, so every spelling of a key falls in the same stripe.
+ */
+final class Stripes {
+  /**
+   * The number of stripes, a power of two.
+   */
+  static final int COUNT = 64;
+
+  private Stripes() {
+  }
+
+  /**
+   * Gets the stripe of a key, without copying it.
+   *
+   * @param key the key, in any case
+   * @return the stripe, below {@value #COUNT}
+   */
+  static int of(CharSequence key) {
+    return spread(FoldedKey.hash(key));
+  }
+
+  /**
+   * Gets the stripe of any other hash.
+   *
+   * @param hash the hash
+   * @return the stripe, below {@value #COUNT}
+   */
+  static int spread(int hash) {
+    return (hash ^ (hash >>> 16)) & (COUNT - 1);
+  }
+}
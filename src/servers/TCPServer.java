@@ -1,22 +1,41 @@
 package servers;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import utils.BinaryProtocol;
 
 /**
  * The class TCP server represents a translation server that communicates via the TCP protocol.
+ * Every accepted connection is served by its own (virtual, when the runtime supports it) thread, and
+ * all connections share the same translation service.
  */
 public class TCPServer extends AbstractServer {
+  private static final int BACKLOG = 1024;
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
   private ServerSocket serverSocket;
-  private Socket clientSocket;
-  private int packetSize;
-  private BufferedReader reader;
-  private BufferedWriter writer;
+  private ExecutorService connectionExecutor;
+  private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+  private volatile boolean isRunning;
+  private volatile Socket shutdownRequester;
 
   /**
    * Instantiates a new TCP translation server.
@@ -37,53 +56,212 @@ public class TCPServer extends AbstractServer {
   }
 
   /**
-   * Sets the TCP socket.
+   * Sets the executor that runs one task per client connection.
    *
-   * @param clientSocket the TCP socket
+   * @param connectionExecutor the connection executor
    */
-  private void setClientSocket(Socket clientSocket) {
-    this.clientSocket = clientSocket;
+  private void setConnectionExecutor(ExecutorService connectionExecutor) {
+    this.connectionExecutor = connectionExecutor;
   }
 
   /**
-   * Sets the buffer reader.
+   * Creates an executor that starts a virtual thread per task, so that thousands of mostly idle
+   * connections do not each pin a platform thread. Falls back to a cached pool of platform threads on
+   * runtimes without virtual threads.
    *
-   * @param reader the buffer reader
+   * @return the connection executor
    */
-  private void setReader(BufferedReader reader) {
-    this.reader = reader;
+  private static ExecutorService newConnectionExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool();
+    }
   }
 
   /**
-   * Sets the buffer writer.
+   * Reads the rest of a newline-terminated text request, whose first byte has already been read,
+   * into the parser's input buffer. A request longer than {@value #MAX_TEXT_REQUEST_LENGTH} bytes is
+   * skipped to the end of its line instead of being buffered.
    *
-   * @param writer the buffer writer
+   * @param in     the connection's input stream
+   * @param first  the first byte of the request
+   * @param parser the connection's request parser
+   * @return the length of the request without its line terminator, or -1 if it was too long
+   * @throws IOException if the request could not be read
    */
-  private void setWriter(BufferedWriter writer) {
-    this.writer = writer;
+  private int receive(InputStream in, int first, RequestParser parser) throws IOException {
+    byte[] line = parser.inputBuffer(128);
+    int length = 0;
+    for (int b = first; b != -1 && b != '\n'; b = in.read()) {
+      if (length == MAX_TEXT_REQUEST_LENGTH) { // refuse to buffer an unbounded request
+        while (b != -1 && b != '\n') {
+          b = in.read();
+        }
+        return -1;
+      }
+      if (length == line.length) {
+        line = parser.inputBuffer(length + 1);
+      }
+      line[length++] = (byte) b;
+    }
+    return length > 0 && line[length - 1] == '\r' ? length - 1 : length;
   }
 
   /**
-   * Sets the packet size.
+   * Reads the rest of a binary request frame, whose magic byte has already been read, into the
+   * parser's input buffer.
    *
-   * @param packetSize the packet size
+   * @param in     the connection's input stream
+   * @param parser the connection's request parser
+   * @return the length of the frame
+   * @throws IOException if the frame could not be read or a length field is out of range
    */
-  private void setPacketSize(int packetSize) {
-    this.packetSize = packetSize;
+  private int receiveFrame(DataInputStream in, RequestParser parser) throws IOException {
+    int header = BinaryProtocol.REQUEST_HEADER_LENGTH;
+    byte[] frame = parser.inputBuffer(header);
+    frame[0] = BinaryProtocol.MAGIC;
+    in.readFully(frame, 1, header - 1);
+    int keyLength = BinaryProtocol.checkLength(BinaryProtocol.readInt(frame, header - 4));
+    frame = parser.inputBuffer(header + keyLength + 4);
+    in.readFully(frame, header, keyLength + 4);
+    int valueLength = BinaryProtocol.checkLength(BinaryProtocol.readInt(frame, header + keyLength));
+    int length = header + keyLength + 4 + valueLength;
+    frame = parser.inputBuffer(length);
+    in.readFully(frame, header + keyLength + 4, valueLength);
+    return length;
   }
 
-  private String receive() throws IOException {
-    this.setReader(new BufferedReader(new InputStreamReader(this.clientSocket.getInputStream())));
-    String request = this.reader.readLine();
-    this.setPacketSize(request.getBytes().length);
-    return request;
+  private void send(OutputStream out, String msg) throws IOException {
+    this.send(out, msg.getBytes(StandardCharsets.UTF_8));
   }
 
-  private void send(String msg) throws IOException {
-    this.setWriter(new BufferedWriter(new OutputStreamWriter(this.clientSocket.getOutputStream())));
-    this.writer.write(msg);
-    this.writer.newLine();
-    this.writer.flush();
+  private void send(OutputStream out, byte[] bytes) throws IOException {
+    out.write(bytes);
+    out.write('\n');
+    this.metrics.recordBytesOut(bytes.length + 1);
+  }
+
+  /**
+   * Flushes the replies written so far unless more pipelined requests are already buffered, so that
+   * a burst of requests is answered with a few large writes instead of one write per reply.
+   *
+   * @param in  the input stream of the connection
+   * @param out the output stream of the connection
+   * @throws IOException if the replies could not be sent
+   */
+  private static void flushIfIdle(InputStream in, OutputStream out) throws IOException {
+    if (in.available() == 0) {
+      out.flush();
+    }
+  }
+
+  /**
+   * Serves a single client connection until the client disconnects or asks the server to stop.
+   * Every request is either a text line or a binary frame, told apart by its first byte. Replies are
+   * written while holding the connection's write lock, which invalidations pushed to the connection
+   * share. It is a {@link ReentrantLock} rather than a monitor, so that a virtual thread blocked in a
+   * write while holding it does not pin its carrier thread.
+   *
+   * @param clientSocket the TCP socket
+   */
+  private void serve(Socket clientSocket) {
+    RequestParser parser = new RequestParser();
+    ReentrantLock writeLock = new ReentrantLock();
+    ConnectionSubscriber subscriber = null;
+    this.metrics.connectionOpened();
+    try (Socket socket = clientSocket;
+         DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+         OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+      subscriber = new ConnectionSubscriber(out, writeLock);
+      InetAddress address = socket.getInetAddress();
+      int port = socket.getPort();
+      this.logger.log("Connection with " + address + " established");
+      while (this.isRunning) { // keep serving this client
+        int first = in.read(); // the first byte tells the protocol apart
+        if (first == -1) { // the client closed the connection
+          this.logger.log("Connection with " + address + " closed");
+          break;
+        }
+        if ((byte) first == BinaryProtocol.MAGIC) { // a binary frame
+          int length = this.receiveFrame(in, parser);
+          this.metrics.recordBytesIn(length);
+          byte[] reply = this.executeBinary(parser, parser.parseBinary(parser.inputBuffer(length), 0, length), subscriber, address, port);
+          writeLock.lock();
+          try {
+            out.write(reply); // process the request and send the result back to the client
+            flushIfIdle(in, out);
+          } finally {
+            writeLock.unlock();
+          }
+          this.metrics.recordBytesOut(reply.length);
+          if (this.logger.isEnabled()) {
+            this.logger.log("Responded with binary status " + reply[1]); // log the response
+          }
+          continue;
+        }
+        int length = this.receive(in, first, parser); // get the incoming requests
+        int outcome;
+        if (length < 0) {
+          this.metrics.recordBytesIn(MAX_TEXT_REQUEST_LENGTH);
+          this.logger.log("Received oversized request from <" + address + ">:<" + port + ">");
+          outcome = parser.parseText(parser.inputBuffer(0), 0, 0); // answered as malformed
+        } else {
+          this.metrics.recordBytesIn(length + 1);
+          outcome = parser.parseText(parser.inputBuffer(length), 0, length);
+        }
+        if (parser.isShutdownRequest()) { // if the client sends a stop/shutdown request
+          writeLock.lock();
+          try {
+            this.send(out, "Server is shutting down..."); // acknowledge
+            out.flush();
+          } finally {
+            writeLock.unlock();
+          }
+          this.stop(socket); // prepare the shutdown process
+        } else {
+          byte[] reply = this.executeText(parser, outcome, subscriber, address, port);
+          writeLock.lock();
+          try {
+            this.send(out, reply); // process the request and send the result back to the client
+            flushIfIdle(in, out);
+          } finally {
+            writeLock.unlock();
+          }
+          if (this.logger.isEnabled()) {
+            this.logger.log("Responded with " + new String(reply, StandardCharsets.UTF_8)); // log the response
+          }
+        }
+      }
+    } catch (EOFException e) {
+      this.logger.log("Connection with " + clientSocket.getInetAddress() + " closed mid-request");
+    } catch (IOException e) {
+      if (this.isRunning) {
+        this.metrics.recordError();
+        this.logger.log("IO: " + e.getMessage());
+      }
+    } finally {
+      this.metrics.connectionClosed();
+      this.connections.remove(clientSocket);
+      if (subscriber != null && this.trackingService != null) {
+        this.trackingService.unsubscribe(subscriber);
+      }
+    }
+  }
+
+  /**
+   * Stops accepting connections so that the accept loop can shut the server down.
+   *
+   * @param requester the TCP socket of the client that asked the server to stop
+   */
+  private void stop(Socket requester) {
+    this.shutdownRequester = requester;
+    this.isRunning = false;
+    try {
+      this.serverSocket.close(); // unblock the accept loop
+    } catch (IOException ss) {
+      this.logger.log("Server socket: " + ss.getMessage());
+    }
   }
 
   /**
@@ -92,26 +270,20 @@ public class TCPServer extends AbstractServer {
   @Override
   public void execute() {
     try {
-      this.setServerSocket(new ServerSocket(this.portNumber)); // create a new TCP server socket
-      boolean isRunning = true;
+      this.setServerSocket(new ServerSocket(this.portNumber, BACKLOG)); // create a new TCP server socket
+      this.setConnectionExecutor(newConnectionExecutor());
+      this.isRunning = true;
       this.logger.log("TCPServer running...");
       System.out.println("Server is running...");
-      this.setClientSocket(serverSocket.accept()); // wait for client's connection
-      this.logger.log("Connection with " + this.clientSocket.getInetAddress() + " established");
-      System.out.println("Connection established");
-      while (isRunning) { // keep running
+      while (this.isRunning) { // keep accepting clients
         try {
-          String request = this.receive(); // get the incoming requests
-          if (request.equalsIgnoreCase("server shutdown") || request.equalsIgnoreCase("server stop")) { // if the client sends a stop/shutdown request
-            this.send("Server is shutting down..."); // acknowledge
-            isRunning = false; // prepare the shutdown process
-          } else {
-            String reply = this.parseExecution(request, this.clientSocket, this.packetSize);
-            this.send(reply); // process the request and send the result back to the client
-            this.logger.log("Responded with " + reply); // log the response
-          }
+          Socket clientSocket = this.serverSocket.accept(); // wait for a client's connection
+          this.connections.add(clientSocket);
+          this.connectionExecutor.execute(() -> this.serve(clientSocket)); // serve it on its own thread
         } catch (IOException e) {
-          System.out.println("IO: " + e.getMessage());
+          if (this.isRunning) {
+            System.out.println("IO: " + e.getMessage());
+          }
         }
       }
     } catch (IOException e) {
@@ -126,30 +298,92 @@ public class TCPServer extends AbstractServer {
    */
   @Override
   public void shutdown() {
-    this.logger.log("Received a request to shut down from <" + this.clientSocket.getInetAddress() + ">:<" + this.clientSocket.getPort() + ">");
-    System.out.println("Server is shutting down...");
-    try {
-      this.reader.close();
-    } catch (IOException r) {
-      this.logger.log("Reader: " + r.getMessage());
+    Socket requester = this.shutdownRequester;
+    if (requester != null) {
+      this.logger.log("Received a request to shut down from <" + requester.getInetAddress() + ">:<" + requester.getPort() + ">");
     }
-    try {
-      this.writer.close();
-    } catch (IOException w) {
-      this.logger.log("Writer: " + w.getMessage());
+    System.out.println("Server is shutting down...");
+    this.isRunning = false;
+    if (this.serverSocket != null) {
+      try {
+        this.serverSocket.close();
+      } catch (IOException ss) {
+        this.logger.log("Server socket: " + ss.getMessage());
+      }
     }
-    try {
-      this.serverSocket.close();
-    } catch (IOException ss) {
-      this.logger.log("Server socket: " + ss.getMessage());
+    for (Socket clientSocket : this.connections) { // disconnect every remaining client
+      try {
+        clientSocket.close();
+      } catch (IOException cs) {
+        this.logger.log("Client socket: " + cs.getMessage());
+      }
     }
-    try {
-      this.clientSocket.close();
-    } catch (IOException cs) {
-      this.logger.log("Client socket: " + cs.getMessage());
+    if (this.connectionExecutor != null) {
+      this.connectionExecutor.shutdownNow();
+      try { // let the connections finish the request in hand before the store closes
+        if (!this.connectionExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+          this.logger.log("Some connections were still busy after " + SHUTDOWN_TIMEOUT_SECONDS + " seconds");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
     }
+    this.translationService.close();
     this.logger.log("TCPServer stopped");
     this.logger.close();
     System.out.println("Server closed");
   }
+
+  /**
+   * A connection as a recipient of invalidations. Invalidations are queued and written by a task of
+   * the connection executor, so the thread that changed a key never blocks on a slow client.
+   */
+  private final class ConnectionSubscriber implements IInvalidationSubscriber {
+    private final OutputStream out;
+    private final ReentrantLock writeLock;
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private ConnectionSubscriber(OutputStream out, ReentrantLock writeLock) {
+      this.out = out;
+      this.writeLock = writeLock;
+    }
+
+    @Override
+    public void invalidate(String key) {
+      this.pending.add(key);
+      if (this.scheduled.compareAndSet(false, true)) {
+        try {
+          connectionExecutor.execute(this::push);
+        } catch (RejectedExecutionException e) { // the server is shutting down
+          this.pending.clear();
+        }
+      }
+    }
+
+    /**
+     * Writes the queued invalidations in one flush.
+     */
+    private void push() {
+      do {
+        try {
+          this.writeLock.lock();
+          try {
+            String key;
+            while ((key = this.pending.poll()) != null) {
+              byte[] frame = BinaryProtocol.encodeInvalidation(key);
+              this.out.write(frame);
+              metrics.recordBytesOut(frame.length);
+            }
+            this.out.flush();
+          } finally {
+            this.writeLock.unlock();
+          }
+        } catch (IOException e) { // the connection is gone and is unsubscribed when its thread notices
+          this.pending.clear();
+        }
+        this.scheduled.set(false);
+      } while (!this.pending.isEmpty() && this.scheduled.compareAndSet(false, true));
+    }
+  }
 }
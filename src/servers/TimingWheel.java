@@ -0,0 +1,167 @@
+package servers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * This class represents a hierarchical timing wheel that fires deadlines on a background thread.
+ * Scheduling is a lock-free enqueue, so it never blocks the calling thread; the background thread
+ * places timeouts in one of several wheels of 64 slots, each level covering 64 times the span of the
+ * one below, and cascades a slot down a level whenever the lower wheel wraps around. Scheduling and
+ * firing a timeout are O(1), however many are pending.
+ *
+ * @param <T> the type of the items whose deadlines are tracked
+ */
+public final class TimingWheel<T> implements AutoCloseable {
+  private static final int WHEEL_BITS = 6;
+  private static final int SLOTS = 1 << WHEEL_BITS;
+  private static final int LEVELS = 5; // 64^5 ticks: about 124 days with 10 ms ticks
+  private static final long MAX_SPAN = 1L << (WHEEL_BITS * LEVELS);
+  private final long tickMillis;
+  private final long startMillis;
+  private final ObjLongConsumer<T> onExpiry;
+  private final ConcurrentLinkedQueue<Timeout<T>> scheduled = new ConcurrentLinkedQueue<>();
+  private final List<List<Timeout<T>>> slots = new ArrayList<>(LEVELS * SLOTS); // level * SLOTS + slot
+  private final Thread reaper;
+  private long currentTick; // only touched by the reaper
+  private volatile boolean closed;
+
+  /**
+   * Instantiates a new timing wheel and starts its reaper thread.
+   *
+   * @param tickMillis the resolution of the wheel in milliseconds
+   * @param onExpiry   called on the reaper thread with every item and its deadline once it is due
+   */
+  public TimingWheel(long tickMillis, ObjLongConsumer<T> onExpiry) {
+    this.tickMillis = Math.max(1, tickMillis);
+    this.startMillis = System.currentTimeMillis();
+    this.onExpiry = onExpiry;
+    for (int i = 0; i < LEVELS * SLOTS; i++) {
+      this.slots.add(new ArrayList<>());
+    }
+    this.reaper = new Thread(this::run, "TimingWheel-reaper");
+    this.reaper.setDaemon(true);
+    this.reaper.start();
+  }
+
+  /**
+   * Schedules an item to be handed to the expiry callback at a deadline. An item can be scheduled
+   * several times; the callback receives the deadline, so it can ignore the stale ones.
+   *
+   * @param item           the item
+   * @param deadlineMillis the deadline, in milliseconds since the epoch
+   */
+  public void schedule(T item, long deadlineMillis) {
+    this.scheduled.add(new Timeout<>(item, deadlineMillis));
+  }
+
+  /**
+   * Stops the reaper thread. Pending timeouts are discarded.
+   */
+  @Override
+  public void close() {
+    this.closed = true;
+    this.reaper.interrupt();
+  }
+
+  /**
+   * Runs on the reaper thread: advances the wheel one tick at a time up to the current time.
+   */
+  private void run() {
+    while (!this.closed) {
+      long targetTick = (System.currentTimeMillis() - this.startMillis) / this.tickMillis;
+      while (this.currentTick < targetTick) {
+        this.drainScheduled();
+        this.advance();
+      }
+      this.drainScheduled();
+      try {
+        TimeUnit.MILLISECONDS.sleep(this.tickMillis);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private void drainScheduled() {
+    Timeout<T> timeout;
+    while ((timeout = this.scheduled.poll()) != null) {
+      this.place(timeout);
+    }
+  }
+
+  /**
+   * Moves to the next tick: cascades the higher-level slots that are now due, from the top down, and
+   * fires the timeouts of the lowest-level slot.
+   */
+  private void advance() {
+    this.currentTick++;
+    for (int level = LEVELS - 1; level > 0; level--) {
+      long levelTick = this.currentTick >>> (WHEEL_BITS * level);
+      if (levelTick << (WHEEL_BITS * level) == this.currentTick) { // the wheel below wrapped around
+        List<Timeout<T>> slot = this.slots.get(level * SLOTS + (int) (levelTick & (SLOTS - 1)));
+        if (!slot.isEmpty()) {
+          List<Timeout<T>> cascaded = new ArrayList<>(slot);
+          slot.clear();
+          for (Timeout<T> timeout : cascaded) {
+            this.place(timeout);
+          }
+        }
+      }
+    }
+    List<Timeout<T>> due = this.slots.get((int) (this.currentTick & (SLOTS - 1)));
+    if (!due.isEmpty()) {
+      List<Timeout<T>> fired = new ArrayList<>(due);
+      due.clear();
+      for (Timeout<T> timeout : fired) {
+        this.fire(timeout);
+      }
+    }
+  }
+
+  /**
+   * Puts a timeout in the lowest level whose span covers its deadline, or fires it if it is due.
+   */
+  private void place(Timeout<T> timeout) {
+    long deadlineTick = Math.max(0, timeout.deadlineMillis - this.startMillis + this.tickMillis - 1) / this.tickMillis;
+    long ticks = deadlineTick - this.currentTick;
+    if (ticks <= 0) {
+      this.fire(timeout);
+      return;
+    }
+    if (ticks >= MAX_SPAN) { // beyond the top wheel: park it as far as possible and re-place it then
+      deadlineTick = this.currentTick + MAX_SPAN - 1;
+      ticks = MAX_SPAN - 1;
+    }
+    int level = 0;
+    while (ticks >= 1L << (WHEEL_BITS * (level + 1))) {
+      level++;
+    }
+    int slot = (int) ((deadlineTick >>> (WHEEL_BITS * level)) & (SLOTS - 1));
+    this.slots.get(level * SLOTS + slot).add(timeout);
+  }
+
+  private void fire(Timeout<T> timeout) {
+    try {
+      this.onExpiry.accept(timeout.item, timeout.deadlineMillis);
+    } catch (RuntimeException e) {
+      System.err.println("Timing wheel: " + e);
+    }
+  }
+
+  /**
+   * An item and its deadline.
+   */
+  private static final class Timeout<T> {
+    private final T item;
+    private final long deadlineMillis;
+
+    private Timeout(T item, long deadlineMillis) {
+      this.item = item;
+      this.deadlineMillis = deadlineMillis;
+    }
+  }
+}
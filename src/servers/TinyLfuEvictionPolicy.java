@@ -0,0 +1,338 @@
+package servers;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class represents a W-TinyLFU policy. New keys enter a small LRU window; keys leaving the window
+ * join the probation segment of a segmented LRU, and a key read while on probation is promoted to the
+ * protected segment. When space is needed, the newest key on probation competes with the oldest one
+ * and the one a frequency sketch deems less popular is evicted, so a burst of one-off keys cannot
+ * flush the popular ones.
+ *
+ * <p>Reads do not touch the LRU lists directly: a read looks the node of its key up without the lock,
+ * so that it copies no key, and records the node in striped, lossy ring buffers that are replayed
+ * under a lock by whichever thread fills a buffer, if the lock is free, and by the next writer
+ * otherwise. A full buffer drops reads rather than wait.
+ */
+public class TinyLfuEvictionPolicy implements IEvictionPolicy {
+  private static final int BUFFER_STRIPES = 16;
+  private static final int BUFFER_SIZE = 64;
+  private static final int WINDOW_PERCENT = 1;
+  private static final int PROTECTED_PERCENT = 80; // of the main space
+  private final ReentrantLock lock = new ReentrantLock();
+  private final AtomicReferenceArray<Node>[] readBuffers;
+  private final AtomicInteger[] readCounts = new AtomicInteger[BUFFER_STRIPES];
+  private final FrequencySketch sketch;
+  private final ConcurrentHashMap<FoldedKey, Node> nodes = new ConcurrentHashMap<>(); // changed under the lock only
+  private final Deque window = new Deque(); // oldest first
+  private final Deque probation = new Deque();
+  private final Deque protectedSegment = new Deque();
+  private final long maxWindowWeight;
+  private final long maxProtectedWeight;
+  private long windowWeight;
+  private long protectedWeight;
+  private long weightedSize;
+
+  /**
+   * Instantiates a new W-TinyLFU policy.
+   *
+   * @param maximumWeight   the weight the bounded translation service keeps its pairs under
+   * @param expectedEntries the expected number of pairs at that weight, to size the frequency sketch
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public TinyLfuEvictionPolicy(long maximumWeight, int expectedEntries) {
+    this.maxWindowWeight = Math.max(1, maximumWeight * WINDOW_PERCENT / 100);
+    this.maxProtectedWeight = (maximumWeight - this.maxWindowWeight) * PROTECTED_PERCENT / 100;
+    this.sketch = new FrequencySketch(expectedEntries);
+    this.readBuffers = new AtomicReferenceArray[BUFFER_STRIPES];
+    for (int i = 0; i < BUFFER_STRIPES; i++) {
+      this.readBuffers[i] = new AtomicReferenceArray<>(BUFFER_SIZE);
+      this.readCounts[i] = new AtomicInteger();
+    }
+  }
+
+  /**
+   * Records a read of a tracked key in the buffer of the calling thread, replaying the buffers if it
+   * is full and nobody else is.
+   *
+   * @param key the key
+   */
+  @Override
+  public void recordAccess(CharSequence key) {
+    Node node = this.nodes.get(FoldedKey.probe(key));
+    if (node == null) { // evicted or removed meanwhile
+      return;
+    }
+    int stripe = (int) Thread.currentThread().getId() & (BUFFER_STRIPES - 1);
+    int index = this.readCounts[stripe].getAndIncrement();
+    if (index < BUFFER_SIZE) {
+      this.readBuffers[stripe].lazySet(index, node);
+    }
+    if (index >= BUFFER_SIZE - 1 && this.lock.tryLock()) {
+      try {
+        this.drainReadBuffers();
+      } finally {
+        this.lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Adds a key to the window, or updates its weight and treats the write as a read.
+   *
+   * @param key    the key
+   * @param weight the weight of the pair
+   */
+  @Override
+  public void recordWrite(String key, long weight) {
+    this.lock.lock();
+    try {
+      this.drainReadBuffers();
+      FoldedKey foldedKey = new FoldedKey(key);
+      this.sketch.increment(foldedKey.hashCode());
+      Node node = this.nodes.get(foldedKey);
+      if (node != null) {
+        this.adjustWeight(node, weight - node.weight);
+        node.weight = weight;
+        this.onRead(node);
+        return;
+      }
+      node = new Node(foldedKey, weight);
+      this.nodes.put(foldedKey, node);
+      this.window.addLast(node);
+      this.windowWeight += weight;
+      this.weightedSize += weight;
+      while (this.windowWeight > this.maxWindowWeight && this.window.size > 1) { // the oldest keys try their luck on probation
+        Node candidate = this.window.removeFirst();
+        this.windowWeight -= candidate.weight;
+        candidate.segment = Segment.PROBATION;
+        this.probation.addLast(candidate);
+      }
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Forgets a key.
+   *
+   * @param key the key
+   */
+  @Override
+  public void recordRemoval(String key) {
+    this.lock.lock();
+    try {
+      Node node = this.nodes.remove(new FoldedKey(key));
+      if (node != null) {
+        this.unlink(node);
+      }
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Pits the newest key on probation against the oldest one and evicts the less popular, preferring
+   * to keep the one already there on a tie. Falls back to the protected segment and then the window.
+   *
+   * @return the key, or null if no key is tracked
+   */
+  @Override
+  public String evict() {
+    this.lock.lock();
+    try {
+      this.drainReadBuffers();
+      Node evicted;
+      if (this.probation.size > 1) {
+        Node victim = this.probation.first;
+        Node candidate = this.probation.last;
+        evicted = this.sketch.frequency(candidate.key.hashCode()) > this.sketch.frequency(victim.key.hashCode()) ? victim : candidate;
+      } else if (this.probation.size == 1) {
+        evicted = this.probation.first;
+      } else if (this.protectedSegment.size > 0) {
+        evicted = this.protectedSegment.first;
+      } else if (this.window.size > 0) {
+        evicted = this.window.first;
+      } else {
+        return null;
+      }
+      this.nodes.remove(evicted.key);
+      this.unlink(evicted);
+      return evicted.key.toString();
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Gets the total weight of the tracked keys.
+   *
+   * @return the weighted size
+   */
+  @Override
+  public long weightedSize() {
+    this.lock.lock();
+    try {
+      return this.weightedSize;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Replays the buffered reads. Must hold the lock.
+   */
+  private void drainReadBuffers() {
+    for (int stripe = 0; stripe < BUFFER_STRIPES; stripe++) {
+      int count = Math.min(this.readCounts[stripe].get(), BUFFER_SIZE);
+      if (count == 0) {
+        continue;
+      }
+      AtomicReferenceArray<Node> buffer = this.readBuffers[stripe];
+      for (int i = 0; i < count; i++) {
+        Node node = buffer.getAndSet(i, null); // null if the reader has not stored it yet: lost
+        if (node != null) {
+          this.sketch.increment(node.key.hashCode());
+          if (this.nodes.get(node.key) == node) { // still tracked, and not since removed and added again
+            this.onRead(node);
+          }
+        }
+      }
+      this.readCounts[stripe].set(0);
+    }
+  }
+
+  /**
+   * Moves a key to the young end of its segment, promoting it out of probation. Must hold the lock.
+   */
+  private void onRead(Node node) {
+    switch (node.segment) {
+      case WINDOW:
+        this.window.moveToLast(node);
+        break;
+      case PROBATION:
+        this.probation.remove(node);
+        node.segment = Segment.PROTECTED;
+        this.protectedSegment.addLast(node);
+        this.protectedWeight += node.weight;
+        while (this.protectedWeight > this.maxProtectedWeight && this.protectedSegment.size > 1) {
+          Node demoted = this.protectedSegment.removeFirst();
+          this.protectedWeight -= demoted.weight;
+          demoted.segment = Segment.PROBATION;
+          this.probation.addFirst(demoted); // next in line, ahead of the keys that never earned promotion
+        }
+        break;
+      default:
+        this.protectedSegment.moveToLast(node);
+        break;
+    }
+  }
+
+  private void adjustWeight(Node node, long delta) {
+    if (node.segment == Segment.WINDOW) {
+      this.windowWeight += delta;
+    } else if (node.segment == Segment.PROTECTED) {
+      this.protectedWeight += delta;
+    }
+    this.weightedSize += delta;
+  }
+
+  private void unlink(Node node) {
+    if (node.segment == Segment.WINDOW) {
+      this.window.remove(node);
+    } else if (node.segment == Segment.PROBATION) {
+      this.probation.remove(node);
+    } else {
+      this.protectedSegment.remove(node);
+    }
+    this.adjustWeight(node, -node.weight);
+  }
+
+  /**
+   * The segments a key can be in.
+   */
+  private enum Segment {
+    WINDOW, PROBATION, PROTECTED
+  }
+
+  /**
+   * A tracked key.
+   */
+  private static final class Node {
+    private final FoldedKey key;
+    private long weight;
+    private Segment segment = Segment.WINDOW;
+    private Node previous;
+    private Node next;
+
+    private Node(FoldedKey key, long weight) {
+      this.key = key;
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * A doubly linked list of keys threaded through their nodes, oldest first.
+   */
+  private static final class Deque {
+    private Node first;
+    private Node last;
+    private int size;
+
+    private void addLast(Node node) {
+      node.previous = this.last;
+      node.next = null;
+      if (this.last == null) {
+        this.first = node;
+      } else {
+        this.last.next = node;
+      }
+      this.last = node;
+      this.size++;
+    }
+
+    private void addFirst(Node node) {
+      node.previous = null;
+      node.next = this.first;
+      if (this.first == null) {
+        this.last = node;
+      } else {
+        this.first.previous = node;
+      }
+      this.first = node;
+      this.size++;
+    }
+
+    private Node removeFirst() {
+      Node node = this.first;
+      this.remove(node);
+      return node;
+    }
+
+    private void remove(Node node) {
+      if (node.previous == null) {
+        this.first = node.next;
+      } else {
+        node.previous.next = node.next;
+      }
+      if (node.next == null) {
+        this.last = node.previous;
+      } else {
+        node.next.previous = node.previous;
+      }
+      node.previous = null;
+      node.next = null;
+      this.size--;
+    }
+
+    private void moveToLast(Node node) {
+      if (node != this.last) {
+        this.remove(node);
+        this.addLast(node);
+      }
+    }
+  }
+}
@@ -0,0 +1,232 @@
+package servers;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class represents a translation service that remembers which subscribers read which keys and
+ * invalidates a key at each of them once it changes, so that clients can cache what they read. A key
+ * is tracked from the read that precedes the change up to the change, and must be read again to be
+ * tracked again. It decorates the store itself, so that pairs removed by eviction and expiry are
+ * invalidated as well.
+ *
+ * <p>A key must be tracked before it is read: a change that lands between the two is then
+ * invalidated too, at worst needlessly.
+ *
+ * <p>Tracked keys are {@link FoldedKey}s, so a write of a key parsed into a {@link CharSlice} checks
+ * whether anyone read it without copying the key.
+ */
+public class TrackingTranslationService extends AbstractTranslationServiceDecorator {
+  private final ConcurrentHashMap<FoldedKey, Set<IInvalidationSubscriber>> readers = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<IInvalidationSubscriber, Set<FoldedKey>> subscriptions = new ConcurrentHashMap<>();
+  private final int maxTrackedKeys;
+
+  /**
+   * Instantiates a new tracking translation service.
+   *
+   * @param delegate       the decorated translation service
+   * @param maxTrackedKeys the number of keys tracked at most; beyond it, arbitrary keys are invalidated early
+   */
+  public TrackingTranslationService(ITranslationService delegate, int maxTrackedKeys) {
+    super(delegate);
+    this.maxTrackedKeys = Math.max(1, maxTrackedKeys);
+  }
+
+  /**
+   * Starts tracking the keys a subscriber reads.
+   *
+   * @param subscriber the subscriber
+   */
+  public void subscribe(IInvalidationSubscriber subscriber) {
+    this.subscriptions.putIfAbsent(subscriber, ConcurrentHashMap.newKeySet());
+  }
+
+  /**
+   * Stops tracking the keys of a subscriber, when it turns tracking off or disconnects.
+   *
+   * @param subscriber the subscriber
+   */
+  public void unsubscribe(IInvalidationSubscriber subscriber) {
+    Set<FoldedKey> keys = this.subscriptions.remove(subscriber);
+    if (keys == null) {
+      return;
+    }
+    for (FoldedKey key : keys) {
+      this.readers.computeIfPresent(key, (k, subscribers) -> {
+        subscribers.remove(subscriber);
+        return subscribers.isEmpty() ? null : subscribers;
+      });
+    }
+  }
+
+  /**
+   * Tells whether a subscriber has tracking on.
+   *
+   * @param subscriber the subscriber
+   * @return true if the keys it reads are tracked
+   */
+  public boolean isSubscribed(IInvalidationSubscriber subscriber) {
+    return this.subscriptions.containsKey(subscriber);
+  }
+
+  /**
+   * Tracks a key for a subscriber that is about to read it. Does nothing if the subscriber does not
+   * have tracking on.
+   *
+   * @param key        the key
+   * @param subscriber the subscriber
+   */
+  public void track(CharSequence key, IInvalidationSubscriber subscriber) {
+    Set<FoldedKey> keys = this.subscriptions.get(subscriber);
+    if (keys == null) {
+      return;
+    }
+    FoldedKey foldedKey = new FoldedKey(key); // kept until the key changes
+    this.readers.compute(foldedKey, (k, subscribers) -> { // atomic with the removal in invalidate
+      if (subscribers == null) {
+        subscribers = ConcurrentHashMap.newKeySet();
+      }
+      subscribers.add(subscriber);
+      return subscribers;
+    });
+    keys.add(foldedKey);
+    if (this.readers.size() > this.maxTrackedKeys) { // forget an arbitrary key, telling its readers to do the same
+      this.invalidate(this.readers.keys().nextElement());
+    }
+  }
+
+  /**
+   * Saves a key-value pair and invalidates the key.
+   *
+   * @param key   the word to be translated
+   * @param value the translation
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(String key, String value) {
+    String result = this.delegate.put(key, value);
+    this.invalidate(key);
+    return result;
+  }
+
+  /**
+   * Saves a key-value pair that expires after a while and invalidates the key.
+   *
+   * @param key       the word to be translated
+   * @param value     the translation
+   * @param ttlMillis the time to live in milliseconds
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(String key, String value, long ttlMillis) {
+    String result = this.delegate.put(key, value, ttlMillis);
+    this.invalidate(key);
+    return result;
+  }
+
+  /**
+   * Removes a key-value pair and invalidates the key.
+   *
+   * @param key the word to be deleted
+   * @return the outcome of the operation
+   */
+  @Override
+  public String delete(String key) {
+    String result = this.delegate.delete(key);
+    this.invalidate(key);
+    return result;
+  }
+
+  /**
+   * Saves a key-value pair given as views over a request buffer and invalidates the key.
+   *
+   * @param key   the word to be translated
+   * @param value the translation
+   * @return the outcome of the operation
+   */
+  @Override
+  public String put(CharSequence key, CharSequence value) {
+    String result = this.delegate.put(key, value);
+    this.invalidate(key);
+    return result;
+  }
+
+  /**
+   * Removes a key-value pair whose key is given as a view over a request buffer and invalidates the
+   * key.
+   *
+   * @param key the word to be deleted
+   * @return the outcome of the operation
+   */
+  @Override
+  public String delete(CharSequence key) {
+    String result = this.delegate.delete(key);
+    this.invalidate(key);
+    return result;
+  }
+
+  /**
+   * Saves several key-value pairs and invalidates their keys.
+   *
+   * @param keys   the words to be translated
+   * @param values the translations, in the order of the keys
+   * @return the outcome of the operation
+   */
+  @Override
+  public String putAll(List<String> keys, List<String> values) {
+    String result = this.delegate.putAll(keys, values);
+    for (String key : keys) {
+      this.invalidate(key);
+    }
+    return result;
+  }
+
+  /**
+   * Removes several key-value pairs and invalidates their keys.
+   *
+   * @param keys the words to be deleted
+   * @return the outcome of the operation, which names the keys that did not exist
+   */
+  @Override
+  public String deleteAll(List<String> keys) {
+    String result = this.delegate.deleteAll(keys);
+    for (String key : keys) {
+      this.invalidate(key);
+    }
+    return result;
+  }
+
+  /**
+   * Describes how many keys and subscribers are tracked.
+   *
+   * @return the description
+   */
+  @Override
+  public String toString() {
+    return this.readers.size() + " tracked keys, " + this.subscriptions.size() + " subscribers";
+  }
+
+  /**
+   * Stops tracking a key and tells every subscriber that read it. The key is only copied if someone
+   * read it.
+   */
+  private void invalidate(CharSequence key) {
+    if (this.readers.isEmpty()) {
+      return;
+    }
+    Object probe = FoldedKey.probe(key);
+    Set<IInvalidationSubscriber> subscribers = this.readers.remove(probe);
+    if (subscribers == null) {
+      return;
+    }
+    String lowerCaseKey = FoldedKey.fold(key);
+    for (IInvalidationSubscriber subscriber : subscribers) {
+      Set<FoldedKey> keys = this.subscriptions.get(subscriber);
+      if (keys != null) {
+        keys.remove(probe);
+      }
+      subscriber.invalidate(lowerCaseKey);
+    }
+  }
+}
@@ -1,12 +1,16 @@
 package servers;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.function.BiConsumer;
 
 /**
- * This class represents a translation service.
+ * This class represents a translation service. Keys are {@link FoldedKey}s, so every lookup is a
+ * single probe, and one with a key parsed into a {@link CharSlice} allocates nothing.
  */
 public class TranslationService implements ITranslationService {
-  private final HashMap<String, String> dictionary;
+  private final HashMap<FoldedKey, String> dictionary;
 
   /**
    * Instantiates a new translation service.
@@ -24,7 +28,7 @@ public class TranslationService implements ITranslationService {
    */
   @Override
   public String put(String key, String value) {
-    this.dictionary.put(key.toLowerCase(), value.toLowerCase());
+    this.dictionary.put(new FoldedKey(key), value.toLowerCase());
     return "SUCCESS";
   }
 
@@ -36,14 +40,7 @@ public class TranslationService implements ITranslationService {
    */
   @Override
   public String get(String key) {
-    key = key.toLowerCase();
-    String translation;
-    if (this.dictionary.containsKey(key)) {
-      translation = this.dictionary.get(key);
-    } else {
-      translation = "FAIL: I don't know the translation for " + "\"" + key + "\"" + " yet";
-    }
-    return translation;
+    return this.get((CharSequence) key);
   }
 
   /**
@@ -54,12 +51,68 @@ public class TranslationService implements ITranslationService {
    */
   @Override
   public String delete(String key) {
-    key = key.toLowerCase();
-    if (this.dictionary.containsKey(key)) {
-      this.dictionary.remove(key);
+    return this.delete((CharSequence) key);
+  }
+
+  /**
+   * Retrieves the value of a key given as a view over a request buffer.
+   *
+   * @param key the word to be translated
+   * @return the translation
+   */
+  @Override
+  public String get(CharSequence key) {
+    String translation = this.dictionary.get(FoldedKey.probe(key)); // values are never null
+    return translation == null ? ITranslationService.notFound(FoldedKey.fold(key)) : translation;
+  }
+
+  /**
+   * Removes a key-value pair whose key is given as a view over a request buffer.
+   *
+   * @param key the word to be deleted
+   * @return the outcome of the operation
+   */
+  @Override
+  public String delete(CharSequence key) {
+    if (this.dictionary.remove(FoldedKey.probe(key)) != null) {
       return "SUCCESS";
     } else {
-      return "FAIL: " + "\"" + key + "\" " + "does not exist";
+      return "FAIL: " + "\"" + FoldedKey.fold(key) + "\" " + "does not exist";
     }
   }
+
+  /**
+   * Retrieves the values of several keys.
+   *
+   * @param keys the words to be translated
+   * @return the translations, in the order of the keys, with null for every unknown key
+   */
+  @Override
+  public List<String> getAll(List<String> keys) {
+    List<String> values = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      values.add(this.dictionary.get(new FoldedKey(key)));
+    }
+    return values;
+  }
+
+  /**
+   * Gets the number of key-value pairs.
+   *
+   * @return the number of key-value pairs
+   */
+  @Override
+  public int size() {
+    return this.dictionary.size();
+  }
+
+  /**
+   * Performs an action for every key-value pair.
+   *
+   * @param action the action
+   */
+  @Override
+  public void forEach(BiConsumer<String, String> action) {
+    this.dictionary.forEach((key, value) -> action.accept(key.toString(), value));
+  }
 }
@@ -1,52 +1,346 @@
 package servers;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import utils.BinaryProtocol;
+import utils.FragmentReassembler;
 
 /**
  * The class UDP server represents a translation server that communicates via the UDP protocol.
+ * Requests are received by a configurable number of worker threads. Where the platform supports
+ * SO_REUSEPORT every worker binds its own channel and the kernel spreads datagrams across them,
+ * otherwise all workers drain one shared channel. A client address that turns tracking on is sent
+ * invalidations as datagrams, which, like replies, may be lost. They are queued and sent by a thread
+ * of their own, so the thread that changed a key never waits on a socket.
+ *
+ * <p>Requests and replies that do not fit in a datagram sized for the path MTU travel as fragments:
+ * the workers share the buffers requests are reassembled in, which drop a request whose fragments do
+ * not all arrive in time. Anything that fits in a datagram takes the same path as before.
+ *
+ * <p>A request that carries a request id is answered with a reply carrying the same id, which the
+ * workers keep in a bounded {@link ReplyCache}: when the client sends the request again, because the
+ * request or its reply was lost, it is answered with the same reply rather than applied twice.
  */
 public class UDPServer extends AbstractServer {
-  private DatagramSocket socket;
-  private DatagramPacket request;
+  private static final int BUFFER_SIZE = BinaryProtocol.MAX_DATAGRAM_LENGTH;
+  private static final long MAX_PENDING_BYTES = 64L * 1024 * 1024;
+  private static final int MAX_PARTIAL_REQUESTS_PER_CLIENT = 16;
+  private static final long REASSEMBLY_TIMEOUT_MILLIS = 1000;
+  private static final int REPLY_CACHE_ENTRIES = 64 * 1024;
+  private static final long REPLY_CACHE_BYTES = 64L * 1024 * 1024;
+  private static final long REPLY_CACHE_CLAIM_TIMEOUT_MILLIS = 30_000;
+  private final int workerCount;
+  private final AtomicInteger messageIds = new AtomicInteger();
+  private int datagramLength = BinaryProtocol.datagramLength(BinaryProtocol.DEFAULT_MTU);
+  private FragmentReassembler reassembler = new FragmentReassembler(BinaryProtocol.MAX_REQUEST_LENGTH, MAX_PENDING_BYTES,
+      MAX_PARTIAL_REQUESTS_PER_CLIENT, REASSEMBLY_TIMEOUT_MILLIS);
+  private ReplyCache replyCache = new ReplyCache(REPLY_CACHE_ENTRIES, REPLY_CACHE_BYTES, REPLY_CACHE_CLAIM_TIMEOUT_MILLIS);
+  private DatagramChannel[] channels;
+  private Thread[] workers;
+  private final ConcurrentHashMap<InetSocketAddress, IInvalidationSubscriber> subscribers = new ConcurrentHashMap<>();
+  private final ExecutorService pushExecutor = Executors.newSingleThreadExecutor(task -> {
+    Thread thread = new Thread(task, "UDPServer-invalidations");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private volatile boolean isRunning;
+  private volatile InetSocketAddress shutdownRequester;
 
   /**
-   * Instantiates a new UDP translation server.
+   * Instantiates a new UDP translation server with a single worker.
    *
    * @param port the port
    */
   public UDPServer(String port) {
+    this(port, 1);
+  }
+
+  /**
+   * Instantiates a new UDP translation server.
+   *
+   * @param port        the port
+   * @param workerCount the number of receive workers
+   */
+  public UDPServer(String port, int workerCount) {
     super(port);
+    this.workerCount = Math.max(1, workerCount);
+  }
+
+  /**
+   * Sets the MTU of the paths to the clients, which replies are split into datagrams for.
+   *
+   * @param mtu the MTU in bytes
+   */
+  public void setMtu(int mtu) {
+    this.datagramLength = BinaryProtocol.datagramLength(mtu);
+  }
+
+  /**
+   * Sets how long the fragments of a request may take to arrive before it is dropped.
+   *
+   * @param timeoutMillis the timeout in milliseconds
+   */
+  public void setReassemblyTimeoutMillis(long timeoutMillis) {
+    this.reassembler = new FragmentReassembler(BinaryProtocol.MAX_REQUEST_LENGTH, MAX_PENDING_BYTES,
+        MAX_PARTIAL_REQUESTS_PER_CLIENT, timeoutMillis);
+  }
+
+  /**
+   * Sets how many of the latest replies to requests that carry a request id are kept, to answer the
+   * requests clients send again.
+   *
+   * @param maxEntries the number of replies kept at most
+   * @param maxBytes   the number of reply bytes kept at most
+   */
+  public void setReplyCache(int maxEntries, long maxBytes) {
+    this.replyCache = new ReplyCache(maxEntries, maxBytes, REPLY_CACHE_CLAIM_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Opens the channels the workers receive from: one per worker bound with SO_REUSEPORT when
+   * available, or a single channel shared by every worker.
+   *
+   * @return the UDP channels
+   * @throws IOException if a channel could not be opened or bound
+   */
+  private DatagramChannel[] openChannels() throws IOException {
+    DatagramChannel first = DatagramChannel.open();
+    if (this.workerCount == 1 || !first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+      first.bind(new InetSocketAddress(this.portNumber));
+      return new DatagramChannel[] {first};
+    }
+    DatagramChannel[] channels = new DatagramChannel[this.workerCount];
+    channels[0] = first;
+    try {
+      for (int i = 0; i < this.workerCount; i++) {
+        if (channels[i] == null) {
+          channels[i] = DatagramChannel.open();
+        }
+        channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        channels[i].bind(new InetSocketAddress(this.portNumber));
+      }
+    } catch (IOException e) {
+      for (DatagramChannel channel : channels) {
+        if (channel != null) {
+          channel.close();
+        }
+      }
+      throw e;
+    }
+    return channels;
+  }
+
+  /**
+   * Sends a reply, split into fragments if it does not fit in one datagram.
+   *
+   * @param channel the UDP channel
+   * @param reply   the encoded reply
+   * @param buffer  the send buffer
+   * @param client  the client's address
+   * @throws IOException if a datagram could not be sent
+   */
+  private void send(DatagramChannel channel, byte[] reply, ByteBuffer buffer, InetSocketAddress client) throws IOException {
+    if (reply.length <= this.datagramLength) {
+      this.metrics.recordBytesOut(channel.send(this.encode(reply, buffer), client));
+      return;
+    }
+    for (byte[] datagram : BinaryProtocol.fragment(reply, this.messageIds.incrementAndGet(), this.datagramLength)) {
+      this.metrics.recordBytesOut(channel.send(this.encode(datagram, buffer), client));
+    }
+  }
+
+  /**
+   * Prefixes the reply to a request that carried a request id with the same id, and keeps it for when
+   * the client sends the request again.
+   *
+   * @param reply     the reply
+   * @param offset    the length of the request id header of the request, 0 if it had none
+   * @param requestId the request id
+   * @param client    the client's address
+   * @return the reply to send
+   */
+  private byte[] identify(byte[] reply, int offset, int requestId, InetSocketAddress client) {
+    if (offset == 0) {
+      return reply;
+    }
+    byte[] identified = BinaryProtocol.withRequestId(requestId, reply, 0, reply.length);
+    this.replyCache.complete(client, requestId, identified);
+    return identified;
+  }
+
+  private ByteBuffer encode(byte[] message, ByteBuffer buffer) {
+    buffer.clear();
+    buffer.put(message, 0, Math.min(message.length, buffer.capacity()));
+    return buffer.flip();
   }
 
   /**
-   * Sets the UDP socket.
+   * Gets the subscriber of a client address: created by a TRACKING request, and known for as long as
+   * the address has tracking on.
    *
-   * @param socket the UDP socket
+   * @param parser the parser holding the request
+   * @param client the client's address
+   * @return the subscriber, or null if the address does not have tracking on
    */
-  private void setSocket(DatagramSocket socket) {
-    this.socket = socket;
+  private IInvalidationSubscriber subscriberOf(RequestParser parser, InetSocketAddress client) {
+    if (this.trackingService == null) {
+      return null;
+    }
+    if (parser.getOpcode() == BinaryProtocol.OP_TRACKING) {
+      return this.subscribers.computeIfAbsent(client, AddressSubscriber::new);
+    }
+    return this.subscribers.isEmpty() ? null : this.subscribers.get(client);
+  }
+
+  /**
+   * Forgets the subscriber of a client address once it turned tracking off.
+   */
+  private void forgetUnsubscribed(IInvalidationSubscriber subscriber, InetSocketAddress client) {
+    if (subscriber != null && !this.trackingService.isSubscribed(subscriber)) {
+      this.subscribers.remove(client, subscriber);
+    }
   }
 
   /**
-   * Sets the request.
+   * Receives, processes and answers requests until the server is stopped.
    *
-   * @param request the request
+   * @param channel the UDP channel this worker receives from
    */
-  private void setRequest(DatagramPacket request) {
-    this.request = request;
+  private void work(DatagramChannel channel) {
+    ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE); // every worker owns its buffers
+    ByteBuffer sendBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    RequestParser parser = new RequestParser();
+    while (this.isRunning) { // keep running
+      InetSocketAddress sender = null;
+      int offset = 0;
+      int requestId = 0;
+      boolean binary = false;
+      try {
+        receiveBuffer.clear();
+        sender = (InetSocketAddress) channel.receive(receiveBuffer); // get the incoming request
+        receiveBuffer.flip();
+        int packetLength = receiveBuffer.remaining();
+        this.metrics.recordBytesIn(packetLength);
+        byte[] data = parser.inputBuffer(packetLength);
+        receiveBuffer.get(data, 0, packetLength);
+        if (packetLength > 0 && data[0] == BinaryProtocol.FRAGMENT_MAGIC) { // part of a request
+          byte[] request = this.reassembler.add(sender, data, packetLength);
+          if (request == null) { // more fragments to come
+            continue;
+          }
+          packetLength = request.length;
+          data = parser.inputBuffer(packetLength);
+          System.arraycopy(request, 0, data, 0, packetLength);
+        }
+        if (packetLength >= BinaryProtocol.REQUEST_ID_HEADER_LENGTH && data[0] == BinaryProtocol.REQUEST_ID_MAGIC) {
+          requestId = BinaryProtocol.readInt(data, 1);
+          byte[] sent = this.replyCache.claim(sender, requestId);
+          if (sent != null) { // sent again by the client
+            this.metrics.recordDuplicate();
+            if (sent.length > 0) { // otherwise still being executed: drop it
+              this.send(channel, sent, sendBuffer, sender);
+            }
+            continue;
+          }
+          offset = BinaryProtocol.REQUEST_ID_HEADER_LENGTH;
+        }
+        if (packetLength > offset && data[offset] == BinaryProtocol.MAGIC) { // a binary frame
+          binary = true;
+          int outcome = parser.parseBinary(data, offset, packetLength - offset);
+          IInvalidationSubscriber subscriber = this.subscriberOf(parser, sender);
+          byte[] reply = this.executeBinary(parser, outcome, subscriber, sender.getAddress(), sender.getPort());
+          this.forgetUnsubscribed(subscriber, sender);
+          this.send(channel, this.identify(reply, offset, requestId, sender), sendBuffer, sender); // send the result back to the client
+          if (this.logger.isEnabled()) {
+            this.logger.log("Responded with binary status " + reply[1]); // log the response
+          }
+          continue;
+        }
+        int outcome = parser.parseText(data, offset, packetLength - offset);
+        if (parser.isShutdownRequest()) { // if the client sends a stop/shutdown request
+          byte[] acknowledgement = "Server is shutting down...".getBytes(StandardCharsets.UTF_8);
+          channel.send(this.encode(this.identify(acknowledgement, offset, requestId, sender), sendBuffer), sender); // acknowledge
+          this.stop(sender); // prepare the shutdown process
+        } else {
+          IInvalidationSubscriber subscriber = this.subscriberOf(parser, sender);
+          byte[] reply = this.executeText(parser, outcome, subscriber, sender.getAddress(), sender.getPort()); // process the request
+          this.forgetUnsubscribed(subscriber, sender);
+          this.send(channel, this.identify(reply, offset, requestId, sender), sendBuffer, sender); // send the result back to the client
+          if (this.logger.isEnabled()) {
+            this.logger.log("Responded with " + new String(reply, StandardCharsets.UTF_8)); // log the response
+          }
+        }
+      } catch (ClosedChannelException e) { // another worker stopped the server
+        break;
+      } catch (IOException e) {
+        this.metrics.recordError();
+        this.logger.log("IO: " + e.getMessage());
+      } catch (RuntimeException e) { // a bug must not take the worker, or the request's claim, with it
+        this.metrics.recordError();
+        this.logger.log("Failed: " + e);
+        if (sender != null) {
+          this.fail(channel, sendBuffer, sender, offset, requestId, binary, parser.getRequestId());
+        }
+      }
+    }
   }
 
-  private String decode(DatagramPacket packet) {
-    return new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8); // convert bytes to string
+  /**
+   * Answers a request whose execution threw with a failure, and gives up its claim so that the client
+   * can send it again.
+   *
+   * @param channel        the UDP channel
+   * @param buffer         the send buffer
+   * @param client         the client's address
+   * @param offset         the length of the request id header of the request, 0 if it had none
+   * @param requestId      the request id
+   * @param binary         whether the request was a binary frame
+   * @param frameRequestId the request id of the binary frame
+   */
+  private void fail(DatagramChannel channel, ByteBuffer buffer, InetSocketAddress client, int offset, int requestId,
+      boolean binary, int frameRequestId) {
+    String message = "FAIL: the server could not process the request";
+    byte[] reply = binary ? BinaryProtocol.encodeReply(BinaryProtocol.STATUS_FAILED, frameRequestId, message)
+        : message.getBytes(StandardCharsets.UTF_8);
+    if (offset > 0) {
+      this.replyCache.release(client, requestId);
+      reply = BinaryProtocol.withRequestId(requestId, reply, 0, reply.length);
+    }
+    try {
+      this.send(channel, reply, buffer, client);
+    } catch (IOException e) {
+      this.logger.log("IO: " + e.getMessage());
+    }
   }
 
-  private DatagramPacket encode(String reply) {
-    byte[] message = reply.getBytes(StandardCharsets.UTF_8); // convert string to bytes
-    return new DatagramPacket(message, message.length, this.request.getAddress(), this.request.getPort());
+  /**
+   * Stops every worker by closing the channels they are blocked on.
+   *
+   * @param requester the address of the client that asked the server to stop
+   */
+  private void stop(InetSocketAddress requester) {
+    this.shutdownRequester = requester;
+    this.isRunning = false;
+    for (DatagramChannel channel : this.channels) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        this.logger.log("Socket: " + e.getMessage());
+      }
+    }
   }
 
   /**
@@ -55,30 +349,23 @@ public class UDPServer extends AbstractServer {
   @Override
   public void execute() {
     try {
-      this.setSocket(new DatagramSocket(this.portNumber)); // open a new UDP socket
-      byte[] buffer = new byte[8000]; // prepare the buffer for incoming messages
-      boolean isRunning = true;
-      this.logger.log("UDPServer running...");
+      this.channels = this.openChannels(); // open the UDP channels
+      this.isRunning = true;
+      this.workers = new Thread[this.workerCount];
+      for (int i = 0; i < this.workerCount; i++) { // start the receive workers
+        DatagramChannel channel = this.channels[i % this.channels.length];
+        this.workers[i] = new Thread(() -> this.work(channel), "UDPServer-worker-" + i);
+        this.workers[i].start();
+      }
+      this.logger.log("UDPServer running with " + this.workerCount + " worker(s) on " + this.channels.length + " socket(s)...");
       System.out.println("Server is running...");
-      while (isRunning) { // keep running
-        try {
-          this.setRequest(new DatagramPacket(buffer, buffer.length)); // prepare the incoming request for processing
-          this.socket.receive(this.request); // get the incoming request
-          String request = this.decode(this.request); // convert bytes to string
-          if (request.equalsIgnoreCase("server shutdown") || request.equalsIgnoreCase("server stop")) { // if the client sends a stop/shutdown request
-            this.socket.send(this.encode("Server is shutting down...")); // acknowledge
-            isRunning = false; // prepare the shutdown process
-          } else {
-            String reply = this.parseExecution(request, this.request); // process the request
-            this.socket.send(this.encode(reply)); // send the result back to the client
-            this.logger.log("Responded with " + reply); // log the response
-          }
-        } catch (IOException e) {
-          this.logger.log("IO: " + e.getMessage());
-        }
+      for (Thread worker : this.workers) {
+        worker.join();
       }
-    } catch (SocketException e) {
+    } catch (IOException e) {
       this.logger.log("Socket: " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
     // shut down gracefully
     this.shutdown();
@@ -89,11 +376,61 @@ public class UDPServer extends AbstractServer {
    */
   @Override
   public void shutdown() {
-    this.logger.log("Received a request to shut down from <" + this.request.getAddress() + ">:<" + this.request.getPort() + ">");
+    InetSocketAddress requester = this.shutdownRequester;
+    if (requester != null) {
+      this.logger.log("Received a request to shut down from <" + requester.getAddress() + ">:<" + requester.getPort() + ">");
+    }
     System.out.println("Server is shutting down...");
-    this.socket.close();
+    if (this.channels != null) {
+      this.stop(requester);
+    }
+    this.pushExecutor.shutdownNow();
+    this.translationService.close();
     this.logger.log("UDPServer stopped");
     this.logger.close();
     System.out.println("Server closed");
   }
+
+  /**
+   * A client address as a recipient of invalidations. Invalidations are queued and sent from the first
+   * channel by the push executor, so the thread that changed a key never blocks on a send.
+   */
+  private final class AddressSubscriber implements IInvalidationSubscriber {
+    private final InetSocketAddress client;
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private AddressSubscriber(InetSocketAddress client) {
+      this.client = client;
+    }
+
+    @Override
+    public void invalidate(String key) {
+      this.pending.add(key);
+      if (this.scheduled.compareAndSet(false, true)) {
+        try {
+          pushExecutor.execute(this::push);
+        } catch (RejectedExecutionException e) { // the server is shutting down
+          this.pending.clear();
+        }
+      }
+    }
+
+    /**
+     * Sends the queued invalidations, one datagram each.
+     */
+    private void push() {
+      do {
+        String key;
+        while ((key = this.pending.poll()) != null) {
+          try {
+            metrics.recordBytesOut(channels[0].send(ByteBuffer.wrap(BinaryProtocol.encodeInvalidation(key)), this.client));
+          } catch (IOException e) {
+            logger.log("IO (invalidation): " + e.getMessage());
+          }
+        }
+        this.scheduled.set(false);
+      } while (!this.pending.isEmpty() && this.scheduled.compareAndSet(false, true));
+    }
+  }
 }
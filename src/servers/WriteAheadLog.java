@@ -0,0 +1,396 @@
+package servers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * This class represents an append-only log of the PUT and DELETE operations applied to a translation
+ * service. Each record is {@code length(4) crc32(4) operation(1) keyLength(4) key valueLength(4)
+ * value}, followed by {@code deadline(8)} for a PUT that expires; a torn or corrupt record at the end
+ * of the file is discarded on replay.
+ */
+public class WriteAheadLog implements AutoCloseable {
+  /**
+   * When appended records are forced to stable storage.
+   */
+  public enum FsyncPolicy {
+    /**
+     * Force every record before the append returns.
+     */
+    ALWAYS,
+    /**
+     * Force every few milliseconds; appends wait for the force that covers them, so concurrent
+     * writers share one fsync.
+     */
+    GROUP,
+    /**
+     * Never force; the operating system writes the page cache back when it sees fit.
+     */
+    OS
+  }
+
+  /**
+   * A PUT record.
+   */
+  public static final byte PUT = 1;
+  /**
+   * A DELETE record.
+   */
+  public static final byte DELETE = 2;
+  /**
+   * A PUT record of a pair that expires at a deadline.
+   */
+  public static final byte PUT_EXPIRING = 3;
+  private static final int RECORD_HEADER_LENGTH = 8;
+  private final Path path;
+  private FileChannel channel;
+  private final FsyncPolicy fsyncPolicy;
+  private final long groupCommitMillis;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition forced = this.lock.newCondition();
+  private final CRC32 crc = new CRC32();
+  private ByteBuffer record = ByteBuffer.allocate(1024);
+  private long writtenPosition;
+  private long forcedPosition;
+  private IOException forceFailure;
+  private Thread flusher;
+  private volatile boolean closed;
+
+  /**
+   * Opens (or creates) a write-ahead log.
+   *
+   * @param path              the log file
+   * @param fsyncPolicy       when records are forced to stable storage
+   * @param groupCommitMillis the interval between forces under the GROUP policy
+   * @throws IOException if the file could not be opened
+   */
+  public WriteAheadLog(Path path, FsyncPolicy fsyncPolicy, long groupCommitMillis) throws IOException {
+    this.path = path;
+    this.fsyncPolicy = fsyncPolicy;
+    this.groupCommitMillis = Math.max(1, groupCommitMillis);
+    this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Gets the log file.
+   *
+   * @return the path of the log file
+   */
+  public Path getPath() {
+    return this.path;
+  }
+
+  /**
+   * Gets the number of bytes appended to the log.
+   *
+   * @return the size of the log
+   */
+  public long size() {
+    this.lock.lock();
+    try {
+      return this.writtenPosition;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Applies every intact record of the log to a translation service, truncates a torn tail left by a
+   * crash, and positions the log for appending. Must be called once, before the first append.
+   *
+   * @param target the translation service to rebuild
+   * @return the number of records replayed
+   * @throws IOException if the log could not be read
+   */
+  public long replay(ITranslationService target) throws IOException {
+    this.lock.lock();
+    try {
+      long position = 0;
+      long records = 0;
+      long fileSize = this.channel.size();
+      ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+      while (position + RECORD_HEADER_LENGTH <= fileSize) {
+        header.clear();
+        this.readFully(header, position);
+        int length = header.getInt(0);
+        long checksum = header.getInt(4) & 0xFFFFFFFFL;
+        if (length < 9 || position + RECORD_HEADER_LENGTH + length > fileSize) { // a torn record
+          break;
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        this.readFully(body, position + RECORD_HEADER_LENGTH);
+        this.crc.reset();
+        this.crc.update(body.array(), 0, length);
+        if (this.crc.getValue() != checksum) { // a corrupt record
+          break;
+        }
+        if (!this.apply(body, target)) {
+          break;
+        }
+        position += RECORD_HEADER_LENGTH + length;
+        records++;
+      }
+      if (position < fileSize) { // drop whatever follows the last intact record
+        this.channel.truncate(position);
+      }
+      this.channel.position(position);
+      this.writtenPosition = position;
+      this.forcedPosition = position;
+      if (this.fsyncPolicy == FsyncPolicy.GROUP && this.flusher == null) {
+        this.flusher = new Thread(this::flushPeriodically, "WriteAheadLog-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+      }
+      return records;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Appends a record and returns once it is as durable as the fsync policy promises.
+   *
+   * @param operation PUT or DELETE
+   * @param key       the key
+   * @param value     the value, or null for a DELETE
+   * @throws IOException if the record could not be written or forced
+   */
+  public void append(byte operation, String key, String value) throws IOException {
+    this.awaitDurable(this.write(operation, key, value));
+  }
+
+  /**
+   * Appends a record without waiting for a group commit. Records are logged in the order of the
+   * calls, so callers serialize the writes whose relative order matters.
+   *
+   * @param operation PUT or DELETE
+   * @param key       the key
+   * @param value     the value, or null for a DELETE
+   * @return the log position right after the record, to pass to {@link #awaitDurable(long)}
+   * @throws IOException if the record could not be written
+   */
+  public long write(byte operation, String key, String value) throws IOException {
+    return this.write(operation, key, value, 0);
+  }
+
+  /**
+   * Appends a record without waiting for a group commit, like {@link #write(byte, String, String)},
+   * with the deadline of a PUT_EXPIRING record.
+   *
+   * @param operation      PUT, PUT_EXPIRING or DELETE
+   * @param key            the key
+   * @param value          the value, or null for a DELETE
+   * @param deadlineMillis the deadline of a PUT_EXPIRING record, in milliseconds since the epoch
+   * @return the log position right after the record, to pass to {@link #awaitDurable(long)}
+   * @throws IOException if the record could not be written
+   */
+  public long write(byte operation, String key, String value, long deadlineMillis) throws IOException {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    byte[] valueBytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    int length = 1 + 4 + keyBytes.length + 4 + valueBytes.length + (operation == PUT_EXPIRING ? 8 : 0);
+    this.lock.lock();
+    try {
+      if (this.closed) {
+        throw new IOException("The write-ahead log is closed");
+      }
+      if (this.record.capacity() < RECORD_HEADER_LENGTH + length) {
+        this.record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + length);
+      }
+      ByteBuffer record = this.record;
+      record.clear();
+      record.position(RECORD_HEADER_LENGTH);
+      record.put(operation).putInt(keyBytes.length).put(keyBytes).putInt(valueBytes.length).put(valueBytes);
+      if (operation == PUT_EXPIRING) {
+        record.putLong(deadlineMillis);
+      }
+      this.crc.reset();
+      this.crc.update(record.array(), RECORD_HEADER_LENGTH, length);
+      record.putInt(0, length).putInt(4, (int) this.crc.getValue());
+      record.flip();
+      while (record.hasRemaining()) {
+        this.channel.write(record);
+      }
+      this.writtenPosition += RECORD_HEADER_LENGTH + length;
+      if (this.fsyncPolicy == FsyncPolicy.ALWAYS) {
+        this.channel.force(false);
+        this.forcedPosition = this.writtenPosition;
+      }
+      return this.writtenPosition;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Forces every appended record, moves the log file to an archive path and continues in a new, empty
+   * log file. Positions keep growing across the rotation, so pending group commits are unaffected.
+   *
+   * @param archive where to move the current log file
+   * @throws IOException if the log could not be forced, moved or reopened
+   */
+  public void rotate(Path archive) throws IOException {
+    this.lock.lock();
+    try {
+      if (this.closed) {
+        throw new IOException("The write-ahead log is closed");
+      }
+      this.channel.force(false);
+      this.forcedPosition = this.writtenPosition;
+      this.forced.signalAll();
+      this.channel.close();
+      Files.move(this.path, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Waits until the log is durable up to a position, as far as the fsync policy promises.
+   *
+   * @param position the log position returned by {@link #write(byte, String, String)}
+   * @throws IOException if the force failed or the log was closed first
+   */
+  public void awaitDurable(long position) throws IOException {
+    if (this.fsyncPolicy != FsyncPolicy.GROUP) { // already forced, or never will be
+      return;
+    }
+    this.lock.lock();
+    try {
+      while (this.forcedPosition < position) { // wait for the group commit that covers this record
+        if (this.forceFailure != null) {
+          throw this.forceFailure;
+        }
+        if (this.closed) {
+          throw new IOException("The write-ahead log was closed before the record was forced");
+        }
+        this.forced.await();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the group commit");
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Forces every appended record and closes the log.
+   */
+  @Override
+  public void close() throws IOException {
+    this.lock.lock();
+    try {
+      if (this.closed) {
+        return;
+      }
+      this.closed = true;
+      if (this.fsyncPolicy != FsyncPolicy.OS) {
+        this.channel.force(false);
+        this.forcedPosition = this.writtenPosition;
+      }
+      this.forced.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
+    if (this.flusher != null) {
+      this.flusher.interrupt();
+    }
+    this.channel.close();
+  }
+
+  /**
+   * Runs on the flusher thread under the GROUP policy: forces the log every few milliseconds and
+   * releases the appends the force covered.
+   */
+  private void flushPeriodically() {
+    while (!this.closed) {
+      try {
+        TimeUnit.MILLISECONDS.sleep(this.groupCommitMillis);
+      } catch (InterruptedException e) {
+        return;
+      }
+      long target;
+      FileChannel channel;
+      this.lock.lock();
+      try {
+        target = this.writtenPosition;
+        channel = this.channel;
+        if (target == this.forcedPosition) {
+          continue;
+        }
+      } finally {
+        this.lock.unlock();
+      }
+      IOException failure = null;
+      try {
+        channel.force(false); // outside the lock, so appends keep going meanwhile
+      } catch (IOException e) {
+        failure = e;
+      }
+      this.lock.lock();
+      try {
+        if (failure != null && channel == this.channel) { // unless a rotation closed the channel after forcing it
+          this.forceFailure = failure;
+        } else if (target > this.forcedPosition) {
+          this.forcedPosition = target;
+        }
+        this.forced.signalAll();
+      } finally {
+        this.lock.unlock();
+      }
+    }
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (this.channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of the write-ahead log");
+      }
+    }
+  }
+
+  /**
+   * Applies a record's operation to a translation service.
+   *
+   * @return false if the record is malformed
+   */
+  private boolean apply(ByteBuffer body, ITranslationService target) {
+    byte operation = body.get(0);
+    int keyLength = body.getInt(1);
+    if (keyLength < 0 || 5 + keyLength + 4 > body.capacity()) {
+      return false;
+    }
+    String key = new String(body.array(), 5, keyLength, StandardCharsets.UTF_8);
+    int valueLength = body.getInt(5 + keyLength);
+    int trailerLength = operation == PUT_EXPIRING ? 8 : 0;
+    if (valueLength < 0 || 9 + keyLength + valueLength + trailerLength != body.capacity()) {
+      return false;
+    }
+    if (operation == PUT) {
+      target.put(key, new String(body.array(), 9 + keyLength, valueLength, StandardCharsets.UTF_8));
+    } else if (operation == PUT_EXPIRING) {
+      long ttlMillis = body.getLong(9 + keyLength + valueLength) - System.currentTimeMillis();
+      if (ttlMillis > 0) {
+        target.put(key, new String(body.array(), 9 + keyLength, valueLength, StandardCharsets.UTF_8), ttlMillis);
+      } else { // expired while the server was down, which also undoes any earlier PUT of the key
+        target.delete(key);
+      }
+    } else if (operation == DELETE) {
+      target.delete(key);
+    } else {
+      return false;
+    }
+    return true;
+  }
+}
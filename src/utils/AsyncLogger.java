@@ -0,0 +1,274 @@
+package utils;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class represents a logger that takes file I/O off the request threads. Messages are put in a
+ * bounded lock-free ring buffer and a single background thread writes them to the log file in
+ * batches, with the same timestamp format as {@link Logger}.
+ */
+public class AsyncLogger implements ILogger {
+  /**
+   * What a request thread does when the ring buffer is full.
+   */
+  public enum OverflowPolicy {
+    /**
+     * Wait until the writer frees a slot, so that no message is lost.
+     */
+    BLOCK,
+    /**
+     * Drop the message.
+     */
+    DROP,
+    /**
+     * Keep one in every {@value AsyncLogger#SAMPLE_RATE} overflowing messages, waiting for a slot
+     * for it, and drop the rest.
+     */
+    SAMPLE
+  }
+
+  private static final int SAMPLE_RATE = 100;
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+  private static final long IDLE_PARK_NANOS = 1_000_000L;
+  private static final DateTimeFormatter SECONDS_FORMAT = DateTimeFormatter.ofPattern("MM-dd-yyyy HH:mm:ss.").withZone(ZoneId.systemDefault());
+  private final OverflowPolicy overflowPolicy;
+  private final int mask;
+  private final AtomicLongArray sequences;
+  private final String[] messages;
+  private final long[] timestamps;
+  private final AtomicLong tail = new AtomicLong(); // the next slot producers claim
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong overflowed = new AtomicLong();
+  private final Thread writerThread;
+  private final Writer writer;
+  private final StringBuilder line = new StringBuilder(256);
+  private long head; // the next slot the writer drains, only touched by the writer thread
+  private long cachedSecond = -1;
+  private String cachedSecondPrefix;
+  private volatile boolean closed;
+
+  /**
+   * Instantiates a new asynchronous logger that blocks when its buffer is full.
+   *
+   * @param logFileName the log file name
+   */
+  public AsyncLogger(String logFileName) {
+    this(logFileName, 64 * 1024, OverflowPolicy.BLOCK);
+  }
+
+  /**
+   * Instantiates a new asynchronous logger.
+   *
+   * @param logFileName    the log file name
+   * @param capacity       the number of messages the ring buffer holds, rounded up to a power of two
+   * @param overflowPolicy what to do when the ring buffer is full
+   */
+  public AsyncLogger(String logFileName, int capacity, OverflowPolicy overflowPolicy) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    this.overflowPolicy = overflowPolicy;
+    this.mask = size - 1;
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      this.sequences.set(i, i);
+    }
+    this.messages = new String[size];
+    this.timestamps = new long[size];
+    Writer writer = null;
+    try {
+      writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFileName, true), StandardCharsets.UTF_8), WRITE_BUFFER_SIZE);
+    } catch (IOException e) {
+      System.err.println(this.format(System.currentTimeMillis(), e.getMessage()));
+      e.printStackTrace();
+    }
+    this.writer = writer;
+    this.writerThread = new Thread(this::drain, "AsyncLogger-writer");
+    this.writerThread.setDaemon(true);
+    this.writerThread.start();
+  }
+
+  /**
+   * Logs any event that occurs. The message is timestamped now and written later.
+   *
+   * @param msg the message to be logged
+   */
+  @Override
+  public void log(String msg) {
+    if (this.closed) {
+      return;
+    }
+    long timestamp = System.currentTimeMillis();
+    if (this.offer(msg, timestamp)) {
+      return;
+    }
+    switch (this.overflowPolicy) {
+      case DROP:
+        this.dropped.incrementAndGet();
+        return;
+      case SAMPLE:
+        if (this.overflowed.incrementAndGet() % SAMPLE_RATE != 0) {
+          this.dropped.incrementAndGet();
+          return;
+        }
+        break;
+      default:
+        break;
+    }
+    while (!this.offer(msg, timestamp) && !this.closed) { // wait for the writer to free a slot
+      LockSupport.parkNanos(1_000L);
+    }
+  }
+
+  /**
+   * Tells whether logged messages are recorded.
+   *
+   * @return true until the logger is closed
+   */
+  @Override
+  public boolean isEnabled() {
+    return !this.closed && this.writer != null;
+  }
+
+  /**
+   * Gets the number of messages dropped because the ring buffer was full.
+   *
+   * @return the number of dropped messages
+   */
+  public long getDropped() {
+    return this.dropped.get();
+  }
+
+  /**
+   * Shuts down the logger after writing every message logged so far.
+   */
+  @Override
+  public void close() {
+    if (this.closed) {
+      return;
+    }
+    this.closed = true;
+    LockSupport.unpark(this.writerThread);
+    try {
+      this.writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Claims a slot in the ring buffer and publishes the message in it.
+   *
+   * @return false if the ring buffer is full
+   */
+  private boolean offer(String msg, long timestamp) {
+    while (true) {
+      long position = this.tail.get();
+      int index = (int) position & this.mask;
+      long sequence = this.sequences.get(index);
+      if (sequence == position) { // the slot is free for this position
+        if (this.tail.compareAndSet(position, position + 1)) {
+          this.messages[index] = msg;
+          this.timestamps[index] = timestamp;
+          this.sequences.set(index, position + 1); // publish to the writer
+          return true;
+        }
+      } else if (sequence < position) { // the writer has not drained this slot yet
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Runs on the writer thread: drains the ring buffer in batches and flushes once per batch.
+   */
+  private void drain() {
+    while (true) {
+      boolean closing = this.closed;
+      int written = this.writeBatch();
+      if (written == 0) {
+        if (closing) {
+          break;
+        }
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+      }
+    }
+    try {
+      if (this.writer != null) {
+        long dropped = this.dropped.get();
+        if (dropped > 0) {
+          this.writer.write(this.format(System.currentTimeMillis(), dropped + " log message(s) dropped because the buffer was full"));
+        }
+        this.writer.close();
+      }
+    } catch (IOException e) {
+      System.err.println(this.format(System.currentTimeMillis(), e.getMessage()));
+    }
+  }
+
+  /**
+   * Writes every message published so far and flushes them with a single write.
+   *
+   * @return the number of messages written
+   */
+  private int writeBatch() {
+    int written = 0;
+    while (true) {
+      int index = (int) this.head & this.mask;
+      if (this.sequences.get(index) != this.head + 1) { // nothing more has been published
+        break;
+      }
+      String msg = this.messages[index];
+      long timestamp = this.timestamps[index];
+      this.messages[index] = null;
+      this.sequences.set(index, this.head + this.mask + 1); // free the slot for the next lap
+      this.head++;
+      written++;
+      if (this.writer != null) {
+        try {
+          this.writer.write(this.format(timestamp, msg));
+        } catch (IOException e) {
+          System.err.println(e.getMessage());
+        }
+      }
+    }
+    if (written > 0 && this.writer != null) {
+      try {
+        this.writer.flush();
+      } catch (IOException e) {
+        System.err.println(e.getMessage());
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Formats a log line, reusing the formatted date and time for messages logged in the same second.
+   */
+  private String format(long timestamp, String msg) {
+    long second = timestamp / 1000;
+    if (second != this.cachedSecond || this.cachedSecondPrefix == null) {
+      this.cachedSecond = second;
+      this.cachedSecondPrefix = SECONDS_FORMAT.format(Instant.ofEpochMilli(second * 1000));
+    }
+    int millis = (int) (timestamp % 1000);
+    this.line.setLength(0);
+    this.line.append(this.cachedSecondPrefix);
+    if (millis < 100) {
+      this.line.append('0');
+    }
+    if (millis < 10) {
+      this.line.append('0');
+    }
+    return this.line.append(millis).append(" - ").append(msg).append('\n').toString();
+  }
+}
@@ -0,0 +1,640 @@
+package utils;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The class binary protocol defines the length-prefixed framing that clients can use instead of the
+ * PUT/GET/DELETE:key:value text protocol. Both protocols share a port: every binary frame starts with
+ * a magic byte that can never start a UTF-8 text request.
+ *
+ * <p>A request is {@code magic(1) opcode(1) requestId(4) keyLength(4) key valueLength(4) value} and
+ * a reply is {@code magic(1) status(1) requestId(4) payloadLength(4) payload}. Lengths are in bytes,
+ * integers are big-endian, and strings are UTF-8.
+ *
+ * <p>Batch operations use the same framing: their key field (and the value field of an MPUT) holds a
+ * list, {@code count(4)} followed by {@code length(4) string} per item, and the payload of a
+ * successful MGET is such a list with a length of -1 for every unknown key.
+ *
+ * <p>Over UDP, a request or reply that does not fit in a datagram sized for the path MTU is split into
+ * datagrams of the form {@code fragmentMagic(1) messageId(4) index(2) count(2) bytes}, where the
+ * message id, chosen by the sender, tells apart the fragments of the messages it has in flight, and
+ * the index and count are unsigned. A message that fits is sent as it is, without a header.
+ *
+ * <p>A UDP request, text or binary, may be prefixed with {@code requestIdMagic(1) requestId(4)}, an id
+ * the client chose for it and keeps when it sends the request again. The server then prefixes the
+ * reply with the same header and answers a repeated request with the reply it already sent, rather
+ * than applying it twice. Fragmentation applies to the message with its header.
+ *
+ * <p>A connection that turned tracking on (TRACKING:ON) is also sent, unprompted, an invalidation
+ * {@code invalidationMagic(1) keyLength(4) key} whenever a key it read changes. It may arrive between
+ * any two replies, in either protocol.
+ */
+public final class BinaryProtocol {
+  /**
+   * The first byte of every binary frame (a UTF-8 continuation byte, so never the start of text).
+   */
+  public static final byte MAGIC = (byte) 0xB7;
+  /**
+   * The length of a request header up to and including the key length.
+   */
+  public static final int REQUEST_HEADER_LENGTH = 10;
+  /**
+   * The length of a reply header.
+   */
+  public static final int REPLY_HEADER_LENGTH = 10;
+  /**
+   * The maximum length of a key, a value or a payload.
+   */
+  public static final int MAX_FIELD_LENGTH = 1024 * 1024;
+  /**
+   * The first byte of every fragment of a UDP message that does not fit in one datagram.
+   */
+  public static final byte FRAGMENT_MAGIC = (byte) 0xB8;
+  /**
+   * The first byte of every invalidation pushed to a tracking connection.
+   */
+  public static final byte INVALIDATION_MAGIC = (byte) 0xB9;
+  /**
+   * The first byte of every UDP request and reply that carries a request id.
+   */
+  public static final byte REQUEST_ID_MAGIC = (byte) 0xBA;
+  /**
+   * The length of a request id header.
+   */
+  public static final int REQUEST_ID_HEADER_LENGTH = 5;
+  /**
+   * The length of a fragment header.
+   */
+  public static final int FRAGMENT_HEADER_LENGTH = 9;
+  /**
+   * The maximum number of fragments of a UDP message.
+   */
+  public static final int MAX_FRAGMENTS = 0xFFFF;
+  /**
+   * The largest UDP payload, which receive buffers are sized for so that no datagram is truncated.
+   */
+  public static final int MAX_DATAGRAM_LENGTH = 65507;
+  /**
+   * The MTU UDP messages are split for unless configured otherwise: that of Ethernet.
+   */
+  public static final int DEFAULT_MTU = 1500;
+  /**
+   * The smallest MTU UDP messages are split for: the datagram every IPv4 host must be able to
+   * reassemble. Smaller MTUs are raised to it.
+   */
+  public static final int MIN_MTU = 576;
+  /**
+   * The largest request frame: a request id header, a header and two fields of the maximum length.
+   */
+  public static final int MAX_REQUEST_LENGTH = REQUEST_ID_HEADER_LENGTH + REQUEST_HEADER_LENGTH + 4 + 2 * MAX_FIELD_LENGTH;
+  private static final int UDP_OVERHEAD = 48; // an IPv6 header, the larger, and a UDP header
+  /**
+   * The smallest payload of a fragment other than the last, which a message split for the smallest
+   * MTU carries.
+   */
+  public static final int MIN_FRAGMENT_PAYLOAD = MIN_MTU - UDP_OVERHEAD - FRAGMENT_HEADER_LENGTH;
+  /**
+   * The maximum number of items in a batch.
+   */
+  public static final int MAX_BATCH_SIZE = 64 * 1024;
+  /**
+   * The number of pairs a scan returns when the request does not say.
+   */
+  public static final int DEFAULT_SCAN_LIMIT = 100;
+  /**
+   * The maximum number of pairs a scan returns.
+   */
+  public static final int MAX_SCAN_LIMIT = 10000;
+  /**
+   * The GET operation.
+   */
+  public static final byte OP_GET = 1;
+  /**
+   * The PUT operation.
+   */
+  public static final byte OP_PUT = 2;
+  /**
+   * The DELETE operation.
+   */
+  public static final byte OP_DELETE = 3;
+  /**
+   * The batch GET operation.
+   */
+  public static final byte OP_MGET = 4;
+  /**
+   * The batch PUT operation.
+   */
+  public static final byte OP_MPUT = 5;
+  /**
+   * The batch DELETE operation.
+   */
+  public static final byte OP_MDELETE = 6;
+  /**
+   * A PUT whose pair expires: the value field is {@code ttlSeconds(4) value}.
+   */
+  public static final byte OP_PUT_TTL = 7;
+  /**
+   * Turns the invalidation of the keys read by the connection on or off: the key is ON or OFF.
+   */
+  public static final byte OP_TRACKING = 8;
+  /**
+   * Reports the server's counters and latencies as a line of name=value pairs: the key is empty.
+   */
+  public static final byte OP_STATS = 9;
+  /**
+   * Lists the pairs whose keys start with a prefix, in key order: the key field is the list
+   * {@code prefix [limit [cursor]]}, and the payload of the reply the list {@code cursor key1 value1
+   * key2 value2...}.
+   */
+  public static final byte OP_PREFIX = 10;
+  /**
+   * Lists the pairs whose keys fall in a range, in key order: the key field is the list {@code from
+   * [to [limit [cursor]]]}, with an empty {@code to} for no upper bound, and the payload of the reply
+   * is as for PREFIX.
+   */
+  public static final byte OP_RANGE = 11;
+  /**
+   * The operation succeeded; the payload is the value for a GET.
+   */
+  public static final byte STATUS_OK = 0;
+  /**
+   * The key does not exist; the payload explains the failure.
+   */
+  public static final byte STATUS_NOT_FOUND = 1;
+  /**
+   * The frame could not be parsed; the payload explains the failure.
+   */
+  public static final byte STATUS_MALFORMED = 2;
+  /**
+   * The opcode is not supported; the payload explains the failure.
+   */
+  public static final byte STATUS_UNKNOWN_OPERATION = 3;
+  /**
+   * The server could not carry out the operation; the payload explains the failure.
+   */
+  public static final byte STATUS_FAILED = 4;
+
+  private BinaryProtocol() {
+  }
+
+  /**
+   * A decoded reply frame.
+   */
+  public static final class Reply {
+    /**
+     * The status code.
+     */
+    public final byte status;
+    /**
+     * The id of the request this reply answers.
+     */
+    public final int requestId;
+    /**
+     * The payload.
+     */
+    public final String payload;
+    private final byte[] payloadBytes;
+
+    /**
+     * Instantiates a new reply.
+     *
+     * @param status       the status code
+     * @param requestId    the request id
+     * @param payloadBytes the encoded payload
+     */
+    public Reply(byte status, int requestId, byte[] payloadBytes) {
+      this.status = status;
+      this.requestId = requestId;
+      this.payloadBytes = payloadBytes;
+      this.payload = new String(payloadBytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes the payload of a successful MGET reply.
+     *
+     * @return the values, with null for every unknown key
+     * @throws IOException if the payload is not a list
+     */
+    public List<String> items() throws IOException {
+      try {
+        return readList(ByteBuffer.wrap(this.payloadBytes));
+      } catch (BufferUnderflowException e) {
+        throw new IOException("Truncated list");
+      }
+    }
+
+    /**
+     * Renders the reply the way the text protocol would have.
+     *
+     * @return the reply as text
+     */
+    @Override
+    public String toString() {
+      if (this.status == STATUS_OK && this.payload.isEmpty()) {
+        return "SUCCESS";
+      }
+      return this.payload;
+    }
+  }
+
+  /**
+   * Maps the operation of a text request to its opcode.
+   *
+   * @param operation the operation, in any case
+   * @return the opcode, or -1 if the operation is unknown
+   */
+  public static byte opcodeOf(String operation) {
+    if (operation.equalsIgnoreCase("GET")) {
+      return OP_GET;
+    } else if (operation.equalsIgnoreCase("PUT")) {
+      return OP_PUT;
+    } else if (operation.equalsIgnoreCase("DELETE")) {
+      return OP_DELETE;
+    } else if (operation.equalsIgnoreCase("MGET")) {
+      return OP_MGET;
+    } else if (operation.equalsIgnoreCase("MPUT")) {
+      return OP_MPUT;
+    } else if (operation.equalsIgnoreCase("MDELETE")) {
+      return OP_MDELETE;
+    } else if (operation.equalsIgnoreCase("TRACKING")) {
+      return OP_TRACKING;
+    } else if (operation.equalsIgnoreCase("STATS")) {
+      return OP_STATS;
+    } else if (operation.equalsIgnoreCase("PREFIX")) {
+      return OP_PREFIX;
+    } else if (operation.equalsIgnoreCase("RANGE")) {
+      return OP_RANGE;
+    }
+    return -1;
+  }
+
+  /**
+   * Tells whether an opcode is a batch operation.
+   *
+   * @param opcode the opcode
+   * @return true for MGET, MPUT and MDELETE
+   */
+  public static boolean isBatch(byte opcode) {
+    return opcode == OP_MGET || opcode == OP_MPUT || opcode == OP_MDELETE;
+  }
+
+  /**
+   * Tells whether an opcode is a scan of the ordered index.
+   *
+   * @param opcode the opcode
+   * @return true for PREFIX and RANGE
+   */
+  public static boolean isScan(byte opcode) {
+    return opcode == OP_PREFIX || opcode == OP_RANGE;
+  }
+
+  /**
+   * Encodes a request frame.
+   *
+   * @param opcode    the opcode
+   * @param requestId the request id
+   * @param key       the key
+   * @param value     the value, or null
+   * @return the frame
+   */
+  public static byte[] encodeRequest(byte opcode, int requestId, String key, String value) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    byte[] valueBytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer frame = ByteBuffer.allocate(REQUEST_HEADER_LENGTH + keyBytes.length + 4 + valueBytes.length);
+    frame.put(MAGIC).put(opcode).putInt(requestId);
+    frame.putInt(keyBytes.length).put(keyBytes);
+    frame.putInt(valueBytes.length).put(valueBytes);
+    return frame.array();
+  }
+
+  /**
+   * Encodes a PUT request frame for a pair that expires.
+   *
+   * @param requestId  the request id
+   * @param key        the key
+   * @param value      the value
+   * @param ttlSeconds the time to live in seconds
+   * @return the frame
+   */
+  public static byte[] encodePutRequest(int requestId, String key, String value, int ttlSeconds) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer frame = ByteBuffer.allocate(REQUEST_HEADER_LENGTH + keyBytes.length + 8 + valueBytes.length);
+    frame.put(MAGIC).put(OP_PUT_TTL).putInt(requestId);
+    frame.putInt(keyBytes.length).put(keyBytes);
+    frame.putInt(4 + valueBytes.length).putInt(ttlSeconds).put(valueBytes);
+    return frame.array();
+  }
+
+  /**
+   * Encodes a batch request frame, or a scan request frame.
+   *
+   * @param opcode    MGET, MPUT, MDELETE, PREFIX or RANGE
+   * @param requestId the request id
+   * @param keys      the keys, or the arguments of a scan
+   * @param values    the values of an MPUT, or null
+   * @return the frame
+   */
+  public static byte[] encodeBatchRequest(byte opcode, int requestId, List<String> keys, List<String> values) {
+    byte[] keyList = encodeList(keys);
+    byte[] valueList = values == null ? new byte[0] : encodeList(values);
+    ByteBuffer frame = ByteBuffer.allocate(REQUEST_HEADER_LENGTH + keyList.length + 4 + valueList.length);
+    frame.put(MAGIC).put(opcode).putInt(requestId);
+    frame.putInt(keyList.length).put(keyList);
+    frame.putInt(valueList.length).put(valueList);
+    return frame.array();
+  }
+
+  /**
+   * Encodes a list of strings as {@code count(4)} followed by {@code length(4) string} per item, with
+   * a length of -1 for a null item.
+   *
+   * @param items the items
+   * @return the encoded list
+   */
+  public static byte[] encodeList(List<String> items) {
+    byte[][] encoded = new byte[items.size()][];
+    int length = 4;
+    for (int i = 0; i < encoded.length; i++) {
+      String item = items.get(i);
+      encoded[i] = item == null ? null : item.getBytes(StandardCharsets.UTF_8);
+      length += 4 + (item == null ? 0 : encoded[i].length);
+    }
+    ByteBuffer list = ByteBuffer.allocate(length);
+    list.putInt(encoded.length);
+    for (byte[] item : encoded) {
+      if (item == null) {
+        list.putInt(-1);
+      } else {
+        list.putInt(item.length).put(item);
+      }
+    }
+    return list.array();
+  }
+
+  /**
+   * Decodes a list of strings encoded by {@link #encodeList(List)}.
+   *
+   * @param buffer the buffer positioned at the list
+   * @return the items
+   * @throws IOException if a count or length is out of range
+   * @throws BufferUnderflowException if the list is truncated
+   */
+  public static List<String> readList(ByteBuffer buffer) throws IOException {
+    int count = buffer.getInt();
+    if (count < 0 || count > MAX_BATCH_SIZE) {
+      throw new IOException("Invalid batch size " + count);
+    }
+    List<String> items = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      int length = buffer.getInt();
+      if (length == -1) {
+        items.add(null);
+        continue;
+      }
+      byte[] bytes = new byte[checkLength(length)];
+      buffer.get(bytes);
+      items.add(new String(bytes, StandardCharsets.UTF_8));
+    }
+    return items;
+  }
+
+  /**
+   * Encodes a reply frame.
+   *
+   * @param status    the status code
+   * @param requestId the id of the request being answered
+   * @param payload   the payload
+   * @return the frame
+   */
+  public static byte[] encodeReply(byte status, int requestId, String payload) {
+    return encodeReply(status, requestId, payload.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Encodes a reply frame with an already encoded payload.
+   *
+   * @param status       the status code
+   * @param requestId    the id of the request being answered
+   * @param payloadBytes the payload
+   * @return the frame
+   */
+  public static byte[] encodeReply(byte status, int requestId, byte[] payloadBytes) {
+    ByteBuffer frame = ByteBuffer.allocate(REPLY_HEADER_LENGTH + payloadBytes.length);
+    frame.put(MAGIC).put(status).putInt(requestId);
+    frame.putInt(payloadBytes.length).put(payloadBytes);
+    return frame.array();
+  }
+
+  /**
+   * Computes the length of the request frame at the start of a partially received buffer.
+   *
+   * @param data   the received bytes
+   * @param offset the offset of the frame's magic byte
+   * @param length the number of bytes received from the offset on
+   * @return the frame length, or -1 if more bytes are needed to know or complete it
+   * @throws IOException if a length field is out of range
+   */
+  public static int requestLength(byte[] data, int offset, int length) throws IOException {
+    if (length < REQUEST_HEADER_LENGTH) {
+      return -1;
+    }
+    int keyLength = checkLength(readInt(data, offset + 6));
+    int valueLengthOffset = REQUEST_HEADER_LENGTH + keyLength;
+    if (length < valueLengthOffset + 4) {
+      return -1;
+    }
+    int valueLength = checkLength(readInt(data, offset + valueLengthOffset));
+    int frameLength = valueLengthOffset + 4 + valueLength;
+    return length < frameLength ? -1 : frameLength;
+  }
+
+  /**
+   * Decodes a complete reply frame, starting at its magic byte.
+   *
+   * @param buffer the buffer positioned at the frame
+   * @return the reply
+   * @throws IOException if the frame is truncated or malformed
+   */
+  public static Reply decodeReply(ByteBuffer buffer) throws IOException {
+    try {
+      if (buffer.get() != MAGIC) {
+        throw new IOException("Not a binary frame");
+      }
+      byte status = buffer.get();
+      int requestId = buffer.getInt();
+      byte[] payload = new byte[checkLength(buffer.getInt())];
+      buffer.get(payload); // underflows if the payload is truncated
+      return new Reply(status, requestId, payload);
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated binary frame");
+    }
+  }
+
+  /**
+   * Reads the rest of a reply frame from a stream whose magic byte has already been consumed.
+   *
+   * @param in the stream
+   * @return the reply
+   * @throws IOException if the stream ends or the frame is malformed
+   */
+  public static Reply readReply(DataInputStream in) throws IOException {
+    byte status = in.readByte();
+    int requestId = in.readInt();
+    byte[] payload = new byte[checkLength(in.readInt())];
+    in.readFully(payload);
+    return new Reply(status, requestId, payload);
+  }
+
+  /**
+   * Encodes the invalidation of a key.
+   *
+   * @param key the key
+   * @return the frame
+   */
+  public static byte[] encodeInvalidation(String key) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer frame = ByteBuffer.allocate(5 + keyBytes.length);
+    frame.put(INVALIDATION_MAGIC).putInt(keyBytes.length).put(keyBytes);
+    return frame.array();
+  }
+
+  /**
+   * Reads the rest of an invalidation from a stream whose magic byte has already been consumed.
+   *
+   * @param in the stream
+   * @return the key
+   * @throws IOException if the stream ends or the frame is malformed
+   */
+  public static String readInvalidation(DataInputStream in) throws IOException {
+    byte[] key = new byte[checkLength(in.readInt())];
+    in.readFully(key);
+    return new String(key, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Decodes a complete invalidation, starting at its magic byte.
+   *
+   * @param buffer the buffer positioned at the frame
+   * @return the key
+   * @throws IOException if the frame is truncated or malformed
+   */
+  public static String decodeInvalidation(ByteBuffer buffer) throws IOException {
+    try {
+      if (buffer.get() != INVALIDATION_MAGIC) {
+        throw new IOException("Not an invalidation");
+      }
+      byte[] key = new byte[checkLength(buffer.getInt())];
+      buffer.get(key);
+      return new String(key, StandardCharsets.UTF_8);
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated invalidation");
+    }
+  }
+
+  /**
+   * Computes the length of the largest datagram that crosses a path without being fragmented by IP,
+   * under IPv4 or IPv6.
+   *
+   * @param mtu the MTU of the path, raised to {@value #MIN_MTU} if smaller
+   * @return the datagram length
+   */
+  public static int datagramLength(int mtu) {
+    return Math.min(MAX_DATAGRAM_LENGTH, Math.max(MIN_MTU, mtu) - UDP_OVERHEAD);
+  }
+
+  /**
+   * Splits a UDP message into datagrams of at most a given length, each starting with a fragment
+   * header. A message that fits in one datagram is returned as is.
+   *
+   * @param message        the message
+   * @param messageId      the id of the message, unique among the messages the sender has in flight
+   * @param datagramLength the maximum length of a datagram
+   * @return the datagrams
+   * @throws IllegalArgumentException if the message would take more than {@value #MAX_FRAGMENTS} datagrams
+   */
+  public static List<byte[]> fragment(byte[] message, int messageId, int datagramLength) {
+    if (message.length <= datagramLength) {
+      return Collections.singletonList(message);
+    }
+    int chunk = datagramLength - FRAGMENT_HEADER_LENGTH;
+    int count = (message.length + chunk - 1) / chunk;
+    if (count > MAX_FRAGMENTS) {
+      throw new IllegalArgumentException("A message of " + message.length + " bytes takes more than " + MAX_FRAGMENTS + " datagrams");
+    }
+    List<byte[]> fragments = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      int length = Math.min(chunk, message.length - i * chunk);
+      ByteBuffer fragment = ByteBuffer.allocate(FRAGMENT_HEADER_LENGTH + length);
+      fragment.put(FRAGMENT_MAGIC).putInt(messageId).putShort((short) i).putShort((short) count).put(message, i * chunk, length);
+      fragments.add(fragment.array());
+    }
+    return fragments;
+  }
+
+  /**
+   * Prefixes a UDP message with a request id header.
+   *
+   * @param requestId the request id
+   * @param message   the request or reply
+   * @param offset    the offset of the message
+   * @param length    the length of the message
+   * @return the message with its header
+   */
+  public static byte[] withRequestId(int requestId, byte[] message, int offset, int length) {
+    ByteBuffer framed = ByteBuffer.allocate(REQUEST_ID_HEADER_LENGTH + length);
+    framed.put(REQUEST_ID_MAGIC).putInt(requestId).put(message, offset, length);
+    return framed.array();
+  }
+
+  /**
+   * Reads a big-endian integer from a byte array.
+   *
+   * @param data   the bytes
+   * @param offset the offset of the integer
+   * @return the integer
+   */
+  public static int readInt(byte[] data, int offset) {
+    return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+  }
+
+  /**
+   * Computes the length of a string encoded in UTF-8, without encoding it.
+   *
+   * @param string the string
+   * @return the length in bytes
+   */
+  public static int utf8Length(String string) {
+    int length = string.length();
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if (c >= 0x800) {
+        length += Character.isSurrogate(c) ? 1 : 2; // a surrogate pair takes 4 bytes
+      } else if (c >= 0x80) {
+        length++;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Validates a length field.
+   *
+   * @param length the length
+   * @return the length
+   * @throws IOException if the length is negative or exceeds the maximum field length
+   */
+  public static int checkLength(int length) throws IOException {
+    if (length < 0 || length > MAX_FIELD_LENGTH) {
+      throw new IOException("Invalid field length " + length);
+    }
+    return length;
+  }
+}
@@ -0,0 +1,65 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class represents a pool of equally sized direct byte buffers that are recycled instead of
+ * being allocated per read or write.
+ */
+public class BufferPool {
+  private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pooled = new AtomicInteger();
+  private final int bufferSize;
+  private final int maxPooled;
+
+  /**
+   * Instantiates a new buffer pool.
+   *
+   * @param bufferSize the capacity of every buffer handed out
+   * @param maxPooled  the maximum number of idle buffers kept for reuse
+   */
+  public BufferPool(int bufferSize, int maxPooled) {
+    this.bufferSize = bufferSize;
+    this.maxPooled = maxPooled;
+  }
+
+  /**
+   * Gets the capacity of every buffer handed out.
+   *
+   * @return the buffer size
+   */
+  public int getBufferSize() {
+    return this.bufferSize;
+  }
+
+  /**
+   * Takes a cleared buffer from the pool, allocating a new one if the pool is empty.
+   *
+   * @return the buffer
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer buffer = this.buffers.poll();
+    if (buffer == null) {
+      return ByteBuffer.allocateDirect(this.bufferSize);
+    }
+    this.pooled.decrementAndGet();
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer to the pool. Buffers beyond the pool's capacity are left to the garbage
+   * collector.
+   *
+   * @param buffer the buffer
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer.capacity() == this.bufferSize && this.pooled.incrementAndGet() <= this.maxPooled) {
+      this.buffers.offer(buffer);
+    } else if (buffer.capacity() == this.bufferSize) {
+      this.pooled.decrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class represents a histogram of latencies in nanoseconds that any number of threads record
+ * into at once, with the buckets of {@link LatencyHistogram}. Threads are spread over stripes of
+ * counts by their id, so that recording is an uncontended atomic increment in the common case, and a
+ * snapshot adds the stripes up. Latencies are reported as the upper bound of their bucket, the highest
+ * included.
+ */
+public class ConcurrentLatencyHistogram {
+  private final AtomicLongArray[] stripes;
+  private final int mask;
+
+  /**
+   * Instantiates a new concurrent latency histogram with a stripe per core, rounded up to a power of
+   * two.
+   */
+  public ConcurrentLatencyHistogram() {
+    int stripeCount = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1));
+    this.stripes = new AtomicLongArray[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      this.stripes[i] = new AtomicLongArray(LatencyHistogram.BUCKET_COUNT);
+    }
+    this.mask = stripeCount - 1;
+  }
+
+  /**
+   * Records a latency.
+   *
+   * @param nanos the latency in nanoseconds; negative values count as 0
+   */
+  public void record(long nanos) {
+    this.stripes[(int) Thread.currentThread().getId() & this.mask].getAndIncrement(LatencyHistogram.indexOf(Math.max(0, nanos)));
+  }
+
+  /**
+   * Copies the latencies recorded so far. Latencies recorded meanwhile may or may not be included.
+   *
+   * @return the copy
+   */
+  public LatencyHistogram snapshot() {
+    LatencyHistogram snapshot = new LatencyHistogram();
+    for (AtomicLongArray stripe : this.stripes) {
+      for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+        snapshot.addBucket(i, stripe.get(i));
+      }
+    }
+    return snapshot;
+  }
+}
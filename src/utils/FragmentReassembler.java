@@ -0,0 +1,230 @@
+package utils;
+
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class represents the reassembly buffers of the UDP messages that arrive split into fragments,
+ * by sender and message id. A message whose fragments do not all arrive within a timeout is dropped,
+ * and so are the oldest partial messages once they hold more than a given number of bytes, so that
+ * lost fragments or a misbehaving sender cannot exhaust memory. The bytes held include the table of
+ * fragments every partial message gets from its header, whose count is bounded by the number of
+ * fragments of the longest message split for the smallest MTU, and each sender may only have so many
+ * partial messages, so a flood of first fragments cannot crowd out the other senders. It can be
+ * shared by several threads.
+ */
+public class FragmentReassembler {
+  private static final int MESSAGE_OVERHEAD = 64; // the message, its key, its map entry and its table header
+  private final LinkedHashMap<Key, Message> messages = new LinkedHashMap<>(); // oldest first
+  private final HashMap<SocketAddress, Integer> messagesBySender = new HashMap<>();
+  private final int maxMessageLength;
+  private final int maxFragments;
+  private final long maxPendingBytes;
+  private final int maxMessagesPerSender;
+  private final long timeoutNanos;
+  private long pendingBytes;
+  private long dropped;
+
+  /**
+   * Instantiates a new fragment reassembler.
+   *
+   * @param maxMessageLength     the length of a message beyond which it is dropped
+   * @param maxPendingBytes      the number of bytes partial messages may hold before the oldest is dropped
+   * @param maxMessagesPerSender the number of partial messages a sender may have before its oldest is
+   *                             dropped
+   * @param timeoutMillis        how long the fragments of a message may take to arrive
+   */
+  public FragmentReassembler(int maxMessageLength, long maxPendingBytes, int maxMessagesPerSender, long timeoutMillis) {
+    this.maxMessageLength = maxMessageLength;
+    this.maxFragments = (int) Math.min(BinaryProtocol.MAX_FRAGMENTS,
+        ((long) maxMessageLength + BinaryProtocol.MIN_FRAGMENT_PAYLOAD - 1) / BinaryProtocol.MIN_FRAGMENT_PAYLOAD);
+    this.maxPendingBytes = maxPendingBytes;
+    this.maxMessagesPerSender = Math.max(1, maxMessagesPerSender);
+    this.timeoutNanos = timeoutMillis * 1_000_000;
+  }
+
+  /**
+   * Adds a fragment, and returns its message once every fragment of it has arrived. A fragment that
+   * is malformed, repeated, or inconsistent with the others of its message is ignored, and so is one
+   * whose message would take more fragments than a message of the maximum length needs.
+   *
+   * @param sender   the address of the sender
+   * @param datagram the datagram, which starts with a fragment header
+   * @param length   the length of the datagram
+   * @return the message, or null if fragments are missing
+   */
+  public synchronized byte[] add(SocketAddress sender, byte[] datagram, int length) {
+    long now = System.nanoTime();
+    this.expire(now);
+    if (length <= BinaryProtocol.FRAGMENT_HEADER_LENGTH || datagram[0] != BinaryProtocol.FRAGMENT_MAGIC) {
+      return null;
+    }
+    Key key = new Key(sender, BinaryProtocol.readInt(datagram, 1));
+    int index = ((datagram[5] & 0xFF) << 8) | (datagram[6] & 0xFF);
+    int count = ((datagram[7] & 0xFF) << 8) | (datagram[8] & 0xFF);
+    int fragmentLength = length - BinaryProtocol.FRAGMENT_HEADER_LENGTH;
+    if (index >= count || count > this.maxFragments) {
+      return null;
+    }
+    Message message = this.messages.get(key);
+    if (message == null) {
+      this.makeRoomFor(sender);
+      message = new Message(count, now);
+      this.messages.put(key, message);
+      this.messagesBySender.merge(sender, 1, Integer::sum);
+      this.pendingBytes += message.weight();
+    }
+    if (message.fragments.length != count || message.fragments[index] != null) {
+      return null;
+    }
+    if (message.length + fragmentLength > this.maxMessageLength) {
+      this.remove(key, message);
+      return null;
+    }
+    message.fragments[index] = new byte[fragmentLength];
+    System.arraycopy(datagram, BinaryProtocol.FRAGMENT_HEADER_LENGTH, message.fragments[index], 0, fragmentLength);
+    message.length += fragmentLength;
+    message.received++;
+    this.pendingBytes += fragmentLength;
+    if (message.received < count) {
+      this.shed(key);
+      return null;
+    }
+    this.forget(key, message);
+    byte[] whole = new byte[message.length];
+    int offset = 0;
+    for (byte[] fragment : message.fragments) {
+      System.arraycopy(fragment, 0, whole, offset, fragment.length);
+      offset += fragment.length;
+    }
+    return whole;
+  }
+
+  /**
+   * Gets the number of partial messages dropped so far, because they timed out, grew too long or did
+   * not fit.
+   *
+   * @return the number of messages dropped
+   */
+  public synchronized long getDropped() {
+    return this.dropped;
+  }
+
+  /**
+   * Drops the partial messages whose first fragment arrived longer ago than the timeout.
+   */
+  private void expire(long now) {
+    Iterator<Map.Entry<Key, Message>> iterator = this.messages.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Key, Message> entry = iterator.next();
+      if (now - entry.getValue().startNanos < this.timeoutNanos) {
+        return; // the others started later
+      }
+      iterator.remove();
+      this.release(entry.getKey(), entry.getValue());
+      this.dropped++;
+    }
+  }
+
+  /**
+   * Drops the oldest partial messages, other than the one just added to, while they hold too many
+   * bytes.
+   */
+  private void shed(Key current) {
+    Iterator<Map.Entry<Key, Message>> iterator = this.messages.entrySet().iterator();
+    while (this.pendingBytes > this.maxPendingBytes && iterator.hasNext()) {
+      Map.Entry<Key, Message> entry = iterator.next();
+      if (!entry.getKey().equals(current)) {
+        iterator.remove();
+        this.release(entry.getKey(), entry.getValue());
+        this.dropped++;
+      }
+    }
+  }
+
+  /**
+   * Drops the oldest partial message of a sender that has as many as it may have.
+   */
+  private void makeRoomFor(SocketAddress sender) {
+    Integer count = this.messagesBySender.get(sender);
+    if (count == null || count < this.maxMessagesPerSender) {
+      return;
+    }
+    Iterator<Map.Entry<Key, Message>> iterator = this.messages.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Key, Message> entry = iterator.next();
+      if (entry.getKey().sender.equals(sender)) {
+        iterator.remove();
+        this.release(entry.getKey(), entry.getValue());
+        this.dropped++;
+        return;
+      }
+    }
+  }
+
+  private void remove(Key key, Message message) {
+    this.forget(key, message);
+    this.dropped++;
+  }
+
+  private void forget(Key key, Message message) {
+    this.messages.remove(key);
+    this.release(key, message);
+  }
+
+  /**
+   * Gives back what a message that left the table held.
+   */
+  private void release(Key key, Message message) {
+    this.pendingBytes -= message.weight() + message.length;
+    this.messagesBySender.computeIfPresent(key.sender, (sender, count) -> count == 1 ? null : count - 1);
+  }
+
+  /**
+   * The sender and id of a message.
+   */
+  private static final class Key {
+    private final SocketAddress sender;
+    private final int messageId;
+
+    private Key(SocketAddress sender, int messageId) {
+      this.sender = sender;
+      this.messageId = messageId;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Key && ((Key) other).messageId == this.messageId && ((Key) other).sender.equals(this.sender);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * this.sender.hashCode() + this.messageId;
+    }
+  }
+
+  /**
+   * The fragments of a message received so far.
+   */
+  private static final class Message {
+    private final byte[][] fragments;
+    private final long startNanos;
+    private int received;
+    private int length;
+
+    private Message(int count, long startNanos) {
+      this.fragments = new byte[count][];
+      this.startNanos = startNanos;
+    }
+
+    /**
+     * The bytes the message holds besides its fragments.
+     */
+    private long weight() {
+      return MESSAGE_OVERHEAD + 8L * this.fragments.length;
+    }
+  }
+}
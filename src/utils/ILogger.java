@@ -11,6 +11,15 @@ public interface ILogger {
    */
   void log(String msg);
 
+  /**
+   * Tells whether logged messages are recorded at all, so that callers can skip building them.
+   *
+   * @return true if messages are recorded
+   */
+  default boolean isEnabled() {
+    return true;
+  }
+
   /**
    * Shuts down the logger.
    */
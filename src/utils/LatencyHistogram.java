@@ -0,0 +1,174 @@
+package utils;
+
+/**
+ * This class represents a histogram of latencies in nanoseconds. Buckets are log-linear: every power
+ * of two is split into 64 equal buckets, so a recorded value is reported within 1.6% of itself
+ * whatever its magnitude, in a fixed 30 KB of counts. It is not thread-safe: every thread records
+ * into its own histogram and the histograms are added together at the end.
+ *
+ * <p>A closed-loop client only sends a request once the previous one is answered, so a stall of the
+ * server delays the requests that would have been sent meanwhile instead of showing up in their
+ * latency. {@link #recordCorrected(long, long)} makes up for this coordinated omission by also
+ * recording the latencies those requests would have seen.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS; // values below it are counted exactly
+  private static final int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT / 2;
+  /**
+   * The number of buckets.
+   */
+  static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * HALF_SUB_BUCKET_COUNT;
+  private final long[] counts = new long[BUCKET_COUNT];
+  private long totalCount;
+  private long min = Long.MAX_VALUE;
+  private long max;
+  private double sum;
+
+  /**
+   * Records a latency.
+   *
+   * @param nanos the latency in nanoseconds; negative values count as 0
+   */
+  public void record(long nanos) {
+    long value = Math.max(0, nanos);
+    this.counts[indexOf(value)]++;
+    this.totalCount++;
+    this.sum += value;
+    this.min = Math.min(this.min, value);
+    this.max = Math.max(this.max, value);
+  }
+
+  /**
+   * Records a latency measured by a closed-loop client, along with the latencies of the requests it
+   * would have sent every expected interval while it waited: the latency minus one interval, minus
+   * two, and so on while that is at least one interval.
+   *
+   * @param nanos                 the latency in nanoseconds
+   * @param expectedIntervalNanos the time between two requests when nothing stalls, or 0 to record
+   *                              the latency alone
+   */
+  public void recordCorrected(long nanos, long expectedIntervalNanos) {
+    this.record(nanos);
+    if (expectedIntervalNanos <= 0) {
+      return;
+    }
+    for (long missing = nanos - expectedIntervalNanos; missing >= expectedIntervalNanos; missing -= expectedIntervalNanos) {
+      this.record(missing);
+    }
+  }
+
+  /**
+   * Adds the latencies recorded by another histogram to this one.
+   *
+   * @param other the other histogram
+   */
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < this.counts.length; i++) {
+      this.counts[i] += other.counts[i];
+    }
+    this.totalCount += other.totalCount;
+    this.sum += other.sum;
+    this.min = Math.min(this.min, other.min);
+    this.max = Math.max(this.max, other.max);
+  }
+
+  /**
+   * Adds the latencies counted in a bucket, as if each were the highest value of the bucket.
+   *
+   * @param index the bucket
+   * @param count the number of latencies
+   */
+  void addBucket(int index, long count) {
+    if (count == 0) {
+      return;
+    }
+    long value = highestValueOf(index);
+    this.counts[index] += count;
+    this.totalCount += count;
+    this.sum += (double) value * count;
+    this.min = Math.min(this.min, value);
+    this.max = Math.max(this.max, value);
+  }
+
+  /**
+   * Gets the number of recorded latencies.
+   *
+   * @return the count
+   */
+  public long getCount() {
+    return this.totalCount;
+  }
+
+  /**
+   * Gets the highest recorded latency.
+   *
+   * @return the latency in nanoseconds, or 0 if none was recorded
+   */
+  public long getMax() {
+    return this.max;
+  }
+
+  /**
+   * Gets the mean of the recorded latencies.
+   *
+   * @return the mean in nanoseconds, or 0 if none was recorded
+   */
+  public double getMean() {
+    return this.totalCount == 0 ? 0 : this.sum / this.totalCount;
+  }
+
+  /**
+   * Gets the latency that a given percentage of the recorded latencies do not exceed.
+   *
+   * @param percentile the percentage, between 0 and 100
+   * @return the latency in nanoseconds, as the upper bound of its bucket, or 0 if none was recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (this.totalCount == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * this.totalCount));
+    long seen = 0;
+    for (int i = 0; i < this.counts.length; i++) {
+      seen += this.counts[i];
+      if (seen >= rank) {
+        return Math.max(this.min, Math.min(this.max, highestValueOf(i)));
+      }
+    }
+    return this.max;
+  }
+
+  /**
+   * Describes the distribution in microseconds.
+   *
+   * @return the description
+   */
+  @Override
+  public String toString() {
+    return String.format("p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus (%d samples)",
+        this.getValueAtPercentile(50) / 1e3, this.getValueAtPercentile(90) / 1e3, this.getValueAtPercentile(99) / 1e3,
+        this.getValueAtPercentile(99.9) / 1e3, this.max / 1e3, this.totalCount);
+  }
+
+  /**
+   * Gets the bucket of a value: the value itself below {@value #SUB_BUCKET_COUNT}, and then 64
+   * buckets per power of two, indexed by the 6 bits after the highest one.
+   */
+  static int indexOf(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1); // keeps the 7 highest bits
+    return SUB_BUCKET_COUNT + (shift - 1) * HALF_SUB_BUCKET_COUNT + (int) (value >>> shift) - HALF_SUB_BUCKET_COUNT;
+  }
+
+  private static long highestValueOf(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = (index - SUB_BUCKET_COUNT) / HALF_SUB_BUCKET_COUNT + 1;
+    long subBucket = (index - SUB_BUCKET_COUNT) % HALF_SUB_BUCKET_COUNT + HALF_SUB_BUCKET_COUNT;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
@@ -3,6 +3,7 @@ package utils;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.logging.FileHandler;
+import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.SimpleFormatter;
 
@@ -52,6 +53,16 @@ public class Logger implements ILogger {
     this.logger.info(msg); // log a message with millisecond precision timestamp
   }
 
+  /**
+   * Tells whether logged messages are recorded, honoring the level configured for this logger.
+   *
+   * @return true if messages are recorded
+   */
+  @Override
+  public boolean isEnabled() {
+    return this.logger.isLoggable(Level.INFO);
+  }
+
   /**
    * Shuts down the logger.
    */